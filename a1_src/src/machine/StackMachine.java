@@ -62,7 +62,17 @@ public class StackMachine {
         EnumSet.complementOf( TRACE_ALL );
     /** Current tracing during execution of stack machine */
     private EnumSet<Trace> tracing = TRACE_NONE;
-    
+
+    /** Execution engines for running the loaded code */
+    public static enum Engine {
+        /** Decode each instruction word as it is executed */
+        INTERPRETER,
+        /** Pre-decode the code words and run a tight dispatch loop */
+        THREADED;
+    }
+    /** Engine used to run the code */
+    private Engine engine = Engine.INTERPRETER;
+
     /** Object to handle error reports */
     private Errors error;
     /** Stores addresses of procedure starts */
@@ -103,18 +113,32 @@ public class StackMachine {
     public void setListing( boolean list ) {
         listing = list;
     }
+    /** Specify the reader from which READ instructions take their
+     * input (by default the standard input) */
+    public void setInput( BufferedReader in ) {
+        this.in = in;
+    }
     /** Specify whether code tracing is to be output when executing */
     public void setTracing( EnumSet<Trace> flags ) {
         tracing = flags;
     }
+    /** Specify the engine used to execute the code. The threaded engine
+     * is only used when no tracing is requested. */
+    public void setEngine( Engine engine ) {
+        this.engine = engine;
+    }
     /** Begin executing the code stored in the stack machine. 
      * Runs until a STOP opcode, a return to 0, or an illegal condition 
      * (e.g., popping an empty stack.
      */
     public void run( ) {
         running = true;
-        while( running ) {
-            execInstruction();
+        if( engine == Engine.THREADED && tracing.isEmpty() ) {
+            runThreaded();
+        } else {
+            while( running ) {
+                execInstruction();
+            }
         }
         System.out.println();
         System.out.println("Terminated");
@@ -541,4 +565,326 @@ public class StackMachine {
             System.out.println("\nError: Opcode not implemented: " + inst );
         }
     }
+
+/************************** Threaded Execution ******************************/
+    /** Pre-decode the loaded code words into their operations.
+     * Words that are not valid operation codes are decoded as null.
+     * Every word is decoded (not just those at instruction boundaries)
+     * so that a branch into the middle of an instruction behaves exactly
+     * as it does in the interpreter.
+     */
+    private Operation[] decode() {
+        Operation[] decoded = new Operation[ currLocn - CODE_START ];
+        for( int locn = CODE_START; locn < currLocn; locn++ ) {
+            int word = memory[locn];
+            if( 0 <= word && word < getOperation.length ) {
+                decoded[ locn - CODE_START ] = getOperation[word];
+            }
+        }
+        return decoded;
+    }
+    /** Execute the code from its pre-decoded form.
+     * The registers are held in local variables and the stack accesses
+     * are inlined, with no per-instruction tracing checks.
+     * Every check made by the interpreter is made here before the
+     * instruction changes any state. If an instruction would fail (or
+     * needs input), the registers are written back and that instruction
+     * is executed by execInstruction(), so that the output, including any
+     * runtime error report, is identical to that of the interpreter.
+     * Code can't be overwritten (stores are limited to below CODE_START)
+     * so the decoded form remains valid for the whole run.
+     */
+    private void runThreaded() {
+        final Operation[] decoded = decode();
+        final int[] mem = memory;
+        int pc = this.pc;
+        int fp = this.fp;
+        int sp = this.sp;
+        int limit = this.limit;
+        while( running ) {
+            Operation inst = null;
+            if( CODE_START <= pc && pc < currLocn ) {
+                inst = decoded[ pc - CODE_START ];
+            }
+            int address, top, count;
+            slow: if( inst != null ) {
+                switch( inst ) {
+                case NO_OP:
+                    pc++;
+                    continue;
+                case BR_FALSE:
+                    if( sp < 2 ) break slow;
+                    top = mem[sp-2];
+                    if( top == FALSE_VALUE ) {
+                        pc += 1 + mem[sp-1];
+                    } else if( top == TRUE_VALUE ) {
+                        pc++;
+                    } else {
+                        break slow;
+                    }
+                    sp -= 2;
+                    continue;
+                case COPY:
+                    if( sp < 3 ) break slow;
+                    count = mem[sp-1];
+                    int fromAddr = fp + mem[sp-2];
+                    int toAddr = fp + mem[sp-3];
+                    if( count > 0 && ( fromAddr < 0 ||
+                            fromAddr + count > MEM_LIMIT || toAddr < 0 ||
+                            toAddr + count > CODE_START ) ) {
+                        break slow;
+                    }
+                    sp -= 3;
+                    for( int i = 0; i < count; i++ ) {
+                        mem[toAddr + i] = mem[fromAddr + i];
+                    }
+                    pc++;
+                    continue;
+                case CALL:
+                    if( sp < 1 || sp >= limit ) break slow;
+                    address = mem[sp-1];
+                    mem[sp-1] = fp;         /* dynamic link */
+                    fp = sp - 2;
+                    mem[sp++] = pc + 1;     /* return address */
+                    pc = address;
+                    continue;
+                case RETURN:
+                    if( fp < 0 || fp + 3 > MEM_LIMIT ) break slow;
+                    sp = fp;
+                    pc = mem[fp+2];
+                    fp = mem[fp+1];
+                    if( pc == 0 ) {
+                        running = false;
+                    }
+                    continue;
+                case ALLOC_STACK:
+                    if( sp < 1 ) break slow;
+                    count = mem[sp-1];
+                    if( count > 0 && sp - 1 + count > limit ) break slow;
+                    sp--;
+                    for( int i = 0; i < count; i++ ) {
+                        mem[sp++] = NULL_ADDR;
+                    }
+                    pc++;
+                    continue;
+                case DEALLOC_STACK:
+                    if( sp < 1 ) break slow;
+                    count = mem[sp-1];
+                    if( sp - 1 - count <= fp + 2 ) break slow;
+                    sp = sp - 1 - count;
+                    pc++;
+                    continue;
+                case POP:
+                    if( sp < 1 ) break slow;
+                    sp--;
+                    pc++;
+                    continue;
+                case DUP:
+                    if( sp < 1 || sp >= limit ) break slow;
+                    mem[sp] = mem[sp-1];
+                    sp++;
+                    pc++;
+                    continue;
+                case SWAP:
+                    if( sp < 2 || sp > limit ) break slow;
+                    top = mem[sp-1];
+                    mem[sp-1] = mem[sp-2];
+                    mem[sp-2] = top;
+                    pc++;
+                    continue;
+                case DIV:
+                    if( sp < 2 || sp > limit + 1 || mem[sp-1] == 0 ) break slow;
+                    mem[sp-2] = mem[sp-2] / mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case MPY:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] * mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case ADD:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] + mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case XOR:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] ^ mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case OR:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] | mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case AND:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] & mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case EQUAL:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] == mem[sp-1] ?
+                            TRUE_VALUE : FALSE_VALUE;
+                    sp--;
+                    pc++;
+                    continue;
+                case LESS:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] < mem[sp-1] ?
+                            TRUE_VALUE : FALSE_VALUE;
+                    sp--;
+                    pc++;
+                    continue;
+                case LESSEQ:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] <= mem[sp-1] ?
+                            TRUE_VALUE : FALSE_VALUE;
+                    sp--;
+                    pc++;
+                    continue;
+                case NOT:
+                    if( sp < 1 || sp > limit ) break slow;
+                    mem[sp-1] = ~mem[sp-1];
+                    pc++;
+                    continue;
+                case NEGATE:
+                    if( sp < 1 || sp > limit ) break slow;
+                    mem[sp-1] = -mem[sp-1];
+                    pc++;
+                    continue;
+                case WRITE:
+                    if( sp < 1 ) break slow;
+                    System.out.println( Integer.toString( mem[--sp] ) );
+                    pc++;
+                    continue;
+                case BOUND:
+                    if( sp < 3 || sp > limit + 2 ) break slow;
+                    top = mem[sp-3];
+                    if( top < mem[sp-2] || top > mem[sp-1] ) break slow;
+                    sp -= 2;
+                    pc++;
+                    continue;
+                case TO_GLOBAL:
+                    if( sp < 1 || sp > limit ) break slow;
+                    mem[sp-1] += fp;
+                    pc++;
+                    continue;
+                case TO_LOCAL:
+                    if( sp < 1 || sp > limit ) break slow;
+                    mem[sp-1] -= fp;
+                    pc++;
+                    continue;
+                case LOAD_CON:
+                    if( sp >= limit || pc + 1 >= MEM_LIMIT ) break slow;
+                    mem[sp++] = mem[pc+1];
+                    pc += 2;
+                    continue;
+                case LOAD_ABS:
+                    if( sp < 1 || sp > limit ) break slow;
+                    address = mem[sp-1];
+                    if( address < 0 || address >= MEM_LIMIT ) break slow;
+                    mem[sp-1] = mem[address];
+                    pc++;
+                    continue;
+                case STORE_FRAME:
+                    if( sp < 2 ) break slow;
+                    address = fp + mem[sp-2];
+                    if( address < 0 || address >= CODE_START ) break slow;
+                    mem[address] = mem[sp-1];
+                    sp -= 2;
+                    pc++;
+                    continue;
+                case LOAD_FRAME:
+                    if( sp < 1 || sp > limit ) break slow;
+                    address = fp + mem[sp-1];
+                    if( address < 0 || address >= MEM_LIMIT ) break slow;
+                    mem[sp-1] = mem[address];
+                    pc++;
+                    continue;
+                case STORE_REL:
+                    if( sp < 3 ) break slow;
+                    address = mem[sp-2] + mem[sp-3];
+                    if( address < 0 || address >= CODE_START ) break slow;
+                    mem[address] = mem[sp-1];
+                    sp -= 3;
+                    pc++;
+                    continue;
+                case LOAD_REL:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    address = mem[sp-1] + mem[sp-2];
+                    if( address < 0 || address >= MEM_LIMIT ) break slow;
+                    mem[sp-2] = mem[address];
+                    sp--;
+                    pc++;
+                    continue;
+                case ZERO:
+                    if( sp >= limit ) break slow;
+                    mem[sp++] = 0;
+                    pc++;
+                    continue;
+                case ONE:
+                    if( sp >= limit ) break slow;
+                    mem[sp++] = 1;
+                    pc++;
+                    continue;
+                case ALLOC_HEAP:
+                    if( sp < 1 ) break slow;
+                    count = mem[sp-1];
+                    address = limit - count;
+                    if( count < 0 || sp - 1 >= address ) break slow;
+                    limit = address;
+                    mem[sp-1] = limit;
+                    for( int i = limit; i < limit + count; i++ ) {
+                        mem[i] = NULL_ADDR;
+                    }
+                    pc++;
+                    continue;
+                case LOAD_MULTI:
+                    if( sp < 2 ) break slow;
+                    count = mem[sp-1];
+                    address = fp + mem[sp-2];
+                    if( count > 0 && ( address < 0 ||
+                            address + count > MEM_LIMIT ||
+                            sp - 2 + count > limit ) ) {
+                        break slow;
+                    }
+                    sp -= 2;
+                    for( int i = 0; i < count; i++ ) {
+                        mem[sp++] = mem[address++];
+                    }
+                    pc++;
+                    continue;
+                case STORE_MULTI:
+                    if( sp < 2 ) break slow;
+                    count = mem[sp-1];
+                    address = fp + mem[sp-2];
+                    if( count > 0 && ( sp - 2 < count ||
+                            address < 0 || address + count > CODE_START ) ) {
+                        break slow;
+                    }
+                    sp -= 2;
+                    for( int i = 0; i < count; i++ ) {
+                        mem[address++] = mem[--sp];
+                    }
+                    pc++;
+                    continue;
+                default:
+                    /* READ and STOP are left to the interpreter */
+                    break slow;
+                }
+            }
+            /* Let the interpreter execute (and report on) this instruction */
+            this.pc = pc; this.fp = fp; this.sp = sp; this.limit = limit;
+            execInstruction();
+            pc = this.pc; fp = this.fp; sp = this.sp; limit = this.limit;
+        }
+        this.pc = pc; this.fp = fp; this.sp = sp; this.limit = limit;
+    }
 }
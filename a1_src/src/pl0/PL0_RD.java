@@ -1,5 +1,21 @@
 package pl0;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import parser.Parser;
 import parser.Scanner;
@@ -7,6 +23,7 @@ import source.ErrorHandler;
 import source.Errors;
 import source.Source;
 import tree.CodeGenerator;
+import tree.LoopInvariantMover;
 import tree.StaticChecker;
 import tree.Tree;
 import tree.Code;
@@ -23,53 +40,95 @@ public class PL0_RD {
     public static void usage() {
         System.out.println(
             "PL0 Compiler\n" +
-            "Usage: java pl0.PL0_RD [-cdhptv] <filename>\n"+
+            "Usage: java pl0.PL0_RD [-cdfhptvO] <filename>\n"+
+            "       java pl0.PL0_RD -b dir [-n n] [options] <filename or directory>...\n" +
+            "  -b dir = batch: compile and run each file (or the .pl0 files in\n" +
+            "           each directory) in turn, writing the output of each\n" +
+            "           to dir/r-<filename>; input is read from <file>.in\n" +
+            "  -n n = in batch mode, compile and run n files at a time, each\n" +
+            "           in its own thread (0 for one per processor; default 1)\n" +
             "  -c  =  compile only (no execution)\n" +
             "  -d  =  debug parse\n" +
+            "  -f  =  run code with the faster threaded engine\n" +
             "  -h  =  output this usage information\n" +
             "  -p  =  parse only (implies -c)\n" +
             "  -t  =  trace execution of resulting code\n" +
             "  -v  =  verbose output of generated code\n" +
+            "  -O  =  optimise: move invariant expressions out of loops\n" +
             " <filename> is compiled, and if no errors the generated code" +
             " is executed unless -c or -p is given." );
     }
+    /** Size given by the command line argument following an option */
+    private static int sizeArgument( String args[], int i ) {
+        try {
+            int size = Integer.parseInt( args[i] );
+            if( size >= 0 ) {
+                return size;
+            }
+        } catch( RuntimeException e ) {
+            /* missing or not a number */
+        }
+        usage();
+        System.exit( 1 );
+        return 0;
+    }
     public static String SourceSuffix = ".pl0";
+    /** Suffix of the file holding the input of a program run in batch */
+    public static String InputSuffix = ".in";
+
+    /** Perform a static check */
+    private static boolean staticCheck = true;
+    /** Execute after successful compile */
+    private static boolean executing = true;
+    /** Detailed trace of execution */
+    private static boolean tracing = false;
+    /** Verbose output of code generation */
+    private static boolean verbose = false;
+    /** Debug mode for parser - quite verbose */
+    private static boolean debugParse = false;
+    /** Run using the threaded execution engine */
+    private static boolean threaded = false;
+    /** Optimise the tree before generating code */
+    private static boolean optimising = false;
 
     /** PL0 main procedure */
     public static void main( String args[] ) throws java.lang.Exception {
-        /** Name of the input source program file. */
-        String srcFile = null;
-        /** Error handler for reporting error messages */
-        Errors errors;
-        /** Input source stream */
-        Source src;
-        /** Generated code for the program */
-        Code code = null;
-        /** Perform a static check */
-        boolean staticCheck = true;
-        /** Execute after successful compile */
-        boolean executing = true;
-        /** Detailed trace of execution */
-        boolean tracing = false;
-        /** Verbose output of code generation */
-        boolean verbose = false;
-        /** Debug mode for parser - quite verbose */
-        boolean debugParse = false;
+        /** Names of the input source program files (or directories of 
+         * them in batch mode). */
+        List<String> srcFiles = new ArrayList<String>();
+        /** Directory for the output of each program in batch mode, 
+         * or null if not in batch mode */
+        String batchDir = null;
+        /** Number of threads used in batch mode (0 for one per processor) */
+        int threads = 1;
 
         /* Parse command line */
         for( int i=0; i<args.length; i++ ) {
             if( args[i].charAt(0) == '-' ) { /* Option */
                 switch( args[i].charAt(1) ) {
+                case 'b': /* Batch */
+                    if( ++i >= args.length ) {
+                        usage();
+                        System.exit( 1 );
+                    }
+                    batchDir = args[i];
+                    break;
                 case 'c': /* Compile only */
                     executing = false;
                     break;
                 case 'd': /* Debug parse */
                     debugParse = true;
                     break;
+                case 'f': /* Fast (threaded) execution */
+                    threaded = true;
+                    break;
                 case 'h': /* Help */
                     usage();
                     System.exit(0);
                     break;
+                case 'n': /* Number of threads in batch mode */
+                    threads = sizeArgument( args, ++i );
+                    break;
                 case 'p': /* Parse only */
                     staticCheck = false;
                     executing = false;
@@ -80,28 +139,173 @@ public class PL0_RD {
                 case 'v': /* Verbose output (of generated code) */
                     verbose = true;
                     break;
+                case 'O': /* Optimise */
+                    optimising = true;
+                    break;
                 }
             } else { /* ( args[i].charAt(0) != '-' ) Not Option */
-                srcFile = args[i];
+                srcFiles.add( args[i] );
+            }
+        }
+        if( srcFiles.isEmpty() ) {
+            System.out.println( "No source file specified." );
+            System.exit( 1 );
+        }
+        if( batchDir != null ) {
+            runBatch( sourceFiles( srcFiles ), new File( batchDir ), 
+                    threads == 0 ? 
+                        Runtime.getRuntime().availableProcessors() : threads );
+            return;
+        }
+        try {
+            /* The last file named is the one compiled */
+            compileAndRun( srcFiles.get( srcFiles.size() - 1 ), null );
+        } catch( IOException e ) {
+            System.out.println( "Got IOException: " + e + "... Aborting" );
+            System.exit(1);
+        }
+    }
+
+    /** The source files named, with each directory named replaced by 
+     * the source files within it (in name order) */
+    private static List<String> sourceFiles( List<String> names ) {
+        List<String> files = new ArrayList<String>();
+        for( String name : names ) {
+            File file = new File( name );
+            if( file.isDirectory() ) {
+                String[] within = file.list();
+                Arrays.sort( within );
+                for( String f : within ) {
+                    if( f.endsWith( SourceSuffix ) ) {
+                        files.add( new File( file, f ).getPath() );
+                    }
+                }
+            } else {
+                files.add( name );
+            }
+        }
+        return files;
+    }
+
+    /** Compile and run each of the source files in this JVM, using the
+     * given number of threads (each compiling and running one file at a
+     * time). The output for each file is written to the file r-<filename>
+     * in outDir, and its input read from the file <filename>.in beside it,
+     * if there is one (otherwise it has no input). 
+     */
+    private static void runBatch( List<String> srcFiles, final File outDir,
+            int threads ) {
+        final PrintStream console = System.out;
+        if( ! outDir.isDirectory() && ! outDir.mkdirs() ) {
+            console.println( "Cannot create directory " + outDir );
+            System.exit( 1 );
+        }
+        /* Output is directed to each file by the thread running it */
+        final ThreadOutputStream threadOut = new ThreadOutputStream( console );
+        System.setOut( new PrintStream( threadOut, true ) );
+        final AtomicInteger failed = new AtomicInteger();
+        long batchStart = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for( final String srcFile : srcFiles ) {
+                results.add( pool.submit( new Callable<String>() {
+                    public String call() {
+                        return runOne( srcFile, outDir, threadOut, failed );
+                    }
+                } ) );
+            }
+            /* Report on each file in order, as it completes */
+            for( Future<String> result : results ) {
+                try {
+                    console.println( result.get() );
+                } catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch( ExecutionException e ) {
+                    console.println( e.getCause() );
+                    failed.incrementAndGet();
+                }
             }
+        } finally {
+            pool.shutdownNow();
+            System.setOut( console );
         }
+        console.println( srcFiles.size() + " files, " + failed + 
+                " failed, in " + (System.currentTimeMillis() - batchStart) +
+                " ms" + (threads > 1 ? " using " + threads + " threads" : "") );
+    }
+    /** Compile and run srcFile as part of a batch, in the current thread.
+     * @return a line reporting the outcome
+     */
+    private static String runOne( String srcFile, File outDir, 
+            ThreadOutputStream threadOut, AtomicInteger failed ) {
+        long start = System.currentTimeMillis();
+        String name = new File( srcFile ).getName();
+        String status = "done";
+        PrintStream out = null;
+        BufferedReader input = null;
         try {
-            /* Set up the input source stream for the source file */
-            if( srcFile == null ) {
-                System.out.println( "No source file specified." );
-                System.exit( 1 );
+            out = new PrintStream( new BufferedOutputStream( 
+                    new FileOutputStream( new File( outDir, "r-" + name ) ) ) );
+            File inFile = new File( srcFile.substring( 0, 
+                    srcFile.length() - (srcFile.endsWith( SourceSuffix ) ?
+                        SourceSuffix.length() : 0) ) + InputSuffix );
+            input = new BufferedReader( inFile.exists() ? 
+                    new FileReader( inFile ) : new StringReader( "" ) );
+            threadOut.setStream( out );
+            compileAndRun( srcFile, input );
+        } catch( Exception e ) {
+            /* Report it as the program run alone would, and carry on */
+            e.printStackTrace( System.out );
+            status = "aborted: " + e;
+            failed.incrementAndGet();
+        } catch( Error e ) {
+            e.printStackTrace( System.out );
+            status = "aborted: " + e;
+            failed.incrementAndGet();
+        } finally {
+            System.out.flush();
+            threadOut.setStream( null );
+            if( out != null ) {
+                out.close();
+            }
+            try {
+                if( input != null ) {
+                    input.close();
+                }
+            } catch( IOException e ) {
+                /* ignore */
             }
-            src = new Source( srcFile );
-            /* Set up the error handler reference */
-            errors = new ErrorHandler( System.out, src );
+        }
+        return name + ": " + status + " (" + 
+                (System.currentTimeMillis() - start) + " ms)";
+    }
+
+    /** Compile the program in srcFile and, if it compiles and is to be
+     * executed, run it.
+     * @param srcFile name of the source file
+     * @param input from which the program reads, or null for the
+     *  standard input
+     */
+    private static void compileAndRun( String srcFile, BufferedReader input )
+        throws IOException, Exception
+    {
+        /* Set up the input source stream for the source file */
+        Source src = new Source( srcFile );
+        /* Set up the error handler reference */
+        ErrorHandler errors = new ErrorHandler( System.out, src );
+        try {
             /* Compile the program */
-            code = compile( src, errors, verbose, staticCheck, debugParse );
+            Code code = 
+                compile( src, errors, verbose, staticCheck, debugParse,
+                        optimising );
             if( executing && code != null ) { /* run it if possible */
-                execute( errors, code, tracing, verbose );
+                execute( errors, code, input, tracing, threaded, verbose );
             }
-        } catch( IOException e ) {
-            System.out.println( "Got IOException: " + e + "... Aborting" );
-            System.exit(1);
+        } finally {
+            errors.close();
+            src.close();
         }
     }
 
@@ -109,16 +313,26 @@ public class PL0_RD {
      * execute the code
      * @param errors error message handler
      * @param code sequence of instructions to be loaded
+     * @param input from which the program reads, or null for the
+     *  standard input
      * @param tracing trace instruction execution
+     * @param threaded use the threaded execution engine
      * @param verbose listing of instructions loaded
      */
-    private static void execute( Errors errors, Code code, boolean tracing, 
+    private static void execute( Errors errors, Code code, 
+            BufferedReader input, boolean tracing, boolean threaded, 
             boolean verbose ) {
         StackMachine machine;
         machine = new StackMachine( errors, verbose, code );
         System.out.println( "Running ..." );
+        if( input != null ) {
+            machine.setInput( input );
+        }
         machine.setTracing( tracing ? StackMachine.TRACE_ALL 
                          : StackMachine.TRACE_NONE );
+        if( threaded ) {
+            machine.setEngine( StackMachine.Engine.THREADED );
+        }
         machine.run();
     }
 
@@ -129,10 +343,12 @@ public class PL0_RD {
      * @param verbose generate more messages during compilation
      * @param staticCheck do the static checking
      * @param debugParse debugging messages during parsing 
+     * @param optimising optimise the tree before generating code
      * @return generated code and procedure addresses table
      */
     private static Code compile( Source src, Errors errors, 
-            boolean verbose, boolean staticCheck, boolean debugParse ) 
+            boolean verbose, boolean staticCheck, boolean debugParse,
+            boolean optimising ) 
         throws IOException, Exception
     {
         /** Abstract syntax tree returned by parser */
@@ -173,6 +389,15 @@ public class PL0_RD {
             System.out.println( "Exception: " + e + "... Aborting" );
             System.exit(1);
         }
+        if( tree != null && optimising ) {
+            /* Move expressions that don't change out of loops */
+            LoopInvariantMover mover = new LoopInvariantMover();
+            mover.visitProgramNode( tree );
+            if( verbose ) {
+                System.out.println( "Loop-invariant code motion moved " +
+                        mover.getMoved() + " expressions" );
+            }
+        }
         if( tree != null ) {
             /* Generate the stack machine code */
             CodeGenerator codeGen = new CodeGenerator( errors, verbose );
@@ -0,0 +1,51 @@
+package pl0;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * class ThreadOutputStream - an output stream that passes what is written
+ * to it on to the stream set for the thread writing, or to a default
+ * stream if none has been set. Installed (within a PrintStream) as
+ * System.out, it lets programs compiled and run in several threads at
+ * once each have their own output.
+ * @version $Id: ThreadOutputStream.java 8 2013-02-22 06:25:04Z ianh $
+ */
+public class ThreadOutputStream extends OutputStream {
+
+    /** Stream used by threads for which none has been set */
+    private final OutputStream defaultOut;
+    /** Stream set for each thread */
+    private final ThreadLocal<OutputStream> out =
+        new ThreadLocal<OutputStream>();
+
+    public ThreadOutputStream( OutputStream defaultOut ) {
+        this.defaultOut = defaultOut;
+    }
+    /** Direct the output of the current thread to stream (or to the
+     * default stream if stream is null) */
+    public void setStream( OutputStream stream ) {
+        if( stream == null ) {
+            out.remove();
+        } else {
+            out.set( stream );
+        }
+    }
+    /** @return the stream for the current thread */
+    private OutputStream stream() {
+        OutputStream stream = out.get();
+        return stream == null ? defaultOut : stream;
+    }
+    @Override
+    public void write( int b ) throws IOException {
+        stream().write( b );
+    }
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+        stream().write( b, off, len );
+    }
+    @Override
+    public void flush() throws IOException {
+        stream().flush();
+    }
+}
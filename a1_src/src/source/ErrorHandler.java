@@ -17,8 +17,11 @@ public class ErrorHandler implements Errors
     private static final int LINE_NUM_WIDTH = 6;
     private static final int MAX_ERRORS = 100;
 
-    /** global handle on the singleton error handler. */
-    private static ErrorHandler handler = null;
+    /** Handle on the error handler of the compilation running in each
+     * thread, so that programs may be compiled in several threads at once.
+     * Within a thread there is a single error handler at a time. */
+    private static final ThreadLocal<ErrorHandler> handler =
+        new ThreadLocal<ErrorHandler>();
 
     /** Accumulated error messages. */
     private List<CompileError> errors;
@@ -34,21 +37,28 @@ public class ErrorHandler implements Errors
     private int inputIndex;
 
     public ErrorHandler( PrintStream output, Source source ) {
-        assert handler == null; // only one instance allowed
+        assert handler.get() == null; // only one instance per thread
         this.errors = new ArrayList<CompileError>( MAX_ERRORS );
         this.numberOfErrors = 0;
         this.output = output;
         this.source = source;
-        handler = this;
+        handler.set( this );
     }
     /** count errors of each severity for the program. 
     private Map<Severity, Integer> errorCounts = 
         new EnumMap<Severity, Integer>( Severity.class ); 
     */
 
-    /** @return the singleton error handler. */
+    /** Release the handle on this error handler, so that another
+     * can be created for the next program compiled in this thread. */
+    public void close() {
+        if( handler.get() == this ) {
+            handler.remove();
+        }
+    }
+    /** @return the error handler of the current thread. */
     public static Errors getErrorHandler() {
-        return handler;
+        return handler.get();
     }
     
     /** Add an error, up to the limit of MAX_ERRORS.
@@ -139,6 +149,11 @@ public class ErrorHandler implements Errors
             output.println( e.toString() );
             previousLineNumber = lineNumber;
         }
+        try {
+            inputStream.close();
+        } catch( IOException e ) {
+            /* nothing more can be listed anyway */
+        }
     }
     
     /** Print the line from source file.
@@ -1,5 +1,4 @@
 package tree;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
 
@@ -28,6 +27,9 @@ public class CodeGenerator
     private int start;
     /** Table of procedure start and finish addresses */
     private Procedures procStarts;
+    /** Start and end of the innermost "do" statement being generated,
+     * the targets of the branches that loop and exit */
+    private Code.Label doStart, doEnd;
     
     public CodeGenerator(Errors errors, boolean verbose) {
         super();
@@ -139,64 +141,47 @@ public class CodeGenerator
         return code;
     }
     
-    /** Code generation for do branch node. */
+    /** Code generation for do branch node. If the condition is true
+     * the statements are executed and the do statement is either
+     * exited or repeated, otherwise control passes to the next branch. */
 	public Code visitDoBranchNode(StatementNode.DoBranchNode node) {
-		Code code = new Code();
-		
-        /* Generate code to evaluate the condition and then and else parts */
-        Code condition = node.getCondition().genCode( this );
-        Code statements = node.getStatements().genCode( this );
+        Code.Label next = new Code.Label();
         
-        /* Append condition */
-        code.append( condition );
+        /* Generate code to evaluate the condition */
+        Code code = node.getCondition().genCode( this );
         
-        /* Append a branch over then part to condition code */
-        code.genJumpIfFalse( statements.size() + Code.SIZE_JUMP_ALWAYS );
+        /* Append a branch to the next branch on false */
+        code.genJumpIfFalse( next );
         
         /* Next append the code for the then part */
-        code.append( statements );
+        code.append( node.getStatements().genCode( this ) );
         
+        /* Exit or repeat the do statement */
+        code.genJumpAlways( node.getIsExitBranch() ? doEnd : doStart );
+        code.genLabel( next );
 		return code;
 	}
 	
 	public Code visitDoStatementNode(StatementNode.DoStatementNode node) {
+        Code.Label outerStart = doStart;
+        Code.Label outerEnd = doEnd;
+        doStart = new Code.Label();
+        doEnd = new Code.Label();
         Code code = new Code();
-        List<StatementNode> doBranches = node.getBranches();
-        List<Code> branchCodes = new ArrayList<Code>();
-        
-        // Error code
-        Code error = new Code();
-        error.genLoadConstant( 3 );
-        error.generateOp( Operation.STOP );
+        code.genLabel( doStart );
         
         // Add branch codes
-        for( StatementNode d : doBranches ) {
-            branchCodes.add( d.genCode( this ) );
+        for( StatementNode d : node.getBranches() ) {
+        	code.append( d.genCode( this ) );
         }
         
-        int branch = 0;
-        for( StatementNode d : doBranches ) {
-        	// Append branch
-        	code.append(branchCodes.get(branch));
-        	boolean isExitBranch = ((StatementNode.DoBranchNode) d).getIsExitBranch();
-        	
-        	if (isExitBranch) { // Check exit
-        		// Calculate offsets
-        		int offset = 0;
-        		
-        		for ( int i = branch + 1; i < doBranches.size(); i++ ) {
-        			offset += branchCodes.get(i).size() + Code.SIZE_JUMP_ALWAYS;
-        		}
-        		offset += error.size();
-        		code.genJumpAlways( offset );
-        	} else {
-        		code.genJumpAlways( -(code.size() + Code.SIZE_JUMP_ALWAYS) );
-        	}
-        	
-        	branch++;
-        }
+        // Error code, reached if no branch condition is true
+        code.genLoadConstant( 3 );
+        code.generateOp( Operation.STOP );
+        code.genLabel( doEnd );
         
-        code.append(error);
+        doStart = outerStart;
+        doEnd = outerEnd;
 		return code;
 	}
     
@@ -241,39 +226,38 @@ public class CodeGenerator
 
     /** Generate code for an "if" statement. */
     public Code visitIfNode(StatementNode.IfNode node) {
-        /* Generate code to evaluate the condition and then and else parts */
+        Code.Label elseLabel = new Code.Label();
+        Code.Label endLabel = new Code.Label();
+        /* Generate code to evaluate the condition */
         Code code = node.getCondition().genCode( this );
-        Code thenCode = node.getThenStmt().genCode( this );
-        Code elseCode = node.getElseStmt().genCode( this );
         /* Append a branch over then part to condition code */
-        code.genJumpIfFalse( thenCode.size() + Code.SIZE_JUMP_ALWAYS );
+        code.genJumpIfFalse( elseLabel );
         /* Next append the code for the then part */
-        code.append( thenCode );
+        code.append( node.getThenStmt().genCode( this ) );
         /* Append branch over the else part */
-        code.genJumpAlways( elseCode.size() );
+        code.genJumpAlways( endLabel );
         /* Finally append the code for the else part */
-        code.append( elseCode );
+        code.genLabel( elseLabel );
+        code.append( node.getElseStmt().genCode( this ) );
+        code.genLabel( endLabel );
         return code;
     }
  
     /** Generate code for a "while" statement. */
     public Code visitWhileNode(StatementNode.WhileNode node) {
+        Code.Label startLabel = new Code.Label();
+        Code.Label endLabel = new Code.Label();
+        Code code = new Code();
+        code.genLabel( startLabel );
         /* Generate the code to evaluate the condition. */
-        Code code = node.getCondition().genCode( this );
-        /* Generate the code for the loop body */
-        Code bodyCode = node.getLoopStmt().genCode( this );
-        /* Add a branch over the loop body on false.
-         * The offset is the size of the loop body code plus 
-         * the size of the branch to follow the body.
-         */
-        code.genJumpIfFalse( bodyCode.size() + Code.SIZE_JUMP_ALWAYS );
+        code.append( node.getCondition().genCode( this ) );
+        /* Add a branch over the loop body on false. */
+        code.genJumpIfFalse( endLabel );
         /* Append the code for the body */
-        code.append( bodyCode );
-        /* Add a branch back to the condition.
-         * The offset is the total size of the current code plus the
-         * size of a Jump Always.
-         */
-        code.genJumpAlways( -(code.size() + Code.SIZE_JUMP_ALWAYS) );
+        code.append( node.getLoopStmt().genCode( this ) );
+        /* Add a branch back to the condition. */
+        code.genJumpAlways( startLabel );
+        code.genLabel( endLabel );
         return code;
     }
     /** Code generation for an erroneous expression should not be attempted. */
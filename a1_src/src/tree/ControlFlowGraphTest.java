@@ -0,0 +1,101 @@
+package tree;
+
+import junit.framework.TestCase;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class ControlFlowGraphTest - Junit test for ControlFlowGraph
+ * @version $Id: ControlFlowGraphTest.java 8 2013-02-22 06:25:04Z ianh $
+ */
+public class ControlFlowGraphTest extends TestCase {
+
+    public ControlFlowGraphTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+
+    private SymEntry.VarEntry x;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Scope scope = new Scope( null, null, 1 );
+        x = new SymEntry.VarEntry( "x", POS, scope,
+                new Type.ReferenceType( Type.INTEGER_TYPE ) );
+        x.resolve();
+    }
+
+    private ExpNode value() {
+        return new ExpNode.DereferenceNode( Type.INTEGER_TYPE,
+                new ExpNode.VariableNode( POS, x ) );
+    }
+    private StatementNode write() {
+        return new StatementNode.WriteNode( POS, value() );
+    }
+
+    /*
+     * Test the blocks of
+     *   write x; do x then write x [] x then write x exit od; write x
+     * where the first branch repeats the do statement and the second
+     * leaves it.
+     */
+    public void testDoStatement() {
+        StatementNode first = write();
+        StatementNode repeatBody = write();
+        StatementNode exitBody = write();
+        StatementNode.DoBranchNode repeat =
+            new StatementNode.DoBranchNode( POS, value(), repeatBody, false );
+        StatementNode.DoBranchNode exit =
+            new StatementNode.DoBranchNode( POS, value(), exitBody, true );
+        StatementNode.DoStatementNode loop =
+            new StatementNode.DoStatementNode( POS );
+        loop.addDoBranch( repeat );
+        loop.addDoBranch( exit );
+        StatementNode last = write();
+        StatementNode.ListNode body = new StatementNode.ListNode( POS );
+        body.addStatement( first );
+        body.addStatement( loop );
+        body.addStatement( last );
+
+        ControlFlowGraph<StatementNode> graph =
+            ControlFlowGraph.fromTree( body );
+        ControlFlowGraph.BasicBlock<StatementNode> entry = graph.getEntry();
+        ControlFlowGraph.BasicBlock<StatementNode> start = graph.getBlock( repeat );
+        ControlFlowGraph.BasicBlock<StatementNode> repeated =
+            graph.getBlock( repeatBody );
+        ControlFlowGraph.BasicBlock<StatementNode> second = graph.getBlock( exit );
+        ControlFlowGraph.BasicBlock<StatementNode> exited =
+            graph.getBlock( exitBody );
+        ControlFlowGraph.BasicBlock<StatementNode> after = graph.getBlock( last );
+        assertSame( entry, graph.getBlock( first ) );
+        /* The start is reached from before the do statement, and again
+         * after the repeat branch */
+        assertEquals( 2, start.getPredecessors().size() );
+        assertTrue( start.getPredecessors().contains( entry ) );
+        assertTrue( start.getPredecessors().contains( repeated ) );
+        assertEquals( 1, repeated.getSuccessors().size() );
+        assertSame( start, repeated.getSuccessors().get( 0 ) );
+        /* The second test follows the first when its condition is false */
+        assertEquals( 2, start.getSuccessors().size() );
+        assertTrue( start.getSuccessors().contains( repeated ) );
+        assertTrue( start.getSuccessors().contains( second ) );
+        /* The exit branch leaves the do statement */
+        assertEquals( 1, exited.getSuccessors().size() );
+        assertSame( after, exited.getSuccessors().get( 0 ) );
+        assertEquals( 1, after.getPredecessors().size() );
+        /* When no condition is true the program stops */
+        assertEquals( 2, second.getSuccessors().size() );
+        assertTrue( second.getSuccessors().contains( exited ) );
+        assertFalse( second.getSuccessors().contains( repeated ) );
+
+        assertTrue( graph.dominates( start, after ) );
+        assertTrue( graph.dominates( second, after ) );
+        assertFalse( graph.dominates( repeated, after ) );
+        assertSame( exited, graph.getImmediateDominator( after ) );
+        assertSame( entry, graph.getImmediateDominator( start ) );
+    }
+}
@@ -0,0 +1,117 @@
+package tree;
+
+import junit.framework.TestCase;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class DataFlowTest - Junit test for the analyses of DataFlow
+ * @version $Id: DataFlowTest.java 8 2013-02-22 06:25:04Z ianh $
+ */
+public class DataFlowTest extends TestCase {
+
+    public DataFlowTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+
+    private Scope scope;
+    private SymEntry.VarEntry x, y;
+    /* x := 1;
+     * do x < 10 then x := x + 1 [] x = 10 then y := x exit od;
+     * write y
+     */
+    private StatementNode.AssignmentNode initX, step, copy;
+    private StatementNode.DoBranchNode repeat, exit;
+    private StatementNode.WriteNode write;
+    private ControlFlowGraph<StatementNode> graph;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        scope = new Scope( null, null, 1 );
+        x = variable( "x" );
+        y = variable( "y" );
+        initX = assign( x, con( 1 ) );
+        step = assign( x, binary( BinaryOperator.ADD_OP, value( x ), con( 1 ),
+                Type.INTEGER_TYPE ) );
+        copy = assign( y, value( x ) );
+        repeat = new StatementNode.DoBranchNode( POS,
+                binary( BinaryOperator.LESS_OP, value( x ), con( 10 ),
+                        Type.BOOLEAN_TYPE ), step, false );
+        exit = new StatementNode.DoBranchNode( POS,
+                binary( BinaryOperator.EQUALS_OP, value( x ), con( 10 ),
+                        Type.BOOLEAN_TYPE ), copy, true );
+        StatementNode.DoStatementNode loop =
+            new StatementNode.DoStatementNode( POS );
+        loop.addDoBranch( repeat );
+        loop.addDoBranch( exit );
+        write = new StatementNode.WriteNode( POS, value( y ) );
+        StatementNode.ListNode body = new StatementNode.ListNode( POS );
+        body.addStatement( initX );
+        body.addStatement( loop );
+        body.addStatement( write );
+        graph = ControlFlowGraph.fromTree( body );
+    }
+
+    private SymEntry.VarEntry variable( String name ) {
+        SymEntry.VarEntry var = new SymEntry.VarEntry( name, POS, scope,
+                new Type.ReferenceType( Type.INTEGER_TYPE ) );
+        var.resolve();
+        return var;
+    }
+    private ExpNode con( int value ) {
+        return new ExpNode.ConstNode( POS, Type.INTEGER_TYPE, value );
+    }
+    private ExpNode value( SymEntry.VarEntry var ) {
+        return new ExpNode.DereferenceNode( Type.INTEGER_TYPE,
+                new ExpNode.VariableNode( POS, var ) );
+    }
+    private ExpNode binary( BinaryOperator op, ExpNode left, ExpNode right,
+            Type type ) {
+        ExpNode node = new ExpNode.BinaryOpNode( POS, op, left, right );
+        node.setType( type );
+        return node;
+    }
+    private StatementNode.AssignmentNode assign( SymEntry.VarEntry var,
+            ExpNode exp ) {
+        StatementNode.AssignmentNode node =
+            new StatementNode.AssignmentNode( POS );
+        node.addSingleAssign( new StatementNode.SingleAssignmentNode( POS,
+                new ExpNode.VariableNode( POS, var ), exp ) );
+        return node;
+    }
+
+    /*
+     * Test that x is live around the repeat branch, but not once the
+     * exit branch has copied it to y.
+     */
+    public void testLiveness() {
+        DataFlow.Liveness live = new DataFlow.Liveness( graph, 1 );
+        live.solve();
+        assertTrue( live.isLiveAfter( initX, x ) );
+        assertTrue( live.isLiveAfter( step, x ) );
+        assertTrue( live.isLiveAfter( copy, y ) );
+        assertFalse( live.isLiveAfter( copy, x ) );
+        assertFalse( live.isLiveAfter( initX, y ) );
+        assertFalse( live.isLiveAfter( step, y ) );
+    }
+    /*
+     * Test that both assignments to x reach the tests of the branches,
+     * and only the exit branch's assignment to y reaches the write.
+     */
+    public void testReachingDefinitions() {
+        DataFlow.ReachingDefinitions defs =
+            new DataFlow.ReachingDefinitions( graph );
+        defs.solve();
+        assertEquals( 2, defs.reaching( repeat, x ).size() );
+        assertEquals( 2, defs.reaching( exit, x ).size() );
+        assertEquals( 2, defs.reaching( copy, x ).size() );
+        assertEquals( 1, defs.reaching( write, y ).size() );
+        assertSame( copy, defs.reaching( write, y ).get( 0 ).getStatement() );
+        assertEquals( 2, defs.reaching( step, x ).size() );
+    }
+}
@@ -371,6 +371,9 @@ public abstract class ExpNode {
         public ExpNode getExp() {
             return exp;
         }
+        public void setExp( ExpNode exp ) {
+            this.exp = exp;
+        }
         public String toString() {
             return "NarrowSubrange(" + exp + ":" + getType() + ")";
         }
@@ -401,6 +404,9 @@ public abstract class ExpNode {
         public ExpNode getExp() {
             return exp;
         }
+        public void setExp( ExpNode exp ) {
+            this.exp = exp;
+        }
         public String toString() {
             return "WidenSubrange(" + exp + ":" + getType() + ")";
         }
@@ -0,0 +1,360 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+import tree.Tree.*;
+
+/** class LoopInvariantMover - Optimisation pass run between the static
+ * checker and the code generator. It moves the expressions whose values
+ * can't change while a while or do statement runs out of the loop: each
+ * is evaluated once into a fresh variable (allocated in the procedure's
+ * scope by allocVariableSpace) just before the loop, and the loop uses
+ * the variable instead.
+ * An expression is invariant if it is pure (arithmetic and comparisons
+ * of constants and variables) and no definition of any of its variables
+ * within the loop reaches it, which is found from the reaching
+ * definitions of the procedure body. A call within the loop is a
+ * definition of every variable.
+ * Only the largest invariant expressions are moved, and only those that
+ * save some work: arithmetic, and the values of non-local variables,
+ * each of whose loads would otherwise follow the static chain.
+ * Expressions are moved from the conditions of all the branches of a do
+ * statement, and from the statements of the branches that repeat it, but
+ * not from those of an exit branch, which are run at most once.
+ * An expression is evaluated before the loop even if its value is never
+ * used, so an expression that may fail (a division by anything other
+ * than a non-zero constant) is never moved.
+ * @version $Id: LoopInvariantMover.java 8 2013-02-22 06:25:04Z ianh $
+ */
+public class LoopInvariantMover implements TreeVisitor, StatementVisitor,
+                                            ExpTransform<ExpNode> {
+
+    /** The number of expressions moved out of loops */
+    private int moved = 0;
+    /** Scope of the block whose body is being visited */
+    private Scope blockScope;
+    /** Static level of the block whose body is being visited */
+    private int level;
+    /** Definitions reaching each statement of the body */
+    private DataFlow.ReachingDefinitions definitions;
+    /** The statements of the loop being moved out of */
+    private Set<StatementNode> loop;
+    /** The statement of the loop whose expressions are being moved */
+    private StatementNode current;
+    /** The expressions moved out of the loop, and their variables */
+    private List<ExpNode> invariants;
+    private List<SymEntry.VarEntry> temporaries;
+    /** Statement to replace the statement just visited */
+    private StatementNode replacement;
+
+    public LoopInvariantMover() {
+        super();
+    }
+    /** @return the number of expressions moved out of loops */
+    public int getMoved() {
+        return moved;
+    }
+
+    public void visitProgramNode( ProgramNode node ) {
+        node.getBlock().accept( this );
+    }
+    public void visitBlockNode( BlockNode node ) {
+        node.getProcedures().accept( this );
+        blockScope = node.getProcEntry().getLocalScope();
+        level = blockScope.getLevel();
+        definitions = new DataFlow.ReachingDefinitions(
+                ControlFlowGraph.fromTree( node.getBody() ) );
+        definitions.solve();
+        node.setBody( replace( node.getBody() ) );
+    }
+    public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+        node.getBlock().accept( this );
+    }
+
+    /** @return the statement to replace s */
+    private StatementNode replace( StatementNode s ) {
+        replacement = s;
+        s.accept( this );
+        return replacement;
+    }
+    /*************************************************
+     *  Statement node visit methods
+     *************************************************/
+    public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        // Nothing to move
+    }
+    public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+        // Nothing to move
+    }
+    public void visitSingleAssignmentNode(
+            StatementNode.SingleAssignmentNode node ) {
+        // Nothing to move
+    }
+    public void visitWriteNode( StatementNode.WriteNode node ) {
+        // Nothing to move
+    }
+    public void visitCallNode( StatementNode.CallNode node ) {
+        // Nothing to move
+    }
+    public void visitSkipNode( StatementNode.SkipNode node ) {
+        // Nothing to move
+    }
+    public void visitStatementListNode( StatementNode.ListNode node ) {
+        List<StatementNode> statements = node.getStatements();
+        for( int i = 0; i < statements.size(); i++ ) {
+            statements.set( i, replace( statements.get( i ) ) );
+        }
+        replacement = node;
+    }
+    public void visitIfNode( StatementNode.IfNode node ) {
+        node.setThenStmt( replace( node.getThenStmt() ) );
+        node.setElseStmt( replace( node.getElseStmt() ) );
+        replacement = node;
+    }
+    /** Move the invariants out of the whole loop first, then out of the
+     * loops nested within it */
+    public void visitWhileNode( StatementNode.WhileNode node ) {
+        StatementNode result = moveOutOf( node );
+        node.setLoopStmt( replace( node.getLoopStmt() ) );
+        replacement = result;
+    }
+    /** A do statement is only a loop if it has a branch that repeats it */
+    public void visitDoStatementNode( StatementNode.DoStatementNode node ) {
+        StatementNode result = node;
+        for( StatementNode branch : node.getBranches() ) {
+            if( !((StatementNode.DoBranchNode)branch).getIsExitBranch() ) {
+                result = moveOutOf( node );
+                break;
+            }
+        }
+        for( StatementNode branch : node.getBranches() ) {
+            branch.accept( this );
+        }
+        replacement = result;
+    }
+    public void visitDoBranchNode( StatementNode.DoBranchNode node ) {
+        node.setStatement( replace( node.getStatements() ) );
+    }
+
+    /** Move the invariants out of the loop statement.
+     * @return the statement to replace it */
+    private StatementNode moveOutOf( StatementNode node ) {
+        List<StatementNode> statements = new ArrayList<StatementNode>();
+        Set<StatementNode> once = new HashSet<StatementNode>();
+        collect( node, statements, once );
+        loop = new HashSet<StatementNode>( statements );
+        invariants = new ArrayList<ExpNode>();
+        temporaries = new ArrayList<SymEntry.VarEntry>();
+        for( StatementNode s : statements ) {
+            if( !once.contains( s ) ) {
+                current = s;
+                moveFrom( s );
+            }
+        }
+        if( invariants.isEmpty() ) {
+            return node;
+        }
+        StatementNode.ListNode list =
+            new StatementNode.ListNode( node.getPosition() );
+        for( int i = 0; i < invariants.size(); i++ ) {
+            ExpNode exp = invariants.get( i );
+            StatementNode.AssignmentNode assign =
+                new StatementNode.AssignmentNode( exp.getPosition() );
+            assign.addSingleAssign( new StatementNode.SingleAssignmentNode(
+                    exp.getPosition(),
+                    new ExpNode.VariableNode( exp.getPosition(),
+                            temporaries.get( i ) ), exp ) );
+            list.addStatement( assign );
+        }
+        list.addStatement( node );
+        return list;
+    }
+    /** Add s and the statements nested within it to statements, and those
+     * within the exit branches of do statements to once as well */
+    private static void collect( StatementNode s,
+            List<StatementNode> statements, Set<StatementNode> once ) {
+        statements.add( s );
+        if( s instanceof StatementNode.ListNode ) {
+            for( StatementNode t : ((StatementNode.ListNode)s).getStatements() ) {
+                collect( t, statements, once );
+            }
+        } else if( s instanceof StatementNode.IfNode ) {
+            collect( ((StatementNode.IfNode)s).getThenStmt(), statements, once );
+            collect( ((StatementNode.IfNode)s).getElseStmt(), statements, once );
+        } else if( s instanceof StatementNode.WhileNode ) {
+            collect( ((StatementNode.WhileNode)s).getLoopStmt(),
+                    statements, once );
+        } else if( s instanceof StatementNode.DoStatementNode ) {
+            for( StatementNode branch :
+                    ((StatementNode.DoStatementNode)s).getBranches() ) {
+                collect( branch, statements, once );
+            }
+        } else if( s instanceof StatementNode.DoBranchNode ) {
+            StatementNode.DoBranchNode branch = (StatementNode.DoBranchNode)s;
+            if( branch.getIsExitBranch() ) {
+                List<StatementNode> exit = new ArrayList<StatementNode>();
+                collect( branch.getStatements(), exit, once );
+                statements.addAll( exit );
+                once.addAll( exit );
+            } else {
+                collect( branch.getStatements(), statements, once );
+            }
+        }
+    }
+    /** Replace the invariants among the expressions evaluated by s */
+    private void moveFrom( StatementNode s ) {
+        if( s instanceof StatementNode.AssignmentNode ) {
+            for( StatementNode.SingleAssignmentNode assign :
+                    ((StatementNode.AssignmentNode)s).getAssignments() ) {
+                assign.setExp( move( assign.getExp() ) );
+            }
+        } else if( s instanceof StatementNode.SingleAssignmentNode ) {
+            StatementNode.SingleAssignmentNode assign =
+                (StatementNode.SingleAssignmentNode)s;
+            assign.setExp( move( assign.getExp() ) );
+        } else if( s instanceof StatementNode.WriteNode ) {
+            StatementNode.WriteNode write = (StatementNode.WriteNode)s;
+            write.setExp( move( write.getExp() ) );
+        } else if( s instanceof StatementNode.IfNode ) {
+            StatementNode.IfNode ifNode = (StatementNode.IfNode)s;
+            ifNode.setCondition( move( ifNode.getCondition() ) );
+        } else if( s instanceof StatementNode.WhileNode ) {
+            StatementNode.WhileNode whileNode = (StatementNode.WhileNode)s;
+            whileNode.setCondition( move( whileNode.getCondition() ) );
+        } else if( s instanceof StatementNode.DoBranchNode ) {
+            StatementNode.DoBranchNode branch = (StatementNode.DoBranchNode)s;
+            branch.setCondition( move( branch.getCondition() ) );
+        }
+    }
+    /** @return exp, or the value of the variable holding it if it is
+     * moved out of the loop */
+    private ExpNode move( ExpNode exp ) {
+        if( !isWorthMoving( exp ) || !isInvariant( exp ) ) {
+            return exp.transform( this );
+        }
+        int i = 0;
+        while( i < invariants.size() &&
+                !DataFlow.AvailableExpressions.same( invariants.get( i ), exp ) ) {
+            i++;
+        }
+        if( i == invariants.size() ) {
+            SymEntry.VarEntry temp = new SymEntry.VarEntry( "$t" + moved,
+                    exp.getPosition(), blockScope,
+                    new Type.ReferenceType( exp.getType() ) );
+            temp.resolve();
+            invariants.add( exp );
+            temporaries.add( temp );
+            moved++;
+        }
+        return new ExpNode.DereferenceNode( exp.getType(),
+                new ExpNode.VariableNode( exp.getPosition(),
+                        temporaries.get( i ) ) );
+    }
+    /** @return whether evaluating exp once saves more than loading a
+     * local variable */
+    private boolean isWorthMoving( ExpNode exp ) {
+        while( exp instanceof ExpNode.WidenSubrangeNode ) {
+            exp = ((ExpNode.WidenSubrangeNode)exp).getExp();
+        }
+        if( exp instanceof ExpNode.BinaryOpNode ||
+                exp instanceof ExpNode.UnaryOpNode ) {
+            return true;
+        } else if( exp instanceof ExpNode.DereferenceNode ) {
+            ExpNode lval = ((ExpNode.DereferenceNode)exp).getLeftValue();
+            return lval instanceof ExpNode.VariableNode &&
+                ((ExpNode.VariableNode)lval).getVariable().getLevel() < level;
+        }
+        return false;
+    }
+    /** @return whether exp is pure, can't fail, and none of its variables
+     * is assigned by a statement of the loop that reaches the current
+     * statement */
+    private boolean isInvariant( ExpNode exp ) {
+        Set<SymEntry.VarEntry> vars = new LinkedHashSet<SymEntry.VarEntry>();
+        if( !DataFlow.AvailableExpressions.pure( exp, vars ) ||
+                mayFail( exp ) ) {
+            return false;
+        }
+        for( SymEntry.VarEntry var : vars ) {
+            for( DataFlow.ReachingDefinitions.Definition def :
+                    definitions.reaching( current, var ) ) {
+                if( loop.contains( def.getStatement() ) ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    /** @return whether evaluating the pure expression exp may fail */
+    private static boolean mayFail( ExpNode exp ) {
+        if( exp instanceof ExpNode.BinaryOpNode ) {
+            ExpNode.BinaryOpNode binary = (ExpNode.BinaryOpNode)exp;
+            if( binary.getOp() == BinaryOperator.DIV_OP &&
+                    !(binary.getRight() instanceof ExpNode.ConstNode &&
+                      ((ExpNode.ConstNode)binary.getRight()).getValue() != 0) ) {
+                return true;
+            }
+            return mayFail( binary.getLeft() ) || mayFail( binary.getRight() );
+        } else if( exp instanceof ExpNode.UnaryOpNode ) {
+            return mayFail( ((ExpNode.UnaryOpNode)exp).getSubExp() );
+        } else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+            return mayFail( ((ExpNode.WidenSubrangeNode)exp).getExp() );
+        }
+        return false;
+    }
+    /*************************************************
+     *  Expression node transforms, moving the invariants within
+     *  the expressions that aren't invariant
+     *************************************************/
+    public ExpNode visitErrorExpNode( ExpNode.ErrorNode node ) {
+        return node;
+    }
+    public ExpNode visitConstNode( ExpNode.ConstNode node ) {
+        return node;
+    }
+    public ExpNode visitIdentifierNode( ExpNode.IdentifierNode node ) {
+        return node;
+    }
+    public ExpNode visitVariableNode( ExpNode.VariableNode node ) {
+        return node;
+    }
+    public ExpNode visitReadNode( ExpNode.ReadNode node ) {
+        return node;
+    }
+    public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+        node.setLeft( move( node.getLeft() ) );
+        node.setRight( move( node.getRight() ) );
+        return node;
+    }
+    public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+        node.setSubExp( move( node.getSubExp() ) );
+        return node;
+    }
+    public ExpNode visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+        List<ExpNode> args = new ArrayList<ExpNode>();
+        for( ExpNode arg : node.getArgs() ) {
+            args.add( move( arg ) );
+        }
+        node.setArgs( args );
+        return node;
+    }
+    public ExpNode visitDereferenceNode( ExpNode.DereferenceNode node ) {
+        node.setLeftValue( node.getLeftValue().transform( this ) );
+        return node;
+    }
+    public ExpNode visitNarrowSubrangeNode( ExpNode.NarrowSubrangeNode node ) {
+        node.setExp( move( node.getExp() ) );
+        return node;
+    }
+    public ExpNode visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+        node.setExp( move( node.getExp() ) );
+        return node;
+    }
+}
@@ -324,6 +324,12 @@ public abstract class StatementNode {
         public StatementNode getElseStmt() {
             return elseStmt;
         }
+        public void setThenStmt( StatementNode thenStmt ) {
+            this.thenStmt = thenStmt;
+        }
+        public void setElseStmt( StatementNode elseStmt ) {
+            this.elseStmt = elseStmt;
+        }
         public String toString( ) {
             return "IF " + condition.toString() + " THEN " + thenStmt +
                 " ELSE " + elseStmt;
@@ -356,6 +362,9 @@ public abstract class StatementNode {
         public StatementNode getLoopStmt() {
             return loopStmt;
         }
+        public void setLoopStmt( StatementNode loopStmt ) {
+            this.loopStmt = loopStmt;
+        }
         public String toString( ) {
             return "WHILE " + condition.toString() + " DO " +
                 loopStmt.toString();
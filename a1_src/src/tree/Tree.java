@@ -62,6 +62,9 @@ public abstract class Tree {
         public StatementNode getBody() {
             return body;
         }
+        public void setBody( StatementNode body ) {
+            this.body = body;
+        }
         public SymEntry.ProcedureEntry getProcEntry() {
             return procEntry;
         }
@@ -59,4 +59,32 @@ public class Instruction {
             super.loadInstruction( machine );
         }
     }
+    
+    /* ALLOC_HEAP carries the pointer maps the garbage collector needs:
+     * that of the object allocated, and that of the values on the stack
+     * (below its size operand) at the time of the allocation.
+     * They are given to the machine when the program is loaded.
+     */
+    public static class AllocHeapInstruction extends Instruction {
+        private PointerMap objectMap;
+        private PointerMap stackMap;
+        
+        public AllocHeapInstruction( PointerMap objectMap, 
+                PointerMap stackMap ) {
+            super( Operation.ALLOC_HEAP );
+            this.objectMap = objectMap;
+            this.stackMap = stackMap;
+        }
+        public PointerMap getObjectMap() {
+            return objectMap;
+        }
+        public PointerMap getStackMap() {
+            return stackMap;
+        }
+        @Override
+        public void loadInstruction( StackMachine machine ) {
+            machine.addAllocationSite( objectMap, stackMap );
+            super.loadInstruction( machine );
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package machine;
+
+import java.util.List;
+
+/**
+ * class PointerMap - layout of a block of memory for the garbage collector:
+ * the size of the block and the offsets within it of the words that hold
+ * pointers into the heap. The code generator emits one for the local
+ * variables of each procedure, for the type of each object allocated on
+ * the heap, and for the values on the stack at each allocation.
+ * @version $Id: PointerMap.java 12 2013-04-15 23:38:49Z uqihayes $
+ */
+public class PointerMap {
+    /** Map of a block with no pointers */
+    public static final PointerMap EMPTY = new PointerMap( 0, new int[0] );
+
+    /** Size of the block in words */
+    private int size;
+    /** Offsets of the pointers within the block */
+    private int[] offsets;
+
+    public PointerMap( int size, int[] offsets ) {
+        this.size = size;
+        this.offsets = offsets;
+    }
+    public PointerMap( int size, List<Integer> offsets ) {
+        this( size, new int[ offsets.size() ] );
+        for( int i = 0; i < this.offsets.length; i++ ) {
+            this.offsets[i] = offsets.get( i );
+        }
+    }
+    public int getSize() {
+        return size;
+    }
+    public int[] getOffsets() {
+        return offsets;
+    }
+    @Override
+    public String toString() {
+        String s = "size " + size + " pointers";
+        for( int offset : offsets ) {
+            s += " " + offset;
+        }
+        return s;
+    }
+}
@@ -2,7 +2,15 @@ package machine;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import source.Errors;
 import source.Severity;
@@ -78,6 +86,31 @@ public class StackMachine {
     private int sp = STACK_START;
     /** Top of stack limit = bottom of heap limit */
     private int limit = CODE_START;
+    /** Top of the heap, which grows down towards the stack */
+    private final int HEAP_END = CODE_START;
+    /** Least growth of the heap between garbage collections */
+    private final static int MIN_HEAP_GROWTH = 200;
+    /** Garbage is collected before the heap grows below this address,
+     * which leaves room for the stack to grow between collections */
+    private int heapThreshold = HEAP_END - MIN_HEAP_GROWTH;
+    
+    /** Pointer maps of an allocation on the heap */
+    private static class AllocationSite {
+        /** Layout of the object allocated */
+        PointerMap objectMap;
+        /** Layout of the values on the stack below the object's size */
+        PointerMap stackMap;
+        
+        AllocationSite( PointerMap objectMap, PointerMap stackMap ) {
+            this.objectMap = objectMap;
+            this.stackMap = stackMap;
+        }
+    }
+    /** Allocation sites in the order loaded. Each object on the heap is
+     * preceded by a header word holding the index of its site. */
+    private List<AllocationSite> sites = new ArrayList<AllocationSite>();
+    /** Index of the allocation site of each ALLOC_HEAP, by its address */
+    private Map<Integer,Integer> siteAt = new HashMap<Integer,Integer>();
     /** Standard input line reader */
     private BufferedReader in =
         new BufferedReader( new InputStreamReader (System.in) );
@@ -93,6 +126,7 @@ public class StackMachine {
         for( Instruction inst : code.getInstructionList().getCode() ) {
             inst.loadInstruction(this);
         }
+        procStarts.index();
     }
 
 /***************************** Public Methods *************************/
@@ -134,6 +168,12 @@ public class StackMachine {
                 printListing( currLocn - 1, word, name );
         }
     }
+    /** Record the pointer maps of the ALLOC_HEAP instruction about to
+     * be stored at the current location */
+    public void addAllocationSite( PointerMap objectMap, PointerMap stackMap ) {
+        siteAt.put( currLocn, sites.size() );
+        sites.add( new AllocationSite( objectMap, stackMap ) );
+    }
     /** Push the value onto the stack, and increment the stack pointer */
     private void push( int val ) {
         if( sp >= limit ) {
@@ -496,11 +536,7 @@ public class StackMachine {
             break;
         case ALLOC_HEAP: /* Allocate memory from heap */
             int size = pop();
-            limit -= size;
-            push(limit); // will fail if limit less than sp
-            for(int i = limit; i < limit+size; i++ ) {
-                memory[i] = NULL_ADDR;
-            }
+            allocHeap( size );
             break;
         case LOAD_MULTI: /* Load multiple words onto stack from
                             address on second top of stack */
@@ -542,4 +578,151 @@ public class StackMachine {
             System.out.println("\nError: Opcode not implemented: " + inst );
         }
     }
+/*********************************** Heap ***********************************/
+    /** Allocate an object of the given size on the heap for the ALLOC_HEAP
+     * instruction just fetched, collecting garbage if there isn't room,
+     * and push its address (that of the word following its header).
+     */
+    private void allocHeap( int size ) {
+        Integer site = siteAt.get( pc - 1 );
+        if( site == null || sites.get( site ).objectMap.getSize() != size ) {
+            runtimeError( "\nRuntime error: No pointer map for allocation" );
+            return;
+        }
+        /* Leave room for the header and for pushing the address */
+        if( limit - (size + 1) < heapThreshold || limit - (size + 1) <= sp ) {
+            collectGarbage( sites.get( site ).stackMap );
+        }
+        if( limit - (size + 1) <= sp ) {
+            runtimeError( "Error: memory overflow!" );
+            return;
+        }
+        limit -= size + 1;
+        memory[limit] = site;
+        for( int i = limit + 1; i <= limit + size; i++ ) {
+            memory[i] = NULL_ADDR;
+        }
+        push( limit + 1 );
+    }
+    /** Size of the object with its header at address h, including
+     * the header */
+    private int objectSize( int h ) {
+        return sites.get( memory[h] ).objectMap.getSize() + 1;
+    }
+    /** Address of the header of the object that value points to,
+     * or -1 if it doesn't point to an object */
+    private int header( int value, boolean[] isObject ) {
+        int h = value - 1;
+        if( h < limit || h >= HEAP_END || !isObject[h - limit] ) {
+            return -1;
+        }
+        return h;
+    }
+    /** Add the addresses of the pointers in the block at base to roots */
+    private void addRoots( Set<Integer> roots, int base, PointerMap map ) {
+        for( int offset : map.getOffsets() ) {
+            if( 0 <= base + offset && base + offset < sp ) {
+                roots.add( base + offset );
+            }
+        }
+    }
+    /** Mark-compact garbage collection of the heap. The objects reachable
+     * from the roots are slid up to the top of the heap, keeping their
+     * order, and the pointers to them updated; the space of the rest is
+     * returned to the stack. The heap may then grow by as much again as
+     * is live (but at least MIN_HEAP_GROWTH) before the next collection.
+     * The roots are the pointers in the values on the stack at the current
+     * allocation, given by stackMap, and in the local variables of each
+     * frame on the stack, given by the pointer map of its procedure.
+     * @param stackMap pointer map of the values at the top of the stack
+     */
+    private void collectGarbage( PointerMap stackMap ) {
+        int heapSize = HEAP_END - limit;
+        /* Find the objects by walking up from the bottom of the heap */
+        boolean[] isObject = new boolean[ heapSize ];
+        for( int h = limit; h < HEAP_END; h += objectSize( h ) ) {
+            isObject[ h - limit ] = true;
+        }
+        /* Find the roots, following the dynamic links down the stack */
+        Set<Integer> roots = new HashSet<Integer>();
+        addRoots( roots, sp - stackMap.getSize(), stackMap );
+        int framePC = pc - 1;
+        int frameFP = fp;
+        while( framePC != 0 ) {
+            PointerMap frameMap = procStarts.getFrameMap( framePC );
+            if( frameMap == null ) {
+                break;  /* in main program setup code */
+            }
+            addRoots( roots, frameFP, frameMap );
+            framePC = memory[ frameFP + 2 ];
+            frameFP = memory[ frameFP + 1 ];
+        }
+        /* Mark the objects reachable from the roots */
+        boolean[] marked = new boolean[ heapSize ];
+        Deque<Integer> toScan = new ArrayDeque<Integer>();
+        for( int root : roots ) {
+            int h = header( memory[root], isObject );
+            if( h >= 0 && !marked[ h - limit ] ) {
+                marked[ h - limit ] = true;
+                toScan.push( h );
+            }
+        }
+        while( !toScan.isEmpty() ) {
+            int object = toScan.pop() + 1;
+            for( int offset : sites.get( memory[object - 1] ).objectMap.getOffsets() ) {
+                int h = header( memory[ object + offset ], isObject );
+                if( h >= 0 && !marked[ h - limit ] ) {
+                    marked[ h - limit ] = true;
+                    toScan.push( h );
+                }
+            }
+        }
+        /* Compute the new address of each marked object */
+        List<Integer> live = new ArrayList<Integer>();
+        int liveSize = 0;
+        for( int h = limit; h < HEAP_END; h += objectSize( h ) ) {
+            if( marked[ h - limit ] ) {
+                live.add( h );
+                liveSize += objectSize( h );
+            }
+        }
+        int[] forward = new int[ heapSize ];
+        int to = HEAP_END - liveSize;
+        for( int h : live ) {
+            forward[ h - limit ] = to;
+            to += objectSize( h );
+        }
+        /* Update the roots and the pointers within the marked objects */
+        for( int root : roots ) {
+            int h = header( memory[root], isObject );
+            if( h >= 0 ) {
+                memory[root] = forward[ h - limit ] + 1;
+            }
+        }
+        for( int object : live ) {
+            for( int offset : sites.get( memory[object] ).objectMap.getOffsets() ) {
+                int address = object + 1 + offset;
+                int h = header( memory[address], isObject );
+                if( h >= 0 ) {
+                    memory[address] = forward[ h - limit ] + 1;
+                }
+            }
+        }
+        /* Slide the objects up, starting with the highest */
+        for( int i = live.size() - 1; i >= 0; i-- ) {
+            int h = live.get( i );
+            System.arraycopy( memory, h, memory, forward[ h - limit ], 
+                    objectSize( h ) );
+        }
+        int newLimit = HEAP_END - liveSize;
+        for( int i = limit; i < newLimit; i++ ) {
+            memory[i] = NULL_ADDR;
+        }
+        if( tracing.contains( Trace.MEM ) ) {
+            System.out.print( "\n    Garbage collected: " + 
+                    (newLimit - limit) + " words" );
+        }
+        limit = newLimit;
+        heapThreshold = limit - Math.max( liveSize, MIN_HEAP_GROWTH );
+    }
 }
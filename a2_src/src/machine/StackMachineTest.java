@@ -0,0 +1,114 @@
+package machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+import parser.CUPParser;
+import parser.CUPScanner;
+import source.ErrorHandler;
+import source.Errors;
+import source.Source;
+import tree.CodeGenerator;
+import tree.CodePlusProcedures;
+import tree.StaticChecker;
+import tree.Tree;
+
+/**
+ * class StackMachineTest - JUnit test for the garbage collection of the
+ * heap of the StackMachine.
+ * @version $Id: StackMachineTest.java 12 2013-04-15 23:38:49Z uqihayes $
+ */
+public class StackMachineTest extends TestCase {
+
+    public StackMachineTest(String arg0) {
+        super(arg0);
+    }
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile( "StackMachineTest", ".pl0" );
+    }
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    /** Compile text and run it.
+     * @return the output of the run */
+    private String run( String text ) throws Exception {
+        FileWriter writer = new FileWriter( file );
+        writer.write( text );
+        writer.close();
+        Source src = new Source( file.getPath() );
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream( bytes, true );
+        PrintStream console = System.out;
+        /* There is only one error handler */
+        Errors errors = ErrorHandler.getErrorHandler();
+        if( errors == null ) {
+            errors = new ErrorHandler( console, src );
+        }
+        System.setOut( out );
+        try {
+            Tree.ProgramNode tree = (Tree.ProgramNode)
+                new CUPParser( new CUPScanner( src ) ).parse().value;
+            new StaticChecker( errors ).visitProgramNode( tree );
+            assertFalse( errors.hadErrors() );
+            CodePlusProcedures code =
+                new CodeGenerator( errors ).generateCode( tree );
+            new StackMachine( errors, false, code ).run();
+        } finally {
+            System.setOut( console );
+            src.close();
+        }
+        return bytes.toString();
+    }
+
+    /*
+     * Test that the records still reachable are kept, with their values,
+     * when far more is allocated than fits in the data memory: those
+     * reachable from a global variable through a list of records, from a
+     * local variable of a procedure, and from the value of the first
+     * field of a record constructor while the second is allocated.
+     */
+    public void testCollectGarbage() throws Exception {
+        String text =
+            "type\n" +
+            "  L = ^Node;\n" +
+            "  Node = record v: int; next: L end;\n" +
+            "  Pair = record a: L; b: L end;\n" +
+            "  P = ^Pair;\n" +
+            "var head: L; pair: P; g: L; i: int; s: int;\n" +
+            "procedure churn() =\n" +
+            "  var t: L; k: int;\n" +
+            "  begin\n" +
+            "    t := new L; t^.v := 7; t^.next := head;\n" +
+            "    k := 0;\n" +
+            "    while k < 400 do begin g := new L; g^.v := k; k := k + 1 end;\n" +
+            "    head := t\n" +
+            "  end;\n" +
+            "begin\n" +
+            "  head := nil; i := 0;\n" +
+            "  while i < 100 do begin\n" +
+            "    pair := new P;\n" +
+            "    pair^ := Pair{ new L, new L };\n" +
+            "    pair^.a^.v := i; pair^.b^.v := 1000;\n" +
+            "    pair^.a^.next := head; head := pair^.a;\n" +
+            "    i := i + 1\n" +
+            "  end;\n" +
+            "  call churn();\n" +
+            "  s := 0; i := 0; g := head;\n" +
+            "  while g != nil do begin s := s + g^.v; i := i + 1; g := g^.next end;\n" +
+            "  write i; write s\n" +
+            "end\n";
+        /* 101 records in the list holding 7 and 0 to 99 */
+        assertEquals( "101\n4957\n\nTerminated\n", run( text ) );
+    }
+}
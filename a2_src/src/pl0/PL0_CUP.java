@@ -23,10 +23,12 @@ public class PL0_CUP {
     public static void usage() {
         System.out.println(
             "PL0 Compiler\n" +
-            "Usage: java pl0.PL0_CUP [-cdhptv] <filename>\n"+
+            "Usage: java pl0.PL0_CUP [-cdhOptv] <filename>\n"+
             "  -c  =  compile only (no execution)\n" +
             "  -d  =  debug parse\n" +
             "  -h  =  output this usage information\n" +
+            "  -O  =  optimise: fold the offsets of record fields\n" +
+            "         into the addresses of record variables\n" +
             "  -p  =  parse only (implies -c)\n" +
             "  -t  =  trace execution of resulting code\n" +
             "  -v  =  verbose output of generated code\n" +
@@ -55,6 +57,8 @@ public class PL0_CUP {
         boolean verbose = false;
         /** Debug mode for parser - quite verbose */
         boolean debugParse = false;
+        /** Optimise the generated code */
+        boolean optimising = false;
 
         /* Parse command line */
         for( int i=0; i<args.length; i++ ) {
@@ -70,6 +74,9 @@ public class PL0_CUP {
                     usage();
                     System.exit(0);
                     break;
+                case 'O': /* Optimise */
+                    optimising = true;
+                    break;
                 case 'p': /* Parse only */
                     staticCheck = false;
                     executing = false;
@@ -95,7 +102,8 @@ public class PL0_CUP {
             /* Set up the error handler reference */
             errors = new ErrorHandler( System.out, src );
             /* Compile the program */
-            code = compile( src, errors, verbose, staticCheck, debugParse );
+            code = compile( src, errors, verbose, staticCheck, debugParse,
+                    optimising );
             if( code != null ) { /* run it if possible */
                 StackMachine machine;
                 machine = new StackMachine( errors, verbose, code );
@@ -119,10 +127,12 @@ public class PL0_CUP {
      * @param verbose generate more messages during compilation
      * @param staticCheck do the static checking
      * @param debugParse debugging messages during parsing 
+     * @param optimising optimise the generated code
      * @return generated code and procedure addresses table
      */
     private static CodePlusProcedures compile( Source src, Errors errors,
-            boolean verbose, boolean staticCheck, boolean debugParse ) 
+            boolean verbose, boolean staticCheck, boolean debugParse,
+            boolean optimising ) 
         throws IOException, Exception
     {
         /** Abstract syntax tree returned by parser */
@@ -169,7 +179,7 @@ public class PL0_CUP {
         }
         if( tree != null ) {
             /* Generate the stack machine code */
-            CodeGenerator codeGen = new CodeGenerator( errors );
+            CodeGenerator codeGen = new CodeGenerator( errors, optimising );
             code = codeGen.generateCode( (Tree.ProgramNode) tree );
             System.out.println( "Code generation complete" );
         }
@@ -68,6 +68,14 @@ public abstract class Type
                 "cannot treat " + fromType + " as " + this,
                 exp.getPosition() );
     }
+    /** Add the offsets of the words of an element of the type that hold
+     * pointers to the list, for the garbage collector. This default
+     * version adds none; pointers and records override it.
+     * @param base offset of the element
+     * @param offsets list of pointer offsets to add to
+     */
+    public void addPointerOffsets( int base, List<Integer> offsets ) {
+    }
     /** Type equality. Overridden for most subclasses. */
     public boolean equals( Type other ) {
         return this == other;
@@ -583,6 +591,10 @@ public abstract class Type
             return realType;
         }
         @Override
+        public void addPointerOffsets( int base, List<Integer> offsets ) {
+            resolveType( pos ).addPointerOffsets( base, offsets );
+        }
+        @Override
         public String toString() {
             return name;
         }
@@ -681,6 +693,11 @@ public abstract class Type
         public ExpNode coerce( ExpNode exp ) throws IncompatibleTypes {
             return Coercion.coerceToPointerType( exp, this );
         }
+        /** A pointer is itself a pointer (its base is not followed) */
+        @Override
+        public void addPointerOffsets( int base, List<Integer> offsets ) {
+            offsets.add( base );
+        }
         @Override
         public boolean equals( Type other ) {
             return other instanceof PointerType &&
@@ -773,6 +790,15 @@ public abstract class Type
             Field field = fields.get( id );
             return field.getOffset();
         }
+        /** The pointers of a record are those of its fields */
+        @Override
+        public void addPointerOffsets( int base, List<Integer> offsets ) {
+            resolveType( Position.NO_POSITION );
+            for( Field field : fieldList ) {
+                field.getType().addPointerOffsets( base + field.getOffset(),
+                        offsets );
+            }
+        }
         /** Allocate the offsets of the fields and 
          * calculate the size of the record 
          */
@@ -1,5 +1,9 @@
 package syms;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import source.Position;
 import tree.BinaryOperator;
 import tree.ConstExp;
@@ -108,6 +112,34 @@ public class TypeTest extends TestCase {
         assertEquals( 2, bbt.getSpace() );
     }
 
+    /*
+     * Test method for 'pl0.symbol_table.Type.addPointerOffsets()'
+     */
+    public void testAddPointerOffsets() {
+        Position nopos = Position.NO_POSITION;
+        SymbolTable symtab = new SymbolTable();
+        symtab.addType( "T", nopos, it );
+        Type.PointerType ptrt = new Type.PointerType( 
+                new Type.IdRefType( "T", symtab.getCurrentScope(), nopos ) );
+        Type.RecordType inner = new Type.RecordType();
+        inner.add( new Type.Field( nopos, "p", ptrt ) );
+        inner.add( new Type.Field( nopos, "x", it ) );
+        Type.RecordType outer = new Type.RecordType();
+        outer.add( new Type.Field( nopos, "x", it ) );
+        outer.add( new Type.Field( nopos, "r", inner ) );
+        outer.add( new Type.Field( nopos, "q", ptrt ) );
+        outer.resolveType( nopos );
+        List<Integer> offsets = new ArrayList<Integer>();
+        it.addPointerOffsets( 0, offsets );
+        rit.addPointerOffsets( 0, offsets );
+        assertTrue( offsets.isEmpty() );
+        ptrt.addPointerOffsets( 2, offsets );
+        assertEquals( Arrays.asList( 2 ), offsets );
+        offsets.clear();
+        outer.addPointerOffsets( 5, offsets );
+        assertEquals( Arrays.asList( 6, 8 ), offsets );
+    }
+
     /*
      * Test method for 'pl0.symbol_table.Type.coerce()'
      */
@@ -5,15 +5,59 @@ import java.util.ArrayList;
 
 import machine.Instruction;
 import machine.Operation;
+import machine.PointerMap;
 import syms.SymEntry;
 
 /**
- * class Code - store sequence of instructions
+ * class Code - store sequence of instructions.
+ * The sequence is kept as a chain so that appending one sequence to
+ * another doesn't copy it. Branches may refer to labels that are placed
+ * later in the sequence; their offsets are resolved when the code is
+ * linked, which happens the first time the instruction list is fetched.
  * @version $Id: Code.java 12 2013-04-15 23:38:49Z uqihayes $
  */
 
 public class Code {
-    /** List of instructions generated */
+    /** A location in a code sequence that can be branched to before it
+     * has been placed. Its position is fixed when the code is linked. */
+    public static class Label {
+        /** Location relative to the start of the code, once linked */
+        private int offset = -1;
+        /** Whether the label has been placed in a code sequence */
+        private boolean placed = false;
+    }
+    /** LOAD_CON of the offset of a branch to a label. The offset is
+     * relative to the address following the BR_FALSE after the LOAD_CON.
+     */
+    private static class BranchOffset extends Instruction.LoadConInstruction {
+        private Label label;
+
+        public BranchOffset( Label label ) {
+            super( 0 );
+            this.label = label;
+        }
+        /** Fix the offset given the address of the following BR_FALSE */
+        void resolve( int branch ) {
+            assert label.placed : "branch to a label that was never placed";
+            value = label.offset -
+                (branch + Operation.BR_FALSE.getSize());
+        }
+    }
+    /** Element of the chain: an instruction, or a label if inst is null */
+    private static class Element {
+        Instruction inst;
+        Label label;
+        Element next;
+
+        Element( Instruction inst, Label label ) {
+            this.inst = inst;
+            this.label = label;
+        }
+    }
+    /** First and last elements of the chain generated */
+    private Element first, last;
+    /** Linked list of instructions, or null if not linked since the last
+     * change to the sequence */
     private List<Instruction> code;
     /** Size of the instructions in words.
      * This is not just the length of the list. */
@@ -22,44 +66,100 @@ public class Code {
     /** Code array is initially empty */
     public Code() {
         super();
-        code = new ArrayList<Instruction>();
+        first = last = null;
+        code = null;
         size = 0;
     }
+    /** @return the instructions of the sequence, with the offsets of
+     * branches to labels resolved */
     public List<Instruction> getCode() {
+        if( code == null ) {
+            link();
+        }
         return code;
     }
     public int size() {
         return size;
     }
+    /** Resolve the labels of the sequence and build its instruction list.
+     * This is the final pass over the code, so it is done just once for
+     * the whole program however deeply its sequences were nested. */
+    private void link() {
+        code = new ArrayList<Instruction>();
+        int locn = 0;
+        for( Element e = first; e != null; e = e.next ) {
+            if( e.inst == null ) {
+                e.label.offset = locn;
+            } else {
+                code.add( e.inst );
+                locn += e.inst.getOp().getSize();
+            }
+        }
+        locn = 0;
+        for( Instruction inst : code ) {
+            locn += inst.getOp().getSize();
+            if( inst instanceof BranchOffset ) {
+                ((BranchOffset)inst).resolve( locn );
+            }
+        }
+    }
+    /** Add an element to the end of the chain */
+    private void add( Element e ) {
+        if( first == null ) {
+            first = e;
+        } else {
+            last.next = e;
+        }
+        last = e;
+        code = null;
+    }
     /*---------------------------------------------------------------*/
     /*--------------- Utility Code Generation Methods ---------------*/
     /*---------------------------------------------------------------*/
     /** Append the code sequence newCode to this code sequence.
+     * The instructions are moved rather than copied, leaving newCode
+     * empty, so a sequence can only be appended once.
      * @param newCode sequence to be appended
      */
     public void append( Code newCode ) {
-        code.addAll( newCode.code );
+        if( newCode.first != null ) {
+            add( newCode.first );
+            last = newCode.last;
+        }
         size += newCode.size();
+        newCode.first = newCode.last = null;
+        newCode.code = null;
+        newCode.size = 0;
+    }
+    /** Place label at the current location.
+     * @param label not yet placed in any sequence
+     */
+    public void genLabel( Label label ) {
+        assert !label.placed : "label placed twice";
+        label.placed = true;
+        add( new Element( null, label ) );
     }
     /** Append instruction instruction to code sequence.
      * @param opcode of the generated instruction.
      */
     public void generateOp( Operation opcode ) {
-        code.add( new Instruction( opcode ) );
-        size += opcode.getSize();
+        generateInstruction( new Instruction( opcode ) );
+    }
+    /** Append an already constructed instruction to the code sequence */
+    private void generateInstruction( Instruction inst ) {
+        add( new Element( inst, null ) );
+        size += inst.getOp().getSize();
     }
     /** Generate a LoadConstant instruction at the current location.
      * @param word the value of the constant
      * @result location of the constant for later patching
      */ 
     public void genLoadConstant( int value ) {
-        code.add( new Instruction.LoadConInstruction( value ) );
-        size += Operation.LOAD_CON.getSize();
+        generateInstruction( new Instruction.LoadConInstruction( value ) );
     }
     /** Generate a procedure call reference instruction */
     public void genProcCallRef( SymEntry.ProcedureEntry proc ) {
-        code.add( new Instruction.ProcRefInstruction( proc ) );
-        size += Operation.LOAD_CON.getSize();
+        generateInstruction( new Instruction.ProcRefInstruction( proc ) );
     }
     
     /** Generate code to perform a logical negation. */
@@ -137,6 +237,11 @@ public class Code {
         genLoadConstant( offset );  
         generateOp( Operation.BR_FALSE );
     }
+    /** Generate a JumpIfFalse to label dest, which may be placed later */
+    public void genJumpIfFalse( Label dest ) {
+        generateInstruction( new BranchOffset( dest ) );
+        generateOp( Operation.BR_FALSE );
+    }
     /** Size of instructions implementing jump_always */ 
     static final int SIZE_JUMP_ALWAYS = 
             SIZE_JUMP_IF_FALSE + Operation.ZERO.getSize();
@@ -145,6 +250,11 @@ public class Code {
         generateOp( Operation.ZERO );
         genJumpIfFalse( offset );
     }
+    /** Generate an unconditional branch to label dest */
+    public void genJumpAlways( Label dest ) {
+        generateOp( Operation.ZERO );
+        genJumpIfFalse( dest );
+    }
     /** Generate a bounds check instruction. Assumes the value to check is
      * already on the stack */
     public void genBoundsCheck( int lower, int upper ) {
@@ -159,6 +269,16 @@ public class Code {
             generateOp( Operation.ALLOC_STACK );
         }
     }
+    /** Generate code to allocate an object on the heap.
+     * @param objectMap layout of the object allocated
+     * @param stackMap layout of the values on the stack when it is
+     *  allocated, which the garbage collector must treat as roots
+     */
+    public void genAllocHeap( PointerMap objectMap, PointerMap stackMap ) {
+        genLoadConstant( objectMap.getSize() );
+        generateInstruction(
+                new Instruction.AllocHeapInstruction( objectMap, stackMap ) );
+    }
     /** Generate code to deallocate stack space */
     public void genDeallocStack( int variableSpace ) {
         if( variableSpace != 0 ) {
@@ -1,8 +1,10 @@
 package tree;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
 
 import machine.Operation;
+import machine.PointerMap;
 import machine.StackMachine;
 import source.Errors;
 import source.Position;
@@ -28,12 +30,23 @@ public class CodeGenerator
     private int start;
     /** Table of procedure start and finish addresses */
     private Procedures procStarts;
+    /** Types of the values an expression has left on the stack while
+     * the rest of it is generated, in the order they were pushed.
+     * Allocations on the heap record the pointers among them.
+     */
+    private List<Type> pendingTypes;
     /** Error message handler */
     Errors errors;
+    /** Whether the offsets of fields are folded into record addresses */
+    private boolean optimising;
     
     public CodeGenerator(Errors errors) {
+        this( errors, false );
+    }
+    public CodeGenerator(Errors errors, boolean optimising) {
         super();
         this.errors = errors;
+        this.optimising = optimising;
     }
 
     /*-------------------- Main Method to start code generation --------*/
@@ -44,6 +57,7 @@ public class CodeGenerator
         staticLevel = 1;
         start  = StackMachine.CODE_START;
         procStarts = new Procedures();
+        pendingTypes = new ArrayList<Type>();
         
         Code code = this.visitProgramNode( node );
         
@@ -87,7 +101,7 @@ public class CodeGenerator
         SymEntry.ProcedureEntry proc = node.getProcEntry();
         /* Save start address of procedure */
         proc.setStart( start );
-        procStarts.addProcedureStart( proc, start );
+        procStarts.addProcedureStart( proc, start, frameMap( proc ) );
         /** Generate code to allocate space for local variables on
          * procedure entry.
          */
@@ -174,39 +188,38 @@ public class CodeGenerator
 
     /** Generate code for an "if" statement. */
     public Code visitIfNode(StatementNode.IfNode node) {
-        /* Generate code to evaluate the condition and then and else parts */
+        Code.Label elseLabel = new Code.Label();
+        Code.Label endLabel = new Code.Label();
+        /* Generate code to evaluate the condition */
         Code code = node.getCondition().genCode( this );
-        Code thenCode = node.getThenStmt().genCode( this );
-        Code elseCode = node.getElseStmt().genCode( this );
         /* Append a branch over then part to condition code */
-        code.genJumpIfFalse( thenCode.size() + Code.SIZE_JUMP_ALWAYS );
+        code.genJumpIfFalse( elseLabel );
         /* Next append the code for the then part */
-        code.append( thenCode );
+        code.append( node.getThenStmt().genCode( this ) );
         /* Append branch over the else part */
-        code.genJumpAlways( elseCode.size() );
+        code.genJumpAlways( endLabel );
         /* Finally append the code for the else part */
-        code.append( elseCode );
+        code.genLabel( elseLabel );
+        code.append( node.getElseStmt().genCode( this ) );
+        code.genLabel( endLabel );
         return code;
     }
  
     /** Generate code for a "while" statement. */
     public Code visitWhileNode(StatementNode.WhileNode node) {
+        Code.Label startLabel = new Code.Label();
+        Code.Label endLabel = new Code.Label();
+        Code code = new Code();
+        code.genLabel( startLabel );
         /* Generate the code to evaluate the condition. */
-        Code code = node.getCondition().genCode( this );
-        /* Generate the code for the loop body */
-        Code bodyCode = node.getLoopStmt().genCode( this );
-        /* Add a branch over the loop body on false.
-         * The offset is the size of the loop body code plus 
-         * the size of the branch to follow the body.
-         */
-        code.genJumpIfFalse( bodyCode.size() + Code.SIZE_JUMP_ALWAYS );
+        code.append( node.getCondition().genCode( this ) );
+        /* Add a branch over the loop body on false. */
+        code.genJumpIfFalse( endLabel );
         /* Append the code for the body */
-        code.append( bodyCode );
-        /* Add a branch back to the condition.
-         * The offset is the total size of the current code plus the
-         * size of a Jump Always.
-         */
-        code.genJumpAlways( -(code.size() + Code.SIZE_JUMP_ALWAYS) );
+        code.append( node.getLoopStmt().genCode( this ) );
+        /* Add a branch back to the condition. */
+        code.genJumpAlways( startLabel );
+        code.genLabel( endLabel );
         return code;
     }
     /** Code generation for an erroneous expression should not be attempted. */
@@ -231,14 +244,19 @@ public class CodeGenerator
     }
     /** Generate binary operator code with operands loaded in order */
     private Code genBinaryInOrder( ExpNode.BinaryOpNode node ) {
-        Code code = node.getLeft().genCode( this );
-        code.append( node.getRight().genCode( this ) );
-        return code;
+        return genOperands( node.getLeft(), node.getRight() );
     }
     /** Generate binary operator operands in reverse order */
     private Code genBinaryInReverse( ExpNode.BinaryOpNode node ) {
-        Code code = node.getRight().genCode( this );
-        code.append( node.getLeft().genCode( this ) );
+        return genOperands( node.getRight(), node.getLeft() );
+    }
+    /** Generate the code to load first and then second, noting that
+     * the value of first is on the stack while second is evaluated */
+    private Code genOperands( ExpNode first, ExpNode second ) {
+        Code code = first.genCode( this );
+        pendingTypes.add( first.getType() );
+        code.append( second.genCode( this ) );
+        pendingTypes.remove( pendingTypes.size() - 1 );
         return code;
     }
 
@@ -380,11 +398,15 @@ public class CodeGenerator
     /** Generate code to assign fields to a record */
 	public Code visitRecordFieldsNode(RecordFieldsNode node) {
 		Code code = new Code();
+		int pending = pendingTypes.size();
 		
 		for (ExpNode field : node.getFields()) {
 			code.append(field.genCode(this));
+			/* The field's value stays on the stack for the rest */
+			pendingTypes.add(field.getType());
 		}
 		
+		pendingTypes.subList(pending, pendingTypes.size()).clear();
 		return code;
 	}
 	
@@ -393,12 +415,31 @@ public class CodeGenerator
 		/* Get record */
 		Type.RecordType recordType = node.getRecord().getType().getRecordType();
 		
-		/* Load record offset */
-		Code code = node.getRecord().genCode( this );
-		
 		/* Get offset of field */
 		int fieldOffset = recordType.getOffset(node.getField());
 		
+		/* A field of a record variable is at a fixed offset in its frame */
+		if (optimising) {
+			ExpNode record = node.getRecord();
+			int offset = fieldOffset;
+			while (record instanceof RecordEntryNode) {
+				RecordEntryNode entry = (RecordEntryNode)record;
+				offset += entry.getRecord().getType().getRecordType()
+					.getOffset(entry.getField());
+				record = entry.getRecord();
+			}
+			if (record instanceof ExpNode.VariableNode) {
+				SymEntry.VarEntry var = ((ExpNode.VariableNode)record).getVariable();
+				Code code = new Code();
+				code.genMemRef( staticLevel - var.getLevel(),
+						var.getOffset() + offset );
+				return code;
+			}
+		}
+		
+		/* Load record offset */
+		Code code = node.getRecord().genCode( this );
+		
 		/* Load the offset of field + record */
 		code.genLoadConstant( fieldOffset );
 		code.generateOp( Operation.ADD );
@@ -410,14 +451,13 @@ public class CodeGenerator
 	public Code visitPointerConstructorNode(PointerConstructorNode node) {
 		Code code = new Code();
 		
-		/* Find out how much space to allocate */
-		int space = node.getType().getPointerType().getBaseType().getSpace();
+		/* Find out how much space to allocate, and where its pointers are */
+		Type baseType = node.getType().getPointerType().getBaseType();
 		
-		/* Top of stack expects size to allocate for heap */
-		code.genLoadConstant(space);
-		
-		/* Allocate space and replace top of stack with memory address of newly created object */
-		code.generateOp(Operation.ALLOC_HEAP);
+		/* Load the size and allocate space, replacing top of stack with
+		 * memory address of newly created object. Values already on the
+		 * stack may point into the heap, so they are mapped as well. */
+		code.genAllocHeap(pointerMap(baseType), stackMap());
 		
 		return code;
 	}
@@ -437,33 +477,63 @@ public class CodeGenerator
 	 * 			[VALUE]
 	 */
 	public Code visitPointerNode(PointerNode node) {
-		Code code = new Code();
-		Code error = new Code();
-		
-		/* Create error code */
-		error.genLoadConstant(2);
-		error.generateOp(Operation.STOP);
+		Code.Label notNull = new Code.Label();
 		
 		/* Resolve the LValue */
-		Code value = node.getValue().genCode( this );
-		value.generateOp(Operation.LOAD_FRAME);
-		code.append(value);
+		Code code = node.getValue().genCode( this );
+		code.generateOp(Operation.LOAD_FRAME);
 		
 		/* Compare LValue with NULL_ADDR */
 		code.genLoadConstant(StackMachine.NULL_ADDR);
 		code.generateOp(Operation.EQUAL);
 		
 		/* Jump over error code if false */
-		code.genJumpIfFalse(error.size());
-		code.append(error);
+		code.genJumpIfFalse(notNull);
+		code.genLoadConstant(2);
+		code.generateOp(Operation.STOP);
+		code.genLabel(notNull);
 		
-		/* Pointer dereference to get value */
-		code.append(value);
+		/* Pointer dereference to get value (appending moves code, so
+		 * the LValue is generated again) */
+		code.append(node.getValue().genCode( this ));
+		code.generateOp(Operation.LOAD_FRAME);
 		code.generateOp(Operation.TO_LOCAL);
 		
 		return code;
 	}
 
+    /** Pointer map of an element of type t */
+    private PointerMap pointerMap( Type t ) {
+        List<Integer> offsets = new ArrayList<Integer>();
+        t.addPointerOffsets( 0, offsets );
+        return new PointerMap( t.getSpace(), offsets );
+    }
+    /** Pointer map of the frame of proc, from its frame pointer */
+    private PointerMap frameMap( SymEntry.ProcedureEntry proc ) {
+        List<Integer> offsets = new ArrayList<Integer>();
+        for( SymEntry entry : proc.getLocalScope().getEntries() ) {
+            if( entry instanceof SymEntry.VarEntry ) {
+                SymEntry.VarEntry var = (SymEntry.VarEntry)entry;
+                Type.ReferenceType refType = (Type.ReferenceType)var.getType();
+                refType.getBaseType().addPointerOffsets( var.getOffset(), 
+                        offsets );
+            }
+        }
+        return new PointerMap( StackMachine.LOCALS_BASE + 
+                proc.getLocalScope().getVariableSpace(), offsets );
+    }
+    /** Pointer map of the pending values on the stack, from the first 
+     * word of the first of them */
+    private PointerMap stackMap() {
+        List<Integer> offsets = new ArrayList<Integer>();
+        int size = 0;
+        for( Type t : pendingTypes ) {
+            t.addPointerOffsets( size, offsets );
+            size += t.getSpace();
+        }
+        return new PointerMap( size, offsets );
+    }
+
     private void fatal( String message, Position pos ) {
         errors.errorMessage( message, Severity.FATAL, pos);
     }
@@ -1,8 +1,9 @@
 package tree;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
+import machine.PointerMap;
 import source.ErrorHandler;
 import source.Severity;
 import syms.SymEntry.ProcedureEntry;
@@ -18,11 +19,14 @@ public class Procedures {
     private class ProcedureStart {
         ProcedureEntry proc;
         int start, finish;
+        /** Pointers among the local variables of the procedure */
+        PointerMap frameMap;
         
-        ProcedureStart( ProcedureEntry proc, int start ) {
+        ProcedureStart( ProcedureEntry proc, int start, PointerMap frameMap ) {
             super();
             this.proc = proc;
             this.start = start;
+            this.frameMap = frameMap;
         }
         @Override
         public String toString() {
@@ -30,38 +34,77 @@ public class Procedures {
         }
     }
     private List<ProcedureStart> procStarts;
+    /** Procedure containing each address from base, or null until the
+     * index is built */
+    private ProcedureStart[] procAt;
+    /** Start of the first procedure and finish of the last */
+    private int base, limit;
     
     public Procedures() {
-        procStarts = new LinkedList<ProcedureStart>();
+        procStarts = new ArrayList<ProcedureStart>();
     }
-    public void addProcedureStart( ProcedureEntry proc, int start ) {
+    /** Add a procedure starting at address start, whose frame has
+     * pointers to the heap at the offsets (from its frame pointer)
+     * given by frameMap */
+    public void addProcedureStart( ProcedureEntry proc, int start,
+            PointerMap frameMap ) {
         if( ! procStarts.isEmpty() ) {
             /* check last finish location is current location */
             ProcedureStart previous = procStarts.get( procStarts.size() - 1 );
             assert previous.finish == start;
         }
-        procStarts.add( new ProcedureStart( proc, start ) );
+        procStarts.add( new ProcedureStart( proc, start, frameMap ) );
+        procAt = null;
     }
     public void addProcedureFinish( int finish ) {
         assert ! procStarts.isEmpty() &&
             procStarts.get( procStarts.size() - 1 ).start <= finish;
         procStarts.get( procStarts.size() -1 ).finish = finish;
+        procAt = null;
+    }
+    /** Build the index from addresses to procedures, once the code is
+     * complete, so that finding the procedure containing an address is
+     * a single array access */
+    public void index() {
+        if( procStarts.isEmpty() ) {
+            base = limit = 0;
+            procAt = new ProcedureStart[0];
+            return;
+        }
+        base = procStarts.get(0).start;
+        limit = procStarts.get(procStarts.size()-1).finish;
+        procAt = new ProcedureStart[ limit - base ];
+        for( ProcedureStart ps : procStarts ) {
+            for( int locn = ps.start; locn < ps.finish; locn++ ) {
+                procAt[ locn - base ] = ps;
+            }
+        }
     }
     public ProcedureEntry getProcedure( int pc ) {
-        if( pc < procStarts.get(0).start ||
-            procStarts.get(procStarts.size()-1).finish <= pc ) {
+        ProcedureStart ps = find( pc );
+        return ps == null ? null : ps.proc;
+    }
+    /** Pointer map of the frame of the procedure containing pc,
+     * or null if pc is not within a procedure */
+    public PointerMap getFrameMap( int pc ) {
+        ProcedureStart ps = find( pc );
+        return ps == null ? null : ps.frameMap;
+    }
+    private ProcedureStart find( int pc ) {
+        if( procAt == null ) {
+            index();
+        }
+        if( pc < base || limit <= pc ) {
             // Must be in main program setup or finalization code
             return null;
         }
-        for( ProcedureStart ps : procStarts ) {
-            if( pc < ps.finish ) {
-                return ps.proc;
-            }
+        ProcedureStart ps = procAt[ pc - base ];
+        if( ps == null ) {
+            // Can't get here
+            ErrorHandler.getErrorHandler().errorMessage(
+                    "getProcedure failed assertion 2", Severity.FATAL );
         }
-        // Can't get here
-        ErrorHandler.getErrorHandler().errorMessage(
-                "getProcedure failed assertion 2", Severity.FATAL );
-        return null;
+        return ps;
     }
     @Override
     public String toString() {
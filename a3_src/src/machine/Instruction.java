@@ -20,7 +20,29 @@ public class Instruction {
         machine.generateWord(op.ordinal(), op.toString() );
     }
     
-    /** LOAD_CON is the only instruction with a parameter */
+    /** Superinstruction or display instruction with its operands in the
+     * following words */
+    public static class OperandInstruction extends Instruction {
+        protected int[] operands;
+
+        public OperandInstruction( Operation op, int... operands ) {
+            super( op );
+            assert operands.length == op.getSize() - 1;
+            this.operands = operands;
+        }
+        public int getOperand( int i ) {
+            return operands[i];
+        }
+        @Override
+        public void loadInstruction( StackMachine machine ) {
+            super.loadInstruction(machine);
+            for( int operand : operands ) {
+                machine.generateWord( operand, "" );
+            }
+        }
+    }
+
+    /** LOAD_CON is the only basic instruction with a parameter */
     public static class LoadConInstruction extends Instruction {
         protected int value;
         
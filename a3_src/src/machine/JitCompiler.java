@@ -0,0 +1,1087 @@
+package machine;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import tree.Procedures;
+
+/**
+ * class JitCompiler - translates the loaded stack machine code
+ * into JVM bytecode, with one static method per procedure, and loads it
+ * as a hidden class so that HotSpot can compile it to native code.
+ * <p>
+ * The stack frames (static link, dynamic link and return address at
+ * fp, fp+1 and fp+2) and the expression stack stay in the machine's
+ * memory; only the registers are held in JVM locals. Each compiled
+ * method is called with the frame pointer and stack pointer of a newly
+ * entered procedure, and returns the stack pointer after its RETURN,
+ * leaving the return address and restored frame pointer in the JitState.
+ * <p>
+ * Every instruction makes all of the checks the interpreter makes before
+ * it changes any state. If one fails, or the instruction is one that is
+ * not compiled (e.g., a branch to a computed address or STOP), the
+ * compiled code records the registers and throws a bailout so that the
+ * interpreter carries on from that instruction.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+final class JitCompiler {
+
+    /** Name of the generated class (in this package) */
+    private static final String CLASS_NAME = "machine/JitCode";
+    /** Name of the class holding the registers and runtime support */
+    private static final String STATE = "machine/JitState";
+    /** Descriptor of each compiled procedure */
+    private static final String PROC_DESC = "(Lmachine/JitState;[III)I";
+    /** Type of each compiled procedure */
+    private static final MethodType PROC_TYPE = MethodType.methodType(
+            int.class, JitState.class, int[].class, int.class, int.class );
+
+    /* Local variables of a compiled procedure */
+    private static final int STATE_VAR = 0, MEM = 1, FP = 2, SP = 3,
+        LIMIT = 4, TEMP = 5;
+    /** Maximum depth of the JVM operand stack in any compiled code */
+    private static final int MAX_STACK = 10;
+    /** Largest number of static links followed by an inline LOAD_UPLEVEL */
+    private static final int MAX_UPLEVEL = 32;
+    /** Largest number of nested compiled calls. Each is a JVM call, so a
+     * deeper call is left to the interpreter, which enters the callee
+     * afresh from runJit, rather than overflowing the JVM stack. */
+    static final int MAX_DEPTH = 256;
+
+    /* JVM opcodes used */
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11,
+        LDC_W = 0x13, ILOAD = 0x15, ALOAD = 0x19, IALOAD = 0x2e,
+        ISTORE = 0x36, IASTORE = 0x4f, IADD = 0x60, ISUB = 0x64,
+        IMUL = 0x68, IDIV = 0x6c, INEG = 0x74, IAND = 0x7e, IOR = 0x80,
+        IXOR = 0x82, IINC = 0x84, IFEQ = 0x99, IFLT = 0x9b,
+        IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1,
+        IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7,
+        IRETURN = 0xac, GETFIELD = 0xb4, PUTFIELD = 0xb5,
+        INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8, ARRAYLENGTH = 0xbe,
+        ATHROW = 0xbf;
+
+    /** Convert from integer to operation */
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** Machine code memory holding the loaded code */
+    private final int[] words;
+    /** Start and finish addresses of the procedures being compiled */
+    private final Map<Integer,Integer> procs;
+    /** Constant pool of the class being generated */
+    private ConstantPool pool;
+
+    private JitCompiler( int[] words, Map<Integer,Integer> procs ) {
+        this.words = words;
+        this.procs = procs;
+    }
+
+    /** Compile the procedures in procStarts.
+     * @param words machine code memory holding the code
+     * @param codeEnd address following the last word of code
+     * @param procStarts start and finish addresses of the procedures
+     * @return method handles for the compiled procedures indexed by
+     *  (start address - CODE_START), or null if nothing could be compiled
+     */
+    static MethodHandle[] compile( int[] words, int codeEnd,
+            Procedures procStarts ) {
+        Map<Integer,Integer> procs = new TreeMap<Integer,Integer>();
+        for( Procedures.ProcedureStart ps : procStarts.getProcedureStarts() ) {
+            if( StackMachine.CODE_START <= ps.getStart() &&
+                    ps.getStart() < ps.getFinish() &&
+                    ps.getFinish() <= codeEnd ) {
+                procs.put( ps.getStart(), ps.getFinish() );
+            }
+        }
+        /* A procedure too large for a JVM method is left to the
+         * interpreter, which changes the calls in the others,
+         * so the whole class is regenerated without it. */
+        while( !procs.isEmpty() ) {
+            JitCompiler compiler = new JitCompiler( words, procs );
+            byte[] classFile;
+            try {
+                classFile = compiler.generateClass();
+            } catch( CodeTooLargeException e ) {
+                procs.remove( e.start );
+                continue;
+            }
+            return compiler.load( classFile, codeEnd );
+        }
+        return null;
+    }
+
+    /** Load the generated class and look up the compiled procedures */
+    private MethodHandle[] load( byte[] classFile, int codeEnd ) {
+        MethodHandle[] entries =
+            new MethodHandle[ codeEnd - StackMachine.CODE_START ];
+        try {
+            MethodHandles.Lookup lookup =
+                MethodHandles.lookup().defineHiddenClass( classFile, true );
+            for( int start : procs.keySet() ) {
+                entries[ start - StackMachine.CODE_START ] =
+                    lookup.findStatic( lookup.lookupClass(),
+                            methodName( start ), PROC_TYPE );
+            }
+        } catch( ReflectiveOperationException e ) {
+            throw new IllegalStateException( "JIT class failed to load", e );
+        }
+        return entries;
+    }
+    private static String methodName( int start ) {
+        return "proc" + start;
+    }
+
+/****************************** Class File **********************************/
+    /** Generate the class file containing all of the procedures */
+    private byte[] generateClass() {
+        pool = new ConstantPool();
+        int thisClass = pool.classRef( CLASS_NAME );
+        int superClass = pool.classRef( "java/lang/Object" );
+        int codeAttr = pool.utf8( "Code" );
+        ByteBuf methods = new ByteBuf();
+        for( Map.Entry<Integer,Integer> proc : procs.entrySet() ) {
+            byte[] code =
+                new ProcCompiler( proc.getKey(), proc.getValue() ).compile();
+            methods.u2( 0x0008 );   /* ACC_STATIC */
+            methods.u2( pool.utf8( methodName( proc.getKey() ) ) );
+            methods.u2( pool.utf8( PROC_DESC ) );
+            methods.u2( 1 );        /* attributes: Code */
+            methods.u2( codeAttr );
+            methods.u4( 12 + code.length );
+            methods.u2( MAX_STACK );
+            methods.u2( TEMP + 1 );
+            methods.u4( code.length );
+            methods.bytes( code );
+            methods.u2( 0 );        /* exception table */
+            methods.u2( 0 );        /* attributes */
+        }
+        ByteBuf out = new ByteBuf();
+        out.u4( 0xCAFEBABE );
+        /* Version 49 class files are verified by type inference,
+         * so no stack map frames are needed. */
+        out.u2( 0 );
+        out.u2( 49 );
+        out.u2( pool.count );
+        out.bytes( pool.bytes.toArray() );
+        out.u2( 0x0030 );           /* ACC_FINAL | ACC_SUPER */
+        out.u2( thisClass );
+        out.u2( superClass );
+        out.u2( 0 );                /* interfaces */
+        out.u2( 0 );                /* fields */
+        out.u2( procs.size() );
+        out.bytes( methods.toArray() );
+        out.u2( 0 );                /* attributes */
+        return out.toArray();
+    }
+
+    /** Growable array of bytes in class file (big endian) order */
+    private static class ByteBuf {
+        private byte[] buf = new byte[256];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+        void u1( int b ) {
+            if( size == buf.length ) {
+                buf = Arrays.copyOf( buf, 2 * buf.length );
+            }
+            buf[size++] = (byte)b;
+        }
+        void u2( int s ) {
+            u1( s >> 8 );
+            u1( s );
+        }
+        void u4( int i ) {
+            u2( i >> 16 );
+            u2( i );
+        }
+        void bytes( byte[] b ) {
+            for( byte x : b ) {
+                u1( x );
+            }
+        }
+        void patch2( int at, int s ) {
+            buf[at] = (byte)(s >> 8);
+            buf[at+1] = (byte)s;
+        }
+        byte[] toArray() {
+            return Arrays.copyOf( buf, size );
+        }
+    }
+
+    /** Constant pool with each constant entered only once */
+    private static class ConstantPool {
+        private final ByteBuf bytes = new ByteBuf();
+        private final Map<String,Integer> index =
+            new HashMap<String,Integer>();
+        /** Number of entries plus one (as in the class file) */
+        private int count = 1;
+
+        /** Add the entry if it is not already there.
+         * @return index of the entry */
+        private int entry( String key, int tag, int... operands ) {
+            Integer i = index.get( key );
+            if( i == null ) {
+                bytes.u1( tag );
+                for( int operand : operands ) {
+                    bytes.u2( operand );
+                }
+                i = count++;
+                index.put( key, i );
+            }
+            return i;
+        }
+        int utf8( String s ) {
+            Integer i = index.get( "U" + s );
+            if( i == null ) {
+                /* Names and descriptors here are all ASCII */
+                bytes.u1( 1 );
+                bytes.u2( s.length() );
+                for( int j = 0; j < s.length(); j++ ) {
+                    bytes.u1( s.charAt( j ) );
+                }
+                i = count++;
+                index.put( "U" + s, i );
+            }
+            return i;
+        }
+        int integer( int value ) {
+            Integer i = index.get( "I" + value );
+            if( i == null ) {
+                bytes.u1( 3 );
+                bytes.u4( value );
+                i = count++;
+                index.put( "I" + value, i );
+            }
+            return i;
+        }
+        int classRef( String name ) {
+            int n = utf8( name );
+            return entry( "C" + name, 7, n );
+        }
+        int memberRef( int tag, String cls, String name, String desc ) {
+            int c = classRef( cls );
+            int n = utf8( name );
+            int d = utf8( desc );
+            int nt = entry( "N" + name + ":" + desc, 12, n, d );
+            return entry( tag + cls + "." + name + ":" + desc, tag, c, nt );
+        }
+        int methodRef( String cls, String name, String desc ) {
+            return memberRef( 10, cls, name, desc );
+        }
+        int fieldRef( String cls, String name, String desc ) {
+            return memberRef( 9, cls, name, desc );
+        }
+    }
+
+    /** Thrown when a procedure is too large for a JVM method */
+    private static class CodeTooLargeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        /** Start address of the procedure */
+        final int start;
+
+        CodeTooLargeException( int start ) {
+            this.start = start;
+        }
+    }
+
+    /** Position in the bytecode of a method, possibly not yet known */
+    private static class Label {
+        /** Offset of the label, or -1 if not yet placed */
+        int pos = -1;
+        /** Offsets of the branch instructions (and their operands)
+         * waiting for the label to be placed */
+        List<int[]> refs = new ArrayList<int[]>();
+    }
+
+/***************************** Procedure Code *******************************/
+    /** Compiles the code of a single procedure into a method */
+    private class ProcCompiler {
+        /** Address of the first instruction */
+        private final int start;
+        /** Address following the last instruction */
+        private final int finish;
+        /** Bytecode of the method */
+        private final ByteBuf code = new ByteBuf();
+        /** Label for each instruction address in the procedure */
+        private final Map<Integer,Label> labels = new HashMap<Integer,Label>();
+        /** Addresses that are the destinations of branches */
+        private final Set<Integer> targets = new HashSet<Integer>();
+        /** Code to hand over to the interpreter, emitted after the body,
+         * keyed on the address and any pending pushes */
+        private final Map<String,Label> bailouts =
+            new HashMap<String,Label>();
+        /** Address and pending pushes of each bailout */
+        private final Map<Label,int[]> bailoutCode =
+            new LinkedHashMap<Label,int[]>();
+        /** Code for a call that returned to an unexpected place */
+        private final Label returned = new Label();
+
+        ProcCompiler( int start, int finish ) {
+            this.start = start;
+            this.finish = finish;
+        }
+
+        /** Operation at addr or null if it isn't a valid instruction that
+         * fits in the procedure */
+        private Operation opAt( int addr ) {
+            if( addr < start || addr >= finish ) {
+                return null;
+            }
+            int word = words[addr];
+            if( word < 0 || word >= OPERATIONS.length ) {
+                return null;
+            }
+            Operation op = OPERATIONS[word];
+            return addr + op.getSize() <= finish ? op : null;
+        }
+        private int sizeAt( int addr ) {
+            Operation op = opAt( addr );
+            return op == null ? 1 : op.getSize();
+        }
+        /** Destination of the branch at addr, either a JUMP or
+         * BR_FALSE_IMM, or a LOAD_CON followed by a BR_FALSE, or null
+         * if there is no branch to a known instruction there */
+        private Integer branchDest( int addr ) {
+            Operation op = opAt( addr );
+            int dest;
+            if( op == Operation.JUMP || op == Operation.BR_FALSE_IMM ) {
+                dest = addr + 2 + words[addr+1];
+            } else if( op == Operation.LOAD_CON &&
+                    opAt( addr + 2 ) == Operation.BR_FALSE ) {
+                dest = addr + 3 + words[addr+1];
+            } else {
+                return null;
+            }
+            return labels.containsKey( dest ) ? dest : null;
+        }
+
+        /** Generate the bytecode for the procedure */
+        byte[] compile() {
+            for( int addr = start; addr < finish; addr += sizeAt( addr ) ) {
+                labels.put( addr, new Label() );
+            }
+            labels.put( finish, new Label() );
+            for( int addr = start; addr < finish; addr += sizeAt( addr ) ) {
+                Integer dest = branchDest( addr );
+                if( dest != null ) {
+                    targets.add( dest );
+                }
+            }
+            /* load the heap limit */
+            aload( STATE_VAR );
+            field( GETFIELD, "limit" );
+            istore( LIMIT );
+            int addr = start;
+            while( addr < finish ) {
+                place( labels.get( addr ) );
+                addr = compileInstruction( addr );
+            }
+            /* falling off the end of the procedure */
+            place( labels.get( finish ) );
+            jump( GOTO, bailout( finish ) );
+            for( Map.Entry<Label,int[]> b : bailoutCode.entrySet() ) {
+                if( b.getKey().refs.isEmpty() ) {
+                    continue;   /* never used */
+                }
+                place( b.getKey() );
+                int[] pushes = b.getValue();
+                for( int i = 1; i < pushes.length; i++ ) {
+                    pushConstant( pushes[i] );
+                }
+                aload( STATE_VAR );
+                constant( pushes[0] );
+                iload( FP );
+                iload( SP );
+                iload( LIMIT );
+                invoke( INVOKEVIRTUAL, STATE, "bail",
+                        "(IIII)Ljava/lang/RuntimeException;" );
+                code.u1( ATHROW );
+            }
+            if( !returned.refs.isEmpty() ) {
+                place( returned );
+                aload( STATE_VAR );
+                iload( SP );
+                invoke( INVOKEVIRTUAL, STATE, "returned",
+                        "(I)Ljava/lang/RuntimeException;" );
+                code.u1( ATHROW );
+            }
+            if( code.size() > 0xFFFF ) {
+                throw new CodeTooLargeException( start );
+            }
+            return code.toArray();
+        }
+
+        /** Compile the instruction at addr (together with any following
+         * instructions that are combined with it).
+         * @return address of the next instruction to compile */
+        private int compileInstruction( int addr ) {
+            Operation op = opAt( addr );
+            if( op == null ) {
+                jump( GOTO, bailout( addr ) );
+                return addr + 1;
+            }
+            int next = addr + op.getSize();
+            Label fail = bailout( addr );
+            switch( op ) {
+            case NO_OP:
+                break;
+            case LOAD_CON:
+                int value = words[addr+1];
+                if( !targets.contains( next ) ) {
+                    if( opAt( next ) == Operation.BR_FALSE &&
+                            branchDest( addr ) != null ) {
+                        return compileBranch( addr, value, next );
+                    }
+                    if( opAt( next ) == Operation.CALL &&
+                            procs.containsKey( value ) ) {
+                        return compileCall( addr, value, next );
+                    }
+                }
+                failIfFull( fail );
+                pushConstant( value );
+                break;
+            case ZERO:
+                if( !targets.contains( next ) &&
+                        opAt( next ) == Operation.LOAD_CON &&
+                        branchDest( next ) != null &&
+                        !targets.contains( next + 2 ) ) {
+                    return compileJump( addr );
+                }
+                failIfFull( fail );
+                pushConstant( 0 );
+                break;
+            case ONE:
+                failIfFull( fail );
+                pushConstant( 1 );
+                break;
+            case RETURN:
+                /* the frame must be in memory */
+                iload( FP );
+                jump( IFLT, fail );
+                iload( FP );
+                constant( 3 );
+                code.u1( IADD );
+                memoryLength();
+                jump( IF_ICMPGT, fail );
+                aload( STATE_VAR );
+                aload( MEM );
+                iload( FP );
+                constant( 2 );
+                code.u1( IADD );
+                code.u1( IALOAD );
+                field( PUTFIELD, "pc" );
+                aload( STATE_VAR );
+                aload( MEM );
+                iload( FP );
+                constant( 1 );
+                code.u1( IADD );
+                code.u1( IALOAD );
+                field( PUTFIELD, "fp" );
+                aload( STATE_VAR );
+                iload( LIMIT );
+                field( PUTFIELD, "limit" );
+                iload( FP );
+                code.u1( IRETURN );
+                break;
+            case ALLOC_STACK:
+                aload( MEM );
+                iload( SP );
+                iload( LIMIT );
+                callHelper( "allocStack", "([III)I", fail );
+                break;
+            case LOAD_MULTI:
+                aload( MEM );
+                iload( FP );
+                iload( SP );
+                iload( LIMIT );
+                callHelper( "loadMulti", "([IIII)I", fail );
+                break;
+            case STORE_MULTI:
+                aload( MEM );
+                iload( FP );
+                iload( SP );
+                callHelper( "storeMulti", "([III)I", fail );
+                break;
+            case COPY:
+                aload( MEM );
+                iload( FP );
+                iload( SP );
+                callHelper( "copy", "([III)I", fail );
+                break;
+            case DEALLOC_STACK:
+                failIfBelow( 1, fail );
+                iload( SP );
+                constant( 1 );
+                code.u1( ISUB );
+                loadStack( 1 );
+                code.u1( ISUB );
+                istore( TEMP );
+                iload( TEMP );
+                iload( FP );
+                constant( 2 );
+                code.u1( IADD );
+                jump( IF_ICMPLE, fail );
+                iload( TEMP );
+                istore( SP );
+                break;
+            case POP:
+                failIfBelow( 1, fail );
+                adjustSP( -1 );
+                break;
+            case DUP:
+                failIfBelow( 1, fail );
+                failIfFull( fail );
+                stackAddress( 0 );
+                loadStack( 1 );
+                code.u1( IASTORE );
+                adjustSP( 1 );
+                break;
+            case SWAP:
+                failIfBelow( 2, fail );
+                failIfAbove( 0, fail );
+                loadStack( 1 );
+                istore( TEMP );
+                stackAddress( 1 );
+                loadStack( 2 );
+                code.u1( IASTORE );
+                stackAddress( 2 );
+                iload( TEMP );
+                code.u1( IASTORE );
+                break;
+            case DIV:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                loadStack( 1 );
+                jump( IFEQ, fail );
+                binary( IDIV );
+                break;
+            case ADD:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                binary( IADD );
+                break;
+            case MPY:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                binary( IMUL );
+                break;
+            case OR:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                binary( IOR );
+                break;
+            case AND:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                binary( IAND );
+                break;
+            case XOR:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                binary( IXOR );
+                break;
+            case EQUAL:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                compare( IF_ICMPNE );
+                break;
+            case LESS:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                compare( IF_ICMPGE );
+                break;
+            case LESSEQ:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                compare( IF_ICMPGT );
+                break;
+            case NOT:
+                failIfBelow( 1, fail );
+                failIfAbove( 0, fail );
+                stackAddress( 1 );
+                loadStack( 1 );
+                constant( -1 );
+                code.u1( IXOR );
+                code.u1( IASTORE );
+                break;
+            case NEGATE:
+                failIfBelow( 1, fail );
+                failIfAbove( 0, fail );
+                stackAddress( 1 );
+                loadStack( 1 );
+                code.u1( INEG );
+                code.u1( IASTORE );
+                break;
+            case READ:
+                failIfFull( fail );
+                stackAddress( 0 );
+                aload( STATE_VAR );
+                constant( addr );
+                iload( FP );
+                iload( SP );
+                iload( LIMIT );
+                invoke( INVOKEVIRTUAL, STATE, "read", "(IIII)I" );
+                code.u1( IASTORE );
+                adjustSP( 1 );
+                break;
+            case WRITE:
+                failIfBelow( 1, fail );
+                adjustSP( -1 );
+                loadStack( 0 );
+                invoke( INVOKESTATIC, STATE, "write", "(I)V" );
+                break;
+            case BOUND:
+                failIfBelow( 3, fail );
+                failIfAbove( 2, fail );
+                loadStack( 3 );
+                istore( TEMP );
+                iload( TEMP );
+                loadStack( 2 );
+                jump( IF_ICMPLT, fail );
+                iload( TEMP );
+                loadStack( 1 );
+                jump( IF_ICMPGT, fail );
+                adjustSP( -2 );
+                break;
+            case TO_GLOBAL:
+            case TO_LOCAL:
+                failIfBelow( 1, fail );
+                failIfAbove( 0, fail );
+                stackAddress( 1 );
+                loadStack( 1 );
+                iload( FP );
+                code.u1( op == Operation.TO_GLOBAL ? IADD : ISUB );
+                code.u1( IASTORE );
+                break;
+            case LOAD_ABS:
+                failIfBelow( 1, fail );
+                failIfAbove( 0, fail );
+                loadStack( 1 );
+                istore( TEMP );
+                loadFromTemp( 1, fail );
+                break;
+            case LOAD_FRAME:
+                failIfBelow( 1, fail );
+                failIfAbove( 0, fail );
+                iload( FP );
+                loadStack( 1 );
+                code.u1( IADD );
+                istore( TEMP );
+                loadFromTemp( 1, fail );
+                break;
+            case LOAD_REL:
+                failIfBelow( 2, fail );
+                failIfAbove( 1, fail );
+                loadStack( 1 );
+                loadStack( 2 );
+                code.u1( IADD );
+                istore( TEMP );
+                loadFromTemp( 2, fail );
+                adjustSP( -1 );
+                break;
+            case STORE_FRAME:
+                failIfBelow( 2, fail );
+                iload( FP );
+                loadStack( 1 );
+                code.u1( IADD );
+                istore( TEMP );
+                storeToTemp( 2, fail );
+                adjustSP( -2 );
+                break;
+            case STORE_REL:
+                failIfBelow( 3, fail );
+                loadStack( 1 );
+                loadStack( 2 );
+                code.u1( IADD );
+                istore( TEMP );
+                storeToTemp( 3, fail );
+                adjustSP( -3 );
+                break;
+            case LOAD_LOCAL:
+                failIfFull( fail );
+                iload( FP );
+                constant( words[addr+1] );
+                code.u1( IADD );
+                istore( TEMP );
+                loadFromTemp( 0, fail );
+                adjustSP( 1 );
+                break;
+            case STORE_LOCAL:
+                failIfBelow( 1, fail );
+                iload( FP );
+                constant( words[addr+1] );
+                code.u1( IADD );
+                istore( TEMP );
+                storeToTemp( 1, fail );
+                adjustSP( -1 );
+                break;
+            case ADD_IMM:
+                failIfBelow( 1, fail );
+                failIfAbove( 0, fail );
+                stackAddress( 1 );
+                loadStack( 1 );
+                constant( words[addr+1] );
+                code.u1( IADD );
+                code.u1( IASTORE );
+                break;
+            case JUMP:
+                Integer dest = branchDest( addr );
+                jump( GOTO, dest == null ? fail : labels.get( dest ) );
+                break;
+            case BR_FALSE_IMM:
+                dest = branchDest( addr );
+                if( dest == null ) {
+                    jump( GOTO, fail );
+                    break;
+                }
+                failIfBelow( 1, fail );
+                loadStack( 1 );
+                istore( TEMP );
+                Label notFalse = new Label();
+                iload( TEMP );
+                constant( StackMachine.FALSE_VALUE );
+                jump( IF_ICMPNE, notFalse );
+                adjustSP( -1 );
+                jump( GOTO, labels.get( dest ) );
+                place( notFalse );
+                iload( TEMP );
+                constant( StackMachine.TRUE_VALUE );
+                jump( IF_ICMPNE, fail );
+                adjustSP( -1 );
+                break;
+            case LOAD_UPLEVEL:
+                if( words[addr+1] > MAX_UPLEVEL ) {
+                    jump( GOTO, fail );
+                    break;
+                }
+                failIfFull( fail );
+                iload( FP );
+                istore( TEMP );
+                for( int i = words[addr+1]; i > 0; i-- ) {
+                    /* follow the static link */
+                    iload( TEMP );
+                    jump( IFLT, fail );
+                    iload( TEMP );
+                    memoryLength();
+                    jump( IF_ICMPGE, fail );
+                    aload( MEM );
+                    iload( TEMP );
+                    code.u1( IALOAD );
+                    istore( TEMP );
+                }
+                iload( TEMP );
+                constant( words[addr+2] );
+                code.u1( IADD );
+                istore( TEMP );
+                loadFromTemp( 0, fail );
+                adjustSP( 1 );
+                break;
+            default:
+                /* BR_FALSE and CALL to computed addresses, ALLOC_HEAP
+                 * and STOP are left to the interpreter */
+                jump( GOTO, fail );
+                break;
+            }
+            return next;
+        }
+
+        /** Compile LOAD_CON value; BR_FALSE where the destination is
+         * known. The constant is only pushed if the branch fails. */
+        private int compileBranch( int addr, int value, int branch ) {
+            Label fail = bailout( branch, value );
+            failIfFull( bailout( addr ) );
+            /* the test value is on top of the stack */
+            failIfBelow( 1, fail );
+            loadStack( 1 );
+            istore( TEMP );
+            Label notFalse = new Label();
+            iload( TEMP );
+            constant( StackMachine.FALSE_VALUE );
+            jump( IF_ICMPNE, notFalse );
+            adjustSP( -1 );
+            jump( GOTO, labels.get( branchDest( addr ) ) );
+            place( notFalse );
+            iload( TEMP );
+            constant( StackMachine.TRUE_VALUE );
+            jump( IF_ICMPNE, fail );
+            adjustSP( -1 );
+            return branch + 1;
+        }
+        /** Compile the unconditional jump ZERO; LOAD_CON offset; BR_FALSE */
+        private int compileJump( int addr ) {
+            int value = words[addr+2];
+            failIfFull( bailout( addr ) );
+            failIfAbove( -2, bailout( addr + 1, 0 ) );
+            if( StackMachine.FALSE_VALUE == 0 ) {
+                jump( GOTO, labels.get( branchDest( addr + 1 ) ) );
+            } else if( StackMachine.TRUE_VALUE != 0 ) {
+                jump( GOTO, bailout( addr + 3, 0, value ) );
+            }
+            return addr + 4;
+        }
+        /** Compile LOAD_CON proc; CALL as a direct call to the compiled
+         * procedure. The frame is set up exactly as CALL does. */
+        private int compileCall( int addr, int proc, int call ) {
+            int returnAddr = call + 1;
+            failIfFull( bailout( addr ) );
+            failIfAbove( -2, bailout( call, proc ) );
+            aload( STATE_VAR );
+            field( GETFIELD, "depth" );
+            constant( MAX_DEPTH );
+            jump( IF_ICMPGE, bailout( call, proc ) );
+            /* dynamic link and return address */
+            stackAddress( 0 );
+            iload( FP );
+            code.u1( IASTORE );
+            stackAddress( -1 );
+            constant( returnAddr );
+            code.u1( IASTORE );
+            aload( STATE_VAR );
+            iload( LIMIT );
+            field( PUTFIELD, "limit" );
+            addDepth( 1 );
+            aload( STATE_VAR );
+            aload( MEM );
+            iload( SP );
+            constant( 1 );
+            code.u1( ISUB );
+            iload( SP );
+            constant( 2 );
+            code.u1( IADD );
+            code.u1( INVOKESTATIC );
+            code.u2( pool.memberRef( 10, CLASS_NAME, methodName( proc ),
+                    PROC_DESC ) );
+            istore( SP );
+            addDepth( -1 );
+            aload( STATE_VAR );
+            field( GETFIELD, "limit" );
+            istore( LIMIT );
+            /* carry on here only if the callee returned here */
+            aload( STATE_VAR );
+            field( GETFIELD, "pc" );
+            constant( returnAddr );
+            jump( IF_ICMPNE, returned );
+            aload( STATE_VAR );
+            field( GETFIELD, "fp" );
+            iload( FP );
+            jump( IF_ICMPNE, returned );
+            return returnAddr;
+        }
+        /** Add change to the depth of compiled calls */
+        private void addDepth( int change ) {
+            aload( STATE_VAR );
+            aload( STATE_VAR );
+            field( GETFIELD, "depth" );
+            constant( change );
+            code.u1( IADD );
+            field( PUTFIELD, "depth" );
+        }
+
+        /** Label of the code handing over to the interpreter at addr,
+         * after pushing the given values (those of instructions combined
+         * with the one at addr). */
+        private Label bailout( int addr, int... pushes ) {
+            int[] key = new int[ pushes.length + 1 ];
+            key[0] = addr;
+            System.arraycopy( pushes, 0, key, 1, pushes.length );
+            String k = Arrays.toString( key );
+            Label label = bailouts.get( k );
+            if( label == null ) {
+                label = new Label();
+                bailouts.put( k, label );
+                bailoutCode.put( label, key );
+            }
+            return label;
+        }
+
+        /* -------------------- Stack access ---------------------------*/
+
+        /** Push array and index for mem[sp - offset] */
+        private void stackAddress( int offset ) {
+            aload( MEM );
+            iload( SP );
+            if( offset != 0 ) {
+                constant( offset );
+                code.u1( ISUB );
+            }
+        }
+        /** Push mem[sp - offset] */
+        private void loadStack( int offset ) {
+            stackAddress( offset );
+            code.u1( IALOAD );
+        }
+        /** Push a constant onto the machine stack */
+        private void pushConstant( int value ) {
+            stackAddress( 0 );
+            constant( value );
+            code.u1( IASTORE );
+            adjustSP( 1 );
+        }
+        private void adjustSP( int delta ) {
+            code.u1( IINC );
+            code.u1( SP );
+            code.u1( delta );
+        }
+        /** Fail if there are fewer than n words on the stack */
+        private void failIfBelow( int n, Label fail ) {
+            iload( SP );
+            constant( n );
+            jump( IF_ICMPLT, fail );
+        }
+        /** Fail if the stack is full */
+        private void failIfFull( Label fail ) {
+            iload( SP );
+            iload( LIMIT );
+            jump( IF_ICMPGE, fail );
+        }
+        /** Fail if sp > limit + n, i.e., if the result of an instruction
+         * that pops n+1 words and pushes one would overflow */
+        private void failIfAbove( int n, Label fail ) {
+            iload( SP );
+            iload( LIMIT );
+            if( n != 0 ) {
+                constant( n );
+                code.u1( IADD );
+            }
+            jump( IF_ICMPGT, fail );
+        }
+        /** Replace mem[sp-2] by the result of op on mem[sp-2] and
+         * mem[sp-1] and pop */
+        private void binary( int op ) {
+            stackAddress( 2 );
+            loadStack( 2 );
+            loadStack( 1 );
+            code.u1( op );
+            code.u1( IASTORE );
+            adjustSP( -1 );
+        }
+        /** As for binary, for a comparison; the branch opcode jumps
+         * if the result is false */
+        private void compare( int branchIfFalse ) {
+            Label isFalse = new Label();
+            Label done = new Label();
+            stackAddress( 2 );
+            loadStack( 2 );
+            loadStack( 1 );
+            jump( branchIfFalse, isFalse );
+            constant( StackMachine.TRUE_VALUE );
+            jump( GOTO, done );
+            place( isFalse );
+            constant( StackMachine.FALSE_VALUE );
+            place( done );
+            code.u1( IASTORE );
+            adjustSP( -1 );
+        }
+        /** mem[sp - offset] = mem[temp], failing if temp is outside memory */
+        private void loadFromTemp( int offset, Label fail ) {
+            iload( TEMP );
+            jump( IFLT, fail );
+            iload( TEMP );
+            memoryLength();
+            jump( IF_ICMPGE, fail );
+            stackAddress( offset );
+            aload( MEM );
+            iload( TEMP );
+            code.u1( IALOAD );
+            code.u1( IASTORE );
+        }
+        /** mem[temp] = mem[sp - offset], failing if temp is outside memory */
+        private void storeToTemp( int offset, Label fail ) {
+            iload( TEMP );
+            jump( IFLT, fail );
+            iload( TEMP );
+            memoryLength();
+            jump( IF_ICMPGE, fail );
+            aload( MEM );
+            iload( TEMP );
+            loadStack( offset );
+            code.u1( IASTORE );
+        }
+        /** Call a runtime support routine returning the new sp or -1 */
+        private void callHelper( String name, String desc, Label fail ) {
+            invoke( INVOKESTATIC, STATE, name, desc );
+            istore( TEMP );
+            iload( TEMP );
+            jump( IFLT, fail );
+            iload( TEMP );
+            istore( SP );
+        }
+
+        /* -------------------- Bytecode -------------------------------*/
+
+        private void constant( int value ) {
+            if( -1 <= value && value <= 5 ) {
+                code.u1( ICONST_0 + value );
+            } else if( Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE ) {
+                code.u1( BIPUSH );
+                code.u1( value );
+            } else if( Short.MIN_VALUE <= value && value <= Short.MAX_VALUE ) {
+                code.u1( SIPUSH );
+                code.u2( value );
+            } else {
+                code.u1( LDC_W );
+                code.u2( pool.integer( value ) );
+            }
+        }
+        /** Push the size of the memory, which grows with the stack */
+        private void memoryLength() {
+            aload( MEM );
+            code.u1( ARRAYLENGTH );
+        }
+        private void iload( int var ) {
+            code.u1( ILOAD );
+            code.u1( var );
+        }
+        private void istore( int var ) {
+            code.u1( ISTORE );
+            code.u1( var );
+        }
+        private void aload( int var ) {
+            code.u1( ALOAD );
+            code.u1( var );
+        }
+        private void field( int opcode, String name ) {
+            code.u1( opcode );
+            code.u2( pool.fieldRef( STATE, name, "I" ) );
+        }
+        private void invoke( int opcode, String cls, String name,
+                String desc ) {
+            code.u1( opcode );
+            code.u2( pool.methodRef( cls, name, desc ) );
+        }
+        private void jump( int opcode, Label label ) {
+            int at = code.size();
+            code.u1( opcode );
+            if( label.pos >= 0 ) {
+                code.u2( offset( at, label.pos ) );
+            } else {
+                label.refs.add( new int[] { at, code.size() } );
+                code.u2( 0 );
+            }
+        }
+        private void place( Label label ) {
+            label.pos = code.size();
+            for( int[] ref : label.refs ) {
+                code.patch2( ref[1], offset( ref[0], label.pos ) );
+            }
+        }
+        private int offset( int from, int to ) {
+            int offset = to - from;
+            if( offset < Short.MIN_VALUE || offset > Short.MAX_VALUE ) {
+                throw new CodeTooLargeException( start );
+            }
+            return offset;
+        }
+    }
+}
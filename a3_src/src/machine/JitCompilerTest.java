@@ -0,0 +1,107 @@
+package machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+import parser.CUPParser;
+import parser.CUPScanner;
+import source.ErrorHandler;
+import source.Source;
+import tree.CodeGenerator;
+import tree.CodePlusProcedures;
+import tree.StaticChecker;
+import tree.Tree;
+
+/**
+ * class JitCompilerTest - Junit test for JitCompiler
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class JitCompilerTest extends TestCase {
+
+    public JitCompilerTest(String arg0) {
+        super(arg0);
+    }
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile( "JitCompilerTest", ".pl0" );
+    }
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    /** Compile text and run it with the given engine and stack size.
+     * @return the output of the run */
+    private String run( String text, StackMachine.Engine engine,
+            int stackSize ) throws Exception {
+        FileWriter writer = new FileWriter( file );
+        writer.write( text );
+        writer.close();
+        Source src = new Source( file.getPath() );
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream( bytes, true );
+        PrintStream console = System.out;
+        ErrorHandler errors = new ErrorHandler( out, src );
+        System.setOut( out );
+        try {
+            Tree.ProgramNode tree = (Tree.ProgramNode)
+                new CUPParser( new CUPScanner( src ) ).parse().value;
+            new StaticChecker( errors ).visitProgramNode( tree );
+            assertFalse( errors.hadErrors() );
+            CodePlusProcedures code =
+                new CodeGenerator( errors ).generateCode( tree );
+            StackMachine machine = new StackMachine( errors, false, code );
+            machine.setEngine( engine );
+            machine.setMemory( 0, stackSize, 0 );
+            machine.run();
+        } finally {
+            System.setOut( console );
+            errors.close();
+            src.close();
+        }
+        return bytes.toString();
+    }
+    private void assertSameOutput( String text, int stackSize )
+            throws Exception {
+        assertEquals( run( text, StackMachine.Engine.INTERPRETER, stackSize ),
+                run( text, StackMachine.Engine.JIT, stackSize ) );
+    }
+
+    /*
+     * Test that a recursion much deeper than the compiled calls may nest
+     * gives the same output as the interpreter.
+     */
+    public void testDeepRecursion() throws Exception {
+        String text =
+            "var n: int; d: int;\n" +
+            "procedure r() =\n" +
+            "  begin\n" +
+            "    if n > 0 then begin n := n - 1; d := d + 1; call r() end\n" +
+            "    else write d\n" +
+            "  end;\n" +
+            "begin n := 20000; d := 0; call r(); write n end\n";
+        String output = run( text, StackMachine.Engine.JIT, 100000 );
+        assertTrue( output.contains( "20000\n0\n" ) );
+        assertSameOutput( text, 100000 );
+    }
+    /*
+     * Test that a recursion running out of memory is reported as by the
+     * interpreter (with the same trace back).
+     */
+    public void testStackOverflow() throws Exception {
+        String text =
+            "var n: int;\n" +
+            "procedure r() = begin n := n + 1; call r() end;\n" +
+            "begin n := 0; call r() end\n";
+        assertSameOutput( text, 50000 );
+    }
+}
@@ -0,0 +1,154 @@
+package machine;
+
+/**
+ * class JitState - registers passed between the stack machine and the
+ * code generated by the JitCompiler, together with the runtime support
+ * routines called from the generated code.
+ * The compiled code keeps the program counter, frame pointer, stack
+ * pointer and heap limit in JVM locals, and all of the stack frames in
+ * the machine's memory, so that execution can be handed back to the
+ * interpreter (a "bailout") at any instruction.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+final class JitState {
+
+    /** Thrown by compiled code to hand execution back to the interpreter.
+     * All of the JVM frames of the compiled code are discarded; the
+     * machine state is completely described by the registers in the
+     * JitState and the machine's memory. */
+    static final class Bailout extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Bailout() {
+            super( "JIT bailout", null, false, false );
+        }
+    }
+    /** The one bailout exception (it carries no state of its own) */
+    static final Bailout BAILOUT = new Bailout();
+
+    /** Stack machine owning the compiled code */
+    private final StackMachine machine;
+    /** Program counter: after a return, the return address */
+    int pc;
+    /** Frame pointer: after a return, the restored frame pointer */
+    int fp;
+    /** Stack pointer at a bailout */
+    int sp;
+    /** Heap limit */
+    int limit;
+    /** Number of compiled calls nested within the compiled procedure
+     * called from the interpreter */
+    int depth;
+    /** Set if a READ in compiled code was given an invalid value */
+    boolean readFailed;
+
+    JitState( StackMachine machine ) {
+        this.machine = machine;
+    }
+
+    /** Record the registers at the start of the instruction at pc, which
+     * is to be executed by the interpreter.
+     * @return the exception for the compiled code to throw */
+    RuntimeException bail( int pc, int fp, int sp, int limit ) {
+        this.pc = pc;
+        this.fp = fp;
+        this.sp = sp;
+        this.limit = limit;
+        return BAILOUT;
+    }
+    /** A compiled call returned somewhere other than the instruction
+     * following the call. The return address and frame pointer have
+     * already been recorded by the RETURN.
+     * @return the exception for the compiled code to throw */
+    RuntimeException returned( int sp ) {
+        this.sp = sp;
+        return BAILOUT;
+    }
+    /** Read a value for a READ instruction at pc */
+    int read( int pc, int fp, int sp, int limit ) {
+        try {
+            return machine.readValue();
+        } catch( Exception e ) {
+            /* The input has been consumed, so the interpreter can't
+             * repeat the READ; it reports the error instead. */
+            readFailed = true;
+            throw bail( pc + 1, fp, sp, limit );
+        }
+    }
+    /** Write a value for a WRITE instruction */
+    static void write( int value ) {
+        System.out.println( Integer.toString( value ) );
+    }
+
+    /* The following perform the instructions with a variable number of
+     * memory accesses. Each returns the new stack pointer, or -1 (without
+     * changing anything) if the instruction would fail.
+     */
+
+    /** Perform an ALLOC_STACK instruction */
+    static int allocStack( int[] mem, int sp, int limit ) {
+        if( sp < 1 ) {
+            return -1;
+        }
+        int count = mem[sp-1];
+        if( count > 0 && sp - 1 + count > limit ) {
+            return -1;
+        }
+        sp--;
+        for( int i = 0; i < count; i++ ) {
+            mem[sp++] = StackMachine.NULL_ADDR;
+        }
+        return sp;
+    }
+    /** Perform a LOAD_MULTI instruction */
+    static int loadMulti( int[] mem, int fp, int sp, int limit ) {
+        if( sp < 2 ) {
+            return -1;
+        }
+        int count = mem[sp-1];
+        int address = fp + mem[sp-2];
+        if( count > 0 && ( address < 0 || address + count > mem.length ||
+                sp - 2 + count > limit ) ) {
+            return -1;
+        }
+        sp -= 2;
+        for( int i = 0; i < count; i++ ) {
+            mem[sp++] = mem[address++];
+        }
+        return sp;
+    }
+    /** Perform a STORE_MULTI instruction */
+    static int storeMulti( int[] mem, int fp, int sp ) {
+        if( sp < 2 ) {
+            return -1;
+        }
+        int count = mem[sp-1];
+        int address = fp + mem[sp-2] + count;
+        if( count > 0 && ( sp - 2 < count || address - count < 0 ||
+                address > mem.length ) ) {
+            return -1;
+        }
+        sp -= 2;
+        for( int i = 0; i < count; i++ ) {
+            mem[--address] = mem[--sp];
+        }
+        return sp;
+    }
+    /** Perform a COPY instruction */
+    static int copy( int[] mem, int fp, int sp ) {
+        if( sp < 3 ) {
+            return -1;
+        }
+        int count = mem[sp-1];
+        int toAddr = fp + mem[sp-2];
+        int fromAddr = fp + mem[sp-3];
+        if( count > 0 && ( fromAddr < 0 || fromAddr + count > mem.length ||
+                toAddr < 0 || toAddr + count > mem.length ) ) {
+            return -1;
+        }
+        for( int i = 0; i < count; i++ ) {
+            mem[toAddr + i] = mem[fromAddr + i];
+        }
+        return sp - 3;
+    }
+}
@@ -0,0 +1,146 @@
+package machine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tree.Procedures;
+
+/**
+ * class ObjectCode - the loaded code of a program, as the words of the
+ * code memory together with its procedure table, which can be written to
+ * an object file and read back to run the program again without
+ * compiling it.
+ * The file holds (as big-endian ints, with each string as its length
+ * followed by its UTF-8 bytes): a magic number and version, the address
+ * of the first word and the number of words, the words, and then for each
+ * procedure its name, start and finish addresses and the names and
+ * offsets of its local variables (for trace backs).
+ * It is read by mapping it into memory and copying the words in bulk.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ObjectCode {
+
+    /** First word of an object file ("PL0O") */
+    private final static int MAGIC = 0x504C304F;
+    /** Version of the format, changed whenever it or the operation codes
+     * change */
+    private final static int VERSION = 3;
+
+    /** Code words from StackMachine.CODE_START */
+    private int[] words;
+    /** Procedure table for the code */
+    private Procedures procStarts;
+
+    public ObjectCode( int[] words, Procedures procStarts ) {
+        this.words = words;
+        this.procStarts = procStarts;
+    }
+    public int[] getWords() {
+        return words;
+    }
+    public Procedures getProcStarts() {
+        return procStarts;
+    }
+
+    /** Write the object code to the file fileName */
+    public void write( String fileName ) throws IOException {
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                new FileOutputStream( fileName ) ) );
+        try {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( StackMachine.CODE_START );
+            out.writeInt( words.length );
+            for( int word : words ) {
+                out.writeInt( word );
+            }
+            out.writeInt( procStarts.getProcedureStarts().size() );
+            for( Procedures.ProcedureStart ps :
+                    procStarts.getProcedureStarts() ) {
+                writeString( out, ps.getProcName() );
+                out.writeInt( ps.getStart() );
+                out.writeInt( ps.getFinish() );
+                Map<String,Integer> variables = ps.getVariables();
+                out.writeInt( variables.size() );
+                for( Map.Entry<String,Integer> var : variables.entrySet() ) {
+                    writeString( out, var.getKey() );
+                    out.writeInt( var.getValue() );
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+    /** Read the object code from the file fileName.
+     * @throws IOException if it can't be read or isn't an object file of
+     *  this version */
+    public static ObjectCode read( String fileName ) throws IOException {
+        FileChannel channel = FileChannel.open( Paths.get( fileName ),
+                StandardOpenOption.READ );
+        try {
+            ByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY,
+                    0, channel.size() );
+            if( buf.remaining() < 8 || buf.getInt() != MAGIC ) {
+                throw new IOException( fileName + " is not an object file" );
+            }
+            if( buf.getInt() != VERSION ||
+                    buf.getInt() != StackMachine.CODE_START ) {
+                throw new IOException( fileName +
+                        " was written by a different version of the compiler" );
+            }
+            int[] words = new int[ count( buf, 4 ) ];
+            buf.asIntBuffer().get( words );
+            buf.position( buf.position() + 4 * words.length );
+            Procedures procStarts = new Procedures();
+            for( int procs = count( buf, 16 ); procs > 0; procs-- ) {
+                String name = readString( buf );
+                int start = buf.getInt();
+                int finish = buf.getInt();
+                Map<String,Integer> variables =
+                    new LinkedHashMap<String,Integer>();
+                for( int vars = count( buf, 8 ); vars > 0; vars-- ) {
+                    String var = readString( buf );
+                    variables.put( var, buf.getInt() );
+                }
+                procStarts.addProcedure( name, variables, start, finish );
+            }
+            return new ObjectCode( words, procStarts );
+        } catch( BufferUnderflowException e ) {
+            throw new IOException( fileName + " is truncated" );
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Read a count of items, each at least size bytes, checking that
+     * the buffer could hold them */
+    private static int count( ByteBuffer buf, int size ) {
+        int n = buf.getInt();
+        if( n < 0 || n > buf.remaining() / size ) {
+            throw new BufferUnderflowException();
+        }
+        return n;
+    }
+    private static void writeString( DataOutputStream out, String s )
+        throws IOException
+    {
+        byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+    private static String readString( ByteBuffer buf ) {
+        byte[] bytes = new byte[ count( buf, 1 ) ];
+        buf.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+}
@@ -0,0 +1,74 @@
+package machine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import tree.Procedures;
+
+/**
+ * class ObjectCodeTest - Junit test for ObjectCode
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ObjectCodeTest extends TestCase {
+
+    public ObjectCodeTest(String arg0) {
+        super(arg0);
+    }
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile( "ObjectCodeTest", ".pl0o" );
+    }
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    /*
+     * Test that the words and procedure table are read back as written.
+     */
+    public void testReadWrite() throws IOException {
+        Map<String,Integer> vars = new LinkedHashMap<String,Integer>();
+        vars.put( "y", 4 );
+        vars.put( "x", 3 );
+        Procedures procs = new Procedures();
+        procs.addProcedure( "p", vars, 1003, 1005 );
+        procs.addProcedure( "<main>", new LinkedHashMap<String,Integer>(),
+                1005, 1007 );
+        int[] words = { 32, 32, 32, 33, 7, -1, 7 };
+        new ObjectCode( words, procs ).write( file.getPath() );
+        ObjectCode object = ObjectCode.read( file.getPath() );
+        assertTrue( Arrays.equals( words, object.getWords() ) );
+        Procedures read = object.getProcStarts();
+        assertEquals( 2, read.getProcedureStarts().size() );
+        Procedures.ProcedureStart p = read.getProcedure( 1004 );
+        assertEquals( "p", p.getProcName() );
+        assertEquals( 1005, p.getFinish() );
+        assertEquals( "[y, x]", p.getVariables().keySet().toString() );
+        assertEquals( Integer.valueOf( 3 ), p.getVariables().get( "x" ) );
+        assertEquals( "<main>", read.getProcedure( 1006 ).getProcName() );
+    }
+    /*
+     * Test that a file that isn't an object file is rejected.
+     */
+    public void testNotObject() throws IOException {
+        FileOutputStream out = new FileOutputStream( file );
+        out.write( "begin end".getBytes() );
+        out.close();
+        try {
+            ObjectCode.read( file.getPath() );
+            fail( "read a source file as object code" );
+        } catch( IOException e ) {
+            /* expected */
+        }
+    }
+}
@@ -56,9 +56,28 @@ public enum Operation {
     /* Loading multiple words onto the stack */
     LOAD_MULTI(),      /* Load multiple words onto stack */
     STORE_MULTI(),     /* Store multiple words from stack */
-    STOP();            /* Halt execution */
+    STOP(),            /* Halt execution */
+    /* Superinstructions: each performs a common sequence of the above
+     * (see tree.InstructionFusion), taking its operands from the
+     * following words */
+    LOAD_LOCAL( 2 ),   /* LOAD_CON n; LOAD_FRAME */
+    STORE_LOCAL( 2 ),  /* LOAD_CON n; STORE_FRAME */
+    JUMP( 2 ),         /* ZERO; LOAD_CON offset; BR_FALSE */
+    BR_FALSE_IMM( 2 ), /* LOAD_CON offset; BR_FALSE */
+    LOAD_UPLEVEL( 3 ), /* Load word at offset n (second operand) in the
+                          frame d (first operand) static levels up */
+    ADD_IMM( 2 ),      /* LOAD_CON k; ADD */
+    /* Access to the frames of the static chain through the display
+     * (see StackMachine), taking the static level from the next word */
+    LOAD_DISPLAY( 3 ), /* Load word at offset n (second operand) in the
+                          frame of static level l (first operand) */
+    STORE_DISPLAY( 3 ),/* Store top of stack at offset n (second operand)
+                          in the frame of static level l (first operand) */
+    DISPLAY( 2 ),      /* Load the address of the frame of static level l */
+    TAIL_CALL( 2 );    /* Call reusing the current frame, replacing its n
+                          words of parameters (see StackMachine) */
 
-    /* Size of the instruction - LOAD_CON of size 2 */
+    /* Size of the instruction in words, including any operands */
     private int size;
     
     public int getSize() {
@@ -0,0 +1,281 @@
+package machine;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import tree.Procedures;
+
+/**
+ * class Profiler - counts the instructions executed by the stack machine
+ * when profiling: per operation, per pair of adjacent operations executed
+ * one after the other, per address, and per procedure, along with the
+ * number of calls of each procedure.
+ * The exclusive count of a procedure is of the instructions within it;
+ * its inclusive count also includes those of the procedures it calls
+ * (with recursive activations counted once).
+ * The report is printed as text, and can be written as JSON.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class Profiler {
+
+    /** Number of addresses and pairs listed in the text report */
+    private static final int REPORT_TOP = 20;
+
+    /** Convert from integer to operation */
+    private final Operation[] getOperation = Operation.values();
+    /** Procedures of the code being profiled */
+    private final Procedures procStarts;
+    /** The procedures in address order */
+    private final List<Procedures.ProcedureStart> procs;
+    /** Index of each procedure in procs */
+    private final Map<Procedures.ProcedureStart,Integer> procIndex =
+        new IdentityHashMap<Procedures.ProcedureStart,Integer>();
+
+    /** Total number of instructions executed */
+    private long total = 0;
+    /** Number executed of each operation, by its ordinal */
+    private final long[] opCounts;
+    /** Number of times each operation (by ordinal * number of operations
+     * + ordinal) followed the other directly */
+    private final long[] pairCounts;
+    /** Opcode of the previous instruction, or -1 if none */
+    private int previous = -1;
+    /** Address following the previous instruction */
+    private int previousNext = -1;
+    /** Number of times the instruction at each address (from CODE_START)
+     * was executed, and its opcode */
+    private final long[] pcCounts;
+    private final int[] pcOps;
+    /** Number of calls, inclusive count and number of active calls of
+     * each procedure */
+    private final long[] calls, inclusive;
+    private final int[] active;
+    /** Stack of active calls: index of the procedure called (or -1 if the
+     * call is not to a procedure) and the total count on entry */
+    private int[] callProc = new int[64];
+    private long[] callTotal = new long[64];
+    private int depth = 0;
+
+    /** Profiler for the code from CODE_START to codeEnd */
+    public Profiler( Procedures procStarts, int codeEnd ) {
+        this.procStarts = procStarts;
+        this.procs = procStarts.getProcedureStarts();
+        int i = 0;
+        for( Procedures.ProcedureStart ps : procs ) {
+            procIndex.put( ps, i++ );
+        }
+        opCounts = new long[ getOperation.length ];
+        pairCounts = new long[ getOperation.length * getOperation.length ];
+        pcCounts = new long[ codeEnd - StackMachine.CODE_START ];
+        pcOps = new int[ pcCounts.length ];
+        calls = new long[ procs.size() ];
+        inclusive = new long[ procs.size() ];
+        active = new int[ procs.size() ];
+    }
+
+    /** Count the execution of the instruction at pc (within the code)
+     * with the given opcode. Code reached other than by a call, as the
+     * main program is, is entered when nothing is active. */
+    void count( int pc, int opcode ) {
+        if( depth == 0 && procStarts.getProcedure( pc ) != null ) {
+            enter( pc );
+        }
+        total++;
+        opCounts[ opcode ]++;
+        if( pc == previousNext ) {
+            pairCounts[ previous * getOperation.length + opcode ]++;
+        }
+        previous = opcode;
+        previousNext = pc + getOperation[ opcode ].getSize();
+        pcCounts[ pc - StackMachine.CODE_START ]++;
+        pcOps[ pc - StackMachine.CODE_START ] = opcode;
+    }
+    /** Count a call to the code at pc */
+    void enter( int pc ) {
+        if( depth == callProc.length ) {
+            callProc = Arrays.copyOf( callProc, 2 * depth );
+            callTotal = Arrays.copyOf( callTotal, 2 * depth );
+        }
+        Procedures.ProcedureStart ps = procStarts.getProcedure( pc );
+        int proc = ps == null ? -1 : procIndex.get( ps );
+        callProc[ depth ] = proc;
+        callTotal[ depth ] = total;
+        depth++;
+        if( proc >= 0 ) {
+            calls[ proc ]++;
+            active[ proc ]++;
+        }
+    }
+    /** Count a return from the active call */
+    void leave() {
+        if( depth == 0 ) {
+            return;
+        }
+        depth--;
+        int proc = callProc[ depth ];
+        if( proc >= 0 && --active[ proc ] == 0 ) {
+            inclusive[ proc ] += total - callTotal[ depth ];
+        }
+    }
+    /** Count returns from the calls still active when the machine stops */
+    void finish() {
+        while( depth > 0 ) {
+            leave();
+        }
+    }
+
+    public long getTotal() {
+        return total;
+    }
+    public long getCount( Operation op ) {
+        return opCounts[ op.ordinal() ];
+    }
+    /** Number of times the instruction at pc was executed */
+    public long getCount( int pc ) {
+        int i = pc - StackMachine.CODE_START;
+        return 0 <= i && i < pcCounts.length ? pcCounts[i] : 0;
+    }
+    public long getCalls( Procedures.ProcedureStart ps ) {
+        return calls[ procIndex.get( ps ) ];
+    }
+    public long getInclusive( Procedures.ProcedureStart ps ) {
+        return inclusive[ procIndex.get( ps ) ];
+    }
+    /** Number of instructions executed within the procedure itself */
+    public long getExclusive( Procedures.ProcedureStart ps ) {
+        long count = 0;
+        for( int pc = ps.getStart(); pc < ps.getFinish(); pc++ ) {
+            count += getCount( pc );
+        }
+        return count;
+    }
+
+    /** Indices of the non-zero entries of counts, most frequent first */
+    private List<Integer> ranked( final long[] counts ) {
+        List<Integer> indices = new ArrayList<Integer>();
+        for( int i = 0; i < counts.length; i++ ) {
+            if( counts[i] != 0 ) {
+                indices.add( i );
+            }
+        }
+        Collections.sort( indices, new Comparator<Integer>() {
+            public int compare( Integer a, Integer b ) {
+                return Long.compare( counts[b], counts[a] );
+            }
+        } );
+        return indices;
+    }
+    /** Name of the procedure containing pc, or "" if none */
+    private String procName( int pc ) {
+        Procedures.ProcedureStart ps = procStarts.getProcedure( pc );
+        return ps == null ? "" : ps.getProcName();
+    }
+    private String percent( long count ) {
+        return String.format( "%6.2f%%",
+                total == 0 ? 0.0 : 100.0 * count / total );
+    }
+
+    /** Print the report as text */
+    public void printReport( PrintStream out ) {
+        finish();
+        out.println( "Profile: " + total + " instructions executed" );
+        out.println( String.format( "%-20s %10s %14s %14s",
+                "Procedure", "Calls", "Exclusive", "Inclusive" ) );
+        for( Procedures.ProcedureStart ps : procs ) {
+            out.println( String.format( "%-20s %10d %14d %14d",
+                    ps.getProcName(), getCalls( ps ), getExclusive( ps ),
+                    getInclusive( ps ) ) );
+        }
+        out.println( String.format( "%-20s %14s", "Operation", "Count" ) );
+        for( int op : ranked( opCounts ) ) {
+            out.println( String.format( "%-20s %14d %s", getOperation[op],
+                    opCounts[op], percent( opCounts[op] ) ) );
+        }
+        out.println( String.format( "%-41s %14s",
+                "Adjacent operations", "Count" ) );
+        List<Integer> pairs = ranked( pairCounts );
+        for( int pair : pairs.subList( 0, Math.min( REPORT_TOP, pairs.size() ) ) ) {
+            out.println( String.format( "%-20s %-20s %14d %s",
+                    getOperation[ pair / getOperation.length ],
+                    getOperation[ pair % getOperation.length ],
+                    pairCounts[pair], percent( pairCounts[pair] ) ) );
+        }
+        out.println( String.format( "%-8s %-20s %-20s %14s",
+                "Address", "Procedure", "Operation", "Count" ) );
+        List<Integer> pcs = ranked( pcCounts );
+        for( int i : pcs.subList( 0, Math.min( REPORT_TOP, pcs.size() ) ) ) {
+            int pc = i + StackMachine.CODE_START;
+            out.println( String.format( "%-8d %-20s %-20s %14d %s", pc,
+                    procName( pc ), getOperation[ pcOps[i] ], pcCounts[i],
+                    percent( pcCounts[i] ) ) );
+        }
+    }
+
+    /** Write the report as a JSON object */
+    public void writeJson( Writer out ) throws IOException {
+        finish();
+        out.write( "{\n  \"total\": " + total + ",\n  \"procedures\": [" );
+        String sep = "\n";
+        for( Procedures.ProcedureStart ps : procs ) {
+            out.write( sep + "    {\"name\": " + quote( ps.getProcName() ) +
+                    ", \"start\": " + ps.getStart() +
+                    ", \"finish\": " + ps.getFinish() +
+                    ", \"calls\": " + getCalls( ps ) +
+                    ", \"exclusive\": " + getExclusive( ps ) +
+                    ", \"inclusive\": " + getInclusive( ps ) + "}" );
+            sep = ",\n";
+        }
+        out.write( "\n  ],\n  \"operations\": [" );
+        sep = "\n";
+        for( int op : ranked( opCounts ) ) {
+            out.write( sep + "    {\"op\": \"" + getOperation[op] +
+                    "\", \"count\": " + opCounts[op] + "}" );
+            sep = ",\n";
+        }
+        out.write( "\n  ],\n  \"pairs\": [" );
+        sep = "\n";
+        for( int pair : ranked( pairCounts ) ) {
+            out.write( sep + "    {\"first\": \"" +
+                    getOperation[ pair / getOperation.length ] +
+                    "\", \"second\": \"" +
+                    getOperation[ pair % getOperation.length ] +
+                    "\", \"count\": " + pairCounts[pair] + "}" );
+            sep = ",\n";
+        }
+        out.write( "\n  ],\n  \"instructions\": [" );
+        sep = "\n";
+        for( int i = 0; i < pcCounts.length; i++ ) {
+            if( pcCounts[i] != 0 ) {
+                int pc = i + StackMachine.CODE_START;
+                out.write( sep + "    {\"pc\": " + pc +
+                        ", \"procedure\": " + quote( procName( pc ) ) +
+                        ", \"op\": \"" + getOperation[ pcOps[i] ] +
+                        "\", \"count\": " + pcCounts[i] + "}" );
+                sep = ",\n";
+            }
+        }
+        out.write( "\n  ]\n}\n" );
+    }
+    /** JSON string for s */
+    private static String quote( String s ) {
+        StringBuilder buf = new StringBuilder( "\"" );
+        for( char c : s.toCharArray() ) {
+            if( c == '"' || c == '\\' ) {
+                buf.append( '\\' ).append( c );
+            } else if( c < ' ' ) {
+                buf.append( String.format( "\\u%04x", (int)c ) );
+            } else {
+                buf.append( c );
+            }
+        }
+        return buf.append( '"' ).toString();
+    }
+}
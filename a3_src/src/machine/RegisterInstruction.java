@@ -0,0 +1,112 @@
+package machine;
+
+/**
+ * class RegisterInstruction - an instruction of the register form of the
+ * code executed by the RegisterMachine.
+ * The registers are the words of the current stack frame: each operand is
+ * either a constant or the word at an offset from the frame pointer, and
+ * each result is stored at an offset from the frame pointer. Because the
+ * depth of the stack at each instruction is known when the code is
+ * translated, the stack pointer is only needed where the register code
+ * hands over to the interpreter.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+final class RegisterInstruction {
+
+    /** Register operations */
+    static enum Op {
+        /** Check that no instruction of the block can overflow the stack
+         * or load outside memory from a constant offset (a = lowest offset
+         * loaded, b = highest offset loaded, c = deepest push) */
+        GUARD,
+        /** dst := a */
+        MOVE,
+        /** dst := a op b */
+        ADD, MPY, DIV, OR, AND, XOR, EQUAL, LESS, LESSEQ,
+        /** dst := op a */
+        NEGATE, NOT, TO_GLOBAL, TO_LOCAL,
+        /** dst := memory[fp + a] */
+        LOAD_FRAME,
+        /** dst := memory[a] */
+        LOAD_ABS,
+        /** dst := memory[a + b] */
+        LOAD_REL,
+        /** memory[fp + a] := b */
+        STORE_FRAME,
+        /** memory[a + b] := c */
+        STORE_REL,
+        /** dst := memory[ a static links up from fp, plus b ] */
+        LOAD_UPLEVEL,
+        /** check b <= a <= c */
+        BOUND,
+        /** write a */
+        WRITE,
+        /** branch to target if a is false (dst = depth after the branch) */
+        BR_FALSE,
+        /** branch to target (dst = depth after the branch) */
+        JUMP,
+        /** call the procedure at address a */
+        CALL,
+        /** return to the caller */
+        RETURN,
+        /** fill a words from dst with NULL_ADDR */
+        ALLOC,
+        /** swap the words at dst and dst + 1 */
+        SWAP,
+        /** execute the stack instruction at pc with the interpreter */
+        STACK_OP;
+    }
+
+    /** Operand is the constant itself */
+    static final int CONST = 0;
+    /** Operand is the word at the given offset from the frame pointer */
+    static final int FRAME = 1;
+
+    /** Operation */
+    final Op op;
+    /** Frame offset of the result */
+    int dst;
+    /** Operands and their kinds (CONST or FRAME) */
+    int aKind, a, bKind, b, cKind, c;
+    /** Address of the stack instruction being executed, at which the
+     * interpreter takes over if this instruction would fail */
+    int pc;
+    /** Depth of the stack (sp - fp) at the start of that instruction */
+    int depth;
+    /** Values not yet in their stack slots at that instruction, as triples
+     * of frame offset, kind and operand, or null if there are none */
+    int[] pending;
+    /** Index of the destination of a branch, or -1 if the interpreter
+     * must take over at the destination */
+    int target = -1;
+    /** Address of the destination of a branch or call, or of the
+     * instruction following an instruction executed by the interpreter */
+    int targetPc;
+
+    RegisterInstruction( Op op ) {
+        this.op = op;
+    }
+
+    /** Value of operand a in the frame at fp */
+    int valueA( int[] memory, int fp ) {
+        return aKind == CONST ? a : memory[fp + a];
+    }
+    /** Value of operand b in the frame at fp */
+    int valueB( int[] memory, int fp ) {
+        return bKind == CONST ? b : memory[fp + b];
+    }
+    /** Value of operand c in the frame at fp */
+    int valueC( int[] memory, int fp ) {
+        return cKind == CONST ? c : memory[fp + c];
+    }
+
+    @Override
+    public String toString() {
+        return op + " " + dst + " " + operand( aKind, a ) + " " +
+            operand( bKind, b ) + " " + operand( cKind, c ) +
+            " (pc=" + pc + ")";
+    }
+    private static String operand( int kind, int value ) {
+        return kind == CONST ? "#" + value : "fp[" + value + "]";
+    }
+}
@@ -0,0 +1,309 @@
+package machine;
+
+import source.Errors;
+import tree.CodePlusProcedures;
+
+/**
+ * class RegisterMachine - a stack machine that executes a register form
+ * of the loaded code, produced by the RegisterTranslator, in which most
+ * pushes and pops of the operand stack are replaced by operands that
+ * address the words of the stack frame directly.
+ * The frame layout, the memory and the procedure table are exactly those
+ * of the stack machine, so the interpreter can take over at any block
+ * start or at any register instruction that would fail; runtime errors,
+ * stack dumps and trace backs are then reported by the interpreter just
+ * as they are for the stack code.
+ * The register code is only used when execution is neither traced nor
+ * profiled, and the code doesn't access variables through the display.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class RegisterMachine extends StackMachine {
+
+    /** Register code */
+    private RegisterInstruction[] registerCode;
+    /** Index of the register code for the block starting at each address,
+     * or -1 if there is none */
+    private int[] blockIndex;
+    /** Stack depth (sp - fp) on entry to each block */
+    private int[] blockDepth;
+
+    public RegisterMachine( Errors error, boolean verbose,
+            CodePlusProcedures code ) {
+        super( error, verbose, code );
+    }
+    public RegisterMachine( Errors error, boolean verbose,
+            ObjectCode object ) {
+        super( error, verbose, object );
+    }
+
+    /** Set the register code (called by the RegisterTranslator) */
+    void setRegisterCode( RegisterInstruction[] registerCode,
+            int[] blockIndex, int[] blockDepth ) {
+        this.registerCode = registerCode;
+        this.blockIndex = blockIndex;
+        this.blockDepth = blockDepth;
+    }
+
+    /** Execute the register code for each block it covers, and interpret
+     * any other code. The interpreter executes any instruction for which
+     * the register code bails out, and carries on until the next block.
+     */
+    @Override
+    protected void execute() {
+        if( instrumented() || displayed() ) {
+            /* Calls in the register code don't maintain the display */
+            super.execute();
+            return;
+        }
+        RegisterTranslator.translate( code, currLocn, procStarts, this );
+        boolean bailedOut = false;
+        while( running ) {
+            int index = bailedOut ? -1 : blockAt( pc, fp, sp );
+            if( index < 0 ) {
+                execInstruction();
+                bailedOut = false;
+            } else {
+                bailedOut = runRegisters( index );
+            }
+        }
+    }
+
+    /** Index of the register code for the block at pc, or -1 if there is
+     * no block there translated for a stack of depth sp - fp */
+    private int blockAt( int pc, int fp, int sp ) {
+        if( pc < CODE_START || pc >= currLocn ) {
+            return -1;
+        }
+        int index = blockIndex[ pc - CODE_START ];
+        if( index < 0 || sp - fp != blockDepth[ pc - CODE_START ] ) {
+            return -1;
+        }
+        return index;
+    }
+
+    /** Leave the register code to continue at pc */
+    private boolean leave( int pc, int fp, int sp ) {
+        this.pc = pc;
+        this.fp = fp;
+        this.sp = sp;
+        return false;
+    }
+    /** Leave the register code for the interpreter to execute the stack
+     * instruction that inst would fail on, first storing the values not
+     * yet in their stack slots.
+     * @return true */
+    private boolean bailout( RegisterInstruction inst, int fp ) {
+        int[] pending = inst.pending;
+        if( pending != null ) {
+            for( int i = 0; i < pending.length; i += 3 ) {
+                memory[fp + pending[i]] = pending[i+1] == RegisterInstruction.CONST ?
+                    pending[i+2] : memory[fp + pending[i+2]];
+            }
+        }
+        leave( inst.pc, fp, fp + inst.depth );
+        return true;
+    }
+
+    /** Execute the register code from index i until it leaves for code
+     * without register code, bails out, or the program terminates.
+     * @return whether it bailed out (in which case the interpreter must
+     *  execute the next instruction)
+     */
+    private boolean runRegisters( int i ) {
+        final RegisterInstruction[] insts = registerCode;
+        int[] mem = memory;
+        int fp = this.fp;
+        int address, value;
+        while( true ) {
+            RegisterInstruction inst = insts[i++];
+            switch( inst.op ) {
+            case GUARD:
+                if( fp + inst.a < 0 || fp + inst.b >= mem.length ||
+                        fp + inst.c >= limit ) {
+                    return bailout( inst, fp );
+                }
+                break;
+            case MOVE:
+                mem[fp + inst.dst] = inst.valueA( mem, fp );
+                break;
+            case ADD:
+                mem[fp + inst.dst] = inst.valueA( mem, fp ) +
+                    inst.valueB( mem, fp );
+                break;
+            case MPY:
+                mem[fp + inst.dst] = inst.valueA( mem, fp ) *
+                    inst.valueB( mem, fp );
+                break;
+            case DIV:
+                value = inst.valueB( mem, fp );
+                if( value == 0 ) {
+                    return bailout( inst, fp );
+                }
+                mem[fp + inst.dst] = inst.valueA( mem, fp ) / value;
+                break;
+            case OR:
+                mem[fp + inst.dst] = inst.valueA( mem, fp ) |
+                    inst.valueB( mem, fp );
+                break;
+            case AND:
+                mem[fp + inst.dst] = inst.valueA( mem, fp ) &
+                    inst.valueB( mem, fp );
+                break;
+            case XOR:
+                mem[fp + inst.dst] = inst.valueA( mem, fp ) ^
+                    inst.valueB( mem, fp );
+                break;
+            case EQUAL:
+                mem[fp + inst.dst] =
+                    inst.valueA( mem, fp ) == inst.valueB( mem, fp ) ?
+                        TRUE_VALUE : FALSE_VALUE;
+                break;
+            case LESS:
+                mem[fp + inst.dst] =
+                    inst.valueA( mem, fp ) < inst.valueB( mem, fp ) ?
+                        TRUE_VALUE : FALSE_VALUE;
+                break;
+            case LESSEQ:
+                mem[fp + inst.dst] =
+                    inst.valueA( mem, fp ) <= inst.valueB( mem, fp ) ?
+                        TRUE_VALUE : FALSE_VALUE;
+                break;
+            case NEGATE:
+                mem[fp + inst.dst] = -inst.valueA( mem, fp );
+                break;
+            case NOT:
+                mem[fp + inst.dst] = ~inst.valueA( mem, fp );
+                break;
+            case TO_GLOBAL:
+                mem[fp + inst.dst] = inst.valueA( mem, fp ) + fp;
+                break;
+            case TO_LOCAL:
+                mem[fp + inst.dst] = inst.valueA( mem, fp ) - fp;
+                break;
+            case LOAD_FRAME:
+                address = fp + inst.valueA( mem, fp );
+                if( address < 0 || address >= mem.length ) {
+                    return bailout( inst, fp );
+                }
+                mem[fp + inst.dst] = mem[address];
+                break;
+            case LOAD_ABS:
+                address = inst.valueA( mem, fp );
+                if( address < 0 || address >= mem.length ) {
+                    return bailout( inst, fp );
+                }
+                mem[fp + inst.dst] = mem[address];
+                break;
+            case LOAD_REL:
+                address = inst.valueA( mem, fp ) + inst.valueB( mem, fp );
+                if( address < 0 || address >= mem.length ) {
+                    return bailout( inst, fp );
+                }
+                mem[fp + inst.dst] = mem[address];
+                break;
+            case STORE_FRAME:
+                address = fp + inst.valueA( mem, fp );
+                if( address < 0 || address >= mem.length ) {
+                    return bailout( inst, fp );
+                }
+                mem[address] = inst.valueB( mem, fp );
+                break;
+            case STORE_REL:
+                address = inst.valueA( mem, fp ) + inst.valueB( mem, fp );
+                if( address < 0 || address >= mem.length ) {
+                    return bailout( inst, fp );
+                }
+                mem[address] = inst.valueC( mem, fp );
+                break;
+            case LOAD_UPLEVEL:
+                address = fp;
+                for( int count = inst.a; count > 0; count-- ) {
+                    if( address < 0 || address >= mem.length ) {
+                        return bailout( inst, fp );
+                    }
+                    address = mem[address];
+                }
+                address += inst.b;
+                if( address < 0 || address >= mem.length ) {
+                    return bailout( inst, fp );
+                }
+                mem[fp + inst.dst] = mem[address];
+                break;
+            case BOUND:
+                value = inst.valueA( mem, fp );
+                if( value < inst.valueB( mem, fp ) ||
+                        value > inst.valueC( mem, fp ) ) {
+                    return bailout( inst, fp );
+                }
+                break;
+            case WRITE:
+                System.out.println( Integer.toString( inst.valueA( mem, fp ) ) );
+                break;
+            case BR_FALSE:
+                value = inst.valueA( mem, fp );
+                if( value == TRUE_VALUE ) {
+                    break;
+                } else if( value != FALSE_VALUE ) {
+                    return bailout( inst, fp );
+                }
+                if( inst.target < 0 ) {
+                    return leave( inst.targetPc, fp, fp + inst.dst );
+                }
+                i = inst.target;
+                break;
+            case JUMP:
+                if( inst.target < 0 ) {
+                    return leave( inst.targetPc, fp, fp + inst.dst );
+                }
+                i = inst.target;
+                break;
+            case CALL:
+                /* The static link is at depth - 2 and the address at
+                 * depth - 1, which becomes the dynamic link */
+                address = inst.valueA( mem, fp );
+                mem[fp + inst.depth - 1] = fp;
+                mem[fp + inst.depth] = inst.pc + 1;
+                fp = fp + inst.depth - 2;
+                i = blockAt( address, fp, fp + 3 );
+                if( i < 0 ) {
+                    return leave( address, fp, fp + 3 );
+                }
+                break;
+            case RETURN:
+                if( fp < 0 || fp + 3 > mem.length ) {
+                    return bailout( inst, fp );
+                }
+                address = mem[fp + 2];
+                int sp = fp;
+                fp = mem[fp + 1];
+                if( address == 0 ) {
+                    running = false;
+                    return leave( address, fp, sp );
+                }
+                i = blockAt( address, fp, sp );
+                if( i < 0 ) {
+                    return leave( address, fp, sp );
+                }
+                break;
+            case ALLOC:
+                for( int j = 0; j < inst.a; j++ ) {
+                    mem[fp + inst.dst + j] = NULL_ADDR;
+                }
+                break;
+            case SWAP:
+                value = mem[fp + inst.dst];
+                mem[fp + inst.dst] = mem[fp + inst.dst + 1];
+                mem[fp + inst.dst + 1] = value;
+                break;
+            case STACK_OP:
+                leave( inst.pc, fp, fp + inst.depth );
+                execInstruction();
+                if( !running || this.pc != inst.targetPc ) {
+                    return false;
+                }
+                mem = memory;   /* the stack may have grown */
+                break;
+            }
+        }
+    }
+}
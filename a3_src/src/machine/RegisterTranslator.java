@@ -0,0 +1,714 @@
+package machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import machine.RegisterInstruction.Op;
+import tree.Procedures;
+
+/**
+ * class RegisterTranslator - translates the loaded stack machine code into
+ * the register form executed by the RegisterMachine.
+ * Each procedure is split into basic blocks, and the depth of the stack
+ * (relative to the frame pointer) is determined for each instruction.
+ * Within a block the operand stack is interpreted abstractly: a value
+ * pushed is either a constant, a (not yet loaded) copy of a word of the
+ * frame, or a value already stored in its stack slot. Only operations
+ * that compute a value or have a side effect generate a register
+ * instruction, with operands taken directly from the constants and frame
+ * words. All values are stored in their stack slots at the end of each
+ * block, before a call, and before any store that could change them.
+ * Code that can't be translated (e.g. a computed branch) is left to the
+ * interpreter.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+final class RegisterTranslator {
+
+    /** Convert from integer to operation */
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** A value on the operand stack during translation */
+    private static final class Value {
+        /** RegisterInstruction.CONST or RegisterInstruction.FRAME */
+        final int kind;
+        /** Constant or frame offset */
+        final int value;
+        /** Is the value already stored in its own stack slot? */
+        final boolean inSlot;
+
+        Value( int kind, int value, boolean inSlot ) {
+            this.kind = kind;
+            this.value = value;
+            this.inSlot = inSlot;
+        }
+        boolean isConstant() {
+            return kind == RegisterInstruction.CONST;
+        }
+    }
+    private static Value constant( int value ) {
+        return new Value( RegisterInstruction.CONST, value, false );
+    }
+    private static Value frame( int offset ) {
+        return new Value( RegisterInstruction.FRAME, offset, false );
+    }
+    private static Value slot( int offset ) {
+        return new Value( RegisterInstruction.FRAME, offset, true );
+    }
+
+    /** Code memory holding the loaded code */
+    private final int[] words;
+    /** Address following the code */
+    private final int codeEnd;
+    /** Register code generated */
+    private final List<RegisterInstruction> code =
+        new ArrayList<RegisterInstruction>();
+    /** Branches whose targets are resolved once all code is generated */
+    private final List<RegisterInstruction> branches =
+        new ArrayList<RegisterInstruction>();
+    /** Index of the register code for the block starting at each address,
+     * or -1 if there is none */
+    private final int[] blockIndex;
+    /** Stack depth (sp - fp) on entry to each block, or -1 if unknown */
+    private final int[] blockDepth;
+
+    /* State of the translation of the current block */
+    /** Values on the stack above base */
+    private final List<Value> stack = new ArrayList<Value>();
+    /** Depth below which all values are in their stack slots */
+    private int base;
+    /** Frame offset following the local variables of the procedure */
+    private int localsTop;
+    /** Guard at the start of the current block */
+    private RegisterInstruction guard;
+
+    private RegisterTranslator( int[] words, int codeEnd ) {
+        this.words = words;
+        this.codeEnd = codeEnd;
+        blockIndex = new int[ codeEnd - StackMachine.CODE_START ];
+        blockDepth = new int[ codeEnd - StackMachine.CODE_START ];
+        Arrays.fill( blockIndex, -1 );
+        Arrays.fill( blockDepth, -1 );
+    }
+
+    /** Translate the loaded code of each procedure.
+     * @param words code memory holding the code
+     * @param codeEnd address following the code
+     * @param procStarts procedures within the code
+     * @param machine to hold the register code and the blocks
+     */
+    static void translate( int[] words, int codeEnd, Procedures procStarts,
+            RegisterMachine machine ) {
+        RegisterTranslator translator =
+            new RegisterTranslator( words, codeEnd );
+        for( Procedures.ProcedureStart ps : procStarts.getProcedureStarts() ) {
+            translator.translateProcedure( ps.getStart(), ps.getFinish() );
+        }
+        translator.resolveBranches();
+        machine.setRegisterCode(
+            translator.code.toArray( new RegisterInstruction[0] ),
+            translator.blockIndex, translator.blockDepth );
+    }
+
+    /** Operation at address, or null if it isn't a valid instruction
+     * within the code */
+    private Operation opAt( int address ) {
+        if( address < StackMachine.CODE_START || address >= codeEnd ) {
+            return null;
+        }
+        int word = words[address];
+        if( word < 0 || word >= OPERATIONS.length ||
+                address + OPERATIONS[word].getSize() > codeEnd ) {
+            return null;
+        }
+        return OPERATIONS[word];
+    }
+    private boolean inCode( int address ) {
+        return StackMachine.CODE_START <= address && address < codeEnd;
+    }
+
+    /** Translate the procedure occupying addresses start to finish */
+    private void translateProcedure( int start, int finish ) {
+        if( !inCode( start ) || finish > codeEnd || finish <= start ) {
+            return;
+        }
+        /* Find the instructions and the starts of the basic blocks */
+        boolean[] leader = new boolean[ finish - start + 1 ];
+        List<Integer> insts = new ArrayList<Integer>();
+        int prev = -1;
+        for( int pc = start; pc < finish; ) {
+            Operation op = opAt( pc );
+            if( op == null ) {
+                return;
+            }
+            int next = pc + op.getSize();
+            Integer dest = null;
+            switch( op ) {
+            case BR_FALSE:
+                if( prev >= 0 && opAt( prev ) == Operation.LOAD_CON ) {
+                    dest = next + words[prev + 1];
+                }
+                leader[ Math.min( next, finish ) - start ] = true;
+                break;
+            case JUMP:
+            case BR_FALSE_IMM:
+                dest = next + words[pc + 1];
+                leader[ Math.min( next, finish ) - start ] = true;
+                break;
+            case CALL:
+            case TAIL_CALL:
+            case RETURN:
+            case STOP:
+            case ALLOC_HEAP:
+                leader[ Math.min( next, finish ) - start ] = true;
+                break;
+            default:
+                break;
+            }
+            if( dest != null && start <= dest && dest < finish ) {
+                leader[ dest - start ] = true;
+            }
+            insts.add( pc );
+            prev = pc;
+            pc = next;
+        }
+        leader[0] = true;
+        localsTop = StackMachine.LOCALS_BASE;
+        if( insts.size() > 1 && opAt( start ) == Operation.LOAD_CON &&
+                opAt( insts.get( 1 ) ) == Operation.ALLOC_STACK ) {
+            localsTop += Math.max( 0, words[start + 1] );
+        }
+        blockDepth[ start - StackMachine.CODE_START ] = StackMachine.LOCALS_BASE;
+        /* Translate each block whose entry depth is known */
+        boolean inBlock = false;
+        for( int pc : insts ) {
+            if( leader[ pc - start ] ) {
+                if( inBlock ) {
+                    endBlock( pc );
+                }
+                inBlock = startBlock( pc );
+            }
+            if( inBlock ) {
+                inBlock = translateInstruction( pc, opAt( pc ) );
+            }
+        }
+    }
+
+    /** Current depth of the stack */
+    private int depth() {
+        return base + stack.size();
+    }
+    /** Start translating a block at pc.
+     * @return whether the block's entry depth is known */
+    private boolean startBlock( int pc ) {
+        int depth = blockDepth[ pc - StackMachine.CODE_START ];
+        if( depth < 0 ) {
+            return false;
+        }
+        stack.clear();
+        base = depth;
+        blockIndex[ pc - StackMachine.CODE_START ] = code.size();
+        guard = emit( Op.GUARD, pc );
+        guard.c = -1;
+        guard.depth = depth;
+        return true;
+    }
+    /** The current block falls through to the block at pc */
+    private void endBlock( int pc ) {
+        flush();
+        int known = blockDepth[ pc - StackMachine.CODE_START ];
+        if( known < 0 ) {
+            blockDepth[ pc - StackMachine.CODE_START ] = depth();
+        } else if( known != depth() ) {
+            exit( pc );
+        }
+    }
+    /** Hand over to the interpreter at pc */
+    private void exit( int pc ) {
+        flush();
+        RegisterInstruction inst = emit( Op.JUMP, pc );
+        inst.targetPc = pc;
+        inst.dst = depth();
+    }
+    /** Record the depth of the stack at the destination of a branch */
+    private void branchTo( RegisterInstruction inst, int dest ) {
+        inst.targetPc = dest;
+        inst.dst = depth();
+        if( inCode( dest ) &&
+                blockDepth[ dest - StackMachine.CODE_START ] < 0 ) {
+            blockDepth[ dest - StackMachine.CODE_START ] = depth();
+        }
+        branches.add( inst );
+    }
+    /** Link each branch to the block at its destination, if that block
+     * was translated with the same entry depth */
+    private void resolveBranches() {
+        for( RegisterInstruction inst : branches ) {
+            if( inCode( inst.targetPc ) ) {
+                int i = inst.targetPc - StackMachine.CODE_START;
+                if( blockIndex[i] >= 0 && blockDepth[i] == inst.dst ) {
+                    inst.target = blockIndex[i];
+                }
+            }
+        }
+    }
+
+    /** Add an instruction for the stack instruction at pc */
+    private RegisterInstruction emit( Op op, int pc ) {
+        RegisterInstruction inst = new RegisterInstruction( op );
+        inst.pc = pc;
+        inst.depth = depth();
+        code.add( inst );
+        return inst;
+    }
+    /** Add an instruction storing its result in the next stack slot */
+    private RegisterInstruction emitResult( Op op, int pc, Value a ) {
+        RegisterInstruction inst = emit( op, pc );
+        inst.dst = depth();
+        setA( inst, a );
+        return inst;
+    }
+    private static void setA( RegisterInstruction inst, Value v ) {
+        inst.aKind = v.kind;
+        inst.a = v.value;
+    }
+    private static void setB( RegisterInstruction inst, Value v ) {
+        inst.bKind = v.kind;
+        inst.b = v.value;
+    }
+    private static void setC( RegisterInstruction inst, Value v ) {
+        inst.cKind = v.kind;
+        inst.c = v.value;
+    }
+    /** Record the state for the interpreter to take over at the start of
+     * the stack instruction at pc, should inst fail. The values popped
+     * by the instruction are given in stack order. */
+    private void bailout( RegisterInstruction inst, int pc, Value... popped ) {
+        inst.pc = pc;
+        inst.depth = depth() + popped.length;
+        List<Value> values = new ArrayList<Value>( stack );
+        values.addAll( Arrays.asList( popped ) );
+        int count = 0;
+        for( Value v : values ) {
+            if( !v.inSlot ) {
+                count++;
+            }
+        }
+        if( count == 0 ) {
+            return;
+        }
+        inst.pending = new int[ 3 * count ];
+        int j = 0;
+        for( int i = 0; i < values.size(); i++ ) {
+            Value v = values.get( i );
+            if( !v.inSlot ) {
+                inst.pending[j++] = base + i;
+                inst.pending[j++] = v.kind;
+                inst.pending[j++] = v.value;
+            }
+        }
+    }
+
+    /** Push a value, noting the depth for the guard */
+    private void push( Value v ) {
+        noteDepth( depth() );
+        stack.add( v );
+    }
+    /** Note that a word is pushed when the stack is at depth */
+    private void noteDepth( int depth ) {
+        guard.c = Math.max( guard.c, depth );
+    }
+    /** Pop a value; values below the start of the block are in their
+     * stack slots */
+    private Value pop() {
+        if( stack.isEmpty() ) {
+            base--;
+            return slot( base );
+        }
+        return stack.remove( stack.size() - 1 );
+    }
+    private Value top() {
+        return stack.isEmpty() ? slot( base - 1 ) : stack.get( stack.size() - 1 );
+    }
+    /** Push a copy of the frame word at offset (for a load from a
+     * constant offset) */
+    private void pushFrame( int offset, int pc ) {
+        if( offset >= base && offset < depth() &&
+                !stack.get( offset - base ).inSlot ) {
+            /* A slot whose value hasn't been stored yet */
+            flush();
+        }
+        guard.a = Math.min( guard.a, offset );
+        guard.b = Math.max( guard.b, offset );
+        if( offset < depth() ) {
+            push( frame( offset ) );
+        } else {
+            /* Above the stack: load it now */
+            RegisterInstruction inst = emitResult( Op.MOVE, pc, frame( offset ) );
+            push( slot( inst.dst ) );
+        }
+    }
+    /** Store the value at index i of the stack into its slot */
+    private void store( int i ) {
+        Value v = stack.get( i );
+        if( !v.inSlot ) {
+            RegisterInstruction inst = emit( Op.MOVE, -1 );
+            inst.dst = base + i;
+            setA( inst, v );
+            stack.set( i, slot( base + i ) );
+        }
+    }
+    /** Store all values into their stack slots */
+    private void flush() {
+        for( int i = 0; i < stack.size(); i++ ) {
+            store( i );
+        }
+    }
+    /** Store any copies of the frame word at offset into their stack
+     * slots, before that word is changed */
+    private void flushFrame( int offset ) {
+        for( int i = 0; i < stack.size(); i++ ) {
+            Value v = stack.get( i );
+            if( !v.isConstant() && v.value == offset ) {
+                store( i );
+            }
+        }
+    }
+    /** Translate the stack instruction at pc.
+     * @return whether the instruction following it is reached (within
+     * the same block) */
+    private boolean translateInstruction( int pc, Operation op ) {
+        Value a, b, c;
+        RegisterInstruction inst;
+        switch( op ) {
+        case NO_OP:
+            return true;
+        case LOAD_CON:
+            push( constant( words[pc + 1] ) );
+            return true;
+        case ZERO:
+            push( constant( 0 ) );
+            return true;
+        case ONE:
+            push( constant( 1 ) );
+            return true;
+        case LOAD_LOCAL:
+            pushFrame( words[pc + 1], pc );
+            return true;
+        case LOAD_FRAME:
+            if( top().isConstant() ) {
+                pushFrame( pop().value, pc );
+                return true;
+            }
+            a = pop();
+            flush();
+            inst = emitResult( Op.LOAD_FRAME, pc, a );
+            bailout( inst, pc, a );
+            push( slot( inst.dst ) );
+            return true;
+        case LOAD_ABS:
+        case LOAD_REL:
+            b = op == Operation.LOAD_REL ? pop() : null;
+            a = pop();
+            flush();
+            if( b == null ) {
+                inst = emitResult( Op.LOAD_ABS, pc, a );
+                bailout( inst, pc, a );
+            } else {
+                inst = emitResult( Op.LOAD_REL, pc, a );
+                setB( inst, b );
+                bailout( inst, pc, a, b );
+            }
+            push( slot( inst.dst ) );
+            return true;
+        case STORE_LOCAL:
+            a = constant( words[pc + 1] );
+            b = pop();
+            storeFrame( pc, a, b, b );
+            return true;
+        case STORE_FRAME:
+            a = pop();
+            b = pop();
+            storeFrame( pc, a, b, b, a );
+            return true;
+        case STORE_REL:
+            b = pop();
+            a = pop();
+            c = pop();
+            flush();
+            inst = emit( Op.STORE_REL, pc );
+            setA( inst, a );
+            setB( inst, b );
+            setC( inst, c );
+            bailout( inst, pc, c, a, b );
+            return true;
+        case LOAD_UPLEVEL:
+            inst = emit( Op.LOAD_UPLEVEL, pc );
+            inst.dst = depth();
+            inst.a = words[pc + 1];
+            inst.b = words[pc + 2];
+            bailout( inst, pc );
+            push( slot( inst.dst ) );
+            return true;
+        case ADD:
+            binary( Op.ADD, pc );
+            return true;
+        case ADD_IMM:
+            push( constant( words[pc + 1] ) );
+            binary( Op.ADD, pc );
+            return true;
+        case MPY:
+            binary( Op.MPY, pc );
+            return true;
+        case DIV:
+            binary( Op.DIV, pc );
+            return true;
+        case OR:
+            binary( Op.OR, pc );
+            return true;
+        case AND:
+            binary( Op.AND, pc );
+            return true;
+        case XOR:
+            binary( Op.XOR, pc );
+            return true;
+        case EQUAL:
+            binary( Op.EQUAL, pc );
+            return true;
+        case LESS:
+            binary( Op.LESS, pc );
+            return true;
+        case LESSEQ:
+            binary( Op.LESSEQ, pc );
+            return true;
+        case NEGATE:
+            if( top().isConstant() ) {
+                push( constant( -pop().value ) );
+                return true;
+            }
+            push( slot( emitResult( Op.NEGATE, pc, pop() ).dst ) );
+            return true;
+        case NOT:
+            if( top().isConstant() ) {
+                push( constant( ~pop().value ) );
+                return true;
+            }
+            push( slot( emitResult( Op.NOT, pc, pop() ).dst ) );
+            return true;
+        case TO_GLOBAL:
+            push( slot( emitResult( Op.TO_GLOBAL, pc, pop() ).dst ) );
+            return true;
+        case TO_LOCAL:
+            push( slot( emitResult( Op.TO_LOCAL, pc, pop() ).dst ) );
+            return true;
+        case DUP:
+            a = top();
+            push( a.inSlot ? frame( a.value ) : a );
+            return true;
+        case POP:
+            pop();
+            return true;
+        case SWAP:
+            flush();
+            noteDepth( depth() - 1 );
+            inst = emit( Op.SWAP, pc );
+            inst.dst = depth() - 2;
+            return true;
+        case BOUND:
+            c = pop();
+            b = pop();
+            a = pop();
+            if( !a.isConstant() || !b.isConstant() || !c.isConstant() ||
+                    a.value < b.value || a.value > c.value ) {
+                inst = emit( Op.BOUND, pc );
+                setA( inst, a );
+                setB( inst, b );
+                setC( inst, c );
+                bailout( inst, pc, a, b, c );
+            }
+            push( a );
+            return true;
+        case WRITE:
+            a = pop();
+            inst = emit( Op.WRITE, pc );
+            setA( inst, a );
+            return true;
+        case BR_FALSE:
+            if( !top().isConstant() ) {
+                exit( pc );
+                return false;
+            }
+            b = pop();
+            a = pop();
+            return branch( pc, pc + 1 + b.value, a, b );
+        case BR_FALSE_IMM:
+            a = pop();
+            return branch( pc, pc + 2 + words[pc + 1], a );
+        case JUMP:
+            flush();
+            branchTo( emit( Op.JUMP, pc ), pc + 2 + words[pc + 1] );
+            return false;
+        case CALL:
+            noteDepth( depth() );
+            a = pop();
+            flush();
+            inst = emit( Op.CALL, pc );
+            setA( inst, a );
+            inst.depth = depth() + 1;
+            if( inCode( pc + 1 ) &&
+                    blockDepth[ pc + 1 - StackMachine.CODE_START ] < 0 ) {
+                blockDepth[ pc + 1 - StackMachine.CODE_START ] = depth() - 1;
+            }
+            return false;
+        case RETURN:
+            inst = emit( Op.RETURN, pc );
+            bailout( inst, pc );
+            return false;
+        case ALLOC_STACK:
+            if( !top().isConstant() ) {
+                exit( pc );
+                return false;
+            }
+            int count = Math.max( 0, pop().value );
+            if( count > 0 ) {
+                inst = emit( Op.ALLOC, pc );
+                inst.dst = depth();
+                inst.a = count;
+            }
+            for( int i = 0; i < count; i++ ) {
+                push( slot( depth() ) );
+            }
+            return true;
+        case DEALLOC_STACK:
+            if( !top().isConstant() || top().value < 0 ||
+                    depth() - 1 - top().value <= 2 ) {
+                exit( pc );
+                return false;
+            }
+            for( int i = pop().value; i > 0; i-- ) {
+                pop();
+            }
+            return true;
+        case LOAD_MULTI:
+        case STORE_MULTI:
+            if( !top().isConstant() || top().value < 0 ) {
+                exit( pc );
+                return false;
+            }
+            count = top().value;
+            if( op == Operation.STORE_MULTI &&
+                    depth() - 2 - count < StackMachine.LOCALS_BASE ) {
+                exit( pc );
+                return false;
+            }
+            stackOp( pc, op );
+            pop();
+            pop();
+            for( int i = 0; i < count; i++ ) {
+                if( op == Operation.LOAD_MULTI ) {
+                    stack.add( slot( depth() ) );
+                } else {
+                    pop();
+                }
+            }
+            return true;
+        case COPY:
+            stackOp( pc, op );
+            pop();
+            pop();
+            pop();
+            return true;
+        case READ:
+            stackOp( pc, op );
+            stack.add( slot( depth() ) );
+            return true;
+        case ALLOC_HEAP:
+            stackOp( pc, op );
+            return true;
+        case STOP:
+            stackOp( pc, op );
+            return false;
+        default:
+            exit( pc );
+            return false;
+        }
+    }
+
+    /** Translate a store of value to the frame offset given by address.
+     * The values popped by the stack instruction are given in stack
+     * order. */
+    private void storeFrame( int pc, Value address, Value value,
+            Value... popped ) {
+        if( address.isConstant() && address.value < localsTop ) {
+            flushFrame( address.value );
+        } else {
+            flush();
+        }
+        RegisterInstruction inst = emit( Op.STORE_FRAME, pc );
+        setA( inst, address );
+        setB( inst, value );
+        bailout( inst, pc, popped );
+    }
+    /** Translate a binary operation, folding constant operands */
+    private void binary( Op op, int pc ) {
+        Value b = pop();
+        Value a = pop();
+        if( a.isConstant() && b.isConstant() &&
+                !( op == Op.DIV && b.value == 0 ) ) {
+            push( constant( fold( op, a.value, b.value ) ) );
+            return;
+        }
+        RegisterInstruction inst = emitResult( op, pc, a );
+        setB( inst, b );
+        if( op == Op.DIV ) {
+            bailout( inst, pc, a, b );
+        }
+        push( slot( inst.dst ) );
+    }
+    private static int fold( Op op, int a, int b ) {
+        switch( op ) {
+        case ADD: return a + b;
+        case MPY: return a * b;
+        case DIV: return a / b;
+        case OR: return a | b;
+        case AND: return a & b;
+        case XOR: return a ^ b;
+        case EQUAL:
+            return a == b ? StackMachine.TRUE_VALUE : StackMachine.FALSE_VALUE;
+        case LESS:
+            return a < b ? StackMachine.TRUE_VALUE : StackMachine.FALSE_VALUE;
+        case LESSEQ:
+            return a <= b ? StackMachine.TRUE_VALUE : StackMachine.FALSE_VALUE;
+        default:
+            throw new IllegalArgumentException( "Can't fold " + op );
+        }
+    }
+    /** Translate a conditional branch to dest on the test value. The
+     * values popped by the stack instruction are given in stack order.
+     * @return whether the branch can fall through */
+    private boolean branch( int pc, int dest, Value test, Value... popped ) {
+        flush();
+        if( test.isConstant() && test.value == StackMachine.TRUE_VALUE ) {
+            return true;
+        }
+        if( test.isConstant() && test.value == StackMachine.FALSE_VALUE ) {
+            branchTo( emit( Op.JUMP, pc ), dest );
+            return false;
+        }
+        RegisterInstruction inst = emit( Op.BR_FALSE, pc );
+        setA( inst, test );
+        Value[] values = new Value[ popped.length + 1 ];
+        values[0] = test;
+        System.arraycopy( popped, 0, values, 1, popped.length );
+        bailout( inst, pc, values );
+        branchTo( inst, dest );
+        return true;
+    }
+    /** Have the interpreter execute the stack instruction at pc, with all
+     * values in their stack slots */
+    private void stackOp( int pc, Operation op ) {
+        flush();
+        RegisterInstruction inst = emit( Op.STACK_OP, pc );
+        inst.targetPc = pc + op.getSize();
+    }
+}
@@ -1,12 +1,15 @@
 package machine;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Map;
 
 import source.Errors;
 import source.Severity;
-import syms.SymEntry;
 import tree.CodePlusProcedures;
 import tree.Procedures;
 
@@ -32,20 +35,26 @@ public class StackMachine {
     public final static int LOCALS_BASE = 3; 
     /** Offset of start of parameters from frame pointer */
     public final static int PARAMS_BASE = 0; 
-    /** Start of code within memory */
+    /** Start of code within its own memory */
     public final static int CODE_START = 1000;
-    /** Size of memory */
-    private final static int MEM_LIMIT = 10000;
-    /** Address outside memory */
+    /** Default size of the stack (and of the whole data memory) */
+    public final static int DEFAULT_STACK_SIZE = 1000;
+    /** Limit on the size of memory */
+    private final static int MEM_LIMIT = 1 << 30;
+    /** Address outside any data memory that can be configured, and the
+     * value of each word that hasn't been assigned (so a trace back shows
+     * it as 1073741824) */
     public final static int NULL_ADDR = MEM_LIMIT;
-    /** Memory array - stack and heap and code */
-    private int memory[] = new int [MEM_LIMIT];
+    /** Data memory array - heap and stack */
+    protected int memory[];
+    /** Code memory array, indexed by code address */
+    protected int code[] = new int [CODE_START];
     /** Location to store the next instruction during code generation */
-    private int currLocn = CODE_START;
+    protected int currLocn = CODE_START;
     /** Print an assembler listing? */
     private boolean listing = false;
     /** Stack machine running? */
-    private boolean running = false;
+    protected boolean running = false;
     
     /** Tracing constants (unioned together) */
     public static enum Trace {
@@ -61,23 +70,61 @@ public class StackMachine {
     public static EnumSet<Trace> TRACE_NONE = 
         EnumSet.complementOf( TRACE_ALL );
     /** Current tracing during execution of stack machine */
-    private EnumSet<Trace> tracing = TRACE_NONE;
-    
+    protected EnumSet<Trace> tracing = TRACE_NONE;
+    /** Listener receiving the traced events, or null if not tracing */
+    private TraceListener trace = null;
+    /** Whether each kind of event is traced, checked on every event */
+    private boolean traceMem, traceCalls, traceJumps, traceStack, traceState;
+
+    /** Execution engines for running the loaded code */
+    public static enum Engine {
+        /** Decode each instruction word as it is executed */
+        INTERPRETER,
+        /** Pre-decode the code words and run a tight dispatch loop */
+        THREADED,
+        /** Compile each procedure to JVM bytecode */
+        JIT;
+    }
+    /** Engine used to run the code */
+    private Engine engine = Engine.INTERPRETER;
+    /** Profiler counting the instructions executed, or null if not
+     * profiling */
+    private Profiler profiler = null;
+
     /** Object to handle error reports */
     private Errors error;
     /** Stores addresses of procedure starts */
-    private Procedures procStarts;
+    protected Procedures procStarts;
 
-    /** Bottom of stack */
-    private final int STACK_START = 0;
+    /** Size by which the stack grows when it is full */
+    private int stackSize;
+    /** Largest size to which the data memory may grow */
+    private int memorySize;
+    /** Bottom of stack = top of heap */
+    private int stackStart;
     /** Program counter */
-    private int pc = CODE_START;
+    protected int pc = CODE_START;
     /** Frame pointer */
-    private int fp = STACK_START;
+    protected int fp;
     /** Top of stack pointer - always one past top */
-    private int sp = STACK_START;
-    /** Top of stack limit = bottom of heap limit */
-    private int limit = CODE_START;
+    protected int sp;
+    /** Top of stack limit = end of the data memory */
+    protected int limit;
+    /** Bottom of the allocated heap */
+    private int heapLimit;
+    /** Display: the frame of each static level of the static chain of the
+     * current procedure (display[1] is that of the main program), or null
+     * if the code has no display instructions. It is maintained by CALL
+     * and RETURN, so that the display instructions reach a non-local
+     * frame without following the static links. */
+    private int[] display;
+    /** Static level of the current procedure */
+    private int level;
+    /** For each active call, the entry of the display it replaced and
+     * the static level of the caller (two words per call) */
+    private int[] displaySaved;
+    /** Number of words of displaySaved in use */
+    private int displayDepth;
     /** Standard input line reader */
     private BufferedReader in =
         new BufferedReader( new InputStreamReader (System.in) );
@@ -88,24 +135,131 @@ public class StackMachine {
         this.error = error;
         this.listing = verbose;
         procStarts = code.getProcStarts();
-        for( int i=0; i<MEM_LIMIT; i++ )
-            memory[i] = NULL_ADDR;  // out of memory address
+        setMemory( 0, DEFAULT_STACK_SIZE, 0 );
         for( Instruction inst : code.getInstructionList().getCode() ) {
             inst.loadInstruction(this);
         }
+        procStarts.index();
+    }
+    /** Load code read from an object file. The words are copied in bulk
+     * rather than generated one at a time. */
+    public StackMachine( Errors error, boolean verbose, ObjectCode object ) {
+        this.error = error;
+        this.listing = verbose;
+        procStarts = object.getProcStarts();
+        setMemory( 0, DEFAULT_STACK_SIZE, 0 );
+        int[] words = object.getWords();
+        if( (long)CODE_START + words.length >= MEM_LIMIT ) {
+            error.errorMessage( "Object code too large.",
+                                Severity.RESTRICTION );
+            return;
+        }
+        /* Keep room for the operands of a final instruction */
+        code = new int[ CODE_START + words.length + 2 ];
+        Arrays.fill( code, NULL_ADDR );
+        System.arraycopy( words, 0, code, CODE_START, words.length );
+        currLocn = CODE_START + words.length;
+        if( listing ) {
+            /* List the words as they would have been generated */
+            int locn = CODE_START;
+            while( locn < currLocn ) {
+                int word = code[locn];
+                Operation op = 0 <= word && word < getOperation.length ?
+                    getOperation[word] : null;
+                printListing( locn, code[locn], 
+                        op == null ? "" : op.toString() );
+                int next = locn + (op == null ? 1 : op.getSize());
+                for( locn++; locn < next && locn < currLocn; locn++ ) {
+                    printListing( locn, code[locn], "" );
+                }
+            }
+        }
+        procStarts.index();
     }
 
 /***************************** Public Methods *************************/
 
+    /** @return the loaded code and its procedure table, to be written to
+     * an object file */
+    public ObjectCode getObjectCode() {
+        return new ObjectCode( Arrays.copyOfRange( code, CODE_START, currLocn ),
+                procStarts );
+    }
+
     /** Specify whether assembly listings are to be printed out when storing
      * instructions / constants
      */
     public void setListing( boolean list ) {
         listing = list;
     }
-    /** Specify whether code tracing is to be output when executing */
+    /** Specify the sizes of the data memory, before running the code.
+     * The heap occupies the bottom heapSize words of the data memory, and
+     * is followed by the stack. The stack starts with stackSize words and
+     * grows by stackSize words at a time, as long as the data memory stays
+     * within memorySize words.
+     * @param memorySize limit on the size of the data memory; if less than
+     *  heapSize + stackSize, the stack can't grow
+     * @param stackSize initial size of the stack, and size of each
+     *  extension to it
+     * @param heapSize size of the heap
+     */
+    public void setMemory( int memorySize, int stackSize, int heapSize ) {
+        if( stackSize <= 0 || heapSize < 0 ||
+                (long)heapSize + stackSize > MEM_LIMIT ||
+                memorySize > MEM_LIMIT ) {
+            throw new IllegalArgumentException( "Invalid memory sizes" );
+        }
+        this.stackSize = stackSize;
+        this.memorySize = Math.max( memorySize, heapSize + stackSize );
+        memory = new int[ heapSize + stackSize ];
+        Arrays.fill( memory, NULL_ADDR );  // out of memory address
+        stackStart = heapSize;
+        fp = stackStart;
+        sp = stackStart;
+        limit = memory.length;
+        heapLimit = heapSize;
+    }
+    /** Specify the reader from which READ instructions take their
+     * input (by default the standard input) */
+    public void setInput( BufferedReader in ) {
+        this.in = in;
+    }
+    /** Specify whether code tracing is to be output when executing.
+     * The trace is buffered and printed in batches. */
     public void setTracing( EnumSet<Trace> flags ) {
-        tracing = flags;
+        setTracing( flags, 
+                flags.isEmpty() ? null : new TraceBuffer( System.out ) );
+    }
+    /** Specify the kinds of event to be traced when executing, and the
+     * listener that receives them (null for no tracing) */
+    public void setTracing( EnumSet<Trace> flags, TraceListener listener ) {
+        tracing = listener == null ? TRACE_NONE : flags;
+        trace = listener;
+        traceMem = tracing.contains( Trace.MEM );
+        traceCalls = tracing.contains( Trace.CALLS );
+        traceJumps = tracing.contains( Trace.JUMPS );
+        traceStack = tracing.contains( Trace.STACK );
+        traceState = tracing.contains( Trace.STATE );
+    }
+    /** Specify whether to profile the execution of the code */
+    public void setProfiling( boolean profiling ) {
+        profiler = profiling ? new Profiler( procStarts, currLocn ) : null;
+    }
+    /** @return the profiler, or null if not profiling */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+    /** Is execution being traced or profiled (so that it must be
+     * interpreted)? */
+    protected boolean instrumented() {
+        return !tracing.isEmpty() || profiler != null;
+    }
+    /** Specify the engine used to execute the code. The threaded and
+     * JIT engines are only used when execution is neither traced nor
+     * profiled, and code using the display is run by the threaded engine
+     * in place of the JIT. */
+    public void setEngine( Engine engine ) {
+        this.engine = engine;
     }
     /** Begin executing the code stored in the stack machine. 
      * Runs until a STOP opcode, a return to 0, or an illegal condition 
@@ -113,12 +267,36 @@ public class StackMachine {
      */
     public void run( ) {
         running = true;
-        while( running ) {
-            execInstruction();
+        if( displayUsed() ) {
+            display = new int[ 8 ];
+            level = 1;
+            display[level] = fp;
+            displaySaved = new int[ 64 ];
+            displayDepth = 0;
         }
+        execute();
+        flushTrace();
         System.out.println();
         System.out.println("Terminated");
     }
+    /** Execute the loaded code with the selected engine until the
+     * machine stops running. */
+    protected void execute() {
+        if( engine == Engine.THREADED && !instrumented() ) {
+            runThreaded();
+        } else if( engine == Engine.JIT && !instrumented() ) {
+            if( display != null ) {
+                /* Compiled calls don't maintain the display */
+                runThreaded();
+            } else {
+                runJit();
+            }
+        } else {
+            while( running ) {
+                execInstruction();
+            }
+        }
+    }
 
 /*********************** Public Code Generators ************************/
     /** Store the given word (with associated name) into the code buffer
@@ -129,31 +307,51 @@ public class StackMachine {
             error.errorMessage( "Object code too large.",
                                 Severity.RESTRICTION );
         } else {
-            memory[ currLocn++ ] = word;
+            if( currLocn + 2 >= code.length ) {
+                /* Keep room for the operands of a final instruction */
+                int size = code.length;
+                code = Arrays.copyOf( code, 2 * size );
+                Arrays.fill( code, size, code.length, NULL_ADDR );
+            }
+            code[ currLocn++ ] = word;
             if( listing )
                 printListing( currLocn - 1, word, name );
         }
     }
     /** Push the value onto the stack, and increment the stack pointer */
     private void push( int val ) {
-        if( sp >= limit ) {
+        if( sp >= limit && !growStack() ) {
             runtimeError( "Error: memory overflow!" );
         }
         else {
-            if( tracing.contains( Trace.STACK ) ) {
-                System.out.print( " Push(" + val + ") " );
+            if( traceStack ) {
+                trace.push( val );
             }
             memory[sp++] = val;
         }
     }
+    /** Extend the full stack by another segment, if the data memory may
+     * grow that far.
+     * @return whether the stack was extended */
+    protected boolean growStack() {
+        if( memory.length >= memorySize ) {
+            return false;
+        }
+        int size = (int)Math.min( (long)memory.length + stackSize, memorySize );
+        int old = memory.length;
+        memory = Arrays.copyOf( memory, size );
+        Arrays.fill( memory, old, size, NULL_ADDR );
+        limit = size;
+        return true;
+    }
     /** Pop the top value form the stack and decrement the stack pointer */
     private int pop( ) {
-        if( sp <= STACK_START ) {
+        if( sp <= stackStart ) {
             runtimeError( "Error: stack underflow!" );
             return 0;
         } else {
-            if( tracing.contains( Trace.STACK) ) {
-                System.out.print( " Pop() = " + memory[sp-1] + " " );
+            if( traceStack ) {
+                trace.pop( memory[sp-1] );
             }
             return memory[--sp];
         }
@@ -161,27 +359,27 @@ public class StackMachine {
     /** Return value stored at address */
     private int loadValue( int address ) {
         int val = 0;
-        if( address < 0 || address >= MEM_LIMIT ) {
+        if( address < 0 || address >= memory.length ) {
             runtimeError("Load outside memory pc="  +
                 + (pc-1) + ": address=" + (address) );
         } else {
              val = memory[address];
         }
-        if( tracing.contains( Trace.MEM ) ) {
-            System.out.print( "\n    Load [" + (address) + "] => " + val );
+        if( traceMem ) {
+            trace.load( address, val );
         }
         return val;
     }
     /** Store value at StoreAdr */
     private void storeValue( int address, int value ) {
-        if( address < 0 || address >= CODE_START ) {
+        if( address < 0 || address >= memory.length ) {
             runtimeError("Store outside memory pc="  +
                 + (pc-1) + ": address=" + (address) );
         } else {
              memory[ address ] = value;
         }
-        if( tracing.contains( Trace.MEM ) ) {
-            System.out.print( "\n    Store [" + (address) + "] <= " + value );
+        if( traceMem ) {
+            trace.store( address, value );
         }
     }
     /** Print a listing line to the message handler */
@@ -202,7 +400,7 @@ public class StackMachine {
      * Used for debugging. */
     private void dumpStack() {
         StringBuffer out = new StringBuffer("\nStack pointer = " + sp + "\n");
-        for( int i=STACK_START; i<sp; i++ ) {
+        for( int i=stackStart; i<sp; i++ ) {
             if( i == fp ) {
                 out.append(" FP: ");
             } else {
@@ -225,8 +423,9 @@ public class StackMachine {
         while( tracePC != 0 ) {
             Procedures.ProcedureStart proc = procStarts.getProcedure( tracePC );
             if( proc == null ) {
-                // if fp is 0 then in main program setup/finalisation code
-                if( fp != 0 ) {
+                // if fp is at the bottom of the stack then in main
+                // program setup/finalisation code
+                if( fp != stackStart ) {
                     System.out.println( "Trace back terminated early - " +
                         "PC out of valid range" );
                     dumpStack();
@@ -235,23 +434,21 @@ public class StackMachine {
             }
             System.out.print( "PC=" + tracePC + " in " + proc );
             System.out.print( " FP=" + traceFP );
-            int staticLink = memory[traceFP];
+            int staticLink = peek( traceFP );
             System.out.print( " SL=" + staticLink );
             // Dynamic link is at offset 1 from frame pointer
-            int dynamicLink = memory[traceFP+1];
+            int dynamicLink = peek( traceFP+1 );
             System.out.print( " DL=" + dynamicLink );
             // Return address is at offset 2
-            System.out.println( " RA=" + memory[traceFP+2] );
-            for( SymEntry entry : proc.getLocals().getEntries() ) {
-                if( entry instanceof SymEntry.VarEntry ) {
-                    SymEntry.VarEntry varEntry = (SymEntry.VarEntry)entry;
-                    System.out.println( "  " + varEntry.getIdent() + 
-                            "(" + varEntry.getOffset() + ")" +
-                            " = " + memory[ traceFP + varEntry.getOffset()] );
-                }
+            System.out.println( " RA=" + peek( traceFP+2 ) );
+            for( Map.Entry<String,Integer> var :
+                    proc.getVariables().entrySet() ) {
+                System.out.println( "  " + var.getKey() + 
+                        "(" + var.getValue() + ")" +
+                        " = " + peek( traceFP + var.getValue() ) );
             }
             // Return PC is at offset 2 from frame pointer
-            tracePC = memory[traceFP+2];
+            tracePC = peek( traceFP+2 );
             if( dynamicLink != 0 && dynamicLink > traceFP - 3 ) {
                 System.out.println( "Trace back terminated early - " +
                     "invalid dynamic link " + dynamicLink + " FP= " + traceFP );
@@ -261,47 +458,128 @@ public class StackMachine {
             traceFP = dynamicLink;
         }
     }
+    /** Value at address for a trace back, which may be given a partly
+     * pushed frame at the end of memory */
+    private int peek( int address ) {
+        if( address < 0 || address >= memory.length ) {
+            return NULL_ADDR;
+        }
+        return memory[address];
+    }
     /** Right pad the given string buffer to the given length */
     private void pad( StringBuffer buf, int to ) {
         for( int i=buf.length(); i<to; i++ ) {
             buf.append( ' ' );
         }
     }
+    /** Output any buffered trace, before other output */
+    private void flushTrace() {
+        if( trace != null ) {
+            trace.flush();
+        }
+    }
     /** Runtime error while executing program. */
     private void runtimeError( String message ) {
         running = false;
+        flushTrace();
         System.out.println( message );
         dumpStack();
         traceBack();
     }
+    /** Does the loaded code contain any display instructions? */
+    private boolean displayUsed() {
+        int locn = CODE_START;
+        while( locn < currLocn ) {
+            int word = code[locn];
+            if( word < 0 || getOperation.length <= word ) {
+                locn++;
+                continue;
+            }
+            Operation op = getOperation[word];
+            if( op == Operation.LOAD_DISPLAY || 
+                    op == Operation.STORE_DISPLAY || 
+                    op == Operation.DISPLAY ) {
+                return true;
+            }
+            locn += op.getSize();
+        }
+        return false;
+    }
+    /** Is the display being maintained (so that calls must be
+     * interpreted)? */
+    protected boolean displayed() {
+        return display != null;
+    }
+    /** Update the display on entry to the procedure whose frame is at fp.
+     * Its static link is the frame of some level k of the caller's
+     * static chain, so it is at level k+1. */
+    private void enterDisplay() {
+        int staticLink = memory[fp];
+        int k = level;
+        while( k > 0 && display[k] != staticLink ) {
+            k--;
+        }
+        if( k == 0 ) {
+            runtimeError( "\nRuntime error: Static link " + staticLink +
+                    " not in display" );
+            return;
+        }
+        if( k + 1 >= display.length ) {
+            display = Arrays.copyOf( display, 2 * display.length );
+        }
+        if( displayDepth + 2 > displaySaved.length ) {
+            displaySaved = Arrays.copyOf( displaySaved, 
+                    2 * displaySaved.length );
+        }
+        displaySaved[displayDepth++] = display[k+1];
+        displaySaved[displayDepth++] = level;
+        level = k + 1;
+        display[level] = fp;
+    }
+    /** Restore the display on return to the caller */
+    private void leaveDisplay() {
+        if( displayDepth > 0 ) {  /* not the return from main */
+            int callerLevel = displaySaved[--displayDepth];
+            display[level] = displaySaved[--displayDepth];
+            level = callerLevel;
+        }
+    }
+    /** @return the address of the frame of the static level given by
+     * a display instruction, or -1 (after reporting it) if the current
+     * procedure has no such level */
+    private int displayEntry( int staticLevel ) {
+        if( display == null || staticLevel < 1 || staticLevel > level ) {
+            runtimeError( "\nRuntime error: Invalid static level " +
+                    staticLevel + " for display" );
+            return -1;
+        }
+        return display[staticLevel];
+    }
 /********************************** Execution *******************************/
     /** Convert from integer to operation */
     Operation[] getOperation = Operation.values();
     /** Execute the instruction pointed to by the pc register, 
      * and adjust pc to point to the next instruction.
      */
-    private void execInstruction() {
+    protected void execInstruction() {
         if( pc < CODE_START || pc >= currLocn ) {
             runtimeError( "\nRuntime error: PC = " + pc + " out of range of code" );
             return;
         }
-        int instWord = memory[pc++];
+        int instWord = code[pc++];
         if( instWord < 0 || getOperation.length <= instWord ) {
             runtimeError( "\nRuntime error: Invalid opcode" );
             return;
         }
         Operation inst = getOperation[instWord];
         int address;
-        if( tracing.contains( Trace.STATE ) ) {
-            System.out.print( "\n" + "PC: " + (pc-1) +
-                              ": FP: " + fp +
-                              "  SP: " + sp +
-                              "  Limit: " + limit + 
-                              "  Opcode: " +
-                              inst + " " );
-            if( inst == Operation.LOAD_CON ) {
-                System.out.print( memory[pc] + " " );
-            }
+        if( profiler != null ) {
+            profiler.count( pc-1, instWord );
+        }
+        if( traceState ) {
+            trace.instruction( pc-1, fp, sp, limit, instWord, 
+                    inst.getSize() > 1 ? code[pc] : 0,
+                    inst.getSize() > 2 ? code[pc+1] : 0 );
         }
         switch (inst) {
         case NO_OP: /* Do nothing */
@@ -315,8 +593,8 @@ public class StackMachine {
             } else if (test != TRUE_VALUE ) {
                 runtimeError("\nRuntime error: Non-boolean operand in branch");
             }
-            if (tracing.contains(Trace.JUMPS)) {
-                System.out.print("\n      Branch => " + pc);
+            if (traceJumps) {
+                trace.branch(pc);
             }
             break;
         case COPY: /* Copy top-of-stack words from third-top-of-stack address 
@@ -339,8 +617,44 @@ public class StackMachine {
             fp = sp - 2;        /* frame pointer addresses static link */
             push(pc);           /* save return address */
             pc = addr;          /* branch to procedure */
-            if (tracing.contains(Trace.CALLS)) {
-                System.out.print("\n      Call => " + pc);
+            if (display != null) {
+                enterDisplay();
+            }
+            if (profiler != null) {
+                profiler.enter(pc);
+            }
+            if (traceCalls) {
+                trace.call(pc);
+            }
+            break;
+        case TAIL_CALL: /* Execute a call that reuses the current frame.
+                The next word is the number of words of parameters, which
+                are on the stack below the static link and the address of
+                the procedure and replace those of the current frame. The
+                dynamic link and return address are left unchanged. */
+            int params = code[pc++];
+            addr = pop();
+            int staticLink = pop();
+            if (params < 0 || sp - params < fp + 3) {
+                runtimeError("\nRuntime error: Invalid tail call");
+                break;
+            }
+            for (int i = 0; i < params && running; i++) {
+                storeValue(fp - params + i, loadValue(sp - params + i));
+            }
+            storeValue(fp, staticLink);
+            sp = fp + 3;        /* deallocate the locals */
+            pc = addr;
+            if (display != null) {
+                leaveDisplay();
+                enterDisplay();
+            }
+            if (profiler != null) {
+                profiler.leave();
+                profiler.enter(pc);
+            }
+            if (traceCalls) {
+                trace.call(pc);
             }
             break;
         case RETURN: /* Return to caller */
@@ -349,11 +663,17 @@ public class StackMachine {
             pc = pop();    /* Set program counter to return address. */
             fp = pop();    /* Restore the frame pointer from dynamic link */
             pop();         /* Remove the static link */
+            if (display != null) {
+                leaveDisplay();
+            }
             if (pc == 0) { /* Return from main terminates program */
                 running = false;
             }
-            if (tracing.contains(Trace.CALLS)) {
-                System.out.print("\n      Returning => " + pc);
+            if (profiler != null) {
+                profiler.leave();
+            }
+            if (traceCalls) {
+                trace.returning(pc);
             }
             break;
         case ALLOC_STACK: /* Allocate top-of-stack words on stack */
@@ -441,7 +761,9 @@ public class StackMachine {
             }
             break;
         case WRITE: /* Write a number to stdout */
-            System.out.println(Integer.toString(pop()));
+            val = pop();
+            flushTrace();
+            System.out.println(Integer.toString(val));
             break;
         case BOUND: /* Check if index is within bounds, 
                 halt if not. This needs to be an instruction to write 
@@ -462,7 +784,7 @@ public class StackMachine {
             push(pop() - fp);
             break;
         case LOAD_CON: /* Load a constant value from the following word */
-            push(memory[pc++]);
+            push(code[pc++]);
             break;
         case LOAD_ABS: /* Load a value from address in top of stack */
             address = pop();
@@ -495,9 +817,13 @@ public class StackMachine {
             break;
         case ALLOC_HEAP: /* Allocate memory from heap */
             int size = pop();
-            limit -= size;
-            push(limit); // will fail if limit less than sp
-            for(int i = limit; i < limit+size; i++ ) {
+            if( size < 0 || size > heapLimit ) {
+                runtimeError( "Error: memory overflow!" );
+                break;
+            }
+            heapLimit -= size;
+            push(heapLimit);
+            for(int i = heapLimit; i < heapLimit+size; i++ ) {
                 memory[i] = NULL_ADDR;
             }
             break;
@@ -520,6 +846,72 @@ public class StackMachine {
                 count--;
             }
             break;
+        case LOAD_LOCAL: /* Load a word at offset in the next word from fp */
+            address = fp + code[pc++];
+            push(loadValue(address));
+            break;
+        case STORE_LOCAL: /* Store a word at offset in the next word from fp */
+            address = fp + code[pc++];
+            storeValue(address, pop());
+            break;
+        case JUMP: /* Branch by the offset in the next word */
+            dest = code[pc++];
+            pc += dest;
+            if (traceJumps) {
+                trace.branch(pc);
+            }
+            break;
+        case BR_FALSE_IMM: /* If the top value = FALSE_VALUE branch by
+                the offset in the next word */
+            dest = code[pc++];
+            test = pop();
+            if (test == FALSE_VALUE) {
+                pc += dest;
+            } else if (test != TRUE_VALUE ) {
+                runtimeError("\nRuntime error: Non-boolean operand in branch");
+            }
+            if (traceJumps) {
+                trace.branch(pc);
+            }
+            break;
+        case LOAD_UPLEVEL: /* Follow the static link the number of times in
+                the next word, and load from the offset in the word after */
+            count = code[pc++];
+            int offset = code[pc++];
+            address = fp;
+            while( count > 0 && running ) {
+                address = loadValue(address);
+                count--;
+            }
+            push(loadValue(address + offset));
+            break;
+        case ADD_IMM: /* Add the next word to the top of stack */
+            push(pop() + code[pc++]);
+            break;
+        case LOAD_DISPLAY: /* Load from the offset in the word after next
+                in the frame of the static level in the next word */
+            address = displayEntry(code[pc++]);
+            offset = code[pc++];
+            if (address >= 0) {
+                push(loadValue(address + offset));
+            }
+            break;
+        case STORE_DISPLAY: /* Store the top of stack at the offset in the
+                word after next in the frame of the static level in the
+                next word */
+            address = displayEntry(code[pc++]);
+            offset = code[pc++];
+            if (address >= 0) {
+                storeValue(address + offset, pop());
+            }
+            break;
+        case DISPLAY: /* Load the address of the frame of the static level
+                in the next word */
+            address = displayEntry(code[pc++]);
+            if (address >= 0) {
+                push(address);
+            }
+            break;
         case STOP: /* Halt */
             int exitcode = pop();
             switch( exitcode ) {
@@ -538,7 +930,474 @@ public class StackMachine {
             }
             break;
         default:
+            flushTrace();
             System.out.println("\nError: Opcode not implemented: " + inst );
         }
     }
+
+/************************** Threaded Execution ******************************/
+    /** Pre-decode the loaded code words into their operations.
+     * Words that are not valid operation codes are decoded as null.
+     * Every word is decoded (not just those at instruction boundaries)
+     * so that a branch into the middle of an instruction behaves exactly
+     * as it does in the interpreter.
+     */
+    private Operation[] decode() {
+        Operation[] decoded = new Operation[ currLocn - CODE_START ];
+        for( int locn = CODE_START; locn < currLocn; locn++ ) {
+            int word = code[locn];
+            if( 0 <= word && word < getOperation.length ) {
+                decoded[ locn - CODE_START ] = getOperation[word];
+            }
+        }
+        return decoded;
+    }
+    /** Execute the code from its pre-decoded form.
+     * The registers are held in local variables and the stack accesses
+     * are inlined, with no per-instruction tracing checks.
+     * Every check made by the interpreter is made here before the
+     * instruction changes any state. If an instruction would fail (or
+     * needs input), the registers are written back and that instruction
+     * is executed by execInstruction(), so that the output, including any
+     * runtime error report, is identical to that of the interpreter.
+     * Code can't be overwritten (it isn't in the data memory) so the
+     * decoded form remains valid for the whole run.
+     */
+    private void runThreaded() {
+        final Operation[] decoded = decode();
+        final int[] words = code;
+        int[] mem = memory;
+        int pc = this.pc;
+        int fp = this.fp;
+        int sp = this.sp;
+        int limit = this.limit;
+        while( running ) {
+            Operation inst = null;
+            if( CODE_START <= pc && pc < currLocn ) {
+                inst = decoded[ pc - CODE_START ];
+            }
+            int address, top, count;
+            slow: if( inst != null ) {
+                switch( inst ) {
+                case NO_OP:
+                    pc++;
+                    continue;
+                case BR_FALSE:
+                    if( sp < 2 ) break slow;
+                    top = mem[sp-2];
+                    if( top == FALSE_VALUE ) {
+                        pc += 1 + mem[sp-1];
+                    } else if( top == TRUE_VALUE ) {
+                        pc++;
+                    } else {
+                        break slow;
+                    }
+                    sp -= 2;
+                    continue;
+                case COPY:
+                    if( sp < 3 ) break slow;
+                    count = mem[sp-1];
+                    int toAddr = fp + mem[sp-2];
+                    int fromAddr = fp + mem[sp-3];
+                    if( count > 0 && ( fromAddr < 0 ||
+                            fromAddr + count > mem.length || toAddr < 0 ||
+                            toAddr + count > mem.length ) ) {
+                        break slow;
+                    }
+                    sp -= 3;
+                    for( int i = 0; i < count; i++ ) {
+                        mem[toAddr + i] = mem[fromAddr + i];
+                    }
+                    pc++;
+                    continue;
+                case CALL:
+                    if( sp < 1 || sp >= limit || display != null ) break slow;
+                    address = mem[sp-1];
+                    mem[sp-1] = fp;         /* dynamic link */
+                    fp = sp - 2;
+                    mem[sp++] = pc + 1;     /* return address */
+                    pc = address;
+                    continue;
+                case RETURN:
+                    if( fp < 0 || fp + 3 > mem.length || display != null ) {
+                        break slow;
+                    }
+                    sp = fp;
+                    pc = mem[fp+2];
+                    fp = mem[fp+1];
+                    if( pc == 0 ) {
+                        running = false;
+                    }
+                    continue;
+                case TAIL_CALL:
+                    if( display != null || pc + 1 >= words.length ) break slow;
+                    count = words[pc+1];
+                    if( count < 0 || sp - 2 - count < fp + 3 || fp - count < 0 ) {
+                        break slow;
+                    }
+                    address = mem[sp-1];
+                    mem[fp] = mem[sp-2];    /* static link */
+                    System.arraycopy( mem, sp - 2 - count, mem, fp - count, 
+                            count );
+                    sp = fp + 3;
+                    pc = address;
+                    continue;
+                case ALLOC_STACK:
+                    if( sp < 1 ) break slow;
+                    count = mem[sp-1];
+                    if( count > 0 && sp - 1 + count > limit ) break slow;
+                    sp--;
+                    for( int i = 0; i < count; i++ ) {
+                        mem[sp++] = NULL_ADDR;
+                    }
+                    pc++;
+                    continue;
+                case DEALLOC_STACK:
+                    if( sp < 1 ) break slow;
+                    count = mem[sp-1];
+                    if( sp - 1 - count <= fp + 2 ) break slow;
+                    sp = sp - 1 - count;
+                    pc++;
+                    continue;
+                case POP:
+                    if( sp < 1 ) break slow;
+                    sp--;
+                    pc++;
+                    continue;
+                case DUP:
+                    if( sp < 1 || sp >= limit ) break slow;
+                    mem[sp] = mem[sp-1];
+                    sp++;
+                    pc++;
+                    continue;
+                case SWAP:
+                    if( sp < 2 || sp > limit ) break slow;
+                    top = mem[sp-1];
+                    mem[sp-1] = mem[sp-2];
+                    mem[sp-2] = top;
+                    pc++;
+                    continue;
+                case DIV:
+                    if( sp < 2 || sp > limit + 1 || mem[sp-1] == 0 ) break slow;
+                    mem[sp-2] = mem[sp-2] / mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case MPY:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] * mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case ADD:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] + mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case XOR:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] ^ mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case OR:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] | mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case AND:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] & mem[sp-1];
+                    sp--;
+                    pc++;
+                    continue;
+                case EQUAL:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] == mem[sp-1] ?
+                            TRUE_VALUE : FALSE_VALUE;
+                    sp--;
+                    pc++;
+                    continue;
+                case LESS:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] < mem[sp-1] ?
+                            TRUE_VALUE : FALSE_VALUE;
+                    sp--;
+                    pc++;
+                    continue;
+                case LESSEQ:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    mem[sp-2] = mem[sp-2] <= mem[sp-1] ?
+                            TRUE_VALUE : FALSE_VALUE;
+                    sp--;
+                    pc++;
+                    continue;
+                case NOT:
+                    if( sp < 1 || sp > limit ) break slow;
+                    mem[sp-1] = ~mem[sp-1];
+                    pc++;
+                    continue;
+                case NEGATE:
+                    if( sp < 1 || sp > limit ) break slow;
+                    mem[sp-1] = -mem[sp-1];
+                    pc++;
+                    continue;
+                case WRITE:
+                    if( sp < 1 ) break slow;
+                    System.out.println( Integer.toString( mem[--sp] ) );
+                    pc++;
+                    continue;
+                case BOUND:
+                    if( sp < 3 || sp > limit + 2 ) break slow;
+                    top = mem[sp-3];
+                    if( top < mem[sp-2] || top > mem[sp-1] ) break slow;
+                    sp -= 2;
+                    pc++;
+                    continue;
+                case TO_GLOBAL:
+                    if( sp < 1 || sp > limit ) break slow;
+                    mem[sp-1] += fp;
+                    pc++;
+                    continue;
+                case TO_LOCAL:
+                    if( sp < 1 || sp > limit ) break slow;
+                    mem[sp-1] -= fp;
+                    pc++;
+                    continue;
+                case LOAD_CON:
+                    if( sp >= limit || pc + 1 >= words.length ) break slow;
+                    mem[sp++] = words[pc+1];
+                    pc += 2;
+                    continue;
+                case LOAD_ABS:
+                    if( sp < 1 || sp > limit ) break slow;
+                    address = mem[sp-1];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[sp-1] = mem[address];
+                    pc++;
+                    continue;
+                case STORE_FRAME:
+                    if( sp < 2 ) break slow;
+                    address = fp + mem[sp-1];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[address] = mem[sp-2];
+                    sp -= 2;
+                    pc++;
+                    continue;
+                case LOAD_FRAME:
+                    if( sp < 1 || sp > limit ) break slow;
+                    address = fp + mem[sp-1];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[sp-1] = mem[address];
+                    pc++;
+                    continue;
+                case STORE_REL:
+                    if( sp < 3 ) break slow;
+                    address = mem[sp-1] + mem[sp-2];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[address] = mem[sp-3];
+                    sp -= 3;
+                    pc++;
+                    continue;
+                case LOAD_REL:
+                    if( sp < 2 || sp > limit + 1 ) break slow;
+                    address = mem[sp-1] + mem[sp-2];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[sp-2] = mem[address];
+                    sp--;
+                    pc++;
+                    continue;
+                case ZERO:
+                    if( sp >= limit ) break slow;
+                    mem[sp++] = 0;
+                    pc++;
+                    continue;
+                case ONE:
+                    if( sp >= limit ) break slow;
+                    mem[sp++] = 1;
+                    pc++;
+                    continue;
+                case ALLOC_HEAP:
+                    if( sp < 1 ) break slow;
+                    count = mem[sp-1];
+                    if( count < 0 || count > heapLimit ) break slow;
+                    heapLimit -= count;
+                    mem[sp-1] = heapLimit;
+                    for( int i = heapLimit; i < heapLimit + count; i++ ) {
+                        mem[i] = NULL_ADDR;
+                    }
+                    pc++;
+                    continue;
+                case LOAD_MULTI:
+                    if( sp < 2 ) break slow;
+                    count = mem[sp-1];
+                    address = fp + mem[sp-2];
+                    if( count > 0 && ( address < 0 ||
+                            address + count > mem.length ||
+                            sp - 2 + count > limit ) ) {
+                        break slow;
+                    }
+                    sp -= 2;
+                    for( int i = 0; i < count; i++ ) {
+                        mem[sp++] = mem[address++];
+                    }
+                    pc++;
+                    continue;
+                case STORE_MULTI:
+                    if( sp < 2 ) break slow;
+                    count = mem[sp-1];
+                    address = fp + mem[sp-2] + count;
+                    if( count > 0 && ( sp - 2 < count ||
+                            address - count < 0 || address > mem.length ) ) {
+                        break slow;
+                    }
+                    sp -= 2;
+                    for( int i = 0; i < count; i++ ) {
+                        mem[--address] = mem[--sp];
+                    }
+                    pc++;
+                    continue;
+                case LOAD_LOCAL:
+                    if( sp >= limit || pc + 1 >= words.length ) break slow;
+                    address = fp + words[pc+1];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[sp++] = mem[address];
+                    pc += 2;
+                    continue;
+                case STORE_LOCAL:
+                    if( sp < 1 || pc + 1 >= words.length ) break slow;
+                    address = fp + words[pc+1];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[address] = mem[--sp];
+                    pc += 2;
+                    continue;
+                case JUMP:
+                    if( pc + 1 >= words.length ) break slow;
+                    pc += 2 + words[pc+1];
+                    continue;
+                case BR_FALSE_IMM:
+                    if( sp < 1 || pc + 1 >= words.length ) break slow;
+                    top = mem[sp-1];
+                    if( top == FALSE_VALUE ) {
+                        pc += 2 + words[pc+1];
+                    } else if( top == TRUE_VALUE ) {
+                        pc += 2;
+                    } else {
+                        break slow;
+                    }
+                    sp--;
+                    continue;
+                case LOAD_UPLEVEL:
+                    if( sp >= limit || pc + 2 >= words.length ) break slow;
+                    address = fp;
+                    for( count = words[pc+1]; count > 0; count-- ) {
+                        if( address < 0 || address >= mem.length ) break slow;
+                        address = mem[address];
+                    }
+                    address += words[pc+2];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[sp++] = mem[address];
+                    pc += 3;
+                    continue;
+                case ADD_IMM:
+                    if( sp < 1 || sp > limit || pc + 1 >= words.length ) break slow;
+                    mem[sp-1] += words[pc+1];
+                    pc += 2;
+                    continue;
+                /* The display is only changed by calls and returns, which
+                 * are interpreted when it is in use */
+                case LOAD_DISPLAY:
+                    if( sp >= limit || pc + 2 >= words.length ) break slow;
+                    count = words[pc+1];
+                    if( display == null || count < 1 || count > level ) break slow;
+                    address = display[count] + words[pc+2];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[sp++] = mem[address];
+                    pc += 3;
+                    continue;
+                case STORE_DISPLAY:
+                    if( sp < 1 || pc + 2 >= words.length ) break slow;
+                    count = words[pc+1];
+                    if( display == null || count < 1 || count > level ) break slow;
+                    address = display[count] + words[pc+2];
+                    if( address < 0 || address >= mem.length ) break slow;
+                    mem[address] = mem[--sp];
+                    pc += 3;
+                    continue;
+                case DISPLAY:
+                    if( sp >= limit || pc + 1 >= words.length ) break slow;
+                    count = words[pc+1];
+                    if( display == null || count < 1 || count > level ) break slow;
+                    mem[sp++] = display[count];
+                    pc += 2;
+                    continue;
+                default:
+                    /* READ and STOP are left to the interpreter */
+                    break slow;
+                }
+            }
+            /* Let the interpreter execute (and report on) this instruction */
+            this.pc = pc; this.fp = fp; this.sp = sp; this.limit = limit;
+            execInstruction();
+            pc = this.pc; fp = this.fp; sp = this.sp; limit = this.limit;
+            mem = memory;   /* the stack may have grown */
+        }
+        this.pc = pc; this.fp = fp; this.sp = sp; this.limit = limit;
+    }
+
+/***************************** JIT Execution ********************************/
+    /** Execute the code, calling the compiled form of each procedure
+     * (see JitCompiler) on entry to it, and interpreting any other code.
+     * The interpreter executes any instruction the compiled code bails
+     * out on, and carries on until the next procedure entry.
+     * Compiled calls nest only to JitCompiler.MAX_DEPTH, so that deep
+     * recursion is limited by the stack machine's memory rather than
+     * the JVM stack.
+     */
+    private void runJit() {
+        MethodHandle[] entries =
+            JitCompiler.compile( code, currLocn, procStarts );
+        JitState state = new JitState( this );
+        boolean bailedOut = false;
+        while( running ) {
+            MethodHandle entry = null;
+            if( entries != null && !bailedOut &&
+                    CODE_START <= pc && pc < currLocn ) {
+                entry = entries[ pc - CODE_START ];
+            }
+            bailedOut = false;
+            if( entry == null ) {
+                execInstruction();
+                continue;
+            }
+            state.limit = limit;
+            state.depth = 0;
+            try {
+                sp = (int)entry.invokeExact( state, memory, fp, sp );
+            } catch( JitState.Bailout e ) {
+                sp = state.sp;
+                bailedOut = true;
+            } catch( RuntimeException e ) {
+                throw e;
+            } catch( Error e ) {
+                throw e;
+            } catch( Throwable e ) {
+                throw new IllegalStateException( e );
+            }
+            pc = state.pc;
+            fp = state.fp;
+            limit = state.limit;
+            if( state.readFailed ) {
+                runtimeError( "\nInvalid value read" );
+            } else if( pc == 0 ) { /* Return from main */
+                running = false;
+            }
+        }
+    }
+    /** Read a number from stdin for compiled code */
+    int readValue() throws IOException {
+        return Integer.parseInt( in.readLine() );
+    }
 }
@@ -0,0 +1,147 @@
+package machine;
+
+import java.io.PrintStream;
+
+/**
+ * class TraceBuffer - the trace listener used for the -t option. Events
+ * are recorded as integers in a buffer allocated once, and only formatted
+ * and printed when the buffer fills or is flushed, a whole batch at a time.
+ * The text printed is the same as that of tracing each event as it occurs.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class TraceBuffer implements TraceListener {
+
+    /** Default number of events buffered */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** Kinds of event */
+    private static final int INSTRUCTION = 0, PUSH = 1, POP = 2, LOAD = 3,
+        STORE = 4, BRANCH = 5, CALL = 6, RETURN = 7;
+    /** Number of words recorded for each event: its kind and values */
+    private static final int EVENT_SIZE = 8;
+
+    /** Recorded events, EVENT_SIZE words each */
+    private final int[] events;
+    /** Number of words of events recorded */
+    private int count = 0;
+    /** Text of the batch being printed, reused for each batch */
+    private final StringBuilder text = new StringBuilder();
+    /** Bytes of the text (which is all ASCII), reused for each batch */
+    private byte[] bytes = new byte[0];
+    /** Where the trace is printed */
+    private final PrintStream out;
+    /** Convert from integer to operation */
+    private final Operation[] getOperation = Operation.values();
+
+    public TraceBuffer( PrintStream out, int capacity ) {
+        this.out = out;
+        this.events = new int[ capacity * EVENT_SIZE ];
+    }
+    public TraceBuffer( PrintStream out ) {
+        this( out, DEFAULT_CAPACITY );
+    }
+
+    /** Record an event, flushing the buffer first if it is full */
+    private void record( int kind, int a, int b, int c, int d, int e,
+            int f, int g ) {
+        if( count == events.length ) {
+            flush();
+        }
+        int[] ev = events;
+        int i = count;
+        ev[i] = kind;
+        ev[i+1] = a;
+        ev[i+2] = b;
+        ev[i+3] = c;
+        ev[i+4] = d;
+        ev[i+5] = e;
+        ev[i+6] = f;
+        ev[i+7] = g;
+        count = i + EVENT_SIZE;
+    }
+    public void instruction( int pc, int fp, int sp, int limit, int opcode,
+            int operand1, int operand2 ) {
+        record( INSTRUCTION, pc, fp, sp, limit, opcode, operand1, operand2 );
+    }
+    public void push( int value ) {
+        record( PUSH, value, 0, 0, 0, 0, 0, 0 );
+    }
+    public void pop( int value ) {
+        record( POP, value, 0, 0, 0, 0, 0, 0 );
+    }
+    public void load( int address, int value ) {
+        record( LOAD, address, value, 0, 0, 0, 0, 0 );
+    }
+    public void store( int address, int value ) {
+        record( STORE, address, value, 0, 0, 0, 0, 0 );
+    }
+    public void branch( int pc ) {
+        record( BRANCH, pc, 0, 0, 0, 0, 0, 0 );
+    }
+    public void call( int pc ) {
+        record( CALL, pc, 0, 0, 0, 0, 0, 0 );
+    }
+    public void returning( int pc ) {
+        record( RETURN, pc, 0, 0, 0, 0, 0, 0 );
+    }
+
+    /** Format the recorded events and print them as one batch */
+    public void flush() {
+        if( count == 0 ) {
+            return;
+        }
+        StringBuilder buf = text;
+        buf.setLength( 0 );
+        int[] ev = events;
+        for( int i = 0; i < count; i += EVENT_SIZE ) {
+            switch( ev[i] ) {
+            case INSTRUCTION:
+                Operation op = getOperation[ ev[i+5] ];
+                buf.append( "\nPC: " ).append( ev[i+1] )
+                    .append( ": FP: " ).append( ev[i+2] )
+                    .append( "  SP: " ).append( ev[i+3] )
+                    .append( "  Limit: " ).append( ev[i+4] )
+                    .append( "  Opcode: " ).append( op ).append( ' ' );
+                for( int j = 0; j < op.getSize() - 1; j++ ) {
+                    buf.append( ev[i+6+j] ).append( ' ' );
+                }
+                break;
+            case PUSH:
+                buf.append( " Push(" ).append( ev[i+1] ).append( ") " );
+                break;
+            case POP:
+                buf.append( " Pop() = " ).append( ev[i+1] ).append( ' ' );
+                break;
+            case LOAD:
+                buf.append( "\n    Load [" ).append( ev[i+1] )
+                    .append( "] => " ).append( ev[i+2] );
+                break;
+            case STORE:
+                buf.append( "\n    Store [" ).append( ev[i+1] )
+                    .append( "] <= " ).append( ev[i+2] );
+                break;
+            case BRANCH:
+                buf.append( "\n      Branch => " ).append( ev[i+1] );
+                break;
+            case CALL:
+                buf.append( "\n      Call => " ).append( ev[i+1] );
+                break;
+            case RETURN:
+                buf.append( "\n      Returning => " ).append( ev[i+1] );
+                break;
+            }
+        }
+        count = 0;
+        /* Written as one block of bytes, to avoid the output stream
+         * encoding and buffering the text in small pieces */
+        int n = buf.length();
+        if( bytes.length < n ) {
+            bytes = new byte[ 2 * n ];
+        }
+        for( int i = 0; i < n; i++ ) {
+            bytes[i] = (byte)buf.charAt( i );
+        }
+        out.write( bytes, 0, n );
+        out.flush();
+    }
+}
@@ -0,0 +1,36 @@
+package machine;
+
+/**
+ * interface TraceListener - receives the events traced while the stack
+ * machine executes code. Each event is passed as primitive values only,
+ * so that the machine need not build any objects to report it; the
+ * listener decides how (and when) to record or print it.
+ * The machine only reports the kinds of event for which tracing has been
+ * requested.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public interface TraceListener {
+    /** The instruction at pc with the given opcode (the ordinal of its
+     * Operation) is about to be executed. The operands are the words
+     * following the opcode, for an instruction that has them.
+     */
+    void instruction( int pc, int fp, int sp, int limit, int opcode,
+            int operand1, int operand2 );
+    /** A value has been pushed onto the stack */
+    void push( int value );
+    /** A value has been popped off the stack */
+    void pop( int value );
+    /** A value has been loaded from memory */
+    void load( int address, int value );
+    /** A value has been stored into memory */
+    void store( int address, int value );
+    /** A branch instruction continues at pc */
+    void branch( int pc );
+    /** A call continues at pc */
+    void call( int pc );
+    /** A return continues at pc */
+    void returning( int pc );
+    /** Output any events not yet output, before the machine outputs
+     * anything else */
+    void flush();
+}
@@ -0,0 +1,131 @@
+package pl0;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import machine.ObjectCode;
+
+/**
+ * class CompileCache - a directory of object files holding the code
+ * compiled from source programs, so that compiling an unchanged program
+ * again just loads its code.
+ * Each entry is named by a hash of the compiler version, the options that
+ * affect the code generated and the text of the source. An entry is
+ * written to a temporary file and then renamed into place, so several
+ * processes (or threads) may share the directory: a reader sees either
+ * the whole entry or none. Using an entry marks it as recently used, and
+ * when the entries exceed the size limit the least recently used are
+ * removed.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class CompileCache {
+
+    /** Version of the compiler, changed whenever the code it generates
+     * for the same program and options changes */
+    public final static String COMPILER_VERSION = "PL0_CUP 14.9";
+    /** Default limit on the total size of the entries, in bytes */
+    public final static long DEFAULT_MAX_SIZE = 64L << 20;
+
+    /** Directory holding the entries */
+    private final File dir;
+    /** Limit on the total size of the entries, in bytes */
+    private final long maxSize;
+
+    public CompileCache( File dir, long maxSize ) throws IOException {
+        if( !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException( "Can't create cache directory " + dir );
+        }
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+    /** @return the key of the entry for the source file compiled with the
+     * given options (which must determine the code generated) */
+    public String key( String srcFile, String options ) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IOException( e );
+        }
+        digest.update( (COMPILER_VERSION + "\0" + options + "\0")
+                .getBytes( StandardCharsets.UTF_8 ) );
+        digest.update( Files.readAllBytes( new File( srcFile ).toPath() ) );
+        StringBuilder key = new StringBuilder();
+        for( byte b : digest.digest() ) {
+            key.append( String.format( "%02x", b & 0xFF ) );
+        }
+        return key.toString();
+    }
+    /** @return the code cached for key, or null if there is none (or it
+     * can't be read) */
+    public ObjectCode lookup( String key ) {
+        File entry = entry( key );
+        try {
+            ObjectCode object = ObjectCode.read( entry.getPath() );
+            entry.setLastModified( System.currentTimeMillis() );
+            return object;
+        } catch( IOException e ) {
+            /* Missing, or removed by another process */
+            return null;
+        }
+    }
+    /** Cache the code for key, and then remove the least recently used
+     * entries if the cache is over its size limit */
+    public void store( String key, ObjectCode object ) throws IOException {
+        File temp = File.createTempFile( "tmp-" + key, ".tmp", dir );
+        try {
+            object.write( temp.getPath() );
+            Files.move( temp.toPath(), entry( key ).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING );
+        } finally {
+            temp.delete();
+        }
+        evict();
+    }
+    /** Remove the least recently used entries until the total size is
+     * within the limit */
+    private void evict() {
+        File[] entries = dir.listFiles( new FilenameFilter() {
+            public boolean accept( File d, String name ) {
+                return name.endsWith( PL0_CUP.ObjectSuffix );
+            }
+        } );
+        if( entries == null ) {
+            return;
+        }
+        long total = 0;
+        final long[] used = new long[ entries.length ];
+        Integer[] order = new Integer[ entries.length ];
+        for( int i = 0; i < entries.length; i++ ) {
+            total += entries[i].length();
+            used[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            public int compare( Integer a, Integer b ) {
+                return Long.compare( used[a], used[b] );
+            }
+        } );
+        for( int i = 0; i < order.length && total > maxSize; i++ ) {
+            File entry = entries[ order[i] ];
+            long size = entry.length();
+            /* Another process may already have removed it */
+            if( entry.delete() ) {
+                total -= size;
+            }
+        }
+    }
+    /** @return the file holding the entry for key */
+    private File entry( String key ) {
+        return new File( dir, key + PL0_CUP.ObjectSuffix );
+    }
+}
@@ -0,0 +1,96 @@
+package pl0;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+import junit.framework.TestCase;
+import machine.ObjectCode;
+import tree.Procedures;
+
+/**
+ * class CompileCacheTest - Junit test for CompileCache
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class CompileCacheTest extends TestCase {
+
+    public CompileCacheTest(String arg0) {
+        super(arg0);
+    }
+
+    private File dir;
+    private File source;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile( "CompileCacheTest", "" );
+        dir.delete();
+        source = File.createTempFile( "CompileCacheTest", ".pl0" );
+        writeSource( "begin write 1 end" );
+    }
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if( files != null ) {
+            for( File f : files ) {
+                f.delete();
+            }
+        }
+        dir.delete();
+        source.delete();
+        super.tearDown();
+    }
+
+    private void writeSource( String text ) throws IOException {
+        FileWriter out = new FileWriter( source );
+        out.write( text );
+        out.close();
+    }
+    private ObjectCode object( int size ) {
+        Procedures procs = new Procedures();
+        procs.addProcedure( "<main>", new LinkedHashMap<String,Integer>(),
+                1003, 1000 + size );
+        return new ObjectCode( new int[ size ], procs );
+    }
+
+    /*
+     * Test that the key depends on the source and the options.
+     */
+    public void testKey() throws IOException {
+        CompileCache cache = new CompileCache( dir, 1 << 20 );
+        String key = cache.key( source.getPath(), "O=false" );
+        assertEquals( key, cache.key( source.getPath(), "O=false" ) );
+        assertFalse( key.equals( cache.key( source.getPath(), "O=true" ) ) );
+        writeSource( "begin write 2 end" );
+        assertFalse( key.equals( cache.key( source.getPath(), "O=false" ) ) );
+    }
+    /*
+     * Test that stored code is found, and that nothing else is.
+     */
+    public void testStoreLookup() throws IOException {
+        CompileCache cache = new CompileCache( dir, 1 << 20 );
+        assertNull( cache.lookup( "a" ) );
+        cache.store( "a", object( 10 ) );
+        ObjectCode found = cache.lookup( "a" );
+        assertNotNull( found );
+        assertEquals( 10, found.getWords().length );
+        assertEquals( 1, dir.list().length );
+    }
+    /*
+     * Test that the least recently used entries are evicted.
+     */
+    public void testEvict() throws IOException {
+        CompileCache cache = new CompileCache( dir, 1000 );
+        cache.store( "a", object( 100 ) );
+        cache.store( "b", object( 100 ) );
+        new File( dir, "a" + PL0_CUP.ObjectSuffix ).setLastModified( 1000 );
+        new File( dir, "b" + PL0_CUP.ObjectSuffix ).setLastModified( 2000 );
+        assertNotNull( cache.lookup( "a" ) );
+        cache.store( "c", object( 100 ) );
+        assertNotNull( cache.lookup( "a" ) );
+        assertNull( cache.lookup( "b" ) );
+        assertNotNull( cache.lookup( "c" ) );
+    }
+}
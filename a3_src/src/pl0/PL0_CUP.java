@@ -1,5 +1,23 @@
 package pl0;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import parser.CUPParser;
 import parser.CUPScanner;
@@ -8,8 +26,18 @@ import source.Errors;
 import source.Source;
 import tree.CodeGenerator;
 import tree.CodePlusProcedures;
+import tree.CommonSubexpressionEliminator;
+import tree.ConstantFolder;
+import tree.DeadCodeEliminator;
+import tree.InstructionFusion;
+import tree.LoopInvariantMover;
+import tree.PeepholeOptimiser;
+import tree.ProcedureInliner;
+import tree.RangeAnalyser;
 import tree.StaticChecker;
 import tree.Tree;
+import machine.ObjectCode;
+import machine.RegisterMachine;
 import machine.StackMachine;
 
 /** 
@@ -23,93 +51,458 @@ public class PL0_CUP {
     public static void usage() {
         System.out.println(
             "PL0 Compiler\n" +
-            "Usage: java pl0.PL0_CUP [-cdhptv] <filename>\n"+
+            "Usage: java pl0.PL0_CUP [-cdfhjprstvDO] [-M n] [-S n] [-H n] [-P file]\n" +
+            "                          [-o file] [-C dir] <filename>\n" +
+            "       java pl0.PL0_CUP -b dir [-n n] [options] <filename or directory>...\n" +
+            "  -b dir = batch: compile and run each file (or the .pl0 files in\n" +
+            "           each directory) in turn, writing the output of each\n" +
+            "           to dir/r-<filename>; input is read from <file>.in\n" +
+            "  -n n = in batch mode, compile and run n files at a time, each\n" +
+            "           in its own thread (0 for one per processor; default 1)\n" +
             "  -c  =  compile only (no execution)\n" +
             "  -d  =  debug parse\n" +
+            "  -f  =  run code with the faster threaded engine\n" +
             "  -h  =  output this usage information\n" +
+            "  -j  =  run code compiled to JVM bytecode\n" +
             "  -p  =  parse only (implies -c)\n" +
+            "  -r  =  run code translated to register form\n" +
+            "  -s  =  fuse common instruction sequences into superinstructions\n" +
             "  -t  =  trace execution of resulting code\n" +
             "  -v  =  verbose output of generated code\n" +
+            "  -D  =  access non-local variables through a display rather\n" +
+            "         than by following the static links\n" +
+            "  -O  =  optimise: inline small procedures, fold constant\n" +
+            "         expressions, remove bounds checks of values known\n" +
+            "         to be in range, remove dead code and uncalled\n" +
+            "         procedures, move invariant expressions out of\n" +
+            "         loops, reuse repeated expressions, reuse the frame\n" +
+            "         for calls in tail position and rewrite short\n" +
+            "         instruction sequences\n" +
+            "  -M n = let the stack grow while the data memory is at most\n" +
+            "         n words (default 0: the stack never grows, so a deep\n" +
+            "         recursion needs -M, or a larger stack given by -S)\n" +
+            "  -S n = start the stack with n words, and grow it by n words" +
+            " at a time\n" +
+            "         up to the limit given by -M (default " +
+            StackMachine.DEFAULT_STACK_SIZE + ")\n" +
+            "  -H n = reserve n words for the heap (default 0)\n" +
+            "  -P file = profile execution, reporting the counts of" +
+            " instructions executed\n" +
+            "            and writing them to file as JSON\n" +
+            "  -o file = write the generated code to the object file" +
+            " (named <name>" + ObjectSuffix + ")\n" +
+            "  -C dir = cache the code compiled from each source file in" +
+            " dir, and load it\n" +
+            "           from there when the same source is compiled with" +
+            " the same options\n" +
             " <filename> is compiled, and if no errors the generated code" +
-            " is executed unless -c or -p is given." );
+            " is executed unless -c or -p is given.\n" +
+            " An object file (<filename> ending in " + ObjectSuffix + ")" +
+            " is loaded and executed\n without compiling it again." );
+    }
+    /** Size given by the command line argument following an option */
+    private static int sizeArgument( String args[], int i ) {
+        try {
+            int size = Integer.parseInt( args[i] );
+            if( size >= 0 ) {
+                return size;
+            }
+        } catch( RuntimeException e ) {
+            /* missing or not a number */
+        }
+        usage();
+        System.exit( 1 );
+        return 0;
     }
     public static String SourceSuffix = ".pl0";
+    /** Suffix of the file holding the input of a program run in batch */
+    public static String InputSuffix = ".in";
+    /** Suffix of an object file written by the compiler */
+    public static String ObjectSuffix = ".pl0o";
+
+    /** Perform a static check */
+    private static boolean staticCheck = true;
+    /** Execute after successful compile */
+    private static boolean executing = true;
+    /** Detailed trace of execution */
+    private static boolean tracing = false;
+    /** Verbose output of code generation */
+    private static boolean verbose = false;
+    /** Debug mode for parser - quite verbose */
+    private static boolean debugParse = false;
+    /** Fuse instruction sequences into superinstructions */
+    private static boolean fusing = false;
+    /** Optimise the program before generating code */
+    private static boolean optimising = false;
+    /** Access non-local variables through the display */
+    private static boolean display = false;
+    /** Engine used to run the code */
+    private static StackMachine.Engine engine = 
+        StackMachine.Engine.INTERPRETER;
+    /** Run on the register machine */
+    private static boolean registers = false;
+    /** Sizes of the data memory, stack and heap in words */
+    private static int memorySize = 0;
+    private static int stackSize = StackMachine.DEFAULT_STACK_SIZE;
+    private static int heapSize = 0;
+    /** File to which the profile is written, or null if not profiling */
+    private static String profileFile = null;
+    /** Object file to which the code is written, or null */
+    private static String objectFile = null;
+    /** Cache of compiled code, or null if not caching */
+    private static CompileCache cache = null;
 
     /** PL0 main procedure */
     public static void main( String args[] ) throws java.lang.Exception {
-        /** Name of the input source program file. */
-        String srcFile = null;
-        /** Error handler for reporting error messages */
-        Errors errors;
-        /** Input source stream */
-        Source src;
-        /** Generated code for the program */
-        CodePlusProcedures code = null;
-        /** Perform a static check */
-        boolean staticCheck = true;
-        /** Execute after successful compile */
-        boolean executing = true;
-        /** Detailed trace of execution */
-        boolean tracing = false;
-        /** Verbose output of code generation */
-        boolean verbose = false;
-        /** Debug mode for parser - quite verbose */
-        boolean debugParse = false;
+        /** Names of the input source program files (or directories of 
+         * them in batch mode). */
+        List<String> srcFiles = new ArrayList<String>();
+        /** Directory for the output of each program in batch mode, 
+         * or null if not in batch mode */
+        String batchDir = null;
+        /** Number of threads used in batch mode (0 for one per processor) */
+        int threads = 1;
 
         /* Parse command line */
         for( int i=0; i<args.length; i++ ) {
             if( args[i].charAt(0) == '-' ) { /* Option */
                 switch( args[i].charAt(1) ) {
+                case 'b': /* Batch */
+                    if( ++i >= args.length ) {
+                        usage();
+                        System.exit( 1 );
+                    }
+                    batchDir = args[i];
+                    break;
+                case 'C': /* Compilation cache */
+                    if( ++i >= args.length ) {
+                        usage();
+                        System.exit( 1 );
+                    }
+                    try {
+                        cache = new CompileCache( new File( args[i] ),
+                                CompileCache.DEFAULT_MAX_SIZE );
+                    } catch( IOException e ) {
+                        System.out.println( e.getMessage() );
+                        System.exit( 1 );
+                    }
+                    break;
                 case 'c': /* Compile only */
                     executing = false;
                     break;
                 case 'd': /* Debug parse */
                     debugParse = true;
                     break;
+                case 'f': /* Fast (threaded) execution */
+                    engine = StackMachine.Engine.THREADED;
+                    break;
                 case 'h': /* Help */
                     usage();
                     System.exit(0);
                     break;
+                case 'j': /* Just-in-time compile to JVM bytecode */
+                    engine = StackMachine.Engine.JIT;
+                    break;
+                case 'o': /* Object file */
+                    if( ++i >= args.length || 
+                            !args[i].endsWith( ObjectSuffix ) ) {
+                        usage();
+                        System.exit( 1 );
+                    }
+                    objectFile = args[i];
+                    break;
+                case 'n': /* Number of threads in batch mode */
+                    threads = sizeArgument( args, ++i );
+                    break;
                 case 'p': /* Parse only */
                     staticCheck = false;
                     executing = false;
                     break;
+                case 'r': /* Register machine */
+                    registers = true;
+                    break;
+                case 's': /* Superinstructions */
+                    fusing = true;
+                    break;
                 case 't': /* Trace program at runtime. */
                     tracing = true;
                     break;
                 case 'v': /* Verbose output (of generated code) */
                     verbose = true;
                     break;
+                case 'M': /* Memory size */
+                    memorySize = sizeArgument( args, ++i );
+                    break;
+                case 'S': /* Stack size */
+                    stackSize = sizeArgument( args, ++i );
+                    break;
+                case 'H': /* Heap size */
+                    heapSize = sizeArgument( args, ++i );
+                    break;
+                case 'O': /* Optimise */
+                    optimising = true;
+                    break;
+                case 'D': /* Display */
+                    display = true;
+                    break;
+                case 'P': /* Profile */
+                    if( ++i >= args.length ) {
+                        usage();
+                        System.exit( 1 );
+                    }
+                    profileFile = args[i];
+                    break;
                 }
             } else { /* ( args[i].charAt(0) != '-' ) Not Option */
-                srcFile = args[i];
+                srcFiles.add( args[i] );
             }
         }
+        if( srcFiles.isEmpty() ) {
+            System.out.println( "No source file specified." );
+            System.exit( 1 );
+        }
+        if( batchDir != null ) {
+            if( objectFile != null ) {
+                System.out.println( "No object file is written in batch mode." );
+                System.exit( 1 );
+            }
+            File outDir = new File( batchDir );
+            if( ! outDir.isDirectory() && ! outDir.mkdirs() ) {
+                System.out.println( "Cannot create directory " + outDir );
+                System.exit( 1 );
+            }
+            runBatch( sourceFiles( srcFiles ), outDir, 
+                    threads == 0 ? 
+                        Runtime.getRuntime().availableProcessors() : threads );
+            return;
+        }
         try {
-            /* Set up the input source stream for the source file */
-            if( srcFile == null ) {
-                System.out.println( "No source file specified." );
+            /* The last file named is the one compiled */
+            if( !compileAndRun( srcFiles.get( srcFiles.size() - 1 ), null ) ) {
                 System.exit( 1 );
             }
-            src = new Source( srcFile );
-            /* Set up the error handler reference */
-            errors = new ErrorHandler( System.out, src );
-            /* Compile the program */
-            code = compile( src, errors, verbose, staticCheck, debugParse );
-            if( code != null ) { /* run it if possible */
-                StackMachine machine;
-                machine = new StackMachine( errors, verbose, code );
+        } catch( IOException e ) {
+            System.out.println( "Got IOException: " + e + "... Aborting" );
+            System.exit(1);
+        }
+    }
+
+    /** The source files named, with each directory named replaced by 
+     * the source files within it (in name order) */
+    private static List<String> sourceFiles( List<String> names ) {
+        List<String> files = new ArrayList<String>();
+        for( String name : names ) {
+            File file = new File( name );
+            if( file.isDirectory() ) {
+                String[] within = file.list();
+                Arrays.sort( within );
+                for( String f : within ) {
+                    if( f.endsWith( SourceSuffix ) ) {
+                        files.add( new File( file, f ).getPath() );
+                    }
+                }
+            } else {
+                files.add( name );
+            }
+        }
+        return files;
+    }
+
+    /** Compile and run each of the source files in this JVM, using the
+     * given number of threads (each compiling and running one file at a
+     * time). The output for each file is written to the file r-<filename>
+     * in outDir, and its input read from the file <filename>.in beside it,
+     * if there is one (otherwise it has no input). 
+     */
+    private static void runBatch( List<String> srcFiles, final File outDir,
+            int threads ) {
+        final PrintStream console = System.out;
+        /* Output is directed to each file by the thread running it */
+        final ThreadOutputStream threadOut = new ThreadOutputStream( console );
+        System.setOut( new PrintStream( threadOut, true ) );
+        final AtomicInteger failed = new AtomicInteger();
+        long batchStart = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for( final String srcFile : srcFiles ) {
+                results.add( pool.submit( new Callable<String>() {
+                    public String call() {
+                        return runOne( srcFile, outDir, threadOut, failed );
+                    }
+                } ) );
+            }
+            /* Report on each file in order, as it completes */
+            for( Future<String> result : results ) {
+                try {
+                    console.println( result.get() );
+                } catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch( ExecutionException e ) {
+                    console.println( e.getCause() );
+                    failed.incrementAndGet();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            System.setOut( console );
+        }
+        console.println( srcFiles.size() + " files, " + failed + 
+                " failed, in " + (System.currentTimeMillis() - batchStart) +
+                " ms" + (threads > 1 ? " using " + threads + " threads" : "") );
+    }
+    /** Compile and run srcFile as part of a batch, in the current thread.
+     * @return a line reporting the outcome
+     */
+    private static String runOne( String srcFile, File outDir, 
+            ThreadOutputStream threadOut, AtomicInteger failed ) {
+        long start = System.currentTimeMillis();
+        String name = new File( srcFile ).getName();
+        String status = "done";
+        PrintStream out = null;
+        BufferedReader input = null;
+        try {
+            out = new PrintStream( new BufferedOutputStream( 
+                    new FileOutputStream( new File( outDir, "r-" + name ) ) ) );
+            File inFile = new File( srcFile.substring( 0, 
+                    srcFile.length() - (srcFile.endsWith( SourceSuffix ) ?
+                        SourceSuffix.length() : 0) ) + InputSuffix );
+            input = new BufferedReader( inFile.exists() ? 
+                    new FileReader( inFile ) : new StringReader( "" ) );
+            threadOut.setStream( out );
+            if( !compileAndRun( srcFile, input ) ) {
+                status = "aborted";
+                failed.incrementAndGet();
+            }
+        } catch( IOException e ) {
+            /* Report it as the program run alone would, and carry on */
+            System.out.println( "Got IOException: " + e + "... Aborting" );
+            status = "aborted: " + e;
+            failed.incrementAndGet();
+        } catch( Exception e ) {
+            /* Report it as the program run alone would, and carry on */
+            e.printStackTrace( System.out );
+            status = "aborted: " + e;
+            failed.incrementAndGet();
+        } catch( Error e ) {
+            e.printStackTrace( System.out );
+            status = "aborted: " + e;
+            failed.incrementAndGet();
+        } finally {
+            System.out.flush();
+            threadOut.setStream( null );
+            if( out != null ) {
+                out.close();
+            }
+            try {
+                if( input != null ) {
+                    input.close();
+                }
+            } catch( IOException e ) {
+                /* ignore */
+            }
+        }
+        return name + ": " + status + " (" + 
+                (System.currentTimeMillis() - start) + " ms)";
+    }
+
+    /** Compile the program in srcFile and, if it compiles and is to be
+     * executed, run it.
+     * @param srcFile name of the source file
+     * @param input from which the program reads, or null for the
+     *  standard input
+     * @return false if it was abandoned because the options given can't
+     *  be applied to it (the error has been reported)
+     */
+    private static boolean compileAndRun( String srcFile,
+            BufferedReader input )
+        throws IOException, Exception
+    {
+        /* Set up the input source stream for the source file */
+        Source src = new Source( srcFile );
+        /* Set up the error handler reference */
+        ErrorHandler errors = new ErrorHandler( System.out, src );
+        try {
+            StackMachine machine = null;
+            /** Code loaded rather than compiled, if any */
+            ObjectCode object = null;
+            /** Key of the code for the source in the cache, if caching */
+            String key = null;
+            if( srcFile.endsWith( ObjectSuffix ) ) {
+                /* Load the code compiled earlier */
+                System.out.println( "Loading " + srcFile );
+                object = ObjectCode.read( srcFile );
+            } else if( cache != null && staticCheck && !debugParse ) {
+                /* Use the code cached for the source, if any */
+                key = cache.key( srcFile, "O=" + optimising + " s=" + fusing +
+                        " D=" + display );
+                object = cache.lookup( key );
+                if( object != null ) {
+                    System.out.println( "Loading " + srcFile + " from cache" );
+                }
+            }
+            if( object != null ) {
+                if( registers ) {
+                    machine = new RegisterMachine( errors, verbose, object );
+                } else {
+                    machine = new StackMachine( errors, verbose, object );
+                }
+            } else {
+                /* Compile the program */
+                CodePlusProcedures code = 
+                    compile( src, errors, verbose, staticCheck, debugParse,
+                            optimising, display );
+                if( code != null && fusing ) {
+                    code = new InstructionFusion().fuse( code );
+                }
+                if( code != null ) {
+                    if( registers ) {
+                        machine = new RegisterMachine( errors, verbose, code );
+                    } else {
+                        machine = new StackMachine( errors, verbose, code );
+                    }
+                    if( key != null ) {
+                        cache.store( key, machine.getObjectCode() );
+                    }
+                }
+            }
+            if( machine != null && objectFile != null ) {
+                machine.getObjectCode().write( objectFile );
+            }
+            if( machine != null ) { /* run it if possible */
                 if( executing ) {
                     System.out.println( "Running ..." );
+                    if( input != null ) {
+                        machine.setInput( input );
+                    }
                     machine.setTracing( tracing ? StackMachine.TRACE_ALL 
                                      : StackMachine.TRACE_NONE );
+                    machine.setEngine( engine );
+                    try {
+                        machine.setMemory( memorySize, stackSize, heapSize );
+                    } catch( IllegalArgumentException e ) {
+                        System.out.println( e.getMessage() );
+                        return false;
+                    }
+                    machine.setProfiling( profileFile != null );
                     machine.run();
+                    if( profileFile != null ) {
+                        machine.getProfiler().printReport( System.out );
+                        Writer out = new FileWriter( profileFile );
+                        try {
+                            machine.getProfiler().writeJson( out );
+                        } finally {
+                            out.close();
+                        }
+                    }
                 }
             }
-        } catch( IOException e ) {
-            System.out.println( "Got IOException: " + e + "... Aborting" );
-            System.exit(1);
+        } finally {
+            errors.close();
+            src.close();
         }
+        return true;
     }
 
     /** Compile the program
@@ -119,10 +512,14 @@ public class PL0_CUP {
      * @param verbose generate more messages during compilation
      * @param staticCheck do the static checking
      * @param debugParse debugging messages during parsing 
+     * @param optimising optimise the tree before generating code
+     * @param display access non-local variables through the display
      * @return generated code and procedure addresses table
+     * @throws IOException if the source can't be read
      */
     private static CodePlusProcedures compile( Source src, Errors errors,
-            boolean verbose, boolean staticCheck, boolean debugParse ) 
+            boolean verbose, boolean staticCheck, boolean debugParse,
+            boolean optimising, boolean display ) 
         throws IOException, Exception
     {
         /** Abstract syntax tree returned by parser */
@@ -133,45 +530,96 @@ public class PL0_CUP {
         Object parseResult; 
         
         System.out.println( "Compiling " + src.getFileName() );
-        try {
-            /* Set up the lexical analyser using the source program stream */
-            CUPScanner lex = new CUPScanner( src );
-            /** Generated parser */
-            CUPParser parser;
-            /* Set up the parser using the lexical analyser */
-            parser = new CUPParser( lex );
-            if( debugParse ) {
-                parseResult = parser.debug_parse().value;
-            } else {
-                parseResult = parser.parse().value;
+        /* Set up the lexical analyser using the source program stream */
+        CUPScanner lex = new CUPScanner( src );
+        /** Generated parser */
+        CUPParser parser;
+        /* Set up the parser using the lexical analyser */
+        parser = new CUPParser( lex );
+        if( debugParse ) {
+            parseResult = parser.debug_parse().value;
+        } else {
+            parseResult = parser.parse().value;
+        }
+        /* Flush any error messages from the parse */
+        errors.flush();
+        System.out.println( "Parsing complete" );
+        if( staticCheck && parseResult != null && 
+                parseResult instanceof Tree.ProgramNode ) {
+            tree = (Tree.ProgramNode)parseResult;
+            /* Perform the static semantics analysis */
+            StaticChecker staticSemantics = 
+                new StaticChecker( ErrorHandler.getErrorHandler() );
+            staticSemantics.visitProgramNode( tree );           
+            /* Don't generate any code if there are any errors. */
+            if( ErrorHandler.getErrorHandler().hadErrors() ) {
+                /* Skip code generation if there were errors */
+                tree = null;
             }
-            /* Flush any error messages from the parse */
             errors.flush();
-            System.out.println( "Parsing complete" );
-            if( staticCheck && parseResult != null && 
-                    parseResult instanceof Tree.ProgramNode ) {
-                tree = (Tree.ProgramNode)parseResult;
-                /* Perform the static semantics analysis */
-                StaticChecker staticSemantics = 
-                    new StaticChecker( ErrorHandler.getErrorHandler() );
-                staticSemantics.visitProgramNode( tree );           
-                /* Don't generate any code if there are any errors. */
-                if( ErrorHandler.getErrorHandler().hadErrors() ) {
-                    /* Skip code generation if there were errors */
-                    tree = null;
-                }
-                errors.flush();
-                System.out.println( "Static semantic analysis complete" );
+            System.out.println( "Static semantic analysis complete" );
+        }
+        if( tree != null && optimising ) {
+            /* Inline calls of small procedures */
+            ProcedureInliner inliner = new ProcedureInliner();
+            inliner.visitProgramNode( tree );
+            if( verbose ) {
+                System.out.println( "Inlining replaced " +
+                        inliner.getInlined() + " calls" );
+            }
+            /* Fold constant expressions */
+            ConstantFolder folder = new ConstantFolder();
+            folder.visitProgramNode( tree );
+            if( verbose ) {
+                System.out.println( "Constant folding removed " +
+                        folder.getFolded() + " nodes" );
+            }
+            /* Remove the bounds checks of values known to be in range */
+            RangeAnalyser ranges = new RangeAnalyser();
+            ranges.visitProgramNode( tree );
+            if( verbose ) {
+                System.out.println( "Range analysis removed " +
+                        ranges.getRemoved() + " bounds checks" );
+            }
+            /* Remove unreachable and unused code, and uncalled procedures */
+            DeadCodeEliminator eliminator = new DeadCodeEliminator();
+            eliminator.visitProgramNode( tree );
+            if( verbose ) {
+                System.out.println( "Dead code elimination removed " +
+                        eliminator.getRemoved() + " statements and " +
+                        eliminator.getRemovedProcedures() + " procedures" );
+            }
+            /* Move expressions that don't change out of loops */
+            LoopInvariantMover mover = new LoopInvariantMover();
+            mover.visitProgramNode( tree );
+            if( verbose ) {
+                System.out.println( "Loop-invariant code motion moved " +
+                        mover.getMoved() + " expressions" );
+            }
+            /* Reuse the values of expressions computed more than once */
+            CommonSubexpressionEliminator cse =
+                new CommonSubexpressionEliminator();
+            cse.visitProgramNode( tree );
+            if( verbose ) {
+                System.out.println( "Common subexpression elimination removed " +
+                        cse.getRemoved() + " evaluations" );
             }
-        } catch (IOException e) {
-            System.out.println( "Exception: " + e + "... Aborting" );
-            System.exit(1);
         }
         if( tree != null ) {
             /* Generate the stack machine code */
-            CodeGenerator codeGen = new CodeGenerator( errors );
+            CodeGenerator codeGen = new CodeGenerator( errors, display,
+                    optimising );
             code = codeGen.generateCode( (Tree.ProgramNode) tree );
             System.out.println( "Code generation complete" );
+            if( optimising ) {
+                /* Rewrite short instruction sequences */
+                PeepholeOptimiser peephole = new PeepholeOptimiser();
+                code = peephole.optimise( code );
+                if( verbose ) {
+                    System.out.println( "Peephole optimisation removed " +
+                            peephole.getRemoved() + " words" );
+                }
+            }
         }
         errors.flush();
         errors.errorSummary();
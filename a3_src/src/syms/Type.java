@@ -135,6 +135,16 @@ public abstract class Type
             
     public static final FunctionType LOGICAL_UNARY =
         new FunctionType( BOOLEAN_TYPE, BOOLEAN_TYPE );
+
+    static {
+        /* Resolve the predefined types once, here, so that compilations
+         * running in several threads only ever read them. */
+        for( Type t : new Type[] { PAIR_INTEGER_TYPE, PAIR_BOOLEAN_TYPE, 
+                ARITHMETIC_BINARY, INT_RELATIONAL_TYPE, BOOL_RELATIONAL_TYPE,
+                ARITH_UNARY, LOGICAL_UNARY } ) {
+            t.resolveType( Position.NO_POSITION );
+        }
+    }
             
 
     /** Scalar types are simple unstructured types that just have a range of
@@ -1,4 +1,5 @@
 package tree;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 
@@ -26,10 +27,30 @@ public class CodeGenerator
     private Procedures procStarts;
     /** Error message handler */
     Errors errors;
+    /** Access non-local variables through the display */
+    private boolean display;
+    /** Generate calls in tail position as tail calls, and duplicate the
+     * value of an operand that is the same as the other operand */
+    private boolean optimising;
+    /** Is the statement being generated the last one executed by its
+     * block (so that a call can reuse the block's frame)? */
+    private boolean tailPosition = false;
+    /** Space taken by the parameters of the block being generated */
+    private int paramSpace = 0;
     
     public CodeGenerator(Errors errors) {
+        this( errors, false, false );
+    }
+    /** @param display access non-local variables (and the static links
+     *  of calls) through the display rather than the static chain
+     *  @param optimising generate calls in tail position as tail calls,
+     *  and evaluate an operand the same as the other operand only once */
+    public CodeGenerator( Errors errors, boolean display, 
+            boolean optimising ) {
         super();
         this.errors = errors;
+        this.display = display;
+        this.optimising = optimising;
     }
 
     /*-------------------- Main Method to start code generation --------*/
@@ -77,7 +98,10 @@ public class CodeGenerator
         Code code = new Code();
         code.genAllocStack( node.getBlockLocals().getVariableSpace() );
         /* Generate the code for the body */
+        paramSpace = node.getBlockLocals().getParameterSpace();
+        tailPosition = true;
         code.append( node.getBody().genCode( this ) );
+        tailPosition = false;
         code.generateOp( Operation.RETURN );
         /* Save finish address of procedure */
         start += code.size();
@@ -124,11 +148,18 @@ public class CodeGenerator
     public Code visitAssignmentNode(StatementNode.AssignmentNode node) {
         /* Generate code to evaluate the expression */
         Code code = node.getExp().genCode( this );
-        /* Generate the code to load the address of the variable */
-        code.append( node.getVariable().genCode( this ) );
         Type.ReferenceType refType = 
             (Type.ReferenceType)node.getVariable().getType();
         int size = refType.getBaseType().getSpace();
+        if( size == 1 && isDisplayed( node.getVariable() ) ) {
+            /* Store straight into the non-local frame */
+            SymEntry.VarEntry var = 
+                ((ExpNode.VariableNode)node.getVariable()).getVariable();
+            code.genStoreDisplay( var.getLevel(), var.getOffset() );
+            return code;
+        }
+        /* Generate the code to load the address of the variable */
+        code.append( node.getVariable().genCode( this ) );
         if (size == 1) {
             /* For an expression that can fit in a single word,
              *  store that into the variable.
@@ -166,8 +197,22 @@ public class CodeGenerator
         	}
         }
         
+        if( isTailCall( node ) ) {
+            /* Reuse the frame: nothing after the call is executed */
+            if( display ) {
+                code.genDisplayStaticLink( proc );
+            } else {
+                code.genStaticLink( staticLevel - proc.getLevel() );
+            }
+            code.genTailCall( proc );
+            return code;
+        }
         /* Generate the call instruction */
-        code.genCall( staticLevel - proc.getLevel(), proc );
+        if( display ) {
+            code.genDisplayCall( proc );
+        } else {
+            code.genCall( staticLevel - proc.getLevel(), proc );
+        }
         
         /* Clean up stack */
         int paramSpace = proc.getLocalScope().getParameterSpace();
@@ -175,50 +220,82 @@ public class CodeGenerator
         
         return code;
     }
+    /** Can the call reuse the frame of the current block? It must be in
+     * tail position, take the same parameter space, and leave no
+     * reference into the frame: the callee can't be nested in the current
+     * block (its static link would be the frame) and no variable of the
+     * frame can be passed by reference. */
+    private boolean isTailCall( StatementNode.CallNode node ) {
+        SymEntry.ProcedureEntry proc = node.getEntry();
+        if( !optimising || !tailPosition || proc.getLevel() >= staticLevel ||
+                proc.getLocalScope().getParameterSpace() != paramSpace ) {
+            return false;
+        }
+        List<SymEntry.ParamEntry> formals = proc.getType().getParams();
+        List<ExpNode.ActualParamNode> actuals = 
+            node.getActualParams().getActualParams();
+        for( int i = 0; i < formals.size(); i++ ) {
+            ExpNode actual = actuals.get( i ).getCondition();
+            if( formals.get( i ) instanceof SymEntry.RefParamEntry &&
+                    actual instanceof ExpNode.VariableNode &&
+                    ((ExpNode.VariableNode)actual).getVariable().getLevel()
+                        == staticLevel ) {
+                return false;
+            }
+        }
+        return true;
+    }
     /** Generate code for a statement list */
     public Code visitStatementListNode( StatementNode.ListNode node ) {
         Code code = new Code();
-        for( StatementNode s : node.getStatements() ) {
-            code.append( s.genCode( this ) );
+        boolean tail = tailPosition;
+        List<StatementNode> statements = node.getStatements();
+        for( int i = 0; i < statements.size(); i++ ) {
+            /* Only the last statement can be in tail position */
+            tailPosition = tail && i == statements.size() - 1;
+            code.append( statements.get( i ).genCode( this ) );
         }
+        tailPosition = tail;
         return code;
     }
 
     /** Generate code for an "if" statement. */
     public Code visitIfNode(StatementNode.IfNode node) {
-        /* Generate code to evaluate the condition and then and else parts */
+        Code.Label elseLabel = new Code.Label();
+        Code.Label endLabel = new Code.Label();
+        /* Generate code to evaluate the condition */
         Code code = node.getCondition().genCode( this );
-        Code thenCode = node.getThenStmt().genCode( this );
-        Code elseCode = node.getElseStmt().genCode( this );
         /* Append a branch over then part to condition code */
-        code.genJumpIfFalse( thenCode.size() + Code.SIZE_JUMP_ALWAYS );
+        code.genJumpIfFalse( elseLabel );
         /* Next append the code for the then part */
-        code.append( thenCode );
+        code.append( node.getThenStmt().genCode( this ) );
         /* Append branch over the else part */
-        code.genJumpAlways( elseCode.size() );
+        code.genJumpAlways( endLabel );
         /* Finally append the code for the else part */
-        code.append( elseCode );
+        code.genLabel( elseLabel );
+        code.append( node.getElseStmt().genCode( this ) );
+        code.genLabel( endLabel );
         return code;
     }
  
     /** Generate code for a "while" statement. */
     public Code visitWhileNode(StatementNode.WhileNode node) {
+        Code.Label startLabel = new Code.Label();
+        Code.Label endLabel = new Code.Label();
+        Code code = new Code();
+        code.genLabel( startLabel );
         /* Generate the code to evaluate the condition. */
-        Code code = node.getCondition().genCode( this );
-        /* Generate the code for the loop body */
-        Code bodyCode = node.getLoopStmt().genCode( this );
-        /* Add a branch over the loop body on false.
-         * The offset is the size of the loop body code plus 
-         * the size of the branch to follow the body.
-         */
-        code.genJumpIfFalse( bodyCode.size() + Code.SIZE_JUMP_ALWAYS );
-        /* Append the code for the body */
-        code.append( bodyCode );
-        /* Add a branch back to the condition.
-         * The offset is the total size of the current code plus the
-         * size of a Jump Always.
-         */
-        code.genJumpAlways( -(code.size() + Code.SIZE_JUMP_ALWAYS) );
+        code.append( node.getCondition().genCode( this ) );
+        /* Add a branch over the loop body on false. */
+        code.genJumpIfFalse( endLabel );
+        /* Append the code for the body, which is never in tail position */
+        boolean tail = tailPosition;
+        tailPosition = false;
+        code.append( node.getLoopStmt().genCode( this ) );
+        tailPosition = tail;
+        /* Add a branch back to the condition. */
+        code.genJumpAlways( startLabel );
+        code.genLabel( endLabel );
         return code;
     }
     /*************************************************
@@ -246,16 +323,36 @@ public class CodeGenerator
     }
     /** Generate binary operator code with operands loaded in order */
     private Code genBinaryInOrder( ExpNode.BinaryOpNode node ) {
+        if( isDuplicate( node ) ) {
+            return genDuplicate( node );
+        }
         Code code = node.getLeft().genCode( this );
         code.append( node.getRight().genCode( this ) );
         return code;
     }
     /** Generate binary operator operands in reverse order */
     private Code genBinaryInReverse( ExpNode.BinaryOpNode node ) {
+        if( isDuplicate( node ) ) {
+            return genDuplicate( node );
+        }
         Code code = node.getRight().genCode( this );
         code.append( node.getLeft().genCode( this ) );
         return code;
     }
+    /** @return whether the operands of node are the same expression
+     * without side effects, so that its value can be used twice */
+    private boolean isDuplicate( ExpNode.BinaryOpNode node ) {
+        return optimising &&
+            DataFlow.AvailableExpressions.same( node.getLeft(), node.getRight() ) &&
+            DataFlow.AvailableExpressions.pure( node.getLeft(),
+                    new HashSet<SymEntry.VarEntry>() );
+    }
+    /** Generate the operand of node once, and duplicate it */
+    private Code genDuplicate( ExpNode.BinaryOpNode node ) {
+        Code code = node.getLeft().genCode( this );
+        code.generateOp( Operation.DUP );
+        return code;
+    }
 
     /** Generate code for a binary expression. */
     public Code visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
@@ -348,6 +445,13 @@ public class CodeGenerator
     /** Generate code to dereference an RValue. */
     public Code visitDereferenceNode( ExpNode.DereferenceNode node ) {
         ExpNode lval = node.getLeftValue();
+        if( node.getType().getSpace() == 1 && isDisplayed( lval ) ) {
+            /* Load straight from the non-local frame */
+            SymEntry.VarEntry var = ((ExpNode.VariableNode)lval).getVariable();
+            Code code = new Code();
+            code.genLoadDisplay( var.getLevel(), var.getOffset() );
+            return code;
+        }
         Code code = lval.genCode( this );
         if( node.getType().getSpace() == 1 ) {
             code.generateOp( Operation.LOAD_FRAME );
@@ -369,9 +473,18 @@ public class CodeGenerator
     public Code visitVariableNode( ExpNode.VariableNode node ) {
         SymEntry.VarEntry var = node.getVariable();
         Code code = new Code();
-        code.genMemRef( staticLevel - var.getLevel(), var.getOffset() );
+        if( isDisplayed( node ) ) {
+            code.genDisplayRef( var.getLevel(), var.getOffset() );
+        } else {
+            code.genMemRef( staticLevel - var.getLevel(), var.getOffset() );
+        }
         return code;
     }
+    /** Is lval a non-local variable to be accessed through the display? */
+    private boolean isDisplayed( ExpNode lval ) {
+        return display && lval instanceof ExpNode.VariableNode &&
+            ((ExpNode.VariableNode)lval).getVariable().getLevel() < staticLevel;
+    }
     /** Generate code to perform a bounds check on a subrange. */
     public Code visitNarrowSubrangeNode(ExpNode.NarrowSubrangeNode node) {
         Code code = node.getExp().genCode( this );
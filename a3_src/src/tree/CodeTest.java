@@ -0,0 +1,112 @@
+package tree;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import machine.Instruction;
+import machine.Operation;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+
+/**
+ * class CodeTest - Junit test for Code
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class CodeTest extends TestCase {
+
+    public CodeTest(String arg0) {
+        super(arg0);
+    }
+
+    private int valueAt( List<Instruction> insts, int i ) {
+        assertEquals( Operation.LOAD_CON, insts.get( i ).getOp() );
+        return ((Instruction.LoadConInstruction)insts.get( i )).getValue();
+    }
+
+    /*
+     * Test that branches forward and back to labels are resolved
+     * to the offsets the explicit branches give.
+     */
+    public void testLabels() {
+        Code.Label top = new Code.Label();
+        Code.Label end = new Code.Label();
+        Code code = new Code();
+        code.generateOp( Operation.ZERO );
+        code.genLabel( top );
+        code.generateOp( Operation.READ );
+        code.genJumpIfFalse( end );
+        Code body = new Code();
+        body.generateOp( Operation.ONE );
+        body.generateOp( Operation.WRITE );
+        code.append( body );
+        code.genJumpAlways( top );
+        code.genLabel( end );
+        code.generateOp( Operation.RETURN );
+        List<Instruction> insts = code.getCode();
+        assertEquals( 10, insts.size() );
+        assertEquals( 12, code.size() );
+        assertEquals( 2 + Code.SIZE_JUMP_ALWAYS, valueAt( insts, 2 ) );
+        assertEquals( -(1 + Code.SIZE_JUMP_IF_FALSE + 2 +
+                Code.SIZE_JUMP_ALWAYS), valueAt( insts, 7 ) );
+    }
+    /*
+     * Test that appending moves the appended sequence.
+     */
+    public void testAppend() {
+        Code code = new Code();
+        code.generateOp( Operation.ONE );
+        Code tail = new Code();
+        tail.generateOp( Operation.WRITE );
+        code.append( tail );
+        code.generateOp( Operation.RETURN );
+        assertEquals( 0, tail.size() );
+        assertTrue( tail.getCode().isEmpty() );
+        assertEquals( 3, code.getCode().size() );
+        assertEquals( Operation.WRITE, code.getCode().get( 1 ).getOp() );
+    }
+    /*
+     * Test that display accesses take the static level and offset as
+     * operands.
+     */
+    public void testDisplay() {
+        Code code = new Code();
+        code.genLoadDisplay( 1, 4 );
+        code.genStoreDisplay( 2, 3 );
+        code.genDisplayRef( 1, 5 );
+        List<Instruction> insts = code.getCode();
+        assertEquals( 6, insts.size() );
+        assertEquals( 3 + 3 + 2 + 2 + 1 + 1, code.size() );
+        Instruction.OperandInstruction load =
+            (Instruction.OperandInstruction)insts.get( 0 );
+        assertEquals( Operation.LOAD_DISPLAY, load.getOp() );
+        assertEquals( 1, load.getOperand( 0 ) );
+        assertEquals( 4, load.getOperand( 1 ) );
+        assertEquals( Operation.STORE_DISPLAY, insts.get( 1 ).getOp() );
+        assertEquals( Operation.DISPLAY, insts.get( 2 ).getOp() );
+        assertEquals( 5, valueAt( insts, 3 ) );
+        assertEquals( Operation.TO_LOCAL, insts.get( 5 ).getOp() );
+    }
+    /*
+     * Test that a tail call takes the parameter space of the procedure
+     * called as its operand.
+     */
+    public void testTailCall() {
+        Scope mainScope = new Scope( null, 1 );
+        SymEntry.ProcedureEntry proc = new SymEntry.ProcedureEntry( "p",
+                Position.NO_POSITION, mainScope );
+        Scope local = new Scope( mainScope, 2 );
+        local.allocParameterSpace( 1 );
+        local.allocParameterSpace( 1 );
+        proc.setLocalScope( local );
+        Code code = new Code();
+        code.genTailCall( proc );
+        List<Instruction> insts = code.getCode();
+        assertEquals( 2, insts.size() );
+        assertTrue( insts.get( 0 ) instanceof Instruction.ProcRefInstruction );
+        Instruction.OperandInstruction call =
+            (Instruction.OperandInstruction)insts.get( 1 );
+        assertEquals( Operation.TAIL_CALL, call.getOp() );
+        assertEquals( 2, call.getOperand( 0 ) );
+    }
+}
@@ -0,0 +1,408 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+import tree.Tree.*;
+
+/** class CommonSubexpressionEliminator - Optimisation pass run after
+ * loop-invariant code motion. Within each basic block of a procedure
+ * body, an expression computed more than once while none of its
+ * variables changes is computed just once, into a fresh variable
+ * (allocated in the block's scope by allocVariableSpace) assigned just
+ * before the first statement that uses it, and the statements load the
+ * variable instead.
+ * The expressions considered are those the loop-invariant mover would
+ * move: pure arithmetic and comparisons that can't fail, and loads of
+ * non-local variables. Where one such expression is within another that
+ * is also repeated, the larger is reused and the smaller only counted
+ * where it is used outside it.
+ * An expression both of whose operands are the same is left to the code
+ * generator, which evaluates the operand once and duplicates it (DUP),
+ * so its second operand isn't counted as another use.
+ * The condition of a while statement is evaluated on every iteration,
+ * so nothing is reused in it.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class CommonSubexpressionEliminator implements TreeVisitor,
+                        StatementVisitor, ExpTransform<ExpNode> {
+
+    /** The uses of an expression within a basic block during which
+     * none of its variables change */
+    private static class Group {
+        final ExpNode exp;
+        final Set<SymEntry.VarEntry> vars;
+        final int size;
+        final List<Occurrence> occurrences = new ArrayList<Occurrence>();
+        boolean killed = false;
+        SymEntry.VarEntry temp = null;
+
+        Group( ExpNode exp, Set<SymEntry.VarEntry> vars ) {
+            this.exp = exp;
+            this.vars = vars;
+            this.size = size( exp );
+        }
+    }
+    /** A use of an expression by a statement */
+    private static class Occurrence {
+        final ExpNode exp;
+        final StatementNode statement;
+        final Group group;
+        /** Whether it is a use of its own, rather than the second of two
+         * identical operands */
+        final boolean counted;
+        /** The occurrence of a larger expression it is within, or null */
+        final Occurrence enclosing;
+
+        Occurrence( ExpNode exp, StatementNode statement, Group group,
+                boolean counted, Occurrence enclosing ) {
+            this.exp = exp;
+            this.statement = statement;
+            this.group = group;
+            this.counted = counted;
+            this.enclosing = enclosing;
+        }
+        /** @return whether it is within an expression that is reused */
+        boolean isCovered() {
+            for( Occurrence o = enclosing; o != null; o = o.enclosing ) {
+                if( o.group.temp != null ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** The number of evaluations of expressions removed */
+    private int removed = 0;
+    /** Scope of the block whose body is being visited */
+    private Scope blockScope;
+    /** Static level of the block whose body is being visited */
+    private int level;
+    /** The groups of the basic block being scanned */
+    private List<Group> groups;
+    /** The variable to load in place of each use that is replaced */
+    private Map<ExpNode,SymEntry.VarEntry> replaced;
+    /** The assignments to insert before each statement */
+    private Map<StatementNode,List<StatementNode>> inserted;
+    /** Statement to replace the statement just visited */
+    private StatementNode replacement;
+
+    public CommonSubexpressionEliminator() {
+        super();
+    }
+    /** @return the number of evaluations of expressions removed */
+    public int getRemoved() {
+        return removed;
+    }
+
+    public void visitProgramNode( ProgramNode node ) {
+        node.getBlock().accept( this );
+    }
+    public void visitBlockNode( BlockNode node ) {
+        node.getProcedures().accept( this );
+        blockScope = node.getBlockLocals();
+        level = blockScope.getLevel();
+        replaced = new IdentityHashMap<ExpNode,SymEntry.VarEntry>();
+        inserted = new IdentityHashMap<StatementNode,List<StatementNode>>();
+        ControlFlowGraph<StatementNode> graph =
+            ControlFlowGraph.fromTree( node.getBody() );
+        for( ControlFlowGraph.BasicBlock<StatementNode> block :
+                graph.getBlocks() ) {
+            eliminate( block );
+        }
+        if( !inserted.isEmpty() ) {
+            node.setBody( replace( node.getBody() ) );
+        }
+    }
+    public void visitDeclListNode( DeclNode.DeclListNode node ) {
+        for( DeclNode declaration : node.getDeclarations() ) {
+            declaration.accept( this );
+        }
+    }
+    public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+        node.getBlock().accept( this );
+    }
+
+    /** Find the expressions repeated in block, and reuse them */
+    private void eliminate( ControlFlowGraph.BasicBlock<StatementNode> block ) {
+        groups = new ArrayList<Group>();
+        for( StatementNode s : block.getElements() ) {
+            if( s instanceof StatementNode.AssignmentNode ) {
+                scan( ((StatementNode.AssignmentNode)s).getExp(), s, true, null );
+            } else if( s instanceof StatementNode.WriteNode ) {
+                scan( ((StatementNode.WriteNode)s).getExp(), s, true, null );
+            } else if( s instanceof StatementNode.CallNode ) {
+                for( ExpNode.ActualParamNode actual : ((StatementNode.CallNode)s)
+                        .getActualParams().getActualParams() ) {
+                    scan( actual.getCondition(), s, true, null );
+                }
+            } else if( s instanceof StatementNode.IfNode ) {
+                scan( ((StatementNode.IfNode)s).getCondition(), s, true, null );
+            }
+            kill( new DataFlow.Accesses( s ) );
+        }
+        /* Larger expressions first, so that the uses within them aren't
+         * counted if they are reused */
+        Collections.sort( groups, new Comparator<Group>() {
+            public int compare( Group a, Group b ) {
+                return b.size - a.size;
+            }
+        } );
+        for( Group group : groups ) {
+            List<Occurrence> uses = new ArrayList<Occurrence>();
+            int counted = 0;
+            for( Occurrence occurrence : group.occurrences ) {
+                if( !occurrence.isCovered() ) {
+                    uses.add( occurrence );
+                    if( occurrence.counted ) {
+                        counted++;
+                    }
+                }
+            }
+            if( counted >= 2 ) {
+                reuse( group, uses );
+                removed += counted - 1;
+            }
+        }
+        /* Replace the uses in the statements of the block */
+        for( StatementNode s : block.getElements() ) {
+            if( s instanceof StatementNode.AssignmentNode ) {
+                StatementNode.AssignmentNode assign =
+                    (StatementNode.AssignmentNode)s;
+                assign.setExp( load( assign.getExp() ) );
+            } else if( s instanceof StatementNode.WriteNode ) {
+                StatementNode.WriteNode write = (StatementNode.WriteNode)s;
+                write.setExp( load( write.getExp() ) );
+            } else if( s instanceof StatementNode.CallNode ) {
+                ((StatementNode.CallNode)s).getActualParams().transform( this );
+            } else if( s instanceof StatementNode.IfNode ) {
+                StatementNode.IfNode ifNode = (StatementNode.IfNode)s;
+                ifNode.setCondition( load( ifNode.getCondition() ) );
+            }
+        }
+    }
+    /** Add the uses of the expressions within exp evaluated by s */
+    private void scan( ExpNode exp, StatementNode s, boolean counted,
+            Occurrence enclosing ) {
+        Set<SymEntry.VarEntry> vars = new LinkedHashSet<SymEntry.VarEntry>();
+        if( isCandidate( exp ) && DataFlow.AvailableExpressions.pure( exp, vars ) &&
+                !LoopInvariantMover.mayFail( exp ) ) {
+            Group group = null;
+            for( Group g : groups ) {
+                if( !g.killed &&
+                        DataFlow.AvailableExpressions.same( g.exp, exp ) ) {
+                    group = g;
+                    break;
+                }
+            }
+            if( group == null ) {
+                group = new Group( exp, vars );
+                groups.add( group );
+            }
+            enclosing = new Occurrence( exp, s, group, counted, enclosing );
+            group.occurrences.add( enclosing );
+        }
+        if( exp instanceof ExpNode.BinaryOpNode ) {
+            ExpNode.BinaryOpNode binary = (ExpNode.BinaryOpNode)exp;
+            scan( binary.getLeft(), s, counted, enclosing );
+            scan( binary.getRight(), s, counted &&
+                    !DataFlow.AvailableExpressions.same( binary.getLeft(),
+                            binary.getRight() ), enclosing );
+        } else if( exp instanceof ExpNode.UnaryOpNode ) {
+            scan( ((ExpNode.UnaryOpNode)exp).getSubExp(), s, counted, enclosing );
+        } else if( exp instanceof ExpNode.NarrowSubrangeNode ) {
+            scan( ((ExpNode.NarrowSubrangeNode)exp).getExp(), s, counted,
+                    enclosing );
+        } else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+            scan( ((ExpNode.WidenSubrangeNode)exp).getExp(), s, counted,
+                    enclosing );
+        } else if( exp instanceof ExpNode.ArgumentsNode ) {
+            for( ExpNode arg : ((ExpNode.ArgumentsNode)exp).getArgs() ) {
+                scan( arg, s, counted, enclosing );
+            }
+        }
+    }
+    /** @return whether reusing the value of exp saves more than loading
+     * a local variable */
+    private boolean isCandidate( ExpNode exp ) {
+        if( exp instanceof ExpNode.BinaryOpNode ||
+                exp instanceof ExpNode.UnaryOpNode ) {
+            return true;
+        } else if( exp instanceof ExpNode.DereferenceNode ) {
+            ExpNode lval = ((ExpNode.DereferenceNode)exp).getLeftValue();
+            return lval instanceof ExpNode.VariableNode &&
+                ((ExpNode.VariableNode)lval).getVariable().getLevel() < level;
+        }
+        return false;
+    }
+    /** No more uses are added to the groups whose variables may be
+     * changed by a statement with accesses a */
+    private void kill( DataFlow.Accesses a ) {
+        for( Group group : groups ) {
+            for( SymEntry.VarEntry var : group.vars ) {
+                if( a.defines.contains( var ) ||
+                        DataFlow.mayChange( a.mayDefine, var, level ) ) {
+                    group.killed = true;
+                }
+            }
+        }
+    }
+    /** Assign the expression of group to a new variable before the first
+     * of uses, and load the variable at each of them */
+    private void reuse( Group group, List<Occurrence> uses ) {
+        Occurrence first = uses.get( 0 );
+        ExpNode exp = first.exp;
+        group.temp = new SymEntry.VarEntry( "$c" + removed,
+                exp.getPosition(), blockScope,
+                new Type.ReferenceType( exp.getType() ) );
+        group.temp.resolve();
+        List<StatementNode> before = inserted.get( first.statement );
+        if( before == null ) {
+            before = new ArrayList<StatementNode>();
+            inserted.put( first.statement, before );
+        }
+        before.add( new StatementNode.AssignmentNode( exp.getPosition(),
+                new ExpNode.VariableNode( exp.getPosition(), group.temp ),
+                exp ) );
+        for( Occurrence occurrence : uses ) {
+            replaced.put( occurrence.exp, group.temp );
+        }
+    }
+    /** @return the number of nodes of exp */
+    private static int size( ExpNode exp ) {
+        if( exp instanceof ExpNode.BinaryOpNode ) {
+            return 1 + size( ((ExpNode.BinaryOpNode)exp).getLeft() ) +
+                size( ((ExpNode.BinaryOpNode)exp).getRight() );
+        } else if( exp instanceof ExpNode.UnaryOpNode ) {
+            return 1 + size( ((ExpNode.UnaryOpNode)exp).getSubExp() );
+        } else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+            return 1 + size( ((ExpNode.WidenSubrangeNode)exp).getExp() );
+        }
+        return 1;
+    }
+
+    /** @return the statement to replace s */
+    private StatementNode replace( StatementNode s ) {
+        replacement = s;
+        s.accept( this );
+        List<StatementNode> before = inserted.get( s );
+        if( before != null ) {
+            StatementNode.ListNode list =
+                new StatementNode.ListNode( s.getPosition() );
+            list.getStatements().addAll( before );
+            list.addStatement( replacement );
+            replacement = list;
+        }
+        return replacement;
+    }
+    /*************************************************
+     *  Statement node visit methods, inserting the assignments
+     *************************************************/
+    public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        // Nothing inserted within it
+    }
+    public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+        // Nothing inserted within it
+    }
+    public void visitWriteNode( StatementNode.WriteNode node ) {
+        // Nothing inserted within it
+    }
+    public void visitCallNode( StatementNode.CallNode node ) {
+        // Nothing inserted within it
+    }
+    public void visitStatementListNode( StatementNode.ListNode node ) {
+        List<StatementNode> statements = node.getStatements();
+        for( int i = 0; i < statements.size(); i++ ) {
+            statements.set( i, replace( statements.get( i ) ) );
+        }
+        replacement = node;
+    }
+    public void visitIfNode( StatementNode.IfNode node ) {
+        node.setThenStmt( replace( node.getThenStmt() ) );
+        node.setElseStmt( replace( node.getElseStmt() ) );
+        replacement = node;
+    }
+    public void visitWhileNode( StatementNode.WhileNode node ) {
+        node.setLoopStmt( replace( node.getLoopStmt() ) );
+        replacement = node;
+    }
+    /*************************************************
+     *  Expression node transforms, loading the variables in place of
+     *  the uses replaced
+     *************************************************/
+    /** @return exp, or the value of the variable replacing it */
+    private ExpNode load( ExpNode exp ) {
+        SymEntry.VarEntry temp = replaced.get( exp );
+        if( temp == null ) {
+            return exp.transform( this );
+        }
+        return new ExpNode.DereferenceNode( exp.getType(),
+                new ExpNode.VariableNode( exp.getPosition(), temp ) );
+    }
+    public ExpNode visitErrorExpNode( ExpNode.ErrorNode node ) {
+        return node;
+    }
+    public ExpNode visitConstNode( ExpNode.ConstNode node ) {
+        return node;
+    }
+    public ExpNode visitIdentifierNode( ExpNode.IdentifierNode node ) {
+        return node;
+    }
+    public ExpNode visitVariableNode( ExpNode.VariableNode node ) {
+        return node;
+    }
+    public ExpNode visitReadNode( ExpNode.ReadNode node ) {
+        return node;
+    }
+    public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+        node.setLeft( load( node.getLeft() ) );
+        node.setRight( load( node.getRight() ) );
+        return node;
+    }
+    public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+        node.setSubExp( load( node.getSubExp() ) );
+        return node;
+    }
+    public ExpNode visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+        List<ExpNode> args = new ArrayList<ExpNode>();
+        for( ExpNode arg : node.getArgs() ) {
+            args.add( load( arg ) );
+        }
+        node.setArgs( args );
+        return node;
+    }
+    public ExpNode visitDereferenceNode( ExpNode.DereferenceNode node ) {
+        return node;
+    }
+    public ExpNode visitNarrowSubrangeNode( ExpNode.NarrowSubrangeNode node ) {
+        node.setExp( load( node.getExp() ) );
+        return node;
+    }
+    public ExpNode visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+        node.setExp( load( node.getExp() ) );
+        return node;
+    }
+    public ExpNode visitActualParamNode( ExpNode.ActualParamNode node ) {
+        node.setCondition( load( node.getCondition() ) );
+        return node;
+    }
+    public ExpNode visitActualParamListNode( ExpNode.ActualParamListNode node ) {
+        for( ExpNode.ActualParamNode actual : node.getActualParams() ) {
+            actual.transform( this );
+        }
+        return node;
+    }
+    public ExpNode visitRefParamNode( ExpNode.RefParamNode node ) {
+        return node;
+    }
+}
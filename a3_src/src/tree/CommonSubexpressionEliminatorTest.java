@@ -0,0 +1,128 @@
+package tree;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class CommonSubexpressionEliminatorTest - Junit test for
+ *  CommonSubexpressionEliminator
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class CommonSubexpressionEliminatorTest extends TestCase {
+
+    public CommonSubexpressionEliminatorTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+
+    private Scope mainScope;
+    private SymEntry.VarEntry a, b, x, y;
+    private StatementNode.ListNode mainBody;
+    private Tree.ProgramNode program;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mainScope = new Scope( null, 1 );
+        a = variable( "a" );
+        b = variable( "b" );
+        x = variable( "x" );
+        y = variable( "y" );
+        mainBody = new StatementNode.ListNode( POS );
+        Tree.BlockNode block =
+            new Tree.BlockNode( new DeclNode.DeclListNode(), mainBody );
+        block.setBlockLocals( mainScope );
+        program = new Tree.ProgramNode( null, block );
+    }
+
+    private SymEntry.VarEntry variable( String name ) {
+        SymEntry.VarEntry var = new SymEntry.VarEntry( name, POS, mainScope,
+                new Type.ReferenceType( Type.INTEGER_TYPE ) );
+        var.resolve();
+        return var;
+    }
+    private ExpNode con( int value ) {
+        return new ExpNode.ConstNode( POS, Type.INTEGER_TYPE, value );
+    }
+    private ExpNode value( SymEntry.VarEntry var ) {
+        return new ExpNode.DereferenceNode( Type.INTEGER_TYPE,
+                new ExpNode.VariableNode( POS, var ) );
+    }
+    private ExpNode binary( BinaryOperator op, ExpNode left, ExpNode right ) {
+        ExpNode node = new ExpNode.BinaryOpNode( POS, op, left, right );
+        node.setType( Type.INTEGER_TYPE );
+        return node;
+    }
+    private ExpNode product() {
+        return binary( BinaryOperator.MUL_OP, value( a ), value( b ) );
+    }
+    private StatementNode.AssignmentNode assign( SymEntry.VarEntry var,
+            ExpNode exp ) {
+        return new StatementNode.AssignmentNode( POS,
+                new ExpNode.VariableNode( POS, var ), exp );
+    }
+    private SymEntry.VarEntry loaded( ExpNode exp ) {
+        assertTrue( exp instanceof ExpNode.DereferenceNode );
+        return ((ExpNode.VariableNode)((ExpNode.DereferenceNode)exp)
+                .getLeftValue()).getVariable();
+    }
+
+    /*
+     * Test that in
+     *   x := a * b + 1; y := a * b
+     * a * b is evaluated once, into a new variable, before the first
+     * assignment.
+     */
+    public void testReused() {
+        StatementNode.AssignmentNode first = assign( x,
+                binary( BinaryOperator.ADD_OP, product(), con( 1 ) ) );
+        StatementNode.AssignmentNode second = assign( y, product() );
+        mainBody.addStatement( first );
+        mainBody.addStatement( second );
+        int space = mainScope.getVariableSpace();
+
+        CommonSubexpressionEliminator eliminator =
+            new CommonSubexpressionEliminator();
+        eliminator.visitProgramNode( program );
+        assertEquals( 1, eliminator.getRemoved() );
+        assertEquals( space + 1, mainScope.getVariableSpace() );
+        List<StatementNode> statements =
+            ((StatementNode.ListNode)mainBody.getStatements().get( 0 ))
+                .getStatements();
+        assertEquals( 2, statements.size() );
+        StatementNode.AssignmentNode init =
+            (StatementNode.AssignmentNode)statements.get( 0 );
+        assertSame( first, statements.get( 1 ) );
+        SymEntry.VarEntry temp =
+            ((ExpNode.VariableNode)init.getVariable()).getVariable();
+        assertSame( temp, loaded(
+                ((ExpNode.BinaryOpNode)first.getExp()).getLeft() ) );
+        assertSame( temp, loaded( second.getExp() ) );
+    }
+    /*
+     * Test that nothing is reused in
+     *   x := a * b; a := a + 1; y := a * b
+     * as a changes between the two evaluations.
+     */
+    public void testKilled() {
+        StatementNode.AssignmentNode first = assign( x, product() );
+        StatementNode.AssignmentNode second = assign( y, product() );
+        mainBody.addStatement( first );
+        mainBody.addStatement( assign( a,
+                binary( BinaryOperator.ADD_OP, value( a ), con( 1 ) ) ) );
+        mainBody.addStatement( second );
+
+        CommonSubexpressionEliminator eliminator =
+            new CommonSubexpressionEliminator();
+        eliminator.visitProgramNode( program );
+        assertEquals( 0, eliminator.getRemoved() );
+        assertSame( first, mainBody.getStatements().get( 0 ) );
+        assertTrue( second.getExp() instanceof ExpNode.BinaryOpNode );
+    }
+}
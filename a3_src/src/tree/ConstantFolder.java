@@ -0,0 +1,279 @@
+package tree;
+
+import machine.StackMachine;
+import syms.Type;
+import tree.Tree.*;
+
+/** class ConstantFolder - Optimisation pass run between the static checker
+ * and the code generator. It evaluates operators whose operands are
+ * constants, simplifies identities such as x*1, x+0, x-0, x/1 and --x,
+ * combines the constants of chains such as (x+1)+2, and removes the
+ * bounds check when narrowing a constant that is within the subrange.
+ * Operands that are dropped are always constants, so no side effect
+ * (such as a read) is ever removed, and division by zero is left to be
+ * reported at run time. Arithmetic wraps exactly as it does on the
+ * stack machine.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ConstantFolder implements TreeVisitor, StatementVisitor,
+                                        ExpTransform<ExpNode> {
+
+    /** The number of nodes removed from the tree */
+    private int folded = 0;
+
+    public ConstantFolder() {
+        super();
+    }
+    /** @return the number of nodes removed from the tree */
+    public int getFolded() {
+        return folded;
+    }
+
+    public void visitProgramNode( ProgramNode node ) {
+        node.getBlock().accept( this );
+    }
+    public void visitBlockNode( BlockNode node ) {
+        node.getProcedures().accept( this );
+        node.getBody().accept( this );
+    }
+    public void visitDeclListNode( DeclNode.DeclListNode node ) {
+        for( DeclNode declaration : node.getDeclarations() ) {
+            declaration.accept( this );
+        }
+    }
+    public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+        node.getBlock().accept( this );
+    }
+    /*************************************************
+     *  Statement node visit methods
+     *************************************************/
+    public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        // Nothing to fold
+    }
+    public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+        node.setExp( node.getExp().transform( this ) );
+    }
+    public void visitWriteNode( StatementNode.WriteNode node ) {
+        node.setExp( node.getExp().transform( this ) );
+    }
+    public void visitCallNode( StatementNode.CallNode node ) {
+        node.getActualParams().transform( this );
+    }
+    public void visitStatementListNode( StatementNode.ListNode node ) {
+        for( StatementNode s : node.getStatements() ) {
+            s.accept( this );
+        }
+    }
+    public void visitIfNode( StatementNode.IfNode node ) {
+        node.setCondition( node.getCondition().transform( this ) );
+        node.getThenStmt().accept( this );
+        node.getElseStmt().accept( this );
+    }
+    public void visitWhileNode( StatementNode.WhileNode node ) {
+        node.setCondition( node.getCondition().transform( this ) );
+        node.getLoopStmt().accept( this );
+    }
+    /*************************************************
+     *  Expression node transform methods
+     *************************************************/
+    public ExpNode visitErrorExpNode( ExpNode.ErrorNode node ) {
+        return node;
+    }
+    public ExpNode visitConstNode( ExpNode.ConstNode node ) {
+        return node;
+    }
+    public ExpNode visitIdentifierNode( ExpNode.IdentifierNode node ) {
+        return node;
+    }
+    public ExpNode visitVariableNode( ExpNode.VariableNode node ) {
+        return node;
+    }
+    public ExpNode visitReadNode( ExpNode.ReadNode node ) {
+        return node;
+    }
+    public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+        ExpNode left = node.getLeft().transform( this );
+        ExpNode right = node.getRight().transform( this );
+        node.setLeft( left );
+        node.setRight( right );
+        BinaryOperator op = node.getOp();
+        if( left instanceof ExpNode.ConstNode &&
+                right instanceof ExpNode.ConstNode ) {
+            int l = ((ExpNode.ConstNode)left).getValue();
+            int r = ((ExpNode.ConstNode)right).getValue();
+            if( op == BinaryOperator.DIV_OP && r == 0 ) {
+                /* Leave the division by zero to be reported at run time */
+                return node;
+            }
+            return constant( node, evaluate( op, l, r ), 2 );
+        }
+        switch( op ) {
+        case ADD_OP:
+            if( isConstant( right, 0 ) ) {
+                return dropped( left, 2 );
+            } else if( isConstant( left, 0 ) ) {
+                return dropped( right, 2 );
+            }
+            return reassociate( node );
+        case SUB_OP:
+            if( isConstant( right, 0 ) ) {
+                return dropped( left, 2 );
+            } else if( isConstant( left, 0 ) ) {
+                /* 0 - x is just -x */
+                folded++;
+                ExpNode neg = new ExpNode.UnaryOpNode( node.getPosition(),
+                        UnaryOperator.NEG_OP, right );
+                neg.setType( node.getType() );
+                return neg.transform( this );
+            }
+            break;
+        case MUL_OP:
+            if( isConstant( right, 1 ) ) {
+                return dropped( left, 2 );
+            } else if( isConstant( left, 1 ) ) {
+                return dropped( right, 2 );
+            }
+            return reassociate( node );
+        case DIV_OP:
+            if( isConstant( right, 1 ) ) {
+                return dropped( left, 2 );
+            }
+            break;
+        default:
+            break;
+        }
+        return node;
+    }
+    public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+        ExpNode subExp = node.getSubExp().transform( this );
+        node.setSubExp( subExp );
+        switch( node.getOp() ) {
+        case NEG_OP:
+            if( subExp instanceof ExpNode.ConstNode ) {
+                return constant( node,
+                        -((ExpNode.ConstNode)subExp).getValue(), 1 );
+            } else if( subExp instanceof ExpNode.UnaryOpNode &&
+                    ((ExpNode.UnaryOpNode)subExp).getOp() ==
+                        UnaryOperator.NEG_OP ) {
+                /* --x is just x */
+                return dropped( ((ExpNode.UnaryOpNode)subExp).getSubExp(), 2 );
+            }
+            break;
+        }
+        return node;
+    }
+    public ExpNode visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+        for( int i = 0; i < node.getArgs().size(); i++ ) {
+            node.getArgs().set( i, node.getArgs().get( i ).transform( this ) );
+        }
+        return node;
+    }
+    public ExpNode visitDereferenceNode( ExpNode.DereferenceNode node ) {
+        node.setLeftValue( node.getLeftValue().transform( this ) );
+        return node;
+    }
+    /** The bounds check is dropped when narrowing a constant known to be
+     * within the subrange */
+    public ExpNode visitNarrowSubrangeNode( ExpNode.NarrowSubrangeNode node ) {
+        ExpNode exp = node.getExp().transform( this );
+        if( exp instanceof ExpNode.ConstNode ) {
+            int value = ((ExpNode.ConstNode)exp).getValue();
+            Type.SubrangeType subrange = node.getSubrangeType();
+            if( subrange.getLower() <= value &&
+                    value <= subrange.getUpper() ) {
+                return constant( node, value, 1 );
+            }
+        }
+        node.setExp( exp );
+        return node;
+    }
+    /** Widening a constant just gives the constant of the wider type */
+    public ExpNode visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+        ExpNode exp = node.getExp().transform( this );
+        if( exp instanceof ExpNode.ConstNode ) {
+            return constant( node, ((ExpNode.ConstNode)exp).getValue(), 1 );
+        }
+        node.setExp( exp );
+        return node;
+    }
+    public ExpNode visitActualParamNode( ExpNode.ActualParamNode node ) {
+        node.setCondition( node.getCondition().transform( this ) );
+        return node;
+    }
+    public ExpNode visitActualParamListNode(
+            ExpNode.ActualParamListNode node ) {
+        for( ExpNode.ActualParamNode p : node.getActualParams() ) {
+            p.transform( this );
+        }
+        return node;
+    }
+    public ExpNode visitRefParamNode( ExpNode.RefParamNode node ) {
+        return node;
+    }
+
+    /** Value of the binary operator applied to constants, computed as the
+     * stack machine would.
+     * @requires op != DIV_OP || right != 0 */
+    static int evaluate( BinaryOperator op, int left, int right ) {
+        switch( op ) {
+        case ADD_OP:
+            return left + right;
+        case SUB_OP:
+            return left - right;
+        case MUL_OP:
+            return left * right;
+        case DIV_OP:
+            return left / right;
+        case EQUALS_OP:
+            return truth( left == right );
+        case NEQUALS_OP:
+            return truth( left != right );
+        case GREATER_OP:
+            return truth( left > right );
+        case LESS_OP:
+            return truth( left < right );
+        case LEQUALS_OP:
+            return truth( left <= right );
+        case GEQUALS_OP:
+            return truth( left >= right );
+        default:
+            throw new IllegalArgumentException( "Cannot fold " + op );
+        }
+    }
+    private static int truth( boolean b ) {
+        return b ? StackMachine.TRUE_VALUE : StackMachine.FALSE_VALUE;
+    }
+    private static boolean isConstant( ExpNode exp, int value ) {
+        return exp instanceof ExpNode.ConstNode &&
+            ((ExpNode.ConstNode)exp).getValue() == value;
+    }
+    /** Replace node by a constant of its type, removing count nodes */
+    private ExpNode constant( ExpNode node, int value, int count ) {
+        folded += count;
+        return new ExpNode.ConstNode( node.getPosition(), node.getType(),
+                value );
+    }
+    /** Replace a node by exp, removing count nodes */
+    private ExpNode dropped( ExpNode exp, int count ) {
+        folded += count;
+        return exp;
+    }
+    /** Combine the constants of (x op c1) op c2 to give x op (c1 op c2),
+     * for an associative operator op (addition or multiplication) */
+    private ExpNode reassociate( ExpNode.BinaryOpNode node ) {
+        if( node.getRight() instanceof ExpNode.ConstNode &&
+                node.getLeft() instanceof ExpNode.BinaryOpNode ) {
+            ExpNode.BinaryOpNode inner = (ExpNode.BinaryOpNode)node.getLeft();
+            if( inner.getOp() == node.getOp() &&
+                    inner.getRight() instanceof ExpNode.ConstNode ) {
+                int c = evaluate( node.getOp(),
+                        ((ExpNode.ConstNode)inner.getRight()).getValue(),
+                        ((ExpNode.ConstNode)node.getRight()).getValue() );
+                inner.setRight( constant( inner.getRight(), c, 2 ) );
+                /* The combined constant may give an identity */
+                return inner.transform( this );
+            }
+        }
+        return node;
+    }
+}
@@ -0,0 +1,108 @@
+package tree;
+
+import junit.framework.TestCase;
+import source.Position;
+import syms.Type;
+
+/**
+ * class ConstantFolderTest - Junit test for ConstantFolder
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ConstantFolderTest extends TestCase {
+
+    public ConstantFolderTest(String arg0) {
+        super(arg0);
+    }
+
+    private ConstantFolder folder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        folder = new ConstantFolder();
+    }
+
+    private ExpNode con( int value ) {
+        return new ExpNode.ConstNode( Position.NO_POSITION,
+                Type.INTEGER_TYPE, value );
+    }
+    private ExpNode read() {
+        ExpNode read = new ExpNode.ReadNode( Position.NO_POSITION );
+        read.setType( Type.INTEGER_TYPE );
+        return read;
+    }
+    private ExpNode binary( BinaryOperator op, ExpNode left, ExpNode right,
+            Type type ) {
+        ExpNode node = new ExpNode.BinaryOpNode( Position.NO_POSITION, op,
+                left, right );
+        node.setType( type );
+        return node;
+    }
+    private ExpNode binary( BinaryOperator op, ExpNode left, ExpNode right ) {
+        return binary( op, left, right, Type.INTEGER_TYPE );
+    }
+    private ExpNode neg( ExpNode exp ) {
+        ExpNode node = new ExpNode.UnaryOpNode( Position.NO_POSITION,
+                UnaryOperator.NEG_OP, exp );
+        node.setType( Type.INTEGER_TYPE );
+        return node;
+    }
+    private void assertConstant( int value, ExpNode exp ) {
+        assertTrue( exp instanceof ExpNode.ConstNode );
+        assertEquals( value, ((ExpNode.ConstNode)exp).getValue() );
+    }
+
+    /*
+     * Test that operators on constants are evaluated
+     */
+    public void testFold() {
+        assertConstant( 14, binary( BinaryOperator.ADD_OP, con( 2 ),
+                binary( BinaryOperator.MUL_OP, con( 3 ), con( 4 ) ) )
+                .transform( folder ) );
+        assertConstant( -3, neg( binary( BinaryOperator.DIV_OP, con( 7 ),
+                con( 2 ) ) ).transform( folder ) );
+        assertConstant( Integer.MIN_VALUE, binary( BinaryOperator.ADD_OP,
+                con( Integer.MAX_VALUE ), con( 1 ) ).transform( folder ) );
+        ExpNode less = binary( BinaryOperator.LESS_OP, con( 1 ), con( 2 ),
+                Type.BOOLEAN_TYPE ).transform( folder );
+        assertConstant( 1, less );
+        assertEquals( Type.BOOLEAN_TYPE, less.getType() );
+    }
+    /*
+     * Test that division by zero is left for run time
+     */
+    public void testDivideByZero() {
+        ExpNode div = binary( BinaryOperator.DIV_OP, con( 1 ), con( 0 ) );
+        assertSame( div, div.transform( folder ) );
+    }
+    /*
+     * Test that identities are simplified without losing side effects
+     */
+    public void testIdentities() {
+        ExpNode x = read();
+        assertSame( x, binary( BinaryOperator.ADD_OP, x, con( 0 ) )
+                .transform( folder ) );
+        assertSame( x, binary( BinaryOperator.MUL_OP, con( 1 ), x )
+                .transform( folder ) );
+        assertSame( x, binary( BinaryOperator.DIV_OP, x, con( 1 ) )
+                .transform( folder ) );
+        assertSame( x, neg( neg( x ) ).transform( folder ) );
+        ExpNode mul = binary( BinaryOperator.MUL_OP, x, con( 0 ) );
+        assertSame( mul, mul.transform( folder ) );
+    }
+    /*
+     * Test that the constants of a chain are combined
+     */
+    public void testReassociate() {
+        ExpNode x = read();
+        ExpNode sum = binary( BinaryOperator.ADD_OP,
+                binary( BinaryOperator.ADD_OP, x, con( 1 ) ), con( 2 ) )
+                .transform( folder );
+        assertTrue( sum instanceof ExpNode.BinaryOpNode );
+        assertSame( x, ((ExpNode.BinaryOpNode)sum).getLeft() );
+        assertConstant( 3, ((ExpNode.BinaryOpNode)sum).getRight() );
+        assertSame( x, binary( BinaryOperator.ADD_OP,
+                binary( BinaryOperator.ADD_OP, x, con( 1 ) ), con( -1 ) )
+                .transform( folder ) );
+    }
+}
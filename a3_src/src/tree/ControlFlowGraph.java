@@ -0,0 +1,357 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import machine.Instruction;
+import machine.Operation;
+
+/**
+ * class ControlFlowGraph - the basic blocks of a procedure body and the
+ * edges between them, with the dominators of each block.
+ * The elements of the blocks are either the statements of the checked
+ * tree or the instructions of generated code. For a tree, the elements
+ * are the assignments, writes and calls, and the if and while statements,
+ * which stand for the evaluation of their conditions; each if and while
+ * ends its block, and its first successor is the one taken when the
+ * condition is true.
+ * The graph has a single entry block, and an empty exit block that
+ * follows every block that leaves the procedure.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ControlFlowGraph<E> {
+
+    /** A sequence of elements that is always executed from its start */
+    public static class BasicBlock<E> {
+        private final int index;
+        private final List<E> elements = new ArrayList<E>();
+        private final List<BasicBlock<E>> successors =
+            new ArrayList<BasicBlock<E>>();
+        private final List<BasicBlock<E>> predecessors =
+            new ArrayList<BasicBlock<E>>();
+
+        BasicBlock( int index ) {
+            this.index = index;
+        }
+        /** @return the position of the block in the graph's list */
+        public int getIndex() {
+            return index;
+        }
+        public List<E> getElements() {
+            return elements;
+        }
+        public List<BasicBlock<E>> getSuccessors() {
+            return successors;
+        }
+        public List<BasicBlock<E>> getPredecessors() {
+            return predecessors;
+        }
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder( "B" + index + " ->" );
+            for( BasicBlock<E> succ : successors ) {
+                s.append( " B" ).append( succ.index );
+            }
+            return s.toString();
+        }
+    }
+
+    private final List<BasicBlock<E>> blocks = new ArrayList<BasicBlock<E>>();
+    private final BasicBlock<E> entry;
+    private final BasicBlock<E> exit;
+    /** The block holding each element */
+    private final Map<E,BasicBlock<E>> blockOf =
+        new IdentityHashMap<E,BasicBlock<E>>();
+    /** The dominators of each block, indexed by block, or null if not
+     * yet computed */
+    private BitSet[] dominators = null;
+
+    private ControlFlowGraph() {
+        entry = newBlock();
+        exit = newBlock();
+    }
+    public List<BasicBlock<E>> getBlocks() {
+        return Collections.unmodifiableList( blocks );
+    }
+    public BasicBlock<E> getEntry() {
+        return entry;
+    }
+    public BasicBlock<E> getExit() {
+        return exit;
+    }
+    /** @return the block holding element, or null if it isn't in the graph */
+    public BasicBlock<E> getBlock( E element ) {
+        return blockOf.get( element );
+    }
+
+    private BasicBlock<E> newBlock() {
+        BasicBlock<E> block = new BasicBlock<E>( blocks.size() );
+        blocks.add( block );
+        return block;
+    }
+    private void add( BasicBlock<E> block, E element ) {
+        block.elements.add( element );
+        blockOf.put( element, block );
+    }
+    private static <E> void addEdge( BasicBlock<E> from, BasicBlock<E> to ) {
+        from.successors.add( to );
+        to.predecessors.add( from );
+    }
+
+    /*************************************************
+     *  Dominators
+     *************************************************/
+    /** @return the indexes of the blocks that dominate block (including
+     * itself), which is empty if block can't be reached from the entry */
+    public BitSet getDominators( BasicBlock<E> block ) {
+        if( dominators == null ) {
+            computeDominators();
+        }
+        return dominators[ block.index ];
+    }
+    /** @return whether every path from the entry to b passes through a */
+    public boolean dominates( BasicBlock<E> a, BasicBlock<E> b ) {
+        return getDominators( b ).get( a.index );
+    }
+    /** @return the closest block that strictly dominates block, or null
+     * for the entry and blocks that can't be reached */
+    public BasicBlock<E> getImmediateDominator( BasicBlock<E> block ) {
+        BitSet doms = getDominators( block );
+        /* The strict dominators are totally ordered, and the closest is the
+         * one with the most dominators itself */
+        for( int i = doms.nextSetBit( 0 ); i >= 0; i = doms.nextSetBit( i+1 ) ) {
+            if( i != block.index &&
+                    dominators[i].cardinality() == doms.cardinality() - 1 ) {
+                return blocks.get( i );
+            }
+        }
+        return null;
+    }
+    /** @return the blocks reachable from the entry in reverse postorder,
+     * in which each block comes before its successors (except along the
+     * edges that close loops) */
+    public List<BasicBlock<E>> reversePostorder() {
+        List<BasicBlock<E>> order = new ArrayList<BasicBlock<E>>();
+        postorder( entry, new BitSet(), order );
+        Collections.reverse( order );
+        return order;
+    }
+    private void postorder( BasicBlock<E> block, BitSet visited,
+            List<BasicBlock<E>> order ) {
+        visited.set( block.index );
+        for( BasicBlock<E> succ : block.successors ) {
+            if( !visited.get( succ.index ) ) {
+                postorder( succ, visited, order );
+            }
+        }
+        order.add( block );
+    }
+    /** Iterate dom(b) = {b} + intersection of dom(p) over the
+     * predecessors p of b, until nothing changes */
+    private void computeDominators() {
+        List<BasicBlock<E>> order = reversePostorder();
+        dominators = new BitSet[ blocks.size() ];
+        BitSet all = new BitSet();
+        for( BasicBlock<E> block : order ) {
+            all.set( block.index );
+        }
+        for( BasicBlock<E> block : blocks ) {
+            dominators[ block.index ] = (BitSet)all.clone();
+        }
+        dominators[ entry.index ].clear();
+        dominators[ entry.index ].set( entry.index );
+        boolean changed = true;
+        while( changed ) {
+            changed = false;
+            for( BasicBlock<E> block : order ) {
+                if( block == entry ) {
+                    continue;
+                }
+                BitSet doms = (BitSet)all.clone();
+                for( BasicBlock<E> pred : block.predecessors ) {
+                    if( all.get( pred.index ) ) {
+                        doms.and( dominators[ pred.index ] );
+                    }
+                }
+                doms.set( block.index );
+                if( !doms.equals( dominators[ block.index ] ) ) {
+                    dominators[ block.index ] = doms;
+                    changed = true;
+                }
+            }
+        }
+        for( BasicBlock<E> block : blocks ) {
+            if( !all.get( block.index ) ) {
+                dominators[ block.index ].clear();
+            }
+        }
+    }
+
+    /*************************************************
+     *  Building the graph of a tree
+     *************************************************/
+    /** @return the graph of the statement body (of a procedure or the
+     * main program) */
+    public static ControlFlowGraph<StatementNode> fromTree(
+            StatementNode body ) {
+        TreeBuilder builder = new TreeBuilder();
+        body.accept( builder );
+        addEdge( builder.current, builder.graph.exit );
+        return builder.graph;
+    }
+    /** Adds the statements of a tree to the graph, following the order in
+     * which they are executed */
+    private static class TreeBuilder implements StatementVisitor {
+        final ControlFlowGraph<StatementNode> graph =
+            new ControlFlowGraph<StatementNode>();
+        /** The block the next statement executed is added to */
+        BasicBlock<StatementNode> current = graph.entry;
+
+        public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+            // Nothing executed
+        }
+        public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+            graph.add( current, node );
+        }
+        public void visitWriteNode( StatementNode.WriteNode node ) {
+            graph.add( current, node );
+        }
+        public void visitCallNode( StatementNode.CallNode node ) {
+            graph.add( current, node );
+        }
+        public void visitStatementListNode( StatementNode.ListNode node ) {
+            for( StatementNode s : node.getStatements() ) {
+                s.accept( this );
+            }
+        }
+        public void visitIfNode( StatementNode.IfNode node ) {
+            graph.add( current, node );
+            BasicBlock<StatementNode> test = current;
+            BasicBlock<StatementNode> join = graph.newBlock();
+            current = graph.newBlock();
+            addEdge( test, current );
+            node.getThenStmt().accept( this );
+            addEdge( current, join );
+            current = graph.newBlock();
+            addEdge( test, current );
+            node.getElseStmt().accept( this );
+            addEdge( current, join );
+            current = join;
+        }
+        public void visitWhileNode( StatementNode.WhileNode node ) {
+            BasicBlock<StatementNode> test = graph.newBlock();
+            addEdge( current, test );
+            graph.add( test, node );
+            BasicBlock<StatementNode> after = graph.newBlock();
+            current = graph.newBlock();
+            addEdge( test, current );
+            addEdge( test, after );
+            node.getLoopStmt().accept( this );
+            addEdge( current, test );
+            current = after;
+        }
+    }
+
+    /*************************************************
+     *  Building the graph of generated code
+     *************************************************/
+    /** @return the graph of a sequence of instructions (such as the code
+     * of a procedure), whose branches are relative to the addresses of
+     * the instructions as the sequence is loaded. Branches out of the
+     * sequence are taken to leave it. */
+    public static ControlFlowGraph<Instruction> fromCode(
+            List<Instruction> code ) {
+        ControlFlowGraph<Instruction> graph =
+            new ControlFlowGraph<Instruction>();
+        int n = code.size();
+        /* Address of each instruction relative to the first, and of the
+         * end of the sequence */
+        int[] address = new int[ n + 1 ];
+        Map<Integer,Integer> indexAt = new HashMap<Integer,Integer>();
+        for( int i = 0; i < n; i++ ) {
+            indexAt.put( address[i], i );
+            address[i+1] = address[i] + code.get( i ).getOp().getSize();
+        }
+        /* Find the branch targets and the starts of the blocks */
+        Integer[] target = new Integer[ n ];
+        boolean[] leader = new boolean[ n + 1 ];
+        leader[0] = true;
+        for( int i = 0; i < n; i++ ) {
+            Instruction inst = code.get( i );
+            switch( inst.getOp() ) {
+            case BR_FALSE:
+                if( i > 0 && code.get( i-1 ) instanceof
+                        Instruction.LoadConInstruction ) {
+                    target[i] = indexAt.get( address[i+1] +
+                        ((Instruction.LoadConInstruction)code.get( i-1 ))
+                            .getValue() );
+                }
+                leader[i+1] = true;
+                break;
+            case JUMP:
+            case BR_FALSE_IMM:
+                target[i] = indexAt.get( address[i+1] +
+                        ((Instruction.OperandInstruction)inst).getOperand( 0 ) );
+                leader[i+1] = true;
+                break;
+            case RETURN:
+            case TAIL_CALL:
+            case STOP:
+                leader[i+1] = true;
+                break;
+            default:
+                break;
+            }
+            if( target[i] != null ) {
+                leader[ target[i] ] = true;
+            }
+        }
+        /* Fill the blocks */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        BasicBlock<Instruction>[] blockAt = new BasicBlock[ n + 1 ];
+        BasicBlock<Instruction> block = graph.entry;
+        for( int i = 0; i < n; i++ ) {
+            if( leader[i] && i > 0 ) {
+                block = graph.newBlock();
+            }
+            blockAt[i] = block;
+            graph.add( block, code.get( i ) );
+        }
+        blockAt[n] = graph.exit;
+        /* Add the edges from the last instruction of each block */
+        for( int i = 0; i < n; i++ ) {
+            if( !leader[i+1] && i + 1 < n ) {
+                continue;
+            }
+            Operation op = code.get( i ).getOp();
+            boolean fallsThrough = true;
+            if( op == Operation.RETURN || op == Operation.TAIL_CALL ||
+                    op == Operation.STOP ) {
+                addEdge( blockAt[i], graph.exit );
+                fallsThrough = false;
+            } else if( op == Operation.JUMP || op == Operation.BR_FALSE_IMM ||
+                    op == Operation.BR_FALSE ) {
+                /* ZERO; LOAD_CON; BR_FALSE always branches */
+                boolean always = op == Operation.JUMP ||
+                    (op == Operation.BR_FALSE && i > 1 &&
+                     code.get( i-2 ).getOp() == Operation.ZERO &&
+                     target[i] != null);
+                addEdge( blockAt[i], target[i] != null ?
+                        blockAt[ target[i] ] : graph.exit );
+                fallsThrough = !always;
+            }
+            if( fallsThrough ) {
+                addEdge( blockAt[i], blockAt[i+1] );
+            }
+        }
+        if( n == 0 ) {
+            addEdge( graph.entry, graph.exit );
+        }
+        return graph;
+    }
+}
@@ -0,0 +1,115 @@
+package tree;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import machine.Instruction;
+import machine.Operation;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class ControlFlowGraphTest - Junit test for ControlFlowGraph
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ControlFlowGraphTest extends TestCase {
+
+    public ControlFlowGraphTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+
+    private SymEntry.VarEntry x;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Scope scope = new Scope( null, 1 );
+        x = new SymEntry.VarEntry( "x", POS, scope,
+                new Type.ReferenceType( Type.INTEGER_TYPE ) );
+        x.resolve();
+    }
+
+    private ExpNode value() {
+        return new ExpNode.DereferenceNode( Type.INTEGER_TYPE,
+                new ExpNode.VariableNode( POS, x ) );
+    }
+    private StatementNode write() {
+        return new StatementNode.WriteNode( POS, value() );
+    }
+
+    /*
+     * Test the blocks of
+     *   write x; while x do (if x then write x else write x); write x
+     */
+    public void testTree() {
+        StatementNode first = write();
+        StatementNode.IfNode ifNode = new StatementNode.IfNode( POS, value(),
+                write(), write() );
+        StatementNode.WhileNode loop =
+            new StatementNode.WhileNode( POS, value(), ifNode );
+        StatementNode last = write();
+        StatementNode.ListNode body = new StatementNode.ListNode( POS );
+        body.addStatement( first );
+        body.addStatement( loop );
+        body.addStatement( last );
+
+        ControlFlowGraph<StatementNode> graph =
+            ControlFlowGraph.fromTree( body );
+        ControlFlowGraph.BasicBlock<StatementNode> entry = graph.getEntry();
+        assertSame( entry, graph.getBlock( first ) );
+        ControlFlowGraph.BasicBlock<StatementNode> test = graph.getBlock( loop );
+        assertEquals( 1, test.getElements().size() );
+        assertEquals( 2, test.getPredecessors().size() );
+        ControlFlowGraph.BasicBlock<StatementNode> then =
+            graph.getBlock( ifNode.getThenStmt() );
+        assertSame( graph.getBlock( ifNode ), then.getPredecessors().get( 0 ) );
+        ControlFlowGraph.BasicBlock<StatementNode> after = graph.getBlock( last );
+        assertSame( graph.getExit(), after.getSuccessors().get( 0 ) );
+
+        assertTrue( graph.dominates( test, then ) );
+        assertTrue( graph.dominates( test, after ) );
+        assertFalse( graph.dominates( then, test ) );
+        assertSame( test, graph.getImmediateDominator( after ) );
+        assertSame( entry, graph.getImmediateDominator( test ) );
+        assertNull( graph.getImmediateDominator( entry ) );
+    }
+    /*
+     * Test the blocks of code with a conditional branch forward and an
+     * unconditional branch back.
+     */
+    public void testCode() {
+        Code.Label top = new Code.Label();
+        Code.Label end = new Code.Label();
+        Code code = new Code();
+        code.genLabel( top );
+        code.generateOp( Operation.READ );
+        code.genJumpIfFalse( end );
+        code.generateOp( Operation.ONE );
+        code.generateOp( Operation.WRITE );
+        code.genJumpAlways( top );
+        code.genLabel( end );
+        code.generateOp( Operation.RETURN );
+        List<Instruction> insts = code.getCode();
+
+        ControlFlowGraph<Instruction> graph = ControlFlowGraph.fromCode( insts );
+        ControlFlowGraph.BasicBlock<Instruction> entry = graph.getEntry();
+        ControlFlowGraph.BasicBlock<Instruction> body =
+            graph.getBlock( insts.get( 3 ) );
+        ControlFlowGraph.BasicBlock<Instruction> last =
+            graph.getBlock( insts.get( insts.size() - 1 ) );
+        assertEquals( 3, entry.getElements().size() );
+        assertEquals( 2, entry.getSuccessors().size() );
+        assertTrue( entry.getSuccessors().contains( body ) );
+        assertTrue( entry.getSuccessors().contains( last ) );
+        /* The jump back never falls through */
+        assertEquals( 1, body.getSuccessors().size() );
+        assertSame( entry, body.getSuccessors().get( 0 ) );
+        assertSame( graph.getExit(), last.getSuccessors().get( 0 ) );
+        assertTrue( graph.dominates( entry, last ) );
+        assertFalse( graph.dominates( body, last ) );
+    }
+}
@@ -0,0 +1,560 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import syms.SymEntry;
+
+/**
+ * class DataFlow - solves a data-flow problem over a control flow graph.
+ * The facts at each point are a set of bits, and a subclass gives the
+ * direction of the flow, how the facts from several paths are combined,
+ * and how each element of a block transforms them. The solution is found
+ * by iterating over the blocks until nothing changes, after which the
+ * facts before and after any element can be found.
+ * Liveness, reaching definitions and available expressions over the
+ * graph of a procedure body are provided.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public abstract class DataFlow<E> {
+
+    protected final ControlFlowGraph<E> graph;
+    /** Whether facts flow from the entry towards the exit */
+    private final boolean forward;
+    /** Facts at the start and end of each block, indexed by block */
+    private BitSet[] in, out;
+
+    protected DataFlow( ControlFlowGraph<E> graph, boolean forward ) {
+        this.graph = graph;
+        this.forward = forward;
+    }
+    /** @return the facts at the entry (for a forward problem) or the exit
+     * (for a backward problem) */
+    protected abstract BitSet boundary();
+    /** @return the facts initially assumed at the other blocks, the
+     * identity of meet */
+    protected abstract BitSet initial();
+    /** Combine the facts from another path into facts */
+    protected abstract void meet( BitSet facts, BitSet other );
+    /** Update facts across element, in the direction of the flow */
+    protected abstract void transfer( E element, BitSet facts );
+
+    /** Find the facts at the start and end of every block */
+    public void solve() {
+        List<ControlFlowGraph.BasicBlock<E>> blocks = graph.getBlocks();
+        List<ControlFlowGraph.BasicBlock<E>> order = graph.reversePostorder();
+        if( !forward ) {
+            Collections.reverse( order );
+        }
+        in = new BitSet[ blocks.size() ];
+        out = new BitSet[ blocks.size() ];
+        for( ControlFlowGraph.BasicBlock<E> block : blocks ) {
+            in[ block.getIndex() ] = initial();
+            out[ block.getIndex() ] = initial();
+        }
+        ControlFlowGraph.BasicBlock<E> start =
+            forward ? graph.getEntry() : graph.getExit();
+        boolean changed = true;
+        while( changed ) {
+            changed = false;
+            for( ControlFlowGraph.BasicBlock<E> block : order ) {
+                /* The facts flowing into the block */
+                BitSet into = block == start ? boundary() : initial();
+                for( ControlFlowGraph.BasicBlock<E> source : forward ?
+                        block.getPredecessors() : block.getSuccessors() ) {
+                    meet( into, forward ? out[ source.getIndex() ] :
+                        in[ source.getIndex() ] );
+                }
+                BitSet from = across( block, (BitSet)into.clone(),
+                        block.getElements().size() );
+                if( forward ) {
+                    in[ block.getIndex() ] = into;
+                    changed |= !from.equals( out[ block.getIndex() ] );
+                    out[ block.getIndex() ] = from;
+                } else {
+                    out[ block.getIndex() ] = into;
+                    changed |= !from.equals( in[ block.getIndex() ] );
+                    in[ block.getIndex() ] = from;
+                }
+            }
+        }
+    }
+    /** @return the facts after the first count elements of block in the
+     * direction of the flow, starting from facts */
+    private BitSet across( ControlFlowGraph.BasicBlock<E> block, BitSet facts,
+            int count ) {
+        List<E> elements = block.getElements();
+        for( int i = 0; i < count; i++ ) {
+            transfer( elements.get( forward ? i : elements.size() - 1 - i ),
+                    facts );
+        }
+        return facts;
+    }
+    /** @return the facts at the start of block */
+    public BitSet getIn( ControlFlowGraph.BasicBlock<E> block ) {
+        return in[ block.getIndex() ];
+    }
+    /** @return the facts at the end of block */
+    public BitSet getOut( ControlFlowGraph.BasicBlock<E> block ) {
+        return out[ block.getIndex() ];
+    }
+    /** @return the facts just before element is executed */
+    public BitSet getBefore( E element ) {
+        return at( element, true );
+    }
+    /** @return the facts just after element is executed */
+    public BitSet getAfter( E element ) {
+        return at( element, false );
+    }
+    private BitSet at( E element, boolean before ) {
+        ControlFlowGraph.BasicBlock<E> block = graph.getBlock( element );
+        List<E> elements = block.getElements();
+        int i = elements.indexOf( element );
+        if( forward ) {
+            return across( block, (BitSet)getIn( block ).clone(),
+                    before ? i : i + 1 );
+        } else {
+            return across( block, (BitSet)getOut( block ).clone(),
+                    elements.size() - (before ? i : i + 1) );
+        }
+    }
+
+    /*************************************************
+     *  Accesses to variables by the statements of a tree
+     *************************************************/
+    /** Whether a statement may use or change variables other than the
+     * ones it names */
+    enum Unknown {
+        /** Only the variables named */
+        NONE,
+        /** Also variables of enclosing blocks, through a reference
+         * parameter (which can't refer to the current frame) */
+        NON_LOCAL,
+        /** Any variable, as a called procedure may */
+        ALL
+    }
+    /** The variables used and assigned by an element of the graph of a
+     * tree (the condition of an if or while statement) */
+    static class Accesses {
+        final Set<SymEntry.VarEntry> uses =
+            new LinkedHashSet<SymEntry.VarEntry>();
+        final Set<SymEntry.VarEntry> defines =
+            new LinkedHashSet<SymEntry.VarEntry>();
+        Unknown mayUse = Unknown.NONE;
+        Unknown mayDefine = Unknown.NONE;
+        /** The expressions evaluated, innermost first */
+        final List<ExpNode> expressions = new ArrayList<ExpNode>();
+
+        Accesses( StatementNode s ) {
+            if( s instanceof StatementNode.AssignmentNode ) {
+                StatementNode.AssignmentNode assign =
+                    (StatementNode.AssignmentNode)s;
+                expression( assign.getExp() );
+                ExpNode lval = assign.getVariable();
+                if( lval instanceof ExpNode.VariableNode ) {
+                    defines.add( ((ExpNode.VariableNode)lval).getVariable() );
+                } else {
+                    expression( lval );
+                    mayDefine = Unknown.NON_LOCAL;
+                }
+            } else if( s instanceof StatementNode.WriteNode ) {
+                expression( ((StatementNode.WriteNode)s).getExp() );
+            } else if( s instanceof StatementNode.CallNode ) {
+                for( ExpNode.ActualParamNode actual : ((StatementNode.CallNode)s)
+                        .getActualParams().getActualParams() ) {
+                    expression( actual.getCondition() );
+                }
+                mayUse = Unknown.ALL;
+                mayDefine = Unknown.ALL;
+            } else if( s instanceof StatementNode.IfNode ) {
+                expression( ((StatementNode.IfNode)s).getCondition() );
+            } else if( s instanceof StatementNode.WhileNode ) {
+                expression( ((StatementNode.WhileNode)s).getCondition() );
+            }
+        }
+        /** Add the accesses of evaluating exp */
+        private void expression( ExpNode exp ) {
+            if( exp instanceof ExpNode.DereferenceNode ) {
+                ExpNode lval = ((ExpNode.DereferenceNode)exp).getLeftValue();
+                if( lval instanceof ExpNode.VariableNode ) {
+                    uses.add( ((ExpNode.VariableNode)lval).getVariable() );
+                } else {
+                    expression( lval );
+                    mayUse = max( mayUse, Unknown.NON_LOCAL );
+                }
+            } else if( exp instanceof ExpNode.RefParamNode ) {
+                /* The address is held in the parameter */
+                uses.add( ((ExpNode.RefParamNode)exp).getVariable() );
+            } else if( exp instanceof ExpNode.BinaryOpNode ) {
+                expression( ((ExpNode.BinaryOpNode)exp).getLeft() );
+                expression( ((ExpNode.BinaryOpNode)exp).getRight() );
+            } else if( exp instanceof ExpNode.UnaryOpNode ) {
+                expression( ((ExpNode.UnaryOpNode)exp).getSubExp() );
+            } else if( exp instanceof ExpNode.NarrowSubrangeNode ) {
+                expression( ((ExpNode.NarrowSubrangeNode)exp).getExp() );
+            } else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+                expression( ((ExpNode.WidenSubrangeNode)exp).getExp() );
+            } else if( exp instanceof ExpNode.ArgumentsNode ) {
+                for( ExpNode arg : ((ExpNode.ArgumentsNode)exp).getArgs() ) {
+                    expression( arg );
+                }
+            }
+            expressions.add( exp );
+        }
+        private static Unknown max( Unknown a, Unknown b ) {
+            return a.compareTo( b ) >= 0 ? a : b;
+        }
+    }
+    /** @return whether var may be changed by a statement with the given
+     * unknown assignments, in a block of static level level */
+    static boolean mayChange( Unknown unknown, SymEntry.VarEntry var,
+            int level ) {
+        return unknown == Unknown.ALL ||
+            (unknown == Unknown.NON_LOCAL && var.getLevel() < level);
+    }
+    /** The accesses of each statement of a graph, found once */
+    private static class AccessCache {
+        private final Map<StatementNode,Accesses> accesses =
+            new HashMap<StatementNode,Accesses>();
+
+        Accesses get( StatementNode s ) {
+            Accesses a = accesses.get( s );
+            if( a == null ) {
+                a = new Accesses( s );
+                accesses.put( s, a );
+            }
+            return a;
+        }
+    }
+    /** @return the variables accessed by the statements of graph */
+    private static List<SymEntry.VarEntry> variables(
+            ControlFlowGraph<StatementNode> graph, AccessCache cache ) {
+        Set<SymEntry.VarEntry> vars = new LinkedHashSet<SymEntry.VarEntry>();
+        for( ControlFlowGraph.BasicBlock<StatementNode> block :
+                graph.getBlocks() ) {
+            for( StatementNode s : block.getElements() ) {
+                vars.addAll( cache.get( s ).uses );
+                vars.addAll( cache.get( s ).defines );
+            }
+        }
+        return new ArrayList<SymEntry.VarEntry>( vars );
+    }
+
+    /*************************************************
+     *  Liveness
+     *************************************************/
+    /** The variables whose current values may be used later. Variables of
+     * enclosing blocks are live at the exit. */
+    public static class Liveness extends DataFlow<StatementNode> {
+        private final AccessCache cache = new AccessCache();
+        private final List<SymEntry.VarEntry> variables;
+        private final int level;
+
+        /** @param level static level of the block whose body it is */
+        public Liveness( ControlFlowGraph<StatementNode> graph, int level ) {
+            super( graph, false );
+            this.level = level;
+            variables = variables( graph, cache );
+        }
+        /** @return the variables, indexed by their bits */
+        public List<SymEntry.VarEntry> getVariables() {
+            return variables;
+        }
+        /** @return whether var is live just after s */
+        public boolean isLiveAfter( StatementNode s, SymEntry.VarEntry var ) {
+            int i = variables.indexOf( var );
+            return i < 0 || getAfter( s ).get( i );
+        }
+        @Override
+        protected BitSet boundary() {
+            BitSet facts = new BitSet();
+            for( int i = 0; i < variables.size(); i++ ) {
+                if( variables.get( i ).getLevel() < level ) {
+                    facts.set( i );
+                }
+            }
+            return facts;
+        }
+        @Override
+        protected BitSet initial() {
+            return new BitSet();
+        }
+        @Override
+        protected void meet( BitSet facts, BitSet other ) {
+            facts.or( other );
+        }
+        @Override
+        protected void transfer( StatementNode s, BitSet facts ) {
+            Accesses a = cache.get( s );
+            for( SymEntry.VarEntry var : a.defines ) {
+                facts.clear( variables.indexOf( var ) );
+            }
+            for( int i = 0; i < variables.size(); i++ ) {
+                if( mayChange( a.mayUse, variables.get( i ), level ) ) {
+                    facts.set( i );
+                }
+            }
+            for( SymEntry.VarEntry var : a.uses ) {
+                facts.set( variables.indexOf( var ) );
+            }
+        }
+    }
+
+    /*************************************************
+     *  Reaching definitions
+     *************************************************/
+    /** The assignments whose values may still be held by the variables
+     * they assign. A statement that may change variables it doesn't name
+     * (a call, or an assignment through a reference parameter) is a
+     * definition of each variable it may change, but removes no other
+     * definition. */
+    public static class ReachingDefinitions extends DataFlow<StatementNode> {
+        /** A statement that may give a variable its value */
+        public static class Definition {
+            private final StatementNode statement;
+            private final SymEntry.VarEntry var;
+
+            Definition( StatementNode statement, SymEntry.VarEntry var ) {
+                this.statement = statement;
+                this.var = var;
+            }
+            public StatementNode getStatement() {
+                return statement;
+            }
+            public SymEntry.VarEntry getVariable() {
+                return var;
+            }
+            /** @return whether it is an assignment to the variable (rather
+             * than a statement that may change it) */
+            public boolean isAssignment() {
+                return statement instanceof StatementNode.AssignmentNode &&
+                    ((StatementNode.AssignmentNode)statement).getVariable()
+                        instanceof ExpNode.VariableNode;
+            }
+        }
+
+        private final AccessCache cache = new AccessCache();
+        private final List<Definition> definitions =
+            new ArrayList<Definition>();
+        /** The bits of the definitions of each statement */
+        private final Map<StatementNode,BitSet> generated =
+            new HashMap<StatementNode,BitSet>();
+        /** The bits of the definitions of each variable */
+        private final Map<SymEntry.VarEntry,BitSet> ofVariable =
+            new HashMap<SymEntry.VarEntry,BitSet>();
+
+        /** @param level static level of the block whose body it is */
+        public ReachingDefinitions( ControlFlowGraph<StatementNode> graph,
+                int level ) {
+            super( graph, true );
+            List<SymEntry.VarEntry> variables = variables( graph, cache );
+            for( SymEntry.VarEntry var : variables ) {
+                ofVariable.put( var, new BitSet() );
+            }
+            for( ControlFlowGraph.BasicBlock<StatementNode> block :
+                    graph.getBlocks() ) {
+                for( StatementNode s : block.getElements() ) {
+                    Accesses a = cache.get( s );
+                    BitSet gen = new BitSet();
+                    for( SymEntry.VarEntry var : variables ) {
+                        if( a.defines.contains( var ) ||
+                                mayChange( a.mayDefine, var, level ) ) {
+                            gen.set( definitions.size() );
+                            ofVariable.get( var ).set( definitions.size() );
+                            definitions.add( new Definition( s, var ) );
+                        }
+                    }
+                    generated.put( s, gen );
+                }
+            }
+        }
+        /** @return the definitions, indexed by their bits */
+        public List<Definition> getDefinitions() {
+            return definitions;
+        }
+        /** @return the definitions of var that reach s */
+        public List<Definition> reaching( StatementNode s,
+                SymEntry.VarEntry var ) {
+            List<Definition> result = new ArrayList<Definition>();
+            BitSet facts = getBefore( s );
+            BitSet ofVar = ofVariable.get( var );
+            if( ofVar != null ) {
+                facts.and( ofVar );
+                for( int i = facts.nextSetBit( 0 ); i >= 0;
+                        i = facts.nextSetBit( i+1 ) ) {
+                    result.add( definitions.get( i ) );
+                }
+            }
+            return result;
+        }
+        @Override
+        protected BitSet boundary() {
+            return new BitSet();
+        }
+        @Override
+        protected BitSet initial() {
+            return new BitSet();
+        }
+        @Override
+        protected void meet( BitSet facts, BitSet other ) {
+            facts.or( other );
+        }
+        @Override
+        protected void transfer( StatementNode s, BitSet facts ) {
+            for( SymEntry.VarEntry var : cache.get( s ).defines ) {
+                facts.andNot( ofVariable.get( var ) );
+            }
+            facts.or( generated.get( s ) );
+        }
+    }
+
+    /*************************************************
+     *  Available expressions
+     *************************************************/
+    /** The expressions whose values have been computed on every path and
+     * whose variables haven't changed since. Only arithmetic and
+     * comparisons of variables and constants are considered. */
+    public static class AvailableExpressions extends DataFlow<StatementNode> {
+        private final AccessCache cache = new AccessCache();
+        private final int level;
+        /** One of each of the different expressions, indexed by bit */
+        private final List<ExpNode> expressions = new ArrayList<ExpNode>();
+        /** The variables of each expression */
+        private final List<Set<SymEntry.VarEntry>> expVariables =
+            new ArrayList<Set<SymEntry.VarEntry>>();
+
+        /** @param level static level of the block whose body it is */
+        public AvailableExpressions( ControlFlowGraph<StatementNode> graph,
+                int level ) {
+            super( graph, true );
+            this.level = level;
+            for( ControlFlowGraph.BasicBlock<StatementNode> block :
+                    graph.getBlocks() ) {
+                for( StatementNode s : block.getElements() ) {
+                    for( ExpNode exp : cache.get( s ).expressions ) {
+                        Set<SymEntry.VarEntry> vars =
+                            new LinkedHashSet<SymEntry.VarEntry>();
+                        if( isCandidate( exp ) && pure( exp, vars ) &&
+                                indexOf( exp ) < 0 ) {
+                            expressions.add( exp );
+                            expVariables.add( vars );
+                        }
+                    }
+                }
+            }
+        }
+        /** @return the expressions, indexed by their bits */
+        public List<ExpNode> getExpressions() {
+            return expressions;
+        }
+        /** @return whether the value of exp is available just before s */
+        public boolean isAvailable( StatementNode s, ExpNode exp ) {
+            int i = indexOf( exp );
+            return i >= 0 && getBefore( s ).get( i );
+        }
+        /** @return the bit of the expression the same as exp, or -1 */
+        public int indexOf( ExpNode exp ) {
+            for( int i = 0; i < expressions.size(); i++ ) {
+                if( same( expressions.get( i ), exp ) ) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        @Override
+        protected BitSet boundary() {
+            return new BitSet();
+        }
+        @Override
+        protected BitSet initial() {
+            BitSet all = new BitSet();
+            all.set( 0, expressions.size() );
+            return all;
+        }
+        @Override
+        protected void meet( BitSet facts, BitSet other ) {
+            facts.and( other );
+        }
+        @Override
+        protected void transfer( StatementNode s, BitSet facts ) {
+            Accesses a = cache.get( s );
+            /* The expressions are evaluated before any assignment */
+            for( ExpNode exp : a.expressions ) {
+                int i = indexOf( exp );
+                if( i >= 0 ) {
+                    facts.set( i );
+                }
+            }
+            for( int i = 0; i < expressions.size(); i++ ) {
+                for( SymEntry.VarEntry var : expVariables.get( i ) ) {
+                    if( a.defines.contains( var ) ||
+                            mayChange( a.mayDefine, var, level ) ) {
+                        facts.clear( i );
+                    }
+                }
+            }
+        }
+        private static boolean isCandidate( ExpNode exp ) {
+            return exp instanceof ExpNode.BinaryOpNode ||
+                exp instanceof ExpNode.UnaryOpNode;
+        }
+        /** @return whether exp has no side effects and depends only on the
+         * variables it names, which are added to vars */
+        static boolean pure( ExpNode exp, Set<SymEntry.VarEntry> vars ) {
+            if( exp instanceof ExpNode.ConstNode ) {
+                return true;
+            } else if( exp instanceof ExpNode.DereferenceNode ) {
+                ExpNode lval = ((ExpNode.DereferenceNode)exp).getLeftValue();
+                if( lval instanceof ExpNode.VariableNode ) {
+                    vars.add( ((ExpNode.VariableNode)lval).getVariable() );
+                    return true;
+                }
+                return false;
+            } else if( exp instanceof ExpNode.BinaryOpNode ) {
+                return pure( ((ExpNode.BinaryOpNode)exp).getLeft(), vars ) &&
+                    pure( ((ExpNode.BinaryOpNode)exp).getRight(), vars );
+            } else if( exp instanceof ExpNode.UnaryOpNode ) {
+                return pure( ((ExpNode.UnaryOpNode)exp).getSubExp(), vars );
+            } else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+                return pure( ((ExpNode.WidenSubrangeNode)exp).getExp(), vars );
+            }
+            return false;
+        }
+        /** @return whether a and b are the same pure expression */
+        static boolean same( ExpNode a, ExpNode b ) {
+            if( a.getClass() != b.getClass() ) {
+                return false;
+            } else if( a instanceof ExpNode.ConstNode ) {
+                return ((ExpNode.ConstNode)a).getValue() ==
+                    ((ExpNode.ConstNode)b).getValue();
+            } else if( a instanceof ExpNode.VariableNode ) {
+                return ((ExpNode.VariableNode)a).getVariable() ==
+                    ((ExpNode.VariableNode)b).getVariable();
+            } else if( a instanceof ExpNode.DereferenceNode ) {
+                return same( ((ExpNode.DereferenceNode)a).getLeftValue(),
+                        ((ExpNode.DereferenceNode)b).getLeftValue() );
+            } else if( a instanceof ExpNode.BinaryOpNode ) {
+                ExpNode.BinaryOpNode x = (ExpNode.BinaryOpNode)a;
+                ExpNode.BinaryOpNode y = (ExpNode.BinaryOpNode)b;
+                return x.getOp() == y.getOp() &&
+                    same( x.getLeft(), y.getLeft() ) &&
+                    same( x.getRight(), y.getRight() );
+            } else if( a instanceof ExpNode.UnaryOpNode ) {
+                ExpNode.UnaryOpNode x = (ExpNode.UnaryOpNode)a;
+                ExpNode.UnaryOpNode y = (ExpNode.UnaryOpNode)b;
+                return x.getOp() == y.getOp() &&
+                    same( x.getSubExp(), y.getSubExp() );
+            } else if( a instanceof ExpNode.WidenSubrangeNode ) {
+                return same( ((ExpNode.WidenSubrangeNode)a).getExp(),
+                        ((ExpNode.WidenSubrangeNode)b).getExp() );
+            }
+            return false;
+        }
+    }
+}
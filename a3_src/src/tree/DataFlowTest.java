@@ -0,0 +1,118 @@
+package tree;
+
+import junit.framework.TestCase;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class DataFlowTest - Junit test for the analyses of DataFlow
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class DataFlowTest extends TestCase {
+
+    public DataFlowTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+
+    private Scope scope;
+    private SymEntry.VarEntry x, y;
+    /* x := 1; y := x + 1; while y < 10 do y := y + 1; write x + 1 */
+    private StatementNode.AssignmentNode initX, initY, step;
+    private StatementNode.WhileNode loop;
+    private StatementNode.WriteNode write;
+    private ControlFlowGraph<StatementNode> graph;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        scope = new Scope( null, 1 );
+        x = variable( "x" );
+        y = variable( "y" );
+        initX = assign( x, con( 1 ) );
+        initY = assign( y, plus( value( x ), con( 1 ) ) );
+        step = assign( y, plus( value( y ), con( 1 ) ) );
+        ExpNode less = new ExpNode.BinaryOpNode( POS, BinaryOperator.LESS_OP,
+                value( y ), con( 10 ) );
+        less.setType( Type.BOOLEAN_TYPE );
+        loop = new StatementNode.WhileNode( POS, less, step );
+        write = new StatementNode.WriteNode( POS, plus( value( x ), con( 1 ) ) );
+        StatementNode.ListNode body = new StatementNode.ListNode( POS );
+        body.addStatement( initX );
+        body.addStatement( initY );
+        body.addStatement( loop );
+        body.addStatement( write );
+        graph = ControlFlowGraph.fromTree( body );
+    }
+
+    private SymEntry.VarEntry variable( String name ) {
+        SymEntry.VarEntry var = new SymEntry.VarEntry( name, POS, scope,
+                new Type.ReferenceType( Type.INTEGER_TYPE ) );
+        var.resolve();
+        return var;
+    }
+    private ExpNode con( int value ) {
+        return new ExpNode.ConstNode( POS, Type.INTEGER_TYPE, value );
+    }
+    private ExpNode value( SymEntry.VarEntry var ) {
+        return new ExpNode.DereferenceNode( Type.INTEGER_TYPE,
+                new ExpNode.VariableNode( POS, var ) );
+    }
+    private ExpNode plus( ExpNode left, ExpNode right ) {
+        ExpNode node = new ExpNode.BinaryOpNode( POS, BinaryOperator.ADD_OP,
+                left, right );
+        node.setType( Type.INTEGER_TYPE );
+        return node;
+    }
+    private StatementNode.AssignmentNode assign( SymEntry.VarEntry var,
+            ExpNode exp ) {
+        return new StatementNode.AssignmentNode( POS,
+                new ExpNode.VariableNode( POS, var ), exp );
+    }
+
+    /*
+     * Test that x is live across the loop, and y only from its first
+     * assignment.
+     */
+    public void testLiveness() {
+        DataFlow.Liveness live = new DataFlow.Liveness( graph, 1 );
+        live.solve();
+        assertTrue( live.isLiveAfter( initX, x ) );
+        assertTrue( live.isLiveAfter( step, x ) );
+        assertTrue( live.isLiveAfter( step, y ) );
+        assertFalse( live.isLiveAfter( initX, y ) );
+        assertFalse( live.isLiveAfter( write, x ) );
+    }
+    /*
+     * Test that both assignments to y reach the loop, and the only
+     * assignment to x reaches the write.
+     */
+    public void testReachingDefinitions() {
+        DataFlow.ReachingDefinitions defs =
+            new DataFlow.ReachingDefinitions( graph, 1 );
+        defs.solve();
+        assertEquals( 2, defs.reaching( loop, y ).size() );
+        assertEquals( 1, defs.reaching( write, x ).size() );
+        assertSame( initX, defs.reaching( write, x ).get( 0 ).getStatement() );
+        assertEquals( 2, defs.reaching( step, y ).size() );
+    }
+    /*
+     * Test that x + 1 is still available after the loop, but y + 1 isn't
+     * available at the start of the body.
+     */
+    public void testAvailableExpressions() {
+        DataFlow.AvailableExpressions avail =
+            new DataFlow.AvailableExpressions( graph, 1 );
+        avail.solve();
+        assertEquals( 3, avail.getExpressions().size() );
+        assertTrue( avail.isAvailable( write,
+                plus( value( x ), con( 1 ) ) ) );
+        assertFalse( avail.isAvailable( step,
+                plus( value( y ), con( 1 ) ) ) );
+        assertTrue( avail.isAvailable( step,
+                plus( value( x ), con( 1 ) ) ) );
+    }
+}
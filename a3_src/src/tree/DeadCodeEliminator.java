@@ -0,0 +1,232 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import machine.StackMachine;
+import syms.SymEntry;
+import tree.Tree.*;
+
+/** class DeadCodeEliminator - Optimisation pass run after the range
+ * analyser. It removes the code that can never be run, or whose results
+ * are never used:
+ * an if statement whose condition has been folded to a constant is
+ * replaced by the branch taken, and a while statement whose condition is
+ * false by nothing; the statements following a loop whose condition is
+ * true are never reached; an assignment to a local variable that isn't
+ * live afterwards is a dead store, removed if its expression is pure
+ * and can't fail, which is repeated until there are none left as
+ * removing one may leave others dead; and a procedure that can't be
+ * reached from the main program through calls is never run, so its
+ * declaration is removed.
+ * The calls are found after the branches that are never taken have been
+ * removed, so a call within one doesn't keep its procedure.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class DeadCodeEliminator implements TreeVisitor, StatementVisitor {
+
+    /** The procedures called by the body of each procedure (null for
+     * the main program) */
+    private Map<SymEntry.ProcedureEntry,List<SymEntry.ProcedureEntry>> calls;
+    /** The procedure whose block is being visited (null for the main
+     * program) */
+    private SymEntry.ProcedureEntry current;
+    /** Static level of the block whose body is being visited */
+    private int level;
+    /** The assignments of the body that are dead stores */
+    private Set<StatementNode> dead;
+    /** Whether the statement just visited may finish */
+    private boolean completes;
+    /** Statement to replace the statement just visited */
+    private StatementNode replacement;
+    /** The number of statements removed */
+    private int removed = 0;
+    /** The number of procedures removed */
+    private int removedProcedures = 0;
+
+    public DeadCodeEliminator() {
+        super();
+    }
+    /** @return the number of statements removed */
+    public int getRemoved() {
+        return removed;
+    }
+    /** @return the number of procedure declarations removed */
+    public int getRemovedProcedures() {
+        return removedProcedures;
+    }
+
+    public void visitProgramNode( ProgramNode node ) {
+        calls = new HashMap<SymEntry.ProcedureEntry,
+                List<SymEntry.ProcedureEntry>>();
+        current = null;
+        node.getBlock().accept( this );
+        /* Follow the calls from the main program */
+        Set<SymEntry.ProcedureEntry> reached =
+            new HashSet<SymEntry.ProcedureEntry>();
+        List<SymEntry.ProcedureEntry> work =
+            new ArrayList<SymEntry.ProcedureEntry>( calls.get( null ) );
+        while( !work.isEmpty() ) {
+            SymEntry.ProcedureEntry proc = work.remove( work.size() - 1 );
+            if( reached.add( proc ) && calls.containsKey( proc ) ) {
+                work.addAll( calls.get( proc ) );
+            }
+        }
+        removeProcedures( node.getBlock(), reached );
+    }
+    public void visitBlockNode( BlockNode node ) {
+        node.getProcedures().accept( this );
+        level = node.getBlockLocals().getLevel();
+        dead = new HashSet<StatementNode>();
+        node.setBody( replace( node.getBody() ) );
+        ControlFlowGraph<StatementNode> graph;
+        do {
+            graph = ControlFlowGraph.fromTree( node.getBody() );
+            findDeadStores( graph );
+            if( !dead.isEmpty() ) {
+                node.setBody( replace( node.getBody() ) );
+            }
+        } while( !dead.isEmpty() );
+        List<SymEntry.ProcedureEntry> callees =
+            new ArrayList<SymEntry.ProcedureEntry>();
+        for( ControlFlowGraph.BasicBlock<StatementNode> block :
+                graph.getBlocks() ) {
+            for( StatementNode s : block.getElements() ) {
+                if( s instanceof StatementNode.CallNode ) {
+                    callees.add( ((StatementNode.CallNode)s).getEntry() );
+                }
+            }
+        }
+        calls.put( current, callees );
+    }
+    public void visitDeclListNode( DeclNode.DeclListNode node ) {
+        for( DeclNode declaration : node.getDeclarations() ) {
+            declaration.accept( this );
+        }
+    }
+    public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+        SymEntry.ProcedureEntry enclosing = current;
+        current = node.getProcEntry();
+        node.getBlock().accept( this );
+        current = enclosing;
+    }
+
+    /** Set dead to the assignments of graph to local variables that
+     * aren't live afterwards, and whose expressions may be removed */
+    private void findDeadStores( ControlFlowGraph<StatementNode> graph ) {
+        DataFlow.Liveness live = new DataFlow.Liveness( graph, level );
+        live.solve();
+        dead.clear();
+        for( ControlFlowGraph.BasicBlock<StatementNode> block :
+                graph.getBlocks() ) {
+            for( StatementNode s : block.getElements() ) {
+                if( !(s instanceof StatementNode.AssignmentNode) ) {
+                    continue;
+                }
+                StatementNode.AssignmentNode assign =
+                    (StatementNode.AssignmentNode)s;
+                if( !(assign.getVariable() instanceof ExpNode.VariableNode) ) {
+                    continue;
+                }
+                SymEntry.VarEntry var =
+                    ((ExpNode.VariableNode)assign.getVariable()).getVariable();
+                if( var.getLevel() == level && !live.isLiveAfter( s, var ) &&
+                        DataFlow.AvailableExpressions.pure( assign.getExp(),
+                                new HashSet<SymEntry.VarEntry>() ) &&
+                        !LoopInvariantMover.mayFail( assign.getExp() ) ) {
+                    dead.add( s );
+                }
+            }
+        }
+    }
+    /** Remove the declarations of procedures within block that aren't
+     * reached */
+    private void removeProcedures( BlockNode block,
+            Set<SymEntry.ProcedureEntry> reached ) {
+        Iterator<DeclNode> declarations =
+            block.getProcedures().getDeclarations().iterator();
+        while( declarations.hasNext() ) {
+            DeclNode.ProcedureNode proc =
+                (DeclNode.ProcedureNode)declarations.next();
+            if( reached.contains( proc.getProcEntry() ) ) {
+                removeProcedures( proc.getBlock(), reached );
+            } else {
+                declarations.remove();
+                removedProcedures++;
+            }
+        }
+    }
+    /** @return whether exp is the constant false */
+    private static boolean isFalse( ExpNode exp ) {
+        return ((ExpNode.ConstNode)exp).getValue() == StackMachine.FALSE_VALUE;
+    }
+    /** @return the statement to replace s */
+    private StatementNode replace( StatementNode s ) {
+        replacement = s;
+        completes = true;
+        s.accept( this );
+        return replacement;
+    }
+    /*************************************************
+     *  Statement node visit methods
+     *************************************************/
+    public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        // Nothing to remove
+    }
+    public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+        if( dead.contains( node ) ) {
+            replacement = new StatementNode.ListNode( node.getPosition() );
+            removed++;
+        }
+    }
+    public void visitWriteNode( StatementNode.WriteNode node ) {
+        // Nothing to remove
+    }
+    public void visitCallNode( StatementNode.CallNode node ) {
+        // Nothing to remove
+    }
+    public void visitStatementListNode( StatementNode.ListNode node ) {
+        List<StatementNode> statements = node.getStatements();
+        for( int i = 0; i < statements.size(); i++ ) {
+            statements.set( i, replace( statements.get( i ) ) );
+            if( !completes ) {
+                /* The statements that follow are never reached */
+                List<StatementNode> rest =
+                    statements.subList( i + 1, statements.size() );
+                removed += rest.size();
+                rest.clear();
+            }
+        }
+        replacement = node;
+    }
+    public void visitIfNode( StatementNode.IfNode node ) {
+        if( node.getCondition() instanceof ExpNode.ConstNode ) {
+            replace( isFalse( node.getCondition() ) ? node.getElseStmt() :
+                node.getThenStmt() );
+            removed++;
+            return;
+        }
+        node.setThenStmt( replace( node.getThenStmt() ) );
+        boolean thenCompletes = completes;
+        node.setElseStmt( replace( node.getElseStmt() ) );
+        completes |= thenCompletes;
+        replacement = node;
+    }
+    public void visitWhileNode( StatementNode.WhileNode node ) {
+        if( node.getCondition() instanceof ExpNode.ConstNode &&
+                isFalse( node.getCondition() ) ) {
+            replacement = new StatementNode.ListNode( node.getPosition() );
+            removed++;
+            return;
+        }
+        node.setLoopStmt( replace( node.getLoopStmt() ) );
+        /* A loop only finishes once its condition is false */
+        completes = !(node.getCondition() instanceof ExpNode.ConstNode);
+        replacement = node;
+    }
+}
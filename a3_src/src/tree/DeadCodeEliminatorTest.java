@@ -0,0 +1,172 @@
+package tree;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import machine.StackMachine;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class DeadCodeEliminatorTest - Junit test for DeadCodeEliminator
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class DeadCodeEliminatorTest extends TestCase {
+
+    public DeadCodeEliminatorTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+
+    private Scope mainScope;
+    private SymEntry.VarEntry x, y;
+    private DeclNode.DeclListNode procedures;
+    private StatementNode.ListNode mainBody;
+    private Tree.ProgramNode program;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mainScope = new Scope( null, 1 );
+        x = variable( "x" );
+        y = variable( "y" );
+        procedures = new DeclNode.DeclListNode();
+        mainBody = new StatementNode.ListNode( POS );
+        Tree.BlockNode block = new Tree.BlockNode( procedures, mainBody );
+        block.setBlockLocals( mainScope );
+        program = new Tree.ProgramNode( null, block );
+    }
+
+    private SymEntry.VarEntry variable( String name ) {
+        SymEntry.VarEntry var = new SymEntry.VarEntry( name, POS, mainScope,
+                new Type.ReferenceType( Type.INTEGER_TYPE ) );
+        var.resolve();
+        return var;
+    }
+    private ExpNode con( int value ) {
+        return new ExpNode.ConstNode( POS, Type.INTEGER_TYPE, value );
+    }
+    private ExpNode bool( int value ) {
+        return new ExpNode.ConstNode( POS, Type.BOOLEAN_TYPE, value );
+    }
+    private ExpNode value( SymEntry.VarEntry var ) {
+        return new ExpNode.DereferenceNode( Type.INTEGER_TYPE,
+                new ExpNode.VariableNode( POS, var ) );
+    }
+    private StatementNode.AssignmentNode assign( SymEntry.VarEntry var,
+            ExpNode exp ) {
+        return new StatementNode.AssignmentNode( POS,
+                new ExpNode.VariableNode( POS, var ), exp );
+    }
+    private StatementNode write( ExpNode exp ) {
+        return new StatementNode.WriteNode( POS, exp );
+    }
+    private SymEntry.ProcedureEntry procedure( String name,
+            StatementNode body ) {
+        SymEntry.ProcedureEntry entry =
+            new SymEntry.ProcedureEntry( name, POS, mainScope );
+        Scope scope = new Scope( mainScope, 2 );
+        entry.setLocalScope( scope );
+        Tree.BlockNode block =
+            new Tree.BlockNode( new DeclNode.DeclListNode(), body );
+        block.setBlockLocals( scope );
+        procedures.addDeclaration( new DeclNode.ProcedureNode( entry, block ) );
+        return entry;
+    }
+    private StatementNode.CallNode call( SymEntry.ProcedureEntry entry ) {
+        StatementNode.CallNode node = new StatementNode.CallNode( POS,
+                entry.getIdent(), new ExpNode.ActualParamListNode( POS ) );
+        node.setEntry( entry );
+        return node;
+    }
+    private int size( StatementNode s ) {
+        if( s instanceof StatementNode.ListNode ) {
+            int size = 0;
+            for( StatementNode t : ((StatementNode.ListNode)s).getStatements() ) {
+                size += size( t );
+            }
+            return size;
+        }
+        return 1;
+    }
+
+    /*
+     * Test that
+     *   if true then write 1 else write 2; while false do write 3;
+     *   while true do write 4; write 5
+     * is reduced to the first write and the loop.
+     */
+    public void testConstantConditions() {
+        StatementNode first = write( con( 1 ) );
+        StatementNode.WhileNode forever = new StatementNode.WhileNode( POS,
+                bool( StackMachine.TRUE_VALUE ), write( con( 4 ) ) );
+        mainBody.addStatement( new StatementNode.IfNode( POS,
+                bool( StackMachine.TRUE_VALUE ), first, write( con( 2 ) ) ) );
+        mainBody.addStatement( new StatementNode.WhileNode( POS,
+                bool( StackMachine.FALSE_VALUE ), write( con( 3 ) ) ) );
+        mainBody.addStatement( forever );
+        mainBody.addStatement( write( con( 5 ) ) );
+
+        DeadCodeEliminator eliminator = new DeadCodeEliminator();
+        eliminator.visitProgramNode( program );
+        assertEquals( 3, eliminator.getRemoved() );
+        List<StatementNode> statements = mainBody.getStatements();
+        assertEquals( 3, statements.size() );
+        assertSame( first, statements.get( 0 ) );
+        assertEquals( 0, size( statements.get( 1 ) ) );
+        assertSame( forever, statements.get( 2 ) );
+    }
+    /*
+     * Test that in
+     *   x := 1; y := 2; x := y + 1; y := 10 / x; write x
+     * the first assignment to x is removed, but not the division, which
+     * may fail.
+     */
+    public void testDeadStores() {
+        StatementNode.AssignmentNode divide = assign( y,
+                new ExpNode.BinaryOpNode( POS, BinaryOperator.DIV_OP,
+                        con( 10 ), value( x ) ) );
+        divide.getExp().setType( Type.INTEGER_TYPE );
+        ExpNode sum = new ExpNode.BinaryOpNode( POS, BinaryOperator.ADD_OP,
+                value( y ), con( 1 ) );
+        sum.setType( Type.INTEGER_TYPE );
+        mainBody.addStatement( assign( x, con( 1 ) ) );
+        mainBody.addStatement( assign( y, con( 2 ) ) );
+        mainBody.addStatement( assign( x, sum ) );
+        mainBody.addStatement( divide );
+        mainBody.addStatement( write( value( x ) ) );
+
+        DeadCodeEliminator eliminator = new DeadCodeEliminator();
+        eliminator.visitProgramNode( program );
+        assertEquals( 1, eliminator.getRemoved() );
+        assertEquals( 4, size( mainBody ) );
+        assertSame( divide, mainBody.getStatements().get( 3 ) );
+    }
+    /*
+     * Test that of the procedures p, called by the main program, q,
+     * called only by p, and r, called only in a branch never taken, only
+     * r is removed.
+     */
+    public void testUncalledProcedures() {
+        SymEntry.ProcedureEntry q = procedure( "q", write( con( 1 ) ) );
+        SymEntry.ProcedureEntry r = procedure( "r", write( con( 2 ) ) );
+        SymEntry.ProcedureEntry p = procedure( "p", call( q ) );
+        mainBody.addStatement( call( p ) );
+        mainBody.addStatement( new StatementNode.IfNode( POS,
+                bool( StackMachine.FALSE_VALUE ), call( r ),
+                write( con( 3 ) ) ) );
+
+        DeadCodeEliminator eliminator = new DeadCodeEliminator();
+        eliminator.visitProgramNode( program );
+        assertEquals( 1, eliminator.getRemovedProcedures() );
+        List<DeclNode> declarations = procedures.getDeclarations();
+        assertEquals( 2, declarations.size() );
+        assertSame( q, ((DeclNode.ProcedureNode)declarations.get( 0 ))
+                .getProcEntry() );
+        assertSame( p, ((DeclNode.ProcedureNode)declarations.get( 1 ))
+                .getProcEntry() );
+    }
+}
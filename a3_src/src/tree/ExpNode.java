@@ -408,6 +408,9 @@ public abstract class ExpNode {
         public ExpNode getExp() {
             return exp;
         }
+        public void setExp( ExpNode exp ) {
+            this.exp = exp;
+        }
         @Override
         public String toString() {
             return "NarrowSubrange(" + exp + ":" + getType() + ")";
@@ -442,6 +445,9 @@ public abstract class ExpNode {
         public ExpNode getExp() {
             return exp;
         }
+        public void setExp( ExpNode exp ) {
+            this.exp = exp;
+        }
         @Override
         public String toString() {
             return "WidenSubrange(" + exp + ":" + getType() + ")";
@@ -0,0 +1,244 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import machine.Instruction;
+import machine.Operation;
+import machine.StackMachine;
+import syms.SymEntry;
+
+/**
+ * class InstructionFusion - rewrites generated code to use the
+ * superinstructions (LOAD_LOCAL, STORE_LOCAL, JUMP, BR_FALSE_IMM,
+ * LOAD_UPLEVEL and ADD_IMM) in place of the common sequences of basic
+ * instructions produced by Code. A sequence is only fused if no branch
+ * or call enters it part way through. Because the fused code is smaller,
+ * branch offsets, procedure start addresses and the procedure table are
+ * relocated to match.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class InstructionFusion {
+
+    /** Original instructions */
+    private List<Instruction> insts;
+    /** Original address of each instruction; the last entry is the
+     * address following the code */
+    private int[] address;
+    /** Index of the instruction at each original address */
+    private Map<Integer,Integer> index;
+    /** Indices of the instructions that must start a fused instruction:
+     * branch destinations and the starts and finishes of procedures */
+    private Set<Integer> entries;
+
+    /** A fused (or copied) instruction in the new code */
+    private static class Fused {
+        /** Operation of the new instruction */
+        Operation op;
+        /** Operands of the new instruction */
+        int[] operands;
+        /** Index of the first and following original instructions */
+        int first, next;
+        /** Index of the destination of a branch, or -1 */
+        int dest = -1;
+
+        Fused( Operation op, int first, int next, int... operands ) {
+            this.op = op;
+            this.first = first;
+            this.next = next;
+            this.operands = operands;
+        }
+    }
+
+    /** Fuse the code, updating its procedure table and the start
+     * addresses of the procedures it calls.
+     * @param code to be fused, which must not yet be loaded
+     * @return fused code, or code itself if its branches could not all
+     *  be determined (in which case nothing is changed)
+     */
+    public CodePlusProcedures fuse( CodePlusProcedures code ) {
+        insts = code.getInstructionList().getCode();
+        int n = insts.size();
+        address = new int[ n + 1 ];
+        index = new HashMap<Integer,Integer>();
+        address[0] = StackMachine.CODE_START;
+        for( int i = 0; i < n; i++ ) {
+            index.put( address[i], i );
+            address[i+1] = address[i] + insts.get( i ).getOp().getSize();
+        }
+        index.put( address[n], n );
+        entries = new HashSet<Integer>();
+        Procedures procs = code.getProcStarts();
+        for( Procedures.ProcedureStart ps : procs.getProcedureStarts() ) {
+            if( !index.containsKey( ps.start ) ||
+                    !index.containsKey( ps.finish ) ) {
+                return code;
+            }
+            entries.add( index.get( ps.start ) );
+            entries.add( index.get( ps.finish ) );
+        }
+        Set<SymEntry.ProcedureEntry> called =
+            new HashSet<SymEntry.ProcedureEntry>();
+        for( int i = 0; i < n; i++ ) {
+            Instruction inst = insts.get( i );
+            if( inst instanceof Instruction.ProcRefInstruction ) {
+                SymEntry.ProcedureEntry proc =
+                    ((Instruction.ProcRefInstruction)inst).getProc();
+                if( !index.containsKey( proc.getStart() ) ) {
+                    return code;
+                }
+                called.add( proc );
+            } else if( inst.getOp() == Operation.BR_FALSE ) {
+                Integer dest = branchDest( i );
+                if( dest == null ) {
+                    return code;    /* computed branch */
+                }
+                entries.add( dest );
+            }
+        }
+        /* Choose the new instructions */
+        List<Fused> fused = new ArrayList<Fused>();
+        for( int i = 0; i < n; ) {
+            Fused f = fuseAt( i );
+            fused.add( f );
+            i = f.next;
+        }
+        /* Lay them out */
+        Map<Integer,Integer> newAddress = new HashMap<Integer,Integer>();
+        int locn = StackMachine.CODE_START;
+        for( Fused f : fused ) {
+            newAddress.put( f.first, locn );
+            locn += f.op.getSize();
+        }
+        newAddress.put( n, locn );
+        /* Generate the new code, relocating the branches */
+        Code newCode = new Code();
+        for( Fused f : fused ) {
+            if( f.dest >= 0 ) {
+                int from = newAddress.get( f.next );
+                if( f.op == Operation.LOAD_CON ) {
+                    /* offset for an unfused BR_FALSE */
+                    from += Operation.BR_FALSE.getSize();
+                }
+                f.operands[0] = newAddress.get( f.dest ) - from;
+            }
+            if( f.next == f.first + 1 && f.dest < 0 ) {
+                newCode.generateInstruction( insts.get( f.first ) );
+            } else if( f.op == Operation.LOAD_CON ) {
+                newCode.genLoadConstant( f.operands[0] );
+            } else {
+                newCode.generateInstruction(
+                    new Instruction.OperandInstruction( f.op, f.operands ) );
+            }
+        }
+        for( SymEntry.ProcedureEntry proc : called ) {
+            proc.setStart( newAddress.get( index.get( proc.getStart() ) ) );
+        }
+        for( Procedures.ProcedureStart ps : procs.getProcedureStarts() ) {
+            ps.start = newAddress.get( index.get( ps.start ) );
+            ps.finish = newAddress.get( index.get( ps.finish ) );
+        }
+        procs.relocated();
+        return new CodePlusProcedures( newCode, procs );
+    }
+
+    /** Index of the destination of the BR_FALSE at index i, or null
+     * if its offset isn't loaded by the preceding instruction. */
+    private Integer branchDest( int i ) {
+        Integer value = constantAt( i - 1 );
+        if( value == null ) {
+            return null;
+        }
+        return index.get( address[i+1] + value );
+    }
+    /** Constant loaded by the instruction at index i, or null if
+     * it isn't a LOAD_CON of a constant (rather than a procedure),
+     * ZERO or ONE */
+    private Integer constantAt( int i ) {
+        if( i < 0 || i >= insts.size() ) {
+            return null;
+        }
+        Instruction inst = insts.get( i );
+        if( inst.getOp() == Operation.ZERO ) {
+            return 0;
+        } else if( inst.getOp() == Operation.ONE ) {
+            return 1;
+        }
+        if( !(inst instanceof Instruction.LoadConInstruction) ||
+                inst instanceof Instruction.ProcRefInstruction ) {
+            return null;
+        }
+        return ((Instruction.LoadConInstruction)inst).getValue();
+    }
+    /** Is the instruction at index i (part way through a sequence
+     * being fused) op and not an entry point? */
+    private boolean isOp( int i, Operation op ) {
+        return i < insts.size() && !entries.contains( i ) &&
+            insts.get( i ).getOp() == op;
+    }
+    /** Is the instruction at index i (part way through a sequence being
+     * fused) a LOAD_CON of a constant and not an entry point? */
+    private boolean isConstant( int i ) {
+        return constantAt( i ) != null && !entries.contains( i );
+    }
+
+    /** Choose the instruction replacing the longest sequence that can
+     * be fused starting at index i */
+    private Fused fuseAt( int i ) {
+        Operation op = insts.get( i ).getOp();
+        if( op == Operation.ZERO && isOp( i+1, Operation.LOAD_FRAME ) ) {
+            /* Non-local frame address: follow static links */
+            int j = i + 2;
+            while( isOp( j, Operation.LOAD_ABS ) ) {
+                j++;
+            }
+            int levels = j - i - 1;
+            if( isConstant( j ) && isOp( j+1, Operation.ADD ) &&
+                    isOp( j+2, Operation.TO_LOCAL ) &&
+                    isOp( j+3, Operation.LOAD_FRAME ) ) {
+                /* load of a non-local variable */
+                return new Fused( Operation.LOAD_UPLEVEL, i, j + 4,
+                        levels, constantAt( j ) );
+            }
+            if( levels == 1 ) {
+                return new Fused( Operation.LOAD_LOCAL, i, j, 0 );
+            }
+            return new Fused( Operation.LOAD_UPLEVEL, i, j, levels - 1, 0 );
+        }
+        if( op == Operation.ZERO && isConstant( i+1 ) &&
+                isOp( i+2, Operation.BR_FALSE ) ) {
+            Fused f = new Fused( Operation.JUMP, i, i + 3, 0 );
+            f.dest = branchDest( i+2 );
+            return f;
+        }
+        if( constantAt( i ) != null ) {
+            int value = constantAt( i );
+            if( isOp( i+1, Operation.BR_FALSE ) ) {
+                Fused f = new Fused( Operation.BR_FALSE_IMM, i, i + 2, 0 );
+                f.dest = branchDest( i+1 );
+                return f;
+            }
+            if( isOp( i+1, Operation.LOAD_FRAME ) ) {
+                return new Fused( Operation.LOAD_LOCAL, i, i + 2, value );
+            }
+            if( isOp( i+1, Operation.STORE_FRAME ) ) {
+                return new Fused( Operation.STORE_LOCAL, i, i + 2, value );
+            }
+            if( isOp( i+1, Operation.ADD ) ) {
+                return new Fused( Operation.ADD_IMM, i, i + 2, value );
+            }
+            if( i + 1 < insts.size() &&
+                    insts.get( i+1 ).getOp() == Operation.BR_FALSE ) {
+                /* offset for a BR_FALSE that is itself a destination */
+                Fused f = new Fused( Operation.LOAD_CON, i, i + 1, value );
+                f.dest = branchDest( i+1 );
+                return f;
+            }
+        }
+        return new Fused( op, i, i + 1 );
+    }
+}
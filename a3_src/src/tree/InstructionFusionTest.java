@@ -0,0 +1,90 @@
+package tree;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import machine.Instruction;
+import machine.Operation;
+import machine.StackMachine;
+
+/**
+ * class InstructionFusionTest - Junit test for InstructionFusion
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class InstructionFusionTest extends TestCase {
+
+    public InstructionFusionTest(String arg0) {
+        super(arg0);
+    }
+
+    private Code code;
+    private Procedures procs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        code = new Code();
+        code.generateOp( Operation.ZERO );
+        code.generateOp( Operation.ZERO );
+        code.generateOp( Operation.ZERO );
+        procs = new Procedures();
+        procs.addProcedureStart( "<main>", null,
+                StackMachine.CODE_START + code.size() );
+    }
+
+    private List<Instruction> fuse() {
+        procs.addProcedureFinish( StackMachine.CODE_START + code.size() );
+        CodePlusProcedures fused =
+            new InstructionFusion().fuse( new CodePlusProcedures( code, procs ) );
+        return fused.getInstructionList().getCode();
+    }
+    private void assertOp( Operation op, int operand, Instruction inst ) {
+        assertEquals( op, inst.getOp() );
+        assertEquals( operand,
+                ((Instruction.OperandInstruction)inst).getOperand( 0 ) );
+    }
+
+    /*
+     * Test that a loop is fused and its branches relocated.
+     */
+    public void testLoop() throws Exception {
+        Code body = new Code();
+        body.generateOp( Operation.ONE );
+        body.generateOp( Operation.POP );
+        code.genMemRef( 0, 3 );
+        code.generateOp( Operation.LOAD_FRAME );
+        code.genJumpIfFalse( body.size() + Code.SIZE_JUMP_ALWAYS );
+        code.append( body );
+        code.genJumpAlways( -(code.size() - 3 + Code.SIZE_JUMP_ALWAYS) );
+        code.generateOp( Operation.RETURN );
+        List<Instruction> insts = fuse();
+        assertEquals( 9, insts.size() );
+        assertOp( Operation.LOAD_LOCAL, 3, insts.get( 3 ) );
+        assertOp( Operation.BR_FALSE_IMM, 4, insts.get( 4 ) );
+        assertEquals( Operation.ONE, insts.get( 5 ).getOp() );
+        assertEquals( Operation.POP, insts.get( 6 ).getOp() );
+        assertOp( Operation.JUMP, -8, insts.get( 7 ) );
+        assertEquals( Operation.RETURN, insts.get( 8 ).getOp() );
+        assertProcedure( StackMachine.CODE_START + 3,
+                StackMachine.CODE_START + 12 );
+    }
+    /*
+     * Test that a sequence entered by a branch is not fused.
+     */
+    public void testBranchIntoSequence() throws Exception {
+        code.genLoadConstant( 3 );
+        code.generateOp( Operation.ADD );
+        code.genJumpIfFalse( -1 - Code.SIZE_JUMP_IF_FALSE );
+        code.generateOp( Operation.RETURN );
+        List<Instruction> insts = fuse();
+        assertEquals( 7, insts.size() );
+        assertEquals( Operation.LOAD_CON, insts.get( 3 ).getOp() );
+        assertOp( Operation.BR_FALSE_IMM, -3, insts.get( 5 ) );
+    }
+
+    private void assertProcedure( int start, int finish ) {
+        Procedures.ProcedureStart ps = procs.getProcedureStarts().get( 0 );
+        assertEquals( start, ps.getStart() );
+        assertEquals( finish, ps.getFinish() );
+    }
+}
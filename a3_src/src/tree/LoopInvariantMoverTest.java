@@ -0,0 +1,124 @@
+package tree;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class LoopInvariantMoverTest - Junit test for LoopInvariantMover
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class LoopInvariantMoverTest extends TestCase {
+
+    public LoopInvariantMoverTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+
+    private Scope mainScope;
+    private SymEntry.VarEntry i, k;
+    private StatementNode.ListNode mainBody;
+    private Tree.ProgramNode program;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mainScope = new Scope( null, 1 );
+        i = variable( "i" );
+        k = variable( "k" );
+        mainBody = new StatementNode.ListNode( POS );
+        Tree.BlockNode block =
+            new Tree.BlockNode( new DeclNode.DeclListNode(), mainBody );
+        block.setBlockLocals( mainScope );
+        program = new Tree.ProgramNode( null, block );
+    }
+
+    private SymEntry.VarEntry variable( String name ) {
+        SymEntry.VarEntry var = new SymEntry.VarEntry( name, POS, mainScope,
+                new Type.ReferenceType( Type.INTEGER_TYPE ) );
+        var.resolve();
+        return var;
+    }
+    private ExpNode con( int value ) {
+        return new ExpNode.ConstNode( POS, Type.INTEGER_TYPE, value );
+    }
+    private ExpNode value( SymEntry.VarEntry var ) {
+        return new ExpNode.DereferenceNode( Type.INTEGER_TYPE,
+                new ExpNode.VariableNode( POS, var ) );
+    }
+    private ExpNode binary( BinaryOperator op, ExpNode left, ExpNode right,
+            Type type ) {
+        ExpNode node = new ExpNode.BinaryOpNode( POS, op, left, right );
+        node.setType( type );
+        return node;
+    }
+    private StatementNode.AssignmentNode assign( SymEntry.VarEntry var,
+            ExpNode exp ) {
+        return new StatementNode.AssignmentNode( POS,
+                new ExpNode.VariableNode( POS, var ), exp );
+    }
+    private ExpNode less( ExpNode left, ExpNode right ) {
+        return binary( BinaryOperator.LESS_OP, left, right, Type.BOOLEAN_TYPE );
+    }
+
+    /*
+     * Test that in
+     *   while i < k * 2 do i := i + k * 2
+     * k * 2 is evaluated once, before the loop, into a new variable.
+     */
+    public void testMoved() {
+        StatementNode.AssignmentNode step = assign( i,
+                binary( BinaryOperator.ADD_OP, value( i ),
+                        binary( BinaryOperator.MUL_OP, value( k ), con( 2 ),
+                                Type.INTEGER_TYPE ), Type.INTEGER_TYPE ) );
+        StatementNode.WhileNode loop = new StatementNode.WhileNode( POS,
+                less( value( i ), binary( BinaryOperator.MUL_OP, value( k ),
+                        con( 2 ), Type.INTEGER_TYPE ) ), step );
+        mainBody.addStatement( loop );
+        int space = mainScope.getVariableSpace();
+
+        LoopInvariantMover mover = new LoopInvariantMover();
+        mover.visitProgramNode( program );
+        assertEquals( 1, mover.getMoved() );
+        assertEquals( space + 1, mainScope.getVariableSpace() );
+        List<StatementNode> statements =
+            ((StatementNode.ListNode)mainBody.getStatements().get( 0 ))
+                .getStatements();
+        assertEquals( 2, statements.size() );
+        StatementNode.AssignmentNode init =
+            (StatementNode.AssignmentNode)statements.get( 0 );
+        assertTrue( init.getExp() instanceof ExpNode.BinaryOpNode );
+        assertSame( loop, statements.get( 1 ) );
+        ExpNode moved = ((ExpNode.BinaryOpNode)step.getExp()).getRight();
+        assertTrue( moved instanceof ExpNode.DereferenceNode );
+        assertSame( ((ExpNode.VariableNode)init.getVariable()).getVariable(),
+                ((ExpNode.VariableNode)((ExpNode.DereferenceNode)moved)
+                        .getLeftValue()).getVariable() );
+    }
+    /*
+     * Test that nothing is moved out of
+     *   while i < 10 do begin i := i + k / i; k := k + 1 end
+     * as the division may fail and k changes in the loop.
+     */
+    public void testKept() {
+        StatementNode.ListNode body = new StatementNode.ListNode( POS );
+        body.addStatement( assign( i, binary( BinaryOperator.ADD_OP, value( i ),
+                binary( BinaryOperator.DIV_OP, value( k ), value( i ),
+                        Type.INTEGER_TYPE ), Type.INTEGER_TYPE ) ) );
+        body.addStatement( assign( k, binary( BinaryOperator.ADD_OP,
+                value( k ), con( 1 ), Type.INTEGER_TYPE ) ) );
+        StatementNode.WhileNode loop = new StatementNode.WhileNode( POS,
+                less( value( i ), con( 10 ) ), body );
+        mainBody.addStatement( loop );
+
+        LoopInvariantMover mover = new LoopInvariantMover();
+        mover.visitProgramNode( program );
+        assertEquals( 0, mover.getMoved() );
+        assertSame( loop, mainBody.getStatements().get( 0 ) );
+    }
+}
@@ -0,0 +1,365 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import machine.Instruction;
+import machine.Operation;
+import machine.StackMachine;
+import syms.SymEntry;
+
+/**
+ * class PeepholeOptimiser - rewrites generated code, replacing short
+ * sequences of instructions by cheaper ones:
+ *   NEGATE; NEGATE, DUP; POP, SWAP; SWAP and a constant that is popped
+ *   are removed;
+ *   the boolean negation after a comparison (NEGATE; ONE; ADD) becomes
+ *   ONE; XOR;
+ *   LOAD_CON 0 and LOAD_CON 1 become ZERO and ONE, and adding zero or
+ *   multiplying or dividing by one is removed;
+ *   branches to unconditional jumps go straight to their final
+ *   destination, jumps to the following instruction are removed, and
+ *   so is code following an unconditional jump that no branch reaches.
+ * Branch offsets are kept symbolic (as the instruction branched to)
+ * while the code is rewritten, and recomputed once it is laid out again.
+ * No sequence is rewritten if a branch enters it after its first
+ * instruction. Procedure start addresses and the procedure table are
+ * relocated to match, as for InstructionFusion.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class PeepholeOptimiser {
+
+    /** Limit on the number of passes over the code */
+    private static final int MAX_PASSES = 10;
+
+    /** An instruction of the code being rewritten */
+    private static class Item {
+        /** The instruction, or null for the end of the code */
+        Instruction inst;
+        /** For the LOAD_CON of a branch offset, the item branched to */
+        Item dest;
+        /** Has the instruction been removed? */
+        boolean removed = false;
+        /** For a removed item, the item that replaces it as a branch
+         * destination */
+        Item forward;
+
+        Item( Instruction inst ) {
+            this.inst = inst;
+        }
+        Operation op() {
+            return inst == null ? null : inst.getOp();
+        }
+    }
+
+    /** The instructions being rewritten, followed by the end of the code */
+    private List<Item> items;
+    /** Items that are branched to or that start or finish a procedure */
+    private Set<Item> labels;
+    /** Number of words removed */
+    private int removed = 0;
+
+    /** Optimise the code, updating its procedure table and the start
+     * addresses of the procedures it calls.
+     * @param code to be optimised, which must not yet be loaded
+     * @return optimised code, or code itself if its branches could not
+     *  all be determined (in which case nothing is changed)
+     */
+    public CodePlusProcedures optimise( CodePlusProcedures code ) {
+        List<Instruction> insts = code.getInstructionList().getCode();
+        int n = insts.size();
+        Map<Integer,Item> at = new HashMap<Integer,Item>();
+        items = new ArrayList<Item>();
+        int locn = StackMachine.CODE_START;
+        for( Instruction inst : insts ) {
+            Item item = new Item( inst );
+            items.add( item );
+            at.put( locn, item );
+            locn += inst.getOp().getSize();
+        }
+        Item end = new Item( null );
+        items.add( end );
+        at.put( locn, end );
+        /* Make the branches symbolic */
+        locn = StackMachine.CODE_START;
+        for( int i = 0; i < n; i++ ) {
+            locn += insts.get( i ).getOp().getSize();
+            if( insts.get( i ).getOp() == Operation.BR_FALSE ) {
+                Integer offset = constantAt( i - 1 );
+                Item dest = offset == null ? null : at.get( locn + offset );
+                if( dest == null ) {
+                    return code;    /* computed branch */
+                }
+                items.get( i - 1 ).dest = dest;
+            }
+        }
+        Procedures procs = code.getProcStarts();
+        Map<Procedures.ProcedureStart,Item> starts =
+            new HashMap<Procedures.ProcedureStart,Item>();
+        Map<Procedures.ProcedureStart,Item> finishes =
+            new HashMap<Procedures.ProcedureStart,Item>();
+        for( Procedures.ProcedureStart ps : procs.getProcedureStarts() ) {
+            if( !at.containsKey( ps.start ) || !at.containsKey( ps.finish ) ) {
+                return code;
+            }
+            starts.put( ps, at.get( ps.start ) );
+            finishes.put( ps, at.get( ps.finish ) );
+        }
+        Map<SymEntry.ProcedureEntry,Item> called =
+            new HashMap<SymEntry.ProcedureEntry,Item>();
+        for( Instruction inst : insts ) {
+            if( inst instanceof Instruction.ProcRefInstruction ) {
+                SymEntry.ProcedureEntry proc =
+                    ((Instruction.ProcRefInstruction)inst).getProc();
+                if( !at.containsKey( proc.getStart() ) ) {
+                    return code;
+                }
+                called.put( proc, at.get( proc.getStart() ) );
+            }
+        }
+        /* Rewrite until nothing more changes */
+        boolean changed = true;
+        for( int pass = 0; changed && pass < MAX_PASSES; pass++ ) {
+            labels = new HashSet<Item>( starts.values() );
+            labels.addAll( finishes.values() );
+            labels.addAll( called.values() );
+            for( Item item : items ) {
+                if( !item.removed && item.dest != null ) {
+                    item.dest = resolve( item.dest );
+                    labels.add( item.dest );
+                }
+            }
+            changed = threadJumps();
+            for( int i = 0; i < items.size(); i++ ) {
+                if( !items.get( i ).removed && rewriteAt( i ) ) {
+                    changed = true;
+                }
+            }
+            List<Item> remaining = new ArrayList<Item>();
+            for( Item item : items ) {
+                if( !item.removed ) {
+                    remaining.add( item );
+                }
+            }
+            items = remaining;
+        }
+        /* Lay out the code */
+        Map<Item,Integer> address = new HashMap<Item,Integer>();
+        locn = StackMachine.CODE_START;
+        for( Item item : items ) {
+            address.put( item, locn );
+            if( item.inst != null ) {
+                locn += item.op().getSize();
+            }
+        }
+        Code newCode = new Code();
+        for( int i = 0; i < items.size() - 1; i++ ) {
+            Item item = items.get( i );
+            if( item.dest != null ) {
+                /* Offset is from the end of the following BR_FALSE */
+                int from = address.get( items.get( i + 1 ) ) +
+                    Operation.BR_FALSE.getSize();
+                newCode.genLoadConstant(
+                        address.get( resolve( item.dest ) ) - from );
+            } else {
+                newCode.generateInstruction( item.inst );
+            }
+        }
+        for( Map.Entry<SymEntry.ProcedureEntry,Item> e : called.entrySet() ) {
+            e.getKey().setStart( address.get( resolve( e.getValue() ) ) );
+        }
+        for( Procedures.ProcedureStart ps : procs.getProcedureStarts() ) {
+            ps.start = address.get( resolve( starts.get( ps ) ) );
+            ps.finish = address.get( resolve( finishes.get( ps ) ) );
+        }
+        procs.relocated();
+        return new CodePlusProcedures( newCode, procs );
+    }
+    /** @return the number of words of code removed */
+    public int getRemoved() {
+        return removed;
+    }
+
+    /** Constant loaded by the original instruction at index i, or null if
+     * it isn't a LOAD_CON of a constant (rather than a procedure) */
+    private Integer constantAt( int i ) {
+        if( i < 0 ) {
+            return null;
+        }
+        return constant( items.get( i ) );
+    }
+    /** Constant loaded by item, or null if it isn't a LOAD_CON of a
+     * constant (rather than a procedure or branch offset) */
+    private static Integer constant( Item item ) {
+        Instruction inst = item.inst;
+        if( item.dest != null ||
+                !(inst instanceof Instruction.LoadConInstruction) ||
+                inst instanceof Instruction.ProcRefInstruction ) {
+            return null;
+        }
+        return ((Instruction.LoadConInstruction)inst).getValue();
+    }
+    /** The item that takes the place of item, if it has been removed */
+    private static Item resolve( Item item ) {
+        while( item.removed ) {
+            item = item.forward;
+        }
+        return item;
+    }
+    /** Index of the next item after index i that hasn't been removed */
+    private int next( int i ) {
+        do {
+            i++;
+        } while( items.get( i ).removed );
+        return i;
+    }
+    /** Is the instruction at index i (following the first of a sequence
+     * being rewritten) op, and not a label? */
+    private boolean isOp( int i, Operation op ) {
+        Item item = items.get( i );
+        return item.op() == op && !labels.contains( item );
+    }
+    /** Does an unconditional jump (ZERO; LOAD_CON offset; BR_FALSE)
+     * start at index i? */
+    private boolean isJump( int i ) {
+        if( items.get( i ).op() != Operation.ZERO ) {
+            return false;
+        }
+        int j = next( i );
+        if( items.get( j ).dest == null || labels.contains( items.get( j ) ) ) {
+            return false;
+        }
+        return isOp( next( j ), Operation.BR_FALSE );
+    }
+    /** Remove the count items starting at index i. Any branch to the
+     * first of them goes instead to the item following them.
+     * @return index of that item */
+    private int remove( int i, int count ) {
+        List<Item> gone = new ArrayList<Item>();
+        int j = i;
+        for( int k = 0; k < count; k++ ) {
+            gone.add( items.get( j ) );
+            j = next( j );
+        }
+        for( Item item : gone ) {
+            item.removed = true;
+            item.forward = items.get( j );
+            removed += item.op().getSize();
+        }
+        return j;
+    }
+    /** Replace the item at index i by one for inst */
+    private void replace( int i, Instruction inst ) {
+        removed += items.get( i ).op().getSize() - inst.getOp().getSize();
+        items.get( i ).inst = inst;
+    }
+
+    /** Make each branch to an unconditional jump branch to the jump's
+     * destination instead.
+     * @return whether any branch was changed */
+    private boolean threadJumps() {
+        Map<Item,Integer> index = new HashMap<Item,Integer>();
+        for( int i = 0; i < items.size(); i++ ) {
+            index.put( items.get( i ), i );
+        }
+        boolean changed = false;
+        for( Item item : items ) {
+            if( item.removed || item.dest == null ) {
+                continue;
+            }
+            /* Follow a chain of jumps (bounded, in case it loops) */
+            Item dest = item.dest;
+            for( int hops = 0; hops < items.size(); hops++ ) {
+                int d = index.get( dest );
+                if( dest.inst == null || !isJump( d ) ||
+                        items.get( next( d ) ) == item ) {
+                    break;
+                }
+                dest = resolve( items.get( next( d ) ).dest );
+            }
+            if( dest != item.dest ) {
+                item.dest = dest;
+                labels.add( dest );
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /** Rewrite the sequence starting at index i, if possible.
+     * @return whether it was rewritten */
+    private boolean rewriteAt( int i ) {
+        Item item = items.get( i );
+        if( item.inst == null ) {
+            return false;
+        }
+        Operation op = item.op();
+        int j = next( i );
+        if( isJump( i ) ) {
+            int br = next( j );
+            if( resolve( items.get( j ).dest ) == items.get( next( br ) ) ) {
+                /* Jump to the following instruction */
+                remove( i, 3 );
+                return true;
+            }
+            /* Remove code that can't be reached */
+            int k = next( br );
+            int count = 0;
+            for( int m = k; items.get( m ).inst != null &&
+                    !labels.contains( items.get( m ) ); m = next( m ) ) {
+                count++;
+            }
+            if( count > 0 ) {
+                remove( k, count );
+                return true;
+            }
+            return false;
+        }
+        if( item.dest != null ) {
+            if( isOp( j, Operation.BR_FALSE ) &&
+                    resolve( item.dest ) == items.get( next( j ) ) ) {
+                /* Conditional branch to the following instruction */
+                item.dest = null;
+                replace( i, new Instruction( Operation.POP ) );
+                remove( j, 1 );
+                return true;
+            }
+            return false;
+        }
+        if( (op == Operation.NEGATE && isOp( j, Operation.NEGATE )) ||
+            (op == Operation.DUP && isOp( j, Operation.POP )) ||
+            ((op == Operation.ZERO || op == Operation.ONE ||
+                constant( item ) != null) && isOp( j, Operation.POP )) ||
+            (op == Operation.SWAP && isOp( j, Operation.SWAP )) ) {
+            remove( i, 2 );
+            return true;
+        }
+        if( (op == Operation.EQUAL || op == Operation.LESS ||
+                op == Operation.LESSEQ) && isOp( j, Operation.NEGATE ) &&
+                isOp( next( j ), Operation.ONE ) &&
+                isOp( next( next( j ) ), Operation.ADD ) ) {
+            /* Boolean negation of the result of a comparison */
+            replace( j, new Instruction( Operation.ONE ) );
+            replace( next( j ), new Instruction( Operation.XOR ) );
+            remove( next( next( j ) ), 1 );
+            return true;
+        }
+        Integer value = constant( item );
+        if( value != null && (value == 0 || value == 1) ) {
+            replace( i, new Instruction(
+                    value == 0 ? Operation.ZERO : Operation.ONE ) );
+            return true;
+        }
+        if( (op == Operation.ZERO && isOp( j, Operation.ADD )) ||
+            (op == Operation.ONE && isOp( j, Operation.MPY )) ||
+            (op == Operation.ONE && isOp( j, Operation.DIV )) ) {
+            remove( i, 2 );
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package tree;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import machine.Instruction;
+import machine.Operation;
+import machine.StackMachine;
+
+/**
+ * class PeepholeOptimiserTest - Junit test for PeepholeOptimiser
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class PeepholeOptimiserTest extends TestCase {
+
+    public PeepholeOptimiserTest(String arg0) {
+        super(arg0);
+    }
+
+    private Code code;
+    private Procedures procs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        code = new Code();
+        code.generateOp( Operation.ZERO );
+        code.generateOp( Operation.ZERO );
+        code.generateOp( Operation.ZERO );
+        procs = new Procedures();
+        procs.addProcedureStart( "<main>", null,
+                StackMachine.CODE_START + code.size() );
+    }
+
+    private List<Instruction> optimise() {
+        procs.addProcedureFinish( StackMachine.CODE_START + code.size() );
+        CodePlusProcedures optimised = new PeepholeOptimiser().optimise(
+                new CodePlusProcedures( code, procs ) );
+        return optimised.getInstructionList().getCode();
+    }
+    private void assertOps( List<Instruction> insts, Operation... ops ) {
+        assertEquals( 3 + ops.length, insts.size() );
+        for( int i = 0; i < ops.length; i++ ) {
+            assertEquals( ops[i], insts.get( 3 + i ).getOp() );
+        }
+    }
+
+    /*
+     * Test that redundant pairs and identities are removed.
+     */
+    public void testRedundantPairs() {
+        code.genLoadConstant( 7 );
+        code.generateOp( Operation.NEGATE );
+        code.generateOp( Operation.NEGATE );
+        code.generateOp( Operation.DUP );
+        code.generateOp( Operation.POP );
+        code.genLoadConstant( 1 );
+        code.generateOp( Operation.MPY );
+        code.generateOp( Operation.WRITE );
+        code.generateOp( Operation.RETURN );
+        assertOps( optimise(), Operation.LOAD_CON, Operation.WRITE,
+                Operation.RETURN );
+    }
+    /*
+     * Test that a jump to the next instruction and the code it skips over
+     * are removed, and the procedure is relocated.
+     */
+    public void testJumps() {
+        code.generateOp( Operation.READ );
+        code.genJumpAlways( 1 );
+        code.generateOp( Operation.POP );
+        code.generateOp( Operation.WRITE );
+        code.generateOp( Operation.RETURN );
+        assertOps( optimise(), Operation.READ, Operation.WRITE,
+                Operation.RETURN );
+        Procedures.ProcedureStart ps = procs.getProcedureStarts().get( 0 );
+        assertEquals( StackMachine.CODE_START + 3, ps.getStart() );
+        assertEquals( StackMachine.CODE_START + 6, ps.getFinish() );
+    }
+}
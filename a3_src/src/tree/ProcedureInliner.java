@@ -0,0 +1,413 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import machine.StackMachine;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+import tree.Tree.*;
+
+/** class ProcedureInliner - Optimisation pass run between the static
+ * checker and the constant folder. It replaces each call of a small
+ * procedure that calls no other procedure by a copy of the procedure's
+ * body, run in the caller's frame.
+ * Each local variable and value parameter of the callee is given a fresh
+ * variable in the caller's scope (allocated by allocVariableSpace). The
+ * value parameters are assigned the actual parameters, evaluated in the
+ * same order as for a call, and the other locals are set to NULL_ADDR
+ * just as ALLOC_STACK would leave them. A reference parameter is replaced
+ * by its actual parameter, which must be a variable or reference
+ * parameter so that its address can't change during the call.
+ * References to non-local variables are left unchanged: the caller is
+ * within the scope of the callee's declaration and the code generator
+ * works out the static link from the level of the variable and the
+ * level of the code using it.
+ * Inlining is repeated until no more calls are replaced, so a procedure
+ * whose calls have all been inlined may be inlined in turn, but a
+ * recursive procedure never is.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ProcedureInliner implements TreeVisitor, StatementVisitor {
+
+    /** Largest procedure body, in tree nodes, that is inlined */
+    public final static int MAX_SIZE = 24;
+
+    /** Procedures that may be inlined in this round, by their entries */
+    private Map<SymEntry.ProcedureEntry,DeclNode.ProcedureNode> candidates;
+    /** Scope of the block whose body is being visited */
+    private Scope blockScope;
+    /** Variables allocated in blockScope for the callees' variables */
+    private Map<SymEntry.VarEntry,SymEntry.VarEntry> renamed;
+    /** Statement to replace the statement just visited */
+    private StatementNode replacement;
+    /** The number of calls inlined */
+    private int inlined = 0;
+
+    public ProcedureInliner() {
+        super();
+    }
+    /** @return the number of calls inlined */
+    public int getInlined() {
+        return inlined;
+    }
+
+    public void visitProgramNode( ProgramNode node ) {
+        int before;
+        do {
+            before = inlined;
+            candidates =
+                new HashMap<SymEntry.ProcedureEntry,DeclNode.ProcedureNode>();
+            findCandidates( node.getBlock() );
+            if( !candidates.isEmpty() ) {
+                node.getBlock().accept( this );
+            }
+        } while( inlined > before );
+    }
+    public void visitBlockNode( BlockNode node ) {
+        node.getProcedures().accept( this );
+        blockScope = node.getBlockLocals();
+        renamed = new HashMap<SymEntry.VarEntry,SymEntry.VarEntry>();
+        node.setBody( replace( node.getBody() ) );
+    }
+    public void visitDeclListNode( DeclNode.DeclListNode node ) {
+        for( DeclNode declaration : node.getDeclarations() ) {
+            declaration.accept( this );
+        }
+    }
+    public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+        node.getBlock().accept( this );
+    }
+
+    /** Add the procedures declared within block that may be inlined
+     * to the candidates */
+    private void findCandidates( BlockNode block ) {
+        for( DeclNode declaration :
+                block.getProcedures().getDeclarations() ) {
+            DeclNode.ProcedureNode proc = (DeclNode.ProcedureNode)declaration;
+            if( isCandidate( proc ) ) {
+                candidates.put( proc.getProcEntry(), proc );
+            }
+            findCandidates( proc.getBlock() );
+        }
+    }
+    /** @return whether proc declares no procedures, has single word
+     * value parameters and its body can be copied (so it makes no calls)
+     * and is small enough */
+    private boolean isCandidate( DeclNode.ProcedureNode proc ) {
+        SymEntry.ProcedureEntry entry = proc.getProcEntry();
+        if( !proc.getBlock().getProcedures().getDeclarations().isEmpty() ) {
+            return false;
+        }
+        for( SymEntry.ParamEntry param : entry.getType().getParams() ) {
+            if( param.getSpace() != 1 ) {
+                return false;
+            }
+        }
+        /* Copy into a scratch scope just to check the body */
+        Copier check = new Copier( entry, new Scope( null, 0 ),
+                new HashMap<SymEntry.VarEntry,SymEntry.VarEntry>(), null );
+        return check.copy( proc.getBlock().getBody() ) != null;
+    }
+    /** @return the statement to replace s */
+    private StatementNode replace( StatementNode s ) {
+        replacement = s;
+        s.accept( this );
+        return replacement;
+    }
+    /** @return the statements to replace the call, or null if the actual
+     * parameters don't allow it to be inlined */
+    private StatementNode inline( StatementNode.CallNode call,
+            DeclNode.ProcedureNode proc ) {
+        SymEntry.ProcedureEntry callee = proc.getProcEntry();
+        List<SymEntry.ParamEntry> formals = callee.getType().getParams();
+        List<ExpNode.ActualParamNode> actuals =
+            call.getActualParams().getActualParams();
+        Map<SymEntry.RefParamEntry,ExpNode> refs =
+            new HashMap<SymEntry.RefParamEntry,ExpNode>();
+        for( int i = 0; i < formals.size(); i++ ) {
+            ExpNode actual = actuals.get( i ).getCondition();
+            if( formals.get( i ) instanceof SymEntry.RefParamEntry ) {
+                if( !(actual instanceof ExpNode.VariableNode ||
+                        actual instanceof ExpNode.RefParamNode) ) {
+                    return null;
+                }
+                refs.put( (SymEntry.RefParamEntry)formals.get( i ), actual );
+            }
+        }
+        Copier copier = new Copier( callee, blockScope, renamed, refs );
+        StatementNode.ListNode result =
+            new StatementNode.ListNode( call.getPosition() );
+        /* Actual parameters are evaluated last to first, as for a call */
+        for( int i = formals.size() - 1; i >= 0; i-- ) {
+            SymEntry.ParamEntry formal = formals.get( i );
+            if( !(formal instanceof SymEntry.RefParamEntry) ) {
+                result.addStatement( new StatementNode.AssignmentNode(
+                        call.getPosition(),
+                        new ExpNode.VariableNode( call.getPosition(),
+                            copier.rename( formal ) ),
+                        actuals.get( i ).getCondition() ) );
+            }
+        }
+        StatementNode body = copier.copy( proc.getBlock().getBody() );
+        result.getStatements().addAll( copier.getInitialisations() );
+        result.addStatement( body );
+        return result;
+    }
+    /*************************************************
+     *  Statement node visit methods
+     *************************************************/
+    public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        // Nothing to inline
+    }
+    public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+        // Nothing to inline
+    }
+    public void visitWriteNode( StatementNode.WriteNode node ) {
+        // Nothing to inline
+    }
+    public void visitCallNode( StatementNode.CallNode node ) {
+        DeclNode.ProcedureNode proc = candidates.get( node.getEntry() );
+        if( proc != null ) {
+            StatementNode body = inline( node, proc );
+            if( body != null ) {
+                replacement = body;
+                inlined++;
+            }
+        }
+    }
+    public void visitStatementListNode( StatementNode.ListNode node ) {
+        List<StatementNode> statements = node.getStatements();
+        for( int i = 0; i < statements.size(); i++ ) {
+            statements.set( i, replace( statements.get( i ) ) );
+        }
+        replacement = node;
+    }
+    public void visitIfNode( StatementNode.IfNode node ) {
+        node.setThenStmt( replace( node.getThenStmt() ) );
+        node.setElseStmt( replace( node.getElseStmt() ) );
+        replacement = node;
+    }
+    public void visitWhileNode( StatementNode.WhileNode node ) {
+        node.setLoopStmt( replace( node.getLoopStmt() ) );
+        replacement = node;
+    }
+
+    /** class Copier - copies the body of a callee, renaming its local
+     * variables and replacing its reference parameters by the actual
+     * parameters.
+     */
+    private static class Copier implements StatementVisitor,
+                                            ExpTransform<ExpNode> {
+        /** Level of the callee's local scope */
+        private final int level;
+        /** Scope in which the renamed variables are allocated */
+        private final Scope scope;
+        /** Variables allocated in scope for the callee's variables */
+        private final Map<SymEntry.VarEntry,SymEntry.VarEntry> renamed;
+        /** Actual parameters for the reference parameters, or null if the
+         * copy is only to check that the body can be copied */
+        private final Map<SymEntry.RefParamEntry,ExpNode> refs;
+        /** Assignments setting the renamed locals to NULL_ADDR */
+        private final List<StatementNode> initialisations =
+            new ArrayList<StatementNode>();
+        /** Locals of the callee already initialised */
+        private final Set<SymEntry.VarEntry> initialised =
+            new HashSet<SymEntry.VarEntry>();
+        /** Copy of the statement just visited */
+        private StatementNode copied;
+        /** Number of nodes copied */
+        private int size = 0;
+        /** Whether every node could be copied */
+        private boolean copyable = true;
+
+        public Copier( SymEntry.ProcedureEntry callee, Scope scope,
+                Map<SymEntry.VarEntry,SymEntry.VarEntry> renamed,
+                Map<SymEntry.RefParamEntry,ExpNode> refs ) {
+            this.level = callee.getLocalScope().getLevel();
+            this.scope = scope;
+            this.renamed = renamed;
+            this.refs = refs;
+        }
+        /** @return a copy of s, or null if it can't be copied or is too
+         * large to inline */
+        public StatementNode copy( StatementNode s ) {
+            StatementNode result = copyStatement( s );
+            return copyable && size <= MAX_SIZE ? result : null;
+        }
+        /** @return the assignments initialising the locals used */
+        public List<StatementNode> getInitialisations() {
+            return initialisations;
+        }
+        /** @return the variable in scope standing for var */
+        public SymEntry.VarEntry rename( SymEntry.VarEntry var ) {
+            SymEntry.VarEntry local = renamed.get( var );
+            if( local == null ) {
+                local = new SymEntry.VarEntry( var.getIdent(),
+                        var.getPosition(), scope, var.getType() );
+                local.resolve();
+                renamed.put( var, local );
+            }
+            return local;
+        }
+        private StatementNode copyStatement( StatementNode s ) {
+            size++;
+            s.accept( this );
+            return copied;
+        }
+        private ExpNode copyExp( ExpNode exp ) {
+            size++;
+            return exp.transform( this );
+        }
+        /*************************************************
+         *  Statement node visit methods
+         *************************************************/
+        public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+            copyable = false;
+            copied = node;
+        }
+        public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+            copied = new StatementNode.AssignmentNode( node.getPosition(),
+                    copyExp( node.getVariable() ), copyExp( node.getExp() ) );
+        }
+        public void visitWriteNode( StatementNode.WriteNode node ) {
+            copied = new StatementNode.WriteNode( node.getPosition(),
+                    copyExp( node.getExp() ) );
+        }
+        public void visitCallNode( StatementNode.CallNode node ) {
+            copyable = false;
+            copied = node;
+        }
+        public void visitStatementListNode( StatementNode.ListNode node ) {
+            StatementNode.ListNode list =
+                new StatementNode.ListNode( node.getPosition() );
+            for( StatementNode s : node.getStatements() ) {
+                list.addStatement( copyStatement( s ) );
+            }
+            copied = list;
+        }
+        public void visitIfNode( StatementNode.IfNode node ) {
+            ExpNode cond = copyExp( node.getCondition() );
+            StatementNode thenStmt = copyStatement( node.getThenStmt() );
+            StatementNode elseStmt = copyStatement( node.getElseStmt() );
+            copied = new StatementNode.IfNode( node.getPosition(), cond,
+                    thenStmt, elseStmt );
+        }
+        public void visitWhileNode( StatementNode.WhileNode node ) {
+            ExpNode cond = copyExp( node.getCondition() );
+            StatementNode loopStmt = copyStatement( node.getLoopStmt() );
+            copied = new StatementNode.WhileNode( node.getPosition(), cond,
+                    loopStmt );
+        }
+        /*************************************************
+         *  Expression node transform methods
+         *************************************************/
+        public ExpNode visitErrorExpNode( ExpNode.ErrorNode node ) {
+            copyable = false;
+            return node;
+        }
+        public ExpNode visitConstNode( ExpNode.ConstNode node ) {
+            return new ExpNode.ConstNode( node.getPosition(), node.getType(),
+                    node.getValue() );
+        }
+        public ExpNode visitIdentifierNode( ExpNode.IdentifierNode node ) {
+            copyable = false;
+            return node;
+        }
+        public ExpNode visitVariableNode( ExpNode.VariableNode node ) {
+            SymEntry.VarEntry var = node.getVariable();
+            if( var.getLevel() == level ) {
+                /* A local variable or value parameter of the callee */
+                Type baseType = var.getType().getBaseType();
+                if( baseType.getSpace() != 1 ) {
+                    copyable = false;
+                    return node;
+                }
+                SymEntry.VarEntry local = rename( var );
+                if( !(var instanceof SymEntry.ParamEntry) &&
+                        initialised.add( var ) ) {
+                    initialisations.add( new StatementNode.AssignmentNode(
+                            node.getPosition(),
+                            new ExpNode.VariableNode( node.getPosition(),
+                                local ),
+                            new ExpNode.ConstNode( node.getPosition(),
+                                baseType, StackMachine.NULL_ADDR ) ) );
+                }
+                var = local;
+            }
+            return new ExpNode.VariableNode( node.getPosition(), var );
+        }
+        public ExpNode visitReadNode( ExpNode.ReadNode node ) {
+            ExpNode read = new ExpNode.ReadNode( node.getPosition() );
+            read.setType( node.getType() );
+            return read;
+        }
+        public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+            ExpNode left = copyExp( node.getLeft() );
+            ExpNode right = copyExp( node.getRight() );
+            ExpNode binary = new ExpNode.BinaryOpNode( node.getPosition(),
+                    node.getOp(), left, right );
+            binary.setType( node.getType() );
+            return binary;
+        }
+        public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+            ExpNode unary = new ExpNode.UnaryOpNode( node.getPosition(),
+                    node.getOp(), copyExp( node.getSubExp() ) );
+            unary.setType( node.getType() );
+            return unary;
+        }
+        public ExpNode visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+            List<ExpNode> args = new ArrayList<ExpNode>();
+            for( ExpNode arg : node.getArgs() ) {
+                args.add( copyExp( arg ) );
+            }
+            ExpNode arguments =
+                new ExpNode.ArgumentsNode( node.getPosition(), args );
+            arguments.setType( node.getType() );
+            return arguments;
+        }
+        public ExpNode visitDereferenceNode( ExpNode.DereferenceNode node ) {
+            return new ExpNode.DereferenceNode( node.getType(),
+                    copyExp( node.getLeftValue() ) );
+        }
+        public ExpNode visitNarrowSubrangeNode(
+                ExpNode.NarrowSubrangeNode node ) {
+            return new ExpNode.NarrowSubrangeNode( node.getPosition(),
+                    node.getType(), copyExp( node.getExp() ) );
+        }
+        public ExpNode visitWidenSubrangeNode(
+                ExpNode.WidenSubrangeNode node ) {
+            return new ExpNode.WidenSubrangeNode( node.getPosition(),
+                    node.getType(), copyExp( node.getExp() ) );
+        }
+        public ExpNode visitActualParamNode( ExpNode.ActualParamNode node ) {
+            copyable = false;
+            return node;
+        }
+        public ExpNode visitActualParamListNode(
+                ExpNode.ActualParamListNode node ) {
+            copyable = false;
+            return node;
+        }
+        public ExpNode visitRefParamNode( ExpNode.RefParamNode node ) {
+            SymEntry.RefParamEntry param = node.getVariable();
+            if( param.getLevel() != level ) {
+                /* Only the callee's own parameters can be replaced */
+                copyable = false;
+                return node;
+            }
+            ExpNode actual = refs == null ? node : refs.get( param );
+            if( actual instanceof ExpNode.VariableNode ) {
+                return new ExpNode.VariableNode( node.getPosition(),
+                        ((ExpNode.VariableNode)actual).getVariable() );
+            }
+            return new ExpNode.RefParamNode( node.getPosition(),
+                    ((ExpNode.RefParamNode)actual).getVariable() );
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package tree;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import machine.StackMachine;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class ProcedureInlinerTest - Junit test for ProcedureInliner
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ProcedureInlinerTest extends TestCase {
+
+    public ProcedureInlinerTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+    private final static Type.ReferenceType REF_INT =
+        new Type.ReferenceType( Type.INTEGER_TYPE );
+
+    private Scope mainScope;
+    private SymEntry.VarEntry x;
+    private DeclNode.DeclListNode procedures;
+    private StatementNode.ListNode mainBody;
+    private Tree.ProgramNode program;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mainScope = new Scope( null, 1 );
+        x = new SymEntry.VarEntry( "x", POS, mainScope, REF_INT );
+        x.resolve();
+        procedures = new DeclNode.DeclListNode();
+        mainBody = new StatementNode.ListNode( POS );
+        Tree.BlockNode block = new Tree.BlockNode( procedures, mainBody );
+        block.setBlockLocals( mainScope );
+        program = new Tree.ProgramNode( null, block );
+    }
+
+    private ExpNode value( ExpNode lval ) {
+        return new ExpNode.DereferenceNode( Type.INTEGER_TYPE, lval );
+    }
+    private StatementNode assign( ExpNode lval, ExpNode exp ) {
+        return new StatementNode.AssignmentNode( POS, lval, exp );
+    }
+    private SymEntry.ProcedureEntry procedure( String name, Scope scope,
+            StatementNode body ) {
+        SymEntry.ProcedureEntry entry =
+            new SymEntry.ProcedureEntry( name, POS, mainScope );
+        entry.setLocalScope( scope );
+        Tree.BlockNode block =
+            new Tree.BlockNode( new DeclNode.DeclListNode(), body );
+        block.setBlockLocals( scope );
+        procedures.addDeclaration( new DeclNode.ProcedureNode( entry, block ) );
+        return entry;
+    }
+    private StatementNode.CallNode call( SymEntry.ProcedureEntry entry,
+            ExpNode... actuals ) {
+        ExpNode.ActualParamListNode params =
+            new ExpNode.ActualParamListNode( POS );
+        for( ExpNode actual : actuals ) {
+            params.addActualParam( new ExpNode.ActualParamNode( POS, actual ) );
+        }
+        StatementNode.CallNode node =
+            new StatementNode.CallNode( POS, entry.getIdent(), params );
+        node.setEntry( entry );
+        return node;
+    }
+
+    /*
+     * Test that a call of
+     *   procedure p( a: int, ref r: int ) = var t: int; t := a; r := t
+     * is replaced by fresh variables of the caller and the body, with the
+     * reference parameter replaced by the actual parameter.
+     */
+    public void testInline() {
+        Scope pScope = new Scope( mainScope, 2 );
+        SymEntry.ParamEntry a = new SymEntry.ParamEntry( "a", POS, pScope,
+                REF_INT );
+        a.setOffset( -2 );
+        SymEntry.RefParamEntry r = new SymEntry.RefParamEntry( "r", POS,
+                pScope, REF_INT );
+        r.setOffset( -1 );
+        SymEntry.VarEntry t = new SymEntry.VarEntry( "t", POS, pScope,
+                REF_INT );
+        t.resolve();
+        StatementNode.ListNode body = new StatementNode.ListNode( POS );
+        body.addStatement( assign( new ExpNode.VariableNode( POS, t ),
+                value( new ExpNode.VariableNode( POS, a ) ) ) );
+        body.addStatement( assign( new ExpNode.RefParamNode( POS, r ),
+                value( new ExpNode.VariableNode( POS, t ) ) ) );
+        SymEntry.ProcedureEntry p = procedure( "p", pScope, body );
+        p.getType().getParams().add( a );
+        p.getType().getParams().add( r );
+        mainBody.addStatement( call( p,
+                new ExpNode.ConstNode( POS, Type.INTEGER_TYPE, 5 ),
+                new ExpNode.VariableNode( POS, x ) ) );
+
+        ProcedureInliner inliner = new ProcedureInliner();
+        inliner.visitProgramNode( program );
+        assertEquals( 1, inliner.getInlined() );
+        /* x, a and t are all in main's frame */
+        assertEquals( 3, mainScope.getVariableSpace() );
+        List<StatementNode> inlined = ((StatementNode.ListNode)
+                mainBody.getStatements().get( 0 )).getStatements();
+        assertEquals( 3, inlined.size() );
+        StatementNode.AssignmentNode param =
+            (StatementNode.AssignmentNode)inlined.get( 0 );
+        SymEntry.VarEntry newA =
+            ((ExpNode.VariableNode)param.getVariable()).getVariable();
+        assertEquals( 1, newA.getLevel() );
+        assertEquals( 5, ((ExpNode.ConstNode)param.getExp()).getValue() );
+        StatementNode.AssignmentNode init =
+            (StatementNode.AssignmentNode)inlined.get( 1 );
+        assertEquals( StackMachine.NULL_ADDR,
+                ((ExpNode.ConstNode)init.getExp()).getValue() );
+        StatementNode.AssignmentNode last = (StatementNode.AssignmentNode)
+            ((StatementNode.ListNode)inlined.get( 2 )).getStatements().get( 1 );
+        assertSame( x, ((ExpNode.VariableNode)last.getVariable())
+                .getVariable() );
+    }
+    /*
+     * Test that a recursive procedure is not inlined.
+     */
+    public void testRecursive() {
+        Scope pScope = new Scope( mainScope, 2 );
+        StatementNode.ListNode body = new StatementNode.ListNode( POS );
+        SymEntry.ProcedureEntry p = procedure( "p", pScope, body );
+        body.addStatement( new StatementNode.IfNode( POS,
+                value( new ExpNode.VariableNode( POS, x ) ),
+                call( p ),
+                new StatementNode.WriteNode( POS,
+                        value( new ExpNode.VariableNode( POS, x ) ) ) ) );
+        mainBody.addStatement( call( p ) );
+
+        ProcedureInliner inliner = new ProcedureInliner();
+        inliner.visitProgramNode( program );
+        assertEquals( 0, inliner.getInlined() );
+        assertTrue( mainBody.getStatements().get( 0 )
+                instanceof StatementNode.CallNode );
+    }
+}
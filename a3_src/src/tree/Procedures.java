@@ -1,11 +1,14 @@
 package tree;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import source.ErrorHandler;
 import source.Severity;
 import syms.Scope;
+import syms.SymEntry;
 
 /** 
  * class Procedures - code for each procedure and start and finish
@@ -18,6 +21,9 @@ public class Procedures {
     public class ProcedureStart {
         String procName;
         Scope locals;
+        /** Offsets of the local variables, or null until needed if they
+         * are to be taken from the scope */
+        Map<String,Integer> variables;
         int start, finish;
         
         ProcedureStart( String procName, Scope locals, int start ) {
@@ -26,18 +32,50 @@ public class Procedures {
             this.locals = locals;
             this.start = start;
         }
+        public String getProcName() {
+            return procName;
+        }
+        /** @return the scope of the procedure, or null if the table was
+         * read from an object file */
         public Scope getLocals() {
             return locals;
         }
+        /** @return the offset of each local variable from the frame
+         * pointer, in the order of the entries of the scope */
+        public Map<String,Integer> getVariables() {
+            if( variables == null ) {
+                variables = new LinkedHashMap<String,Integer>();
+                if( locals != null ) {
+                    for( SymEntry entry : locals.getEntries() ) {
+                        if( entry instanceof SymEntry.VarEntry ) {
+                            variables.put( entry.getIdent(),
+                                ((SymEntry.VarEntry)entry).getOffset() );
+                        }
+                    }
+                }
+            }
+            return variables;
+        }
+        public int getStart() {
+            return start;
+        }
+        public int getFinish() {
+            return finish;
+        }
         @Override
         public String toString() {
             return procName + " " + start + " : " + finish;
         }
     }
     private List<ProcedureStart> procStarts;
+    /** Procedure containing each address from base, or null until the
+     * index is built */
+    private ProcedureStart[] procAt;
+    /** Start of the first procedure and finish of the last */
+    private int base, limit;
     
     public Procedures() {
-        procStarts = new LinkedList<ProcedureStart>();
+        procStarts = new ArrayList<ProcedureStart>();
     }
     public void addProcedureStart( String procName, Scope locals, int start ) {
         if( ! procStarts.isEmpty() ) {
@@ -46,27 +84,62 @@ public class Procedures {
             assert previous.finish == start;
         }
         procStarts.add( new ProcedureStart( procName, locals, start ) );
+        procAt = null;
     }
     public void addProcedureFinish( int finish ) {
         assert ! procStarts.isEmpty() &&
             procStarts.get( procStarts.size() - 1 ).start <= finish;
         procStarts.get( procStarts.size() -1 ).finish = finish;
+        procAt = null;
+    }
+    /** Add a procedure whose local variables are given by their offsets
+     * rather than by a scope, as when loading an object file */
+    public void addProcedure( String procName, 
+            Map<String,Integer> variables, int start, int finish ) {
+        addProcedureStart( procName, null, start );
+        addProcedureFinish( finish );
+        procStarts.get( procStarts.size() - 1 ).variables = variables;
+    }
+    /** Note that the start and finish addresses have been changed */
+    void relocated() {
+        procAt = null;
+    }
+    public List<ProcedureStart> getProcedureStarts() {
+        return procStarts;
     }
+    /** Build the index from addresses to procedures, once the code is
+     * complete, so that getProcedure is a single array access */
+    public void index() {
+        if( procStarts.isEmpty() ) {
+            base = limit = 0;
+            procAt = new ProcedureStart[0];
+            return;
+        }
+        base = procStarts.get(0).start;
+        limit = procStarts.get(procStarts.size()-1).finish;
+        procAt = new ProcedureStart[ limit - base ];
+        for( ProcedureStart ps : procStarts ) {
+            for( int locn = ps.start; locn < ps.finish; locn++ ) {
+                procAt[ locn - base ] = ps;
+            }
+        }
+    }
+    /** The procedure containing pc, found in constant time */
     public ProcedureStart getProcedure( int pc ) {
-        if( pc < procStarts.get(0).start ||
-            procStarts.get(procStarts.size()-1).finish <= pc ) {
+        if( procAt == null ) {
+            index();
+        }
+        if( pc < base || limit <= pc ) {
             // Must be in main program setup or finalization code
             return null;
         }
-        for( ProcedureStart ps : procStarts ) {
-            if( pc < ps.finish ) {
-                return ps;
-            }
+        ProcedureStart ps = procAt[ pc - base ];
+        if( ps == null ) {
+            // Can't get here
+            ErrorHandler.getErrorHandler().errorMessage(
+                    "getProcedure failed assertion 2", Severity.FATAL );
         }
-        // Can't get here
-        ErrorHandler.getErrorHandler().errorMessage(
-                "getProcedure failed assertion 2", Severity.FATAL );
-        return null;
+        return ps;
     }
     @Override
     public String toString() {
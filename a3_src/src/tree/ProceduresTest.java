@@ -0,0 +1,51 @@
+package tree;
+
+import junit.framework.TestCase;
+
+/**
+ * class ProceduresTest - Junit test for Procedures
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class ProceduresTest extends TestCase {
+
+    public ProceduresTest(String arg0) {
+        super(arg0);
+    }
+
+    private Procedures procs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        procs = new Procedures();
+        procs.addProcedureStart( "p", null, 1003 );
+        procs.addProcedureFinish( 1010 );
+        procs.addProcedureStart( "q", null, 1010 );
+        procs.addProcedureFinish( 1011 );
+        procs.addProcedureStart( "<main>", null, 1011 );
+        procs.addProcedureFinish( 1020 );
+    }
+
+    /*
+     * Test method for 'tree.Procedures.getProcedure(int)'
+     */
+    public void testGetProcedure() {
+        assertNull( procs.getProcedure( 1002 ) );
+        assertEquals( "p", procs.getProcedure( 1003 ).getProcName() );
+        assertEquals( "p", procs.getProcedure( 1009 ).getProcName() );
+        assertEquals( "q", procs.getProcedure( 1010 ).getProcName() );
+        assertEquals( "<main>", procs.getProcedure( 1011 ).getProcName() );
+        assertEquals( "<main>", procs.getProcedure( 1019 ).getProcName() );
+        assertNull( procs.getProcedure( 1020 ) );
+    }
+    /*
+     * Test that the index follows procedures added after it is built.
+     */
+    public void testIndexRebuilt() {
+        procs.index();
+        procs.addProcedureStart( "r", null, 1020 );
+        procs.addProcedureFinish( 1025 );
+        assertEquals( "r", procs.getProcedure( 1024 ).getProcName() );
+        assertEquals( "<main>", procs.getProcedure( 1019 ).getProcName() );
+    }
+}
@@ -0,0 +1,502 @@
+package tree;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import machine.StackMachine;
+import syms.SymEntry;
+import syms.Type;
+import tree.Tree.*;
+
+/** class RangeAnalyser - Optimisation pass run after the constant folder.
+ * It works out a range of values for each integer expression and removes
+ * the bounds check when narrowing a value whose range is within the
+ * subrange.
+ * Ranges come from constants, the types of variables, the arithmetic
+ * operators, and, for the local variables of the procedure being
+ * analysed, the values assigned and the conditions of if and while
+ * statements that were tested to reach a statement.
+ * Every value stored in a subrange variable has been checked, but a
+ * variable that has never been assigned holds NULL_ADDR, so the type of
+ * a variable only gives its range for a local variable (or value
+ * parameter) assigned on every path to the use. The value of a parameter
+ * is not checked at the call, so the caller may have passed NULL_ADDR
+ * from an unassigned variable. Any other variable, and the variable a
+ * reference parameter refers to, may hold any value.
+ * A local variable can only be changed other than by an assignment while
+ * a call is made (by a nested procedure, or as a reference parameter), so
+ * everything known about local variables is forgotten at a call. At the
+ * start of a loop only the variables not assigned in its body (and none
+ * if it makes a call) keep their ranges, so the body needs to be
+ * analysed only once.
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class RangeAnalyser implements TreeVisitor, StatementVisitor,
+                                        ExpTransform<ExpNode> {
+
+    /** A range of integer values lower..upper */
+    static class Range {
+        /** Range of any integer value */
+        final static Range ALL =
+            new Range( Integer.MIN_VALUE, Integer.MAX_VALUE );
+
+        final int lower, upper;
+
+        Range( int lower, int upper ) {
+            this.lower = lower;
+            this.upper = upper;
+        }
+        /** @return the range lower..upper, or any value if it doesn't fit
+         * in an int (as the arithmetic may then have wrapped) */
+        static Range of( long lower, long upper ) {
+            if( lower < Integer.MIN_VALUE || upper > Integer.MAX_VALUE ) {
+                return ALL;
+            }
+            return new Range( (int)lower, (int)upper );
+        }
+        /** @return the range of the values of a scalar type */
+        static Range of( Type type ) {
+            if( type instanceof Type.ScalarType ) {
+                Type.ScalarType scalar = (Type.ScalarType)type;
+                return new Range( scalar.getLower(), scalar.getUpper() );
+            }
+            return ALL;
+        }
+        boolean within( Range other ) {
+            return other.lower <= lower && upper <= other.upper;
+        }
+        /** @return the values in both ranges, or null if there are none */
+        Range meet( long lower, long upper ) {
+            lower = Math.max( lower, this.lower );
+            upper = Math.min( upper, this.upper );
+            return lower <= upper ? new Range( (int)lower, (int)upper ) : null;
+        }
+        /** @return the smallest range holding the values of both */
+        Range join( Range other ) {
+            return new Range( Math.min( lower, other.lower ),
+                    Math.max( upper, other.upper ) );
+        }
+        @Override
+        public String toString() {
+            return lower + ".." + upper;
+        }
+    }
+
+    /** The number of bounds checks removed */
+    private int removed = 0;
+    /** Static level of the block being analysed */
+    private int level;
+    /** Ranges of the local variables known at the current point, or null
+     * if the current point can't be reached. A local variable that isn't
+     * in the map has the range of its type if it has been assigned. */
+    private Map<SymEntry.VarEntry,Range> ranges =
+        new HashMap<SymEntry.VarEntry,Range>();
+    /** The local variables assigned on every path to the current point */
+    private Set<SymEntry.VarEntry> assigned = new HashSet<SymEntry.VarEntry>();
+
+    public RangeAnalyser() {
+        super();
+    }
+    /** @return the number of bounds checks removed */
+    public int getRemoved() {
+        return removed;
+    }
+
+    public void visitProgramNode( ProgramNode node ) {
+        node.getBlock().accept( this );
+    }
+    public void visitBlockNode( BlockNode node ) {
+        node.getProcedures().accept( this );
+        level = node.getBlockLocals().getLevel();
+        ranges = new HashMap<SymEntry.VarEntry,Range>();
+        assigned = new HashSet<SymEntry.VarEntry>();
+        node.getBody().accept( this );
+    }
+    public void visitDeclListNode( DeclNode.DeclListNode node ) {
+        for( DeclNode declaration : node.getDeclarations() ) {
+            declaration.accept( this );
+        }
+    }
+    public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+        node.getBlock().accept( this );
+    }
+    /*************************************************
+     *  Statement node visit methods
+     *************************************************/
+    public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        // Nothing to analyse
+    }
+    public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+        node.setExp( node.getExp().transform( this ) );
+        SymEntry.VarEntry var = localVariable( node.getVariable() );
+        if( var != null ) {
+            assigned.add( var );
+            if( ranges != null ) {
+                ranges.put( var, range( node.getExp() ) );
+            }
+        }
+    }
+    public void visitWriteNode( StatementNode.WriteNode node ) {
+        node.setExp( node.getExp().transform( this ) );
+    }
+    public void visitCallNode( StatementNode.CallNode node ) {
+        node.getActualParams().transform( this );
+        if( ranges != null ) {
+            ranges.clear();
+        }
+    }
+    public void visitStatementListNode( StatementNode.ListNode node ) {
+        for( StatementNode s : node.getStatements() ) {
+            s.accept( this );
+        }
+    }
+    public void visitIfNode( StatementNode.IfNode node ) {
+        node.setCondition( node.getCondition().transform( this ) );
+        Map<SymEntry.VarEntry,Range> before = ranges;
+        Set<SymEntry.VarEntry> assignedBefore =
+            new HashSet<SymEntry.VarEntry>( assigned );
+        ranges = refine( before, node.getCondition(), true );
+        node.getThenStmt().accept( this );
+        Map<SymEntry.VarEntry,Range> afterThen = ranges;
+        Set<SymEntry.VarEntry> assignedThen = assigned;
+        ranges = refine( before, node.getCondition(), false );
+        assigned = assignedBefore;
+        node.getElseStmt().accept( this );
+        ranges = join( afterThen, ranges );
+        assigned.retainAll( assignedThen );
+    }
+    public void visitWhileNode( StatementNode.WhileNode node ) {
+        /* The ranges at the start of every iteration */
+        if( ranges != null ) {
+            Set<SymEntry.VarEntry> assigned = new HashSet<SymEntry.VarEntry>();
+            if( assigns( node.getLoopStmt(), assigned ) ) {
+                ranges.keySet().removeAll( assigned );
+            } else {
+                ranges.clear();
+            }
+        }
+        node.setCondition( node.getCondition().transform( this ) );
+        Map<SymEntry.VarEntry,Range> start = ranges;
+        /* The body may not be run at all */
+        Set<SymEntry.VarEntry> assignedBefore =
+            new HashSet<SymEntry.VarEntry>( assigned );
+        ranges = refine( start, node.getCondition(), true );
+        node.getLoopStmt().accept( this );
+        ranges = refine( start, node.getCondition(), false );
+        assigned = assignedBefore;
+    }
+    /*************************************************
+     *  Expression node transform methods
+     *************************************************/
+    public ExpNode visitErrorExpNode( ExpNode.ErrorNode node ) {
+        return node;
+    }
+    public ExpNode visitConstNode( ExpNode.ConstNode node ) {
+        return node;
+    }
+    public ExpNode visitIdentifierNode( ExpNode.IdentifierNode node ) {
+        return node;
+    }
+    public ExpNode visitVariableNode( ExpNode.VariableNode node ) {
+        return node;
+    }
+    public ExpNode visitReadNode( ExpNode.ReadNode node ) {
+        return node;
+    }
+    public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+        node.setLeft( node.getLeft().transform( this ) );
+        node.setRight( node.getRight().transform( this ) );
+        return node;
+    }
+    public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+        node.setSubExp( node.getSubExp().transform( this ) );
+        return node;
+    }
+    public ExpNode visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+        for( int i = 0; i < node.getArgs().size(); i++ ) {
+            node.getArgs().set( i, node.getArgs().get( i ).transform( this ) );
+        }
+        return node;
+    }
+    public ExpNode visitDereferenceNode( ExpNode.DereferenceNode node ) {
+        node.setLeftValue( node.getLeftValue().transform( this ) );
+        return node;
+    }
+    /** The bounds check is dropped when the value narrowed is known to be
+     * within the subrange */
+    public ExpNode visitNarrowSubrangeNode( ExpNode.NarrowSubrangeNode node ) {
+        ExpNode exp = node.getExp().transform( this );
+        if( range( exp ).within( Range.of( node.getSubrangeType() ) ) ) {
+            removed++;
+            return exp;
+        }
+        node.setExp( exp );
+        return node;
+    }
+    public ExpNode visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+        node.setExp( node.getExp().transform( this ) );
+        return node;
+    }
+    public ExpNode visitActualParamNode( ExpNode.ActualParamNode node ) {
+        node.setCondition( node.getCondition().transform( this ) );
+        return node;
+    }
+    public ExpNode visitActualParamListNode(
+            ExpNode.ActualParamListNode node ) {
+        for( ExpNode.ActualParamNode p : node.getActualParams() ) {
+            p.transform( this );
+        }
+        return node;
+    }
+    public ExpNode visitRefParamNode( ExpNode.RefParamNode node ) {
+        return node;
+    }
+
+    /** @return the range of the values of exp at the current point */
+    Range range( ExpNode exp ) {
+        if( exp instanceof ExpNode.ConstNode ) {
+            int value = ((ExpNode.ConstNode)exp).getValue();
+            return new Range( value, value );
+        } else if( exp instanceof ExpNode.DereferenceNode ) {
+            ExpNode lval = ((ExpNode.DereferenceNode)exp).getLeftValue();
+            SymEntry.VarEntry var = localVariable( lval );
+            if( var != null && ranges != null && ranges.containsKey( var ) ) {
+                return ranges.get( var );
+            }
+            if( isInitialised( lval ) ) {
+                return Range.of( exp.getType() );
+            }
+            return Range.ALL;
+        } else if( exp instanceof ExpNode.NarrowSubrangeNode ) {
+            /* After the check the value is within the subrange */
+            ExpNode.NarrowSubrangeNode narrow = (ExpNode.NarrowSubrangeNode)exp;
+            Range subrange = Range.of( narrow.getSubrangeType() );
+            Range both = range( narrow.getExp() ).meet( subrange.lower,
+                    subrange.upper );
+            return both != null ? both : subrange;
+        } else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+            return range( ((ExpNode.WidenSubrangeNode)exp).getExp() );
+        } else if( exp instanceof ExpNode.UnaryOpNode ) {
+            Range sub = range( ((ExpNode.UnaryOpNode)exp).getSubExp() );
+            return Range.of( -(long)sub.upper, -(long)sub.lower );
+        } else if( exp instanceof ExpNode.BinaryOpNode ) {
+            ExpNode.BinaryOpNode binary = (ExpNode.BinaryOpNode)exp;
+            Range left = range( binary.getLeft() );
+            Range right = range( binary.getRight() );
+            switch( binary.getOp() ) {
+            case ADD_OP:
+                return Range.of( (long)left.lower + right.lower,
+                        (long)left.upper + right.upper );
+            case SUB_OP:
+                return Range.of( (long)left.lower - right.upper,
+                        (long)left.upper - right.lower );
+            case MUL_OP:
+                return corners( binary.getOp(), left, right );
+            case DIV_OP:
+                if( right.lower > 0 || right.upper < 0 ) {
+                    return corners( binary.getOp(), left, right );
+                }
+                return Range.ALL;
+            default:
+                /* A comparison */
+                return Range.of( Type.BOOLEAN_TYPE );
+            }
+        }
+        return Range.ALL;
+    }
+    /** @return the range of the operator applied to the bounds of the
+     * operands, which holds all its values when it is monotonic in each
+     * operand (as division is if the divisor can't be zero) */
+    private static Range corners( BinaryOperator op, Range left,
+            Range right ) {
+        long[] values = {
+            apply( op, left.lower, right.lower ),
+            apply( op, left.lower, right.upper ),
+            apply( op, left.upper, right.lower ),
+            apply( op, left.upper, right.upper ) };
+        long lower = values[0], upper = values[0];
+        for( long value : values ) {
+            lower = Math.min( lower, value );
+            upper = Math.max( upper, value );
+        }
+        return Range.of( lower, upper );
+    }
+    private static long apply( BinaryOperator op, long left, long right ) {
+        return op == BinaryOperator.MUL_OP ? left * right : left / right;
+    }
+    /** @return the local variable of the current block that lval refers
+     * to, or null if it isn't one */
+    private SymEntry.VarEntry localVariable( ExpNode lval ) {
+        if( lval instanceof ExpNode.VariableNode ) {
+            SymEntry.VarEntry var = ((ExpNode.VariableNode)lval).getVariable();
+            if( var.getLevel() == level &&
+                    !(var instanceof SymEntry.RefParamEntry) ) {
+                return var;
+            }
+        }
+        return null;
+    }
+    /** @return whether the variable lval refers to is known to have been
+     * assigned, so that it holds a value of its type */
+    private boolean isInitialised( ExpNode lval ) {
+        SymEntry.VarEntry var = localVariable( lval );
+        return var != null && assigned.contains( var );
+    }
+    /** @return the ranges known once cond has been evaluated and found to
+     * be equal to sense, or null if it can't be */
+    private Map<SymEntry.VarEntry,Range> refine(
+            Map<SymEntry.VarEntry,Range> before, ExpNode cond,
+            boolean sense ) {
+        if( before == null ) {
+            return null;
+        }
+        Map<SymEntry.VarEntry,Range> saved = ranges;
+        ranges = new HashMap<SymEntry.VarEntry,Range>( before );
+        try {
+            if( cond instanceof ExpNode.ConstNode ) {
+                boolean value = ((ExpNode.ConstNode)cond).getValue() !=
+                    StackMachine.FALSE_VALUE;
+                return value == sense ? ranges : null;
+            }
+            if( !(cond instanceof ExpNode.BinaryOpNode) ) {
+                return ranges;
+            }
+            ExpNode.BinaryOpNode binary = (ExpNode.BinaryOpNode)cond;
+            BinaryOperator op = binary.getOp();
+            if( !sense ) {
+                op = negate( op );
+            }
+            if( op == null ) {
+                return ranges;
+            }
+            Range left = range( binary.getLeft() );
+            Range right = range( binary.getRight() );
+            if( !bound( binary.getLeft(), left, op, right ) ||
+                    !bound( binary.getRight(), right, swap( op ), left ) ) {
+                return null;
+            }
+            return ranges;
+        } finally {
+            ranges = saved;
+        }
+    }
+    /** Restrict the range of exp, if it is the value of a local variable,
+     * to the values x (in range) for which x op other holds for some value
+     * in other.
+     * @return false if there are no such values */
+    private boolean bound( ExpNode exp, Range range, BinaryOperator op,
+            Range other ) {
+        Range bounded;
+        switch( op ) {
+        case EQUALS_OP:
+            bounded = range.meet( other.lower, other.upper );
+            break;
+        case LESS_OP:
+            bounded = range.meet( Integer.MIN_VALUE, (long)other.upper - 1 );
+            break;
+        case LEQUALS_OP:
+            bounded = range.meet( Integer.MIN_VALUE, other.upper );
+            break;
+        case GREATER_OP:
+            bounded = range.meet( (long)other.lower + 1, Integer.MAX_VALUE );
+            break;
+        case GEQUALS_OP:
+            bounded = range.meet( other.lower, Integer.MAX_VALUE );
+            break;
+        default:
+            bounded = range;
+            break;
+        }
+        if( bounded == null ) {
+            return false;
+        }
+        while( exp instanceof ExpNode.WidenSubrangeNode ) {
+            exp = ((ExpNode.WidenSubrangeNode)exp).getExp();
+        }
+        if( exp instanceof ExpNode.DereferenceNode ) {
+            SymEntry.VarEntry var = localVariable(
+                    ((ExpNode.DereferenceNode)exp).getLeftValue() );
+            if( var != null ) {
+                ranges.put( var, bounded );
+            }
+        }
+        return true;
+    }
+    /** @return the comparison that holds exactly when op doesn't, or null
+     * if op isn't a comparison */
+    private static BinaryOperator negate( BinaryOperator op ) {
+        switch( op ) {
+        case EQUALS_OP:     return BinaryOperator.NEQUALS_OP;
+        case NEQUALS_OP:    return BinaryOperator.EQUALS_OP;
+        case LESS_OP:       return BinaryOperator.GEQUALS_OP;
+        case LEQUALS_OP:    return BinaryOperator.GREATER_OP;
+        case GREATER_OP:    return BinaryOperator.LEQUALS_OP;
+        case GEQUALS_OP:    return BinaryOperator.LESS_OP;
+        default:            return null;
+        }
+    }
+    /** @return the comparison op' with y op' x exactly when x op y */
+    private static BinaryOperator swap( BinaryOperator op ) {
+        switch( op ) {
+        case LESS_OP:       return BinaryOperator.GREATER_OP;
+        case LEQUALS_OP:    return BinaryOperator.GEQUALS_OP;
+        case GREATER_OP:    return BinaryOperator.LESS_OP;
+        case GEQUALS_OP:    return BinaryOperator.LEQUALS_OP;
+        default:            return op;
+        }
+    }
+    /** @return the ranges known after either of two paths */
+    private static Map<SymEntry.VarEntry,Range> join(
+            Map<SymEntry.VarEntry,Range> one,
+            Map<SymEntry.VarEntry,Range> other ) {
+        if( one == null ) {
+            return other;
+        } else if( other == null ) {
+            return one;
+        }
+        Iterator<Map.Entry<SymEntry.VarEntry,Range>> entries =
+            one.entrySet().iterator();
+        while( entries.hasNext() ) {
+            Map.Entry<SymEntry.VarEntry,Range> entry = entries.next();
+            Range range = other.get( entry.getKey() );
+            if( range == null ) {
+                entries.remove();
+            } else {
+                entry.setValue( entry.getValue().join( range ) );
+            }
+        }
+        return one;
+    }
+    /** Add the local variables assigned by s to assigned.
+     * @return false if s makes a call (which may change any of them) */
+    private boolean assigns( StatementNode s, Set<SymEntry.VarEntry> assigned ) {
+        if( s instanceof StatementNode.AssignmentNode ) {
+            SymEntry.VarEntry var = localVariable(
+                    ((StatementNode.AssignmentNode)s).getVariable() );
+            if( var != null ) {
+                assigned.add( var );
+            }
+            return true;
+        } else if( s instanceof StatementNode.CallNode ) {
+            return false;
+        } else if( s instanceof StatementNode.ListNode ) {
+            for( StatementNode t : ((StatementNode.ListNode)s).getStatements() ) {
+                if( !assigns( t, assigned ) ) {
+                    return false;
+                }
+            }
+            return true;
+        } else if( s instanceof StatementNode.IfNode ) {
+            StatementNode.IfNode ifNode = (StatementNode.IfNode)s;
+            return assigns( ifNode.getThenStmt(), assigned ) &&
+                assigns( ifNode.getElseStmt(), assigned );
+        } else if( s instanceof StatementNode.WhileNode ) {
+            return assigns( ((StatementNode.WhileNode)s).getLoopStmt(),
+                    assigned );
+        }
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+package tree;
+
+import junit.framework.TestCase;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+
+/**
+ * class RangeAnalyserTest - Junit test for RangeAnalyser
+ * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ */
+public class RangeAnalyserTest extends TestCase {
+
+    public RangeAnalyserTest(String arg0) {
+        super(arg0);
+    }
+
+    private final static Position POS = Position.NO_POSITION;
+
+    private Type.SubrangeType subrange;
+    private Scope mainScope;
+    private SymEntry.VarEntry i;
+    private SymEntry.VarEntry n;
+    private StatementNode.ListNode mainBody;
+    private Tree.ProgramNode program;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mainScope = new Scope( null, 1 );
+        subrange = new Type.SubrangeType(
+                new ConstExp.NumberNode( POS, mainScope, Type.INTEGER_TYPE, 1 ),
+                new ConstExp.NumberNode( POS, mainScope, Type.INTEGER_TYPE,
+                        10 ) );
+        subrange.resolveType( POS );
+        i = new SymEntry.VarEntry( "i", POS, mainScope,
+                new Type.ReferenceType( subrange ) );
+        i.resolve();
+        n = new SymEntry.VarEntry( "n", POS, mainScope,
+                new Type.ReferenceType( Type.INTEGER_TYPE ) );
+        n.resolve();
+        mainBody = new StatementNode.ListNode( POS );
+        Tree.BlockNode block =
+            new Tree.BlockNode( new DeclNode.DeclListNode(), mainBody );
+        block.setBlockLocals( mainScope );
+        program = new Tree.ProgramNode( null, block );
+    }
+
+    private ExpNode con( int value ) {
+        return new ExpNode.ConstNode( POS, Type.INTEGER_TYPE, value );
+    }
+    private ExpNode value( SymEntry.VarEntry var ) {
+        ExpNode exp = new ExpNode.DereferenceNode(
+                var.getType().getBaseType(),
+                new ExpNode.VariableNode( POS, var ) );
+        if( var.getType().getBaseType() instanceof Type.SubrangeType ) {
+            exp = new ExpNode.WidenSubrangeNode( POS, Type.INTEGER_TYPE, exp );
+        }
+        return exp;
+    }
+    private ExpNode binary( BinaryOperator op, ExpNode left, ExpNode right,
+            Type type ) {
+        ExpNode node = new ExpNode.BinaryOpNode( POS, op, left, right );
+        node.setType( type );
+        return node;
+    }
+    private StatementNode.AssignmentNode assignNarrowed(
+            SymEntry.VarEntry var, ExpNode exp ) {
+        return new StatementNode.AssignmentNode( POS,
+                new ExpNode.VariableNode( POS, var ),
+                new ExpNode.NarrowSubrangeNode( POS, subrange, exp ) );
+    }
+
+    /*
+     * Test that in
+     *   i := 1; while i < 10 do i := i + 1
+     * neither assignment needs its bounds check.
+     */
+    public void testLoop() {
+        StatementNode.AssignmentNode init = assignNarrowed( i, con( 1 ) );
+        StatementNode.AssignmentNode step = assignNarrowed( i,
+                binary( BinaryOperator.ADD_OP, value( i ), con( 1 ),
+                        Type.INTEGER_TYPE ) );
+        mainBody.addStatement( init );
+        mainBody.addStatement( new StatementNode.WhileNode( POS,
+                binary( BinaryOperator.LESS_OP, value( i ), con( 10 ),
+                        Type.BOOLEAN_TYPE ), step ) );
+
+        RangeAnalyser analyser = new RangeAnalyser();
+        analyser.visitProgramNode( program );
+        assertEquals( 2, analyser.getRemoved() );
+        assertTrue( init.getExp() instanceof ExpNode.ConstNode );
+        assertTrue( step.getExp() instanceof ExpNode.BinaryOpNode );
+    }
+    /*
+     * Test that the checks are kept when the value may be out of range:
+     *   n := read; i := n + 6; while n > 0 do i := n
+     */
+    public void testKept() {
+        ExpNode read = new ExpNode.ReadNode( POS );
+        read.setType( Type.INTEGER_TYPE );
+        mainBody.addStatement( new StatementNode.AssignmentNode( POS,
+                new ExpNode.VariableNode( POS, n ), read ) );
+        StatementNode.AssignmentNode sum = assignNarrowed( i,
+                binary( BinaryOperator.ADD_OP, value( n ), con( 6 ),
+                        Type.INTEGER_TYPE ) );
+        mainBody.addStatement( sum );
+        StatementNode.AssignmentNode body = assignNarrowed( i, value( n ) );
+        mainBody.addStatement( new StatementNode.WhileNode( POS,
+                binary( BinaryOperator.GREATER_OP, value( n ), con( 0 ),
+                        Type.BOOLEAN_TYPE ), body ) );
+
+        RangeAnalyser analyser = new RangeAnalyser();
+        analyser.visitProgramNode( program );
+        assertEquals( 0, analyser.getRemoved() );
+        assertTrue( sum.getExp() instanceof ExpNode.NarrowSubrangeNode );
+        assertTrue( body.getExp() instanceof ExpNode.NarrowSubrangeNode );
+    }
+    /*
+     * Test that in
+     *   i := i; i := i
+     * the first check is kept, as i hasn't been assigned and may hold
+     * NULL_ADDR, but the second is removed.
+     */
+    public void testUnassigned() {
+        StatementNode.AssignmentNode first = assignNarrowed( i, value( i ) );
+        StatementNode.AssignmentNode second = assignNarrowed( i, value( i ) );
+        mainBody.addStatement( first );
+        mainBody.addStatement( second );
+
+        RangeAnalyser analyser = new RangeAnalyser();
+        analyser.visitProgramNode( program );
+        assertEquals( 1, analyser.getRemoved() );
+        assertTrue( first.getExp() instanceof ExpNode.NarrowSubrangeNode );
+        assertFalse( second.getExp() instanceof ExpNode.NarrowSubrangeNode );
+    }
+    /*
+     * Test that in a procedure p(x: 1..10) the check of
+     *   i := x
+     * is kept, as the caller may pass the value of an unassigned variable,
+     * but once x has been assigned the check of a second i := x is removed.
+     */
+    public void testParameter() {
+        Scope scope = new Scope( mainScope, 2 );
+        SymEntry.VarEntry x = new SymEntry.ParamEntry( "x", POS, scope,
+                new Type.ReferenceType( subrange ) );
+        x.resolve();
+        StatementNode.AssignmentNode first = assignNarrowed( i, value( x ) );
+        StatementNode.AssignmentNode second = assignNarrowed( i, value( x ) );
+        StatementNode.ListNode body = new StatementNode.ListNode( POS );
+        body.addStatement( first );
+        body.addStatement( assignNarrowed( x, con( 3 ) ) );
+        body.addStatement( second );
+        Tree.BlockNode block =
+            new Tree.BlockNode( new DeclNode.DeclListNode(), body );
+        block.setBlockLocals( scope );
+
+        RangeAnalyser analyser = new RangeAnalyser();
+        analyser.visitBlockNode( block );
+        assertEquals( 2, analyser.getRemoved() );
+        assertTrue( first.getExp() instanceof ExpNode.NarrowSubrangeNode );
+        assertFalse( second.getExp() instanceof ExpNode.NarrowSubrangeNode );
+    }
+}
@@ -243,6 +243,12 @@ public abstract class StatementNode {
         public StatementNode getElseStmt() {
             return elseStmt;
         }
+        public void setThenStmt( StatementNode thenStmt ) {
+            this.thenStmt = thenStmt;
+        }
+        public void setElseStmt( StatementNode elseStmt ) {
+            this.elseStmt = elseStmt;
+        }
         @Override
         public String toString( ) {
             return "IF " + condition.toString() + " THEN " + thenStmt +
@@ -278,6 +284,9 @@ public abstract class StatementNode {
         public StatementNode getLoopStmt() {
             return loopStmt;
         }
+        public void setLoopStmt( StatementNode loopStmt ) {
+            this.loopStmt = loopStmt;
+        }
         @Override
         public String toString( ) {
             return "WHILE " + condition.toString() + " DO " +
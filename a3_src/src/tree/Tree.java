@@ -64,6 +64,9 @@ public abstract class Tree {
         public StatementNode getBody() {
             return body;
         }
+        public void setBody( StatementNode body ) {
+            this.body = body;
+        }
         public Scope getBlockLocals() {
             return blockLocals;
         }